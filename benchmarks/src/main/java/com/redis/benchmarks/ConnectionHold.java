@@ -0,0 +1,236 @@
+package com.redis.benchmarks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// The hold test of LoadGenerator: how many mostly idle connections one server process can keep. Connections are
+// opened in steps; after each step every open connection sends one PING and the step passes if all of them
+// answer within the round timeout. It stops at the target, or at the first step where a connect fails or a
+// connection doesn't answer, and says which. The generator keeps all of its sockets on one selector thread, so
+// the client side costs no thread per connection.
+final class ConnectionHold {
+    private static final byte[] PING = LoadGenerator.encode("PING");
+    private static final int PONG_LENGTH = "+PONG\r\n".length();
+    private static final int CONNECT_TIMEOUT_MILLIS = 5_000;
+
+    private final InetSocketAddress address;
+    private final int target;
+    private final int step;
+    private final long roundTimeoutMillis;
+    private final long holdSeconds;
+    private final long pingIntervalMillis;
+    // The server's process when the generator started it, to report its memory and threads; null otherwise
+    private final ProcessHandle server;
+    private final List<SocketChannel> channels = new ArrayList<>();
+
+    ConnectionHold(String host, int port, int target, int step, long roundTimeoutMillis, long holdSeconds, long pingIntervalMillis, ProcessHandle server) {
+        this.address = new InetSocketAddress(host, port);
+        this.target = target;
+        this.step = step;
+        this.roundTimeoutMillis = roundTimeoutMillis;
+        this.holdSeconds = holdSeconds;
+        this.pingIntervalMillis = pingIntervalMillis;
+        this.server = server;
+    }
+
+    // Result of one ping round
+    private record Round(int answered, int failed, long[] latencies) {
+    }
+
+    void run() throws IOException {
+        System.out.println("====== HOLD ======");
+        System.out.printf(Locale.ROOT, "  up to %d connections in steps of %d, %d ms for every connection to answer a PING%n",
+            target, step, roundTimeoutMillis);
+        try (Selector selector = Selector.open()) {
+            String failure = null;
+            while (channels.size() < target && failure == null) {
+                int goal = Math.min(target, channels.size() + step);
+                try {
+                    while (channels.size() < goal) {
+                        open(selector);
+                    }
+                } catch (IOException e) {
+                    failure = "connect " + (channels.size() + 1) + " failed: " + e.getMessage();
+                }
+                Round round = ping(selector);
+                report(round);
+                if (round.failed > 0) {
+                    failure = round.failed + " of " + channels.size() + " connections did not answer within " + roundTimeoutMillis + " ms";
+                }
+            }
+            if (failure == null && holdSeconds > 0) {
+                // Every connection pings once per interval for a while, to see the server keep them all
+                long end = System.currentTimeMillis() + holdSeconds * 1000;
+                Round worst = null;
+                while (System.currentTimeMillis() < end && (worst == null || worst.failed == 0)) {
+                    long started = System.currentTimeMillis();
+                    Round round = ping(selector);
+                    if (worst == null || round.failed > 0 || percentile(round.latencies, 99) > percentile(worst.latencies, 99)) {
+                        worst = round;
+                    }
+                    long wait = pingIntervalMillis - (System.currentTimeMillis() - started);
+                    if (wait > 0) {
+                        sleep(wait);
+                    }
+                }
+                System.out.printf(Locale.ROOT, "  held for %d s, pinging every %d ms; worst round:%n", holdSeconds, pingIntervalMillis);
+                report(worst);
+                if (worst.failed > 0) {
+                    failure = worst.failed + " of " + channels.size() + " connections stopped answering while held";
+                }
+            }
+            System.out.println(failure == null
+                ? "  held all " + channels.size() + " connections"
+                : "  stopped at " + channels.size() + " connections: " + failure);
+            System.out.println();
+        } finally {
+            for (SocketChannel channel : channels) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Closing anyway
+                }
+            }
+            channels.clear();
+        }
+    }
+
+    private void open(Selector selector) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(address, CONNECT_TIMEOUT_MILLIS);
+            channel.configureBlocking(false);
+            // Bytes of the PONG read so far, and the connection's index
+            channel.register(selector, SelectionKey.OP_READ, new int[] {0, channels.size()});
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        channels.add(channel);
+    }
+
+    // Sends a PING on every connection, then reads until they all answered or the round timed out
+    private Round ping(Selector selector) throws IOException {
+        long[] sent = new long[channels.size()];
+        long[] latencies = new long[channels.size()];
+        int answered = 0;
+        int failed = 0;
+        for (int i = 0; i < channels.size(); i++) {
+            SocketChannel channel = channels.get(i);
+            SelectionKey key = channel.keyFor(selector);
+            if (key == null || !key.isValid()) {
+                failed++;
+                continue;
+            }
+            ((int[]) key.attachment())[0] = 0;
+            sent[i] = System.nanoTime();
+            try {
+                // 14 bytes on an idle socket always fit in its send buffer
+                channel.write(ByteBuffer.wrap(PING));
+            } catch (IOException e) {
+                key.cancel();
+                failed++;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long deadline = System.currentTimeMillis() + roundTimeoutMillis;
+        int pending = channels.size() - failed;
+        while (pending > 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            selector.select(remaining);
+            for (SelectionKey key : selector.selectedKeys()) {
+                SocketChannel channel = (SocketChannel) key.channel();
+                int[] received = (int[]) key.attachment();
+                buffer.clear();
+                int read;
+                try {
+                    read = channel.read(buffer);
+                } catch (IOException e) {
+                    read = -1;
+                }
+                if (read == -1) {
+                    // Closed by the server
+                    key.cancel();
+                    failed++;
+                    pending--;
+                } else if (received[0] < PONG_LENGTH && (received[0] += read) >= PONG_LENGTH) {
+                    latencies[answered++] = System.nanoTime() - sent[received[1]];
+                    pending--;
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+        failed += pending;
+        long[] answeredLatencies = Arrays.copyOf(latencies, answered);
+        Arrays.sort(answeredLatencies);
+        return new Round(answered, failed, answeredLatencies);
+    }
+
+    private void report(Round round) {
+        StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "  %6d connections: %d answered", channels.size(), round.answered));
+        if (round.latencies.length > 0) {
+            line.append(String.format(Locale.ROOT, ", ping p50 %.2f ms p99 %.2f ms max %.2f ms",
+                percentile(round.latencies, 50) / 1e6, percentile(round.latencies, 99) / 1e6,
+                round.latencies[round.latencies.length - 1] / 1e6));
+        }
+        if (round.failed > 0) {
+            line.append(", ").append(round.failed).append(" failed");
+        }
+        String status = serverStatus();
+        if (status != null) {
+            line.append(", server ").append(status);
+        }
+        System.out.println(line);
+    }
+
+    // Resident memory and thread count of the server, from /proc on Linux
+    private String serverStatus() {
+        if (server == null) {
+            return null;
+        }
+        try {
+            long rssKb = -1;
+            long threads = -1;
+            for (String line : Files.readAllLines(Path.of("/proc", Long.toString(server.pid()), "status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    rssKb = Long.parseLong(line.replaceAll("\\D", ""));
+                } else if (line.startsWith("Threads:")) {
+                    threads = Long.parseLong(line.replaceAll("\\D", ""));
+                }
+            }
+            return String.format(Locale.ROOT, "rss %d MB, %d threads", rssKb / 1024, threads);
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Nearest-rank percentile of sorted values
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.redis.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.redis.data.Cache;
+import com.redis.data.Keyspace;
+import com.redis.data.RedisObject;
+
+// GET and SET against the keyspace, below the network and command layers: the lookup with its expiry check, and
+// the put with memory accounting. Run with -t N for contention on the shared maps.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyspaceBenchmark {
+    @Param({"1000", "1000000"})
+    public int keys;
+
+    @Param({"16", "1024"})
+    public int valueSize;
+
+    private Keyspace keyspace;
+    private String[] names;
+    private byte[] value;
+
+    @Setup
+    public void setUp() {
+        keyspace = new Keyspace();
+        names = new String[keys];
+        value = new byte[valueSize];
+        Arrays.fill(value, (byte) 'x');
+        for (int i = 0; i < keys; i++) {
+            names[i] = "key:" + i;
+            keyspace.put(names[i], keyspace.newCache(value, -1));
+        }
+    }
+
+    @Benchmark
+    public RedisObject get() {
+        return keyspace.get(names[ThreadLocalRandom.current().nextInt(keys)], Cache.class);
+    }
+
+    @Benchmark
+    public void set() {
+        keyspace.put(names[ThreadLocalRandom.current().nextInt(keys)], keyspace.newCache(value, -1));
+    }
+}
@@ -0,0 +1,526 @@
+package com.redis.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Closed-loop load generator in the spirit of redis-benchmark: every client sends a pipeline of requests, waits
+// for all of their replies and only then sends the next one, so the offered load adapts to the server instead of
+// queueing up in front of it. A request's latency runs from when its pipeline was written to when its reply was
+// read. Keys are picked uniformly, sequentially or with a Zipf skew over a fixed key space.
+//
+// java -cp target/benchmarks.jar com.redis.benchmarks.LoadGenerator --tests set,get --clients 50 --pipeline 16
+// java -cp target/benchmarks.jar com.redis.benchmarks.LoadGenerator --start-server yes --server-args "--io-mode nio"
+//
+// The hold test instead ramps up mostly idle connections (see ConnectionHold), and --io-modes runs every test
+// against a fresh server per io-mode:
+// java -cp target/benchmarks.jar com.redis.benchmarks.LoadGenerator --start-server yes --tests hold --io-modes blocking,virtual,nio
+//
+// --pipelines and --data-sizes repeat every test per pipeline depth and value size, and --value-storages per
+// server started with that --value-storage. Against a server that reports gc_time_ms in INFO, every test also
+// prints the collections and collection time the server spent on it:
+// java -cp target/benchmarks.jar com.redis.benchmarks.LoadGenerator --start-server yes --tests set,get --pipelines 1,16,128
+// java -cp target/benchmarks.jar com.redis.benchmarks.LoadGenerator --start-server yes --value-storages heap,offheap --data-sizes 1024,16384,65536
+public class LoadGenerator {
+    private static final List<String> TESTS = List.of("ping", "set", "get", "incr", "mset", "mget", "lpush", "lpop", "hset", "sadd", "zadd", "xadd", "hold");
+    // Keys each MSET request writes
+    private static final int MSET_KEYS = 10;
+
+    private final String host;
+    private final int port;
+    private final int clients;
+    private final long requests;
+    private final int keyspace;
+    private final int mgetKeys;
+    private final String distribution;
+    // Cumulative Zipf probabilities of the key ranks, for --distribution zipf
+    private final double[] zipf;
+
+    private LoadGenerator(Map<String, String> options) {
+        host = options.get("host");
+        port = Integer.parseInt(options.get("port"));
+        clients = Integer.parseInt(options.get("clients"));
+        requests = Long.parseLong(options.get("requests"));
+        keyspace = Integer.parseInt(options.get("keyspace"));
+        mgetKeys = Integer.parseInt(options.get("mget-keys"));
+        distribution = options.get("distribution");
+        if (clients < 1 || keyspace < 1 || requests < 1 || mgetKeys < 1) {
+            throw new IllegalArgumentException("clients, keyspace, requests and mget-keys must be at least 1");
+        }
+        if (distribution.equals("zipf")) {
+            zipf = zipfDistribution(keyspace, Double.parseDouble(options.get("zipf-exponent")));
+        } else if (distribution.equals("uniform") || distribution.equals("sequential")) {
+            zipf = null;
+        } else {
+            throw new IllegalArgumentException("Unknown distribution " + distribution + ": uniform, sequential or zipf");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("host", "127.0.0.1");
+        options.put("port", "6379");
+        options.put("clients", "50");
+        options.put("requests", "100000");
+        options.put("pipeline", "1");
+        // Comma-separated depths, each running every test; overrides pipeline
+        options.put("pipelines", "");
+        options.put("tests", "set,get");
+        // Keys are <type>:<n> for n below keyspace
+        options.put("keyspace", "100000");
+        options.put("distribution", "uniform");
+        options.put("zipf-exponent", "0.99");
+        options.put("data-size", "3");
+        // Comma-separated value sizes in bytes, each running every test; overrides data-size
+        options.put("data-sizes", "");
+        // Keys per MGET request
+        options.put("mget-keys", "100");
+        // Starts com.redis.Main from this jar on port, with server-args, and stops it at the end
+        options.put("start-server", "no");
+        options.put("server-args", "");
+        options.put("server-jvm-args", "");
+        // With start-server, runs the tests once per io-mode listed, each against a new server
+        options.put("io-modes", "");
+        // With start-server, runs the tests once per --value-storage listed (heap, offheap), each against a new server
+        options.put("value-storages", "");
+        // The hold test: connections to reach, opened step at a time, each step pinging every connection once
+        options.put("connections", "10000");
+        options.put("step", "1000");
+        options.put("round-timeout", "5000");
+        // Once all are open, every connection pings each ping-interval milliseconds for hold-seconds
+        options.put("hold-seconds", "10");
+        options.put("ping-interval", "1000");
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || !options.containsKey(args[i].substring(2)) || i + 1 >= args.length) {
+                System.err.println("Usage: LoadGenerator [--name value ...], defaults: " + options);
+                System.err.println("Tests: " + String.join(",", TESTS));
+                System.exit(1);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+
+        LoadGenerator generator = new LoadGenerator(options);
+        List<String> tests = Arrays.asList(options.get("tests").toLowerCase(Locale.ROOT).split(","));
+        for (String test : tests) {
+            if (!TESTS.contains(test)) {
+                throw new IllegalArgumentException("Unknown test " + test + ": " + String.join(",", TESTS));
+            }
+        }
+
+        List<Integer> pipelines = integers(options.get("pipelines").isBlank() ? options.get("pipeline") : options.get("pipelines"));
+        List<Integer> dataSizes = integers(options.get("data-sizes").isBlank() ? options.get("data-size") : options.get("data-sizes"));
+        if (pipelines.stream().anyMatch(pipeline -> pipeline < 1)) {
+            throw new IllegalArgumentException("pipeline depths must be at least 1");
+        }
+
+        boolean startServer = options.get("start-server").equalsIgnoreCase("yes");
+        List<String> ioModes = values(options.get("io-modes"), startServer);
+        List<String> valueStorages = values(options.get("value-storages"), startServer);
+        for (String ioMode : ioModes) {
+            for (String valueStorage : valueStorages) {
+                Process server = null;
+                if (startServer) {
+                    String serverArgs = options.get("server-args");
+                    if (!ioMode.isEmpty()) {
+                        System.out.println("###### io-mode " + ioMode + " ######");
+                        serverArgs += " --io-mode " + ioMode;
+                    }
+                    if (!valueStorage.isEmpty()) {
+                        System.out.println("###### value-storage " + valueStorage + " ######");
+                        serverArgs += " --value-storage " + valueStorage;
+                    }
+                    server = startServer(generator.port, serverArgs, options.get("server-jvm-args"));
+                }
+                try {
+                    for (int dataSize : dataSizes) {
+                        String value = "x".repeat(dataSize);
+                        for (int pipeline : pipelines) {
+                            for (String test : tests) {
+                                if (test.equals("hold")) {
+                                    new ConnectionHold(generator.host, generator.port, Integer.parseInt(options.get("connections")),
+                                        Integer.parseInt(options.get("step")), Long.parseLong(options.get("round-timeout")),
+                                        Long.parseLong(options.get("hold-seconds")), Long.parseLong(options.get("ping-interval")),
+                                        server == null ? null : server.toHandle()).run();
+                                } else {
+                                    generator.run(test, pipeline, value);
+                                }
+                            }
+                        }
+                    }
+                } finally {
+                    if (server != null) {
+                        server.destroy();
+                        server.waitFor();
+                    }
+                }
+            }
+        }
+    }
+
+    // A comma-separated option as a list; one empty value, meaning "as configured", when blank or without a server
+    private static List<String> values(String option, boolean startServer) {
+        return option.isBlank() || !startServer ? List.of("") : Arrays.asList(option.split(","));
+    }
+
+    private static List<Integer> integers(String option) {
+        return Arrays.stream(option.split(",")).map(String::trim).map(Integer::valueOf).toList();
+    }
+
+    private void run(String test, int pipeline, String value) throws InterruptedException {
+        Map<String, Long> gcBefore = serverGc();
+        AtomicLong remaining = new AtomicLong(requests);
+        AtomicLong sequence = new AtomicLong();
+        AtomicReference<String> firstError = new AtomicReference<>();
+        AtomicLong errors = new AtomicLong();
+        long[][] latencies = new long[clients][];
+        Thread[] threads = new Thread[clients];
+        long started = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            int client = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    latencies[client] = runClient(test, pipeline, value, remaining, sequence, errors, firstError);
+                } catch (IOException e) {
+                    firstError.compareAndSet(null, "client " + client + ": " + e);
+                    latencies[client] = new long[0];
+                }
+            }, "load-client-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - started;
+        Map<String, Long> gcAfter = serverGc();
+
+        long completed = 0;
+        for (long[] client : latencies) {
+            completed += client.length;
+        }
+        long[] all = new long[(int) completed];
+        int position = 0;
+        for (long[] client : latencies) {
+            System.arraycopy(client, 0, all, position, client.length);
+            position += client.length;
+        }
+        Arrays.sort(all);
+
+        System.out.println("====== " + test.toUpperCase(Locale.ROOT) + " ======");
+        System.out.printf(Locale.ROOT, "  %d requests completed in %.2f seconds%n", completed, elapsed / 1e9);
+        System.out.printf(Locale.ROOT, "  %d parallel clients, pipeline %d, %d byte payload, %s keys over %d%n",
+            clients, pipeline, value.length(), distribution, keyspace);
+        System.out.printf(Locale.ROOT, "  throughput: %.1f requests per second%n", completed / (elapsed / 1e9));
+        int keys = keysPerRequest(test);
+        if (keys > 0) {
+            // What one key costs, to set MGET and MSET against pipelined GETs and SETs
+            System.out.printf(Locale.ROOT, "  per key: %d keys per request, %.1f keys per second, %.3f us per key%n",
+                keys, completed * keys / (elapsed / 1e9), elapsed / 1e3 / (completed * (double) keys));
+        }
+        if (gcBefore != null && gcAfter != null) {
+            System.out.printf(Locale.ROOT, "  server gc: %d collections, %d ms%n",
+                gcAfter.get("gc_collections") - gcBefore.get("gc_collections"), gcAfter.get("gc_time_ms") - gcBefore.get("gc_time_ms"));
+        }
+        if (all.length > 0) {
+            System.out.printf(Locale.ROOT, "  latency (ms): avg %.3f  p50 %.3f  p99 %.3f  p999 %.3f  max %.3f%n",
+                Arrays.stream(all).average().orElse(0) / 1e6, percentile(all, 50) / 1e6, percentile(all, 99) / 1e6,
+                percentile(all, 99.9) / 1e6, all[all.length - 1] / 1e6);
+        }
+        if (errors.get() > 0 || firstError.get() != null) {
+            System.out.println("  " + errors.get() + " error replies; first: " + firstError.get());
+        }
+        System.out.println();
+    }
+
+    // Latencies in nanoseconds of the requests this client completed
+    private long[] runClient(String test, int pipeline, String value, AtomicLong remaining, AtomicLong sequence, AtomicLong errors, AtomicReference<String> firstError) throws IOException {
+        long[] latencies = new long[1024];
+        int completed = 0;
+        try (Socket socket = new Socket()) {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port));
+            OutputStream out = socket.getOutputStream();
+            ReplyReader in = new ReplyReader(socket.getInputStream());
+            Batch batch = new Batch();
+            while (true) {
+                long claimed = remaining.getAndAdd(-pipeline);
+                if (claimed <= 0) {
+                    return Arrays.copyOf(latencies, completed);
+                }
+                int count = (int) Math.min(pipeline, claimed);
+                batch.reset();
+                for (int i = 0; i < count; i++) {
+                    batch.add(command(test, value, nextKey(sequence)));
+                }
+                long sent = System.nanoTime();
+                out.write(batch.bytes, 0, batch.size);
+                for (int i = 0; i < count; i++) {
+                    String error = in.readReply();
+                    long latency = System.nanoTime() - sent;
+                    if (error != null) {
+                        errors.incrementAndGet();
+                        firstError.compareAndSet(null, error);
+                    }
+                    if (completed == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, completed * 2);
+                    }
+                    latencies[completed++] = latency;
+                }
+            }
+        }
+    }
+
+    private String[] command(String test, String data, long key) {
+        String suffix = ":" + key;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return switch (test) {
+            case "ping" -> new String[] {"PING"};
+            case "set" -> new String[] {"SET", "key" + suffix, data};
+            case "get" -> new String[] {"GET", "key" + suffix};
+            case "incr" -> new String[] {"INCR", "counter" + suffix};
+            case "mset" -> {
+                String[] mset = new String[1 + MSET_KEYS * 2];
+                mset[0] = "MSET";
+                for (int i = 0; i < MSET_KEYS; i++) {
+                    mset[1 + i * 2] = "key:" + ((key + i) % keyspace);
+                    mset[2 + i * 2] = data;
+                }
+                yield mset;
+            }
+            case "mget" -> {
+                String[] mget = new String[1 + mgetKeys];
+                mget[0] = "MGET";
+                for (int i = 0; i < mgetKeys; i++) {
+                    mget[1 + i] = "key:" + ((key + i) % keyspace);
+                }
+                yield mget;
+            }
+            case "lpush" -> new String[] {"LPUSH", "list" + suffix, data};
+            case "lpop" -> new String[] {"LPOP", "list" + suffix};
+            case "hset" -> new String[] {"HSET", "hash" + suffix, "field:" + random.nextInt(100), data};
+            case "sadd" -> new String[] {"SADD", "set" + suffix, "member:" + random.nextInt(1000)};
+            case "zadd" -> new String[] {"ZADD", "zset" + suffix, Integer.toString(random.nextInt(1_000_000)), "member:" + random.nextInt(1000)};
+            default -> new String[] {"XADD", "stream" + suffix, "*", "field", data};
+        };
+    }
+
+    // Keys one request of the test reads or writes, for the string tests; 0 for the others
+    private int keysPerRequest(String test) {
+        return switch (test) {
+            case "get", "set" -> 1;
+            case "mset" -> MSET_KEYS;
+            case "mget" -> mgetKeys;
+            default -> 0;
+        };
+    }
+
+    // gc_collections and gc_time_ms from the server's INFO memory, or null if it doesn't report them
+    private Map<String, Long> serverGc() {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), 5_000);
+            socket.getOutputStream().write(encode("INFO", "memory"));
+            String info = new ReplyReader(socket.getInputStream()).readBulk();
+            Map<String, Long> gc = new LinkedHashMap<>();
+            for (String line : info.split("\r\n")) {
+                if (line.startsWith("gc_collections:") || line.startsWith("gc_time_ms:")) {
+                    gc.put(line.substring(0, line.indexOf(':')), Long.parseLong(line.substring(line.indexOf(':') + 1)));
+                }
+            }
+            return gc.size() == 2 ? gc : null;
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private long nextKey(AtomicLong sequence) {
+        if (distribution.equals("sequential")) {
+            return sequence.getAndIncrement() % keyspace;
+        }
+        if (zipf == null) {
+            return ThreadLocalRandom.current().nextInt(keyspace);
+        }
+        int rank = Arrays.binarySearch(zipf, ThreadLocalRandom.current().nextDouble());
+        return Math.min(rank < 0 ? -rank - 1 : rank, keyspace - 1);
+    }
+
+    // P(rank k) proportional to 1 / k^exponent, accumulated and normalised to end at 1
+    private static double[] zipfDistribution(int keys, double exponent) {
+        double[] cumulative = new double[keys];
+        double sum = 0;
+        for (int i = 0; i < keys; i++) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < keys; i++) {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    // Nearest-rank percentile of sorted values
+    private static long percentile(long[] sorted, double percentile) {
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+
+    // The server runs in its own JVM, so its garbage and threads don't mix with the generator's. It doesn't save
+    // snapshots unless server-args ask for it.
+    private static Process startServer(int port, String serverArgs, String jvmArgs) throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("load-generator");
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        if (!jvmArgs.isBlank()) {
+            command.addAll(Arrays.asList(jvmArgs.trim().split("\\s+")));
+        }
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"), "com.redis.Main",
+            "--port", Integer.toString(port), "--dir", dir.toString(), "--save", ""));
+        if (!serverArgs.isBlank()) {
+            command.addAll(Arrays.asList(serverArgs.trim().split("\\s+")));
+        }
+        Process server = new ProcessBuilder(command)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::destroy));
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            try (Socket probe = new Socket("127.0.0.1", port)) {
+                return server;
+            } catch (IOException e) {
+                if (!server.isAlive() || System.currentTimeMillis() > deadline) {
+                    server.destroy();
+                    throw new IOException("Server did not start on port " + port);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    // RESP array of bulk strings
+    static byte[] encode(String... arguments) {
+        Batch batch = new Batch();
+        batch.add(arguments);
+        return Arrays.copyOf(batch.bytes, batch.size);
+    }
+
+    // Pipelined requests, encoded into one reusable array. Strings are byte strings, one char per byte.
+    private static final class Batch {
+        private byte[] bytes = new byte[4096];
+        private int size;
+
+        void reset() {
+            size = 0;
+        }
+
+        void add(String[] arguments) {
+            append("*" + arguments.length + "\r\n");
+            for (String argument : arguments) {
+                append("$" + argument.length() + "\r\n");
+                append(argument);
+                append("\r\n");
+            }
+        }
+
+        private void append(String text) {
+            if (size + text.length() > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + text.length()));
+            }
+            for (int i = 0; i < text.length(); i++) {
+                bytes[size++] = (byte) text.charAt(i);
+            }
+        }
+    }
+
+    // Reads whole replies without keeping them
+    private static final class ReplyReader {
+        private final InputStream in;
+
+        ReplyReader(InputStream in) {
+            this.in = new BufferedInputStream(in, 64 * 1024);
+        }
+
+        // The message of an error reply, null for any other reply
+        String readReply() throws IOException {
+            int type = read();
+            String line = readLine();
+            switch (type) {
+                case '-':
+                    return line;
+                case '+':
+                case ':':
+                    return null;
+                case '$':
+                    long length = Long.parseLong(line);
+                    if (length >= 0) {
+                        skip(length + 2);
+                    }
+                    return null;
+                case '*':
+                    String error = null;
+                    for (long n = Long.parseLong(line); n > 0; n--) {
+                        String nested = readReply();
+                        error = error != null ? error : nested;
+                    }
+                    return error;
+                default:
+                    throw new IOException("Unexpected reply type " + (char) type);
+            }
+        }
+
+        // The contents of a bulk string reply, e.g. INFO's
+        String readBulk() throws IOException {
+            int type = read();
+            String line = readLine();
+            if (type != '$') {
+                throw new IOException("Expected a bulk string, got " + (char) type + line);
+            }
+            byte[] bulk = in.readNBytes(Integer.parseInt(line));
+            skip(2);
+            return new String(bulk, StandardCharsets.ISO_8859_1);
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = read()) != '\r') {
+                line.append((char) b);
+            }
+            read();
+            return line.toString();
+        }
+
+        private void skip(long n) throws IOException {
+            while (n > 0) {
+                long skipped = in.skip(n);
+                if (skipped <= 0) {
+                    read();
+                    skipped = 1;
+                }
+                n -= skipped;
+            }
+        }
+
+        private int read() throws IOException {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Server closed the connection");
+            }
+            return b;
+        }
+    }
+}
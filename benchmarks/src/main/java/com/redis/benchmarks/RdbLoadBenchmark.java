@@ -0,0 +1,83 @@
+package com.redis.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.redis.data.Keyspace;
+import com.redis.data.RdbFileLoader;
+import com.redis.data.RdbFileWriter;
+
+// Startup time: how long RdbFileLoader takes to load a whole file, which RdbFileWriter made at setup, into an
+// empty keyspace. Each iteration is one load; keys divided by its time is the load rate. Half the values are
+// integers, which take the loader's integer path. 3M keys of 1024 bytes need a heap of about 4 GB, hence -Xmx5g:
+// java -jar target/benchmarks.jar RdbLoadBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx5g")
+public class RdbLoadBenchmark {
+    @Param({"3000000"})
+    public int keys;
+
+    @Param({"16", "1024"})
+    public int valueSize;
+
+    // Decoding threads besides the parsing one
+    @Param({"1", "4"})
+    public int workers;
+
+    private Path dir;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("rdb-benchmark");
+        Keyspace keyspace = new Keyspace();
+        byte[] value = new byte[valueSize];
+        Arrays.fill(value, (byte) 'x');
+        for (int i = 0; i < keys; i++) {
+            keyspace.put("key:" + i, i % 2 == 0 ? keyspace.newCache(value, -1) : keyspace.newCache(i, -1));
+        }
+        new RdbFileWriter(keyspace).write(dir.resolve("dump.rdb"), keyspace.beginSnapshot());
+    }
+
+    // The keyspace the last iteration loaded is garbage by now; a server starting up has none to collect
+    @Setup(Level.Iteration)
+    public void collectLastLoad() {
+        System.gc();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(dir.resolve("dump.rdb"));
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public Keyspace load() {
+        Keyspace keyspace = new Keyspace();
+        new RdbFileLoader(dir.toString(), "dump.rdb", keyspace, workers).load();
+        if (keyspace.size() != keys) {
+            throw new IllegalStateException("Loaded " + keyspace.size() + " of " + keys + " keys");
+        }
+        return keyspace;
+    }
+}
@@ -0,0 +1,125 @@
+package com.redis.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.redis.commands.CommandProcessor.RedisParser;
+import com.redis.commands.RespParser;
+
+// RespParser over a buffer of pipelined commands, as a connection's read buffer holds them: framing alone, and
+// framing plus decoding the key the way a handler does. lineParser is the baseline, the parser RespParser
+// replaced: a BufferedReader over an InputStreamReader, one readLine() per length and per argument.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RespParserBenchmark {
+    private static final int COMMANDS = 1000;
+
+    // GET key, SET key value, or MSET of 10 keys
+    @Param({"GET", "SET", "MSET"})
+    public String command;
+
+    @Param({"16", "1024"})
+    public int valueSize;
+
+    private ByteBuffer buffer;
+    private byte[] input;
+    private final RespParser parser = new RespParser();
+
+    @Setup
+    public void setUp() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        char[] filler = new char[valueSize];
+        Arrays.fill(filler, 'x');
+        String value = new String(filler);
+        for (int i = 0; i < COMMANDS; i++) {
+            String key = "key:" + i;
+            String[] arguments = switch (command) {
+                case "GET" -> new String[] {"GET", key};
+                case "SET" -> new String[] {"SET", key, value};
+                default -> {
+                    String[] mset = new String[21];
+                    mset[0] = "MSET";
+                    for (int k = 0; k < 10; k++) {
+                        mset[1 + k * 2] = key + ":" + k;
+                        mset[2 + k * 2] = value;
+                    }
+                    yield mset;
+                }
+            };
+            out.write(LoadGenerator.encode(arguments));
+        }
+        input = out.toByteArray();
+        buffer = ByteBuffer.wrap(input);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public void parse(Blackhole blackhole) throws IOException {
+        buffer.rewind();
+        RedisParser parsed;
+        while ((parsed = parser.parse(buffer)) != null) {
+            blackhole.consume(parsed);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public void parseAndDecodeKey(Blackhole blackhole) throws IOException {
+        buffer.rewind();
+        RedisParser parsed;
+        while ((parsed = parser.parse(buffer)) != null) {
+            blackhole.consume(parsed.getKey());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public void lineParser(Blackhole blackhole) throws IOException {
+        // The old server made one reader per connection; here per batch, which is little next to 1000 commands
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(input)));
+        for (int i = 0; i < COMMANDS; i++) {
+            blackhole.consume(parseLine(reader));
+        }
+    }
+
+    // The line parser as it was before RespParser, which already decodes every argument to a String
+    private static List<String> parseLine(BufferedReader reader) throws IOException {
+        String firstLine = reader.readLine();
+        if (firstLine == null || !firstLine.startsWith("*")) {
+            throw new IOException("Responding...");
+        }
+        int numOfArgs = Integer.parseInt(firstLine.substring(1));
+        List<String> arguments = new ArrayList<>();
+        for (int i = 0; i < numOfArgs; i++) {
+            reader.readLine(); // ($3) length of argument
+            arguments.add(reader.readLine());
+        }
+        return arguments;
+    }
+}
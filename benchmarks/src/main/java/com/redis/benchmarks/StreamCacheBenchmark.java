@@ -0,0 +1,74 @@
+package com.redis.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.redis.data.StreamCache;
+import com.redis.data.StreamEntry;
+import com.redis.data.StreamId;
+
+// XADD and XRANGE on a stream of 1K or 1M entries, with the stream's lock taken as the handlers take it.
+// The stream is rebuilt for every iteration, so XADD always starts from the same length.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamCacheBenchmark {
+    private static final List<String> FIELDS = List.of("sensor", "temperature", "reading", "21.5");
+
+    @Param({"1000", "1000000"})
+    public int entries;
+
+    // Entries per XRANGE
+    @Param({"10", "100"})
+    public int count;
+
+    private StreamCache stream;
+    private long nextMillis;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        stream = new StreamCache();
+        for (nextMillis = 1; nextMillis <= entries; nextMillis++) {
+            stream.addEntry(new StreamId(nextMillis, 0), FIELDS);
+        }
+    }
+
+    @Benchmark
+    public void xadd() {
+        stream.lock();
+        try {
+            stream.addEntry(new StreamId(nextMillis++, 0), FIELDS);
+        } finally {
+            stream.unlock();
+        }
+    }
+
+    // From a random entry of the initial ones
+    @Benchmark
+    public List<StreamEntry> xrange() {
+        StreamId start = new StreamId(1 + ThreadLocalRandom.current().nextInt(entries), 0);
+        stream.lock();
+        try {
+            return stream.range(start, StreamId.MAX, count);
+        } finally {
+            stream.unlock();
+        }
+    }
+}
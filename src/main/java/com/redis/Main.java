@@ -1,25 +1,87 @@
 package com.redis;
+import com.redis.server.ConfigManager;
 import com.redis.server.Server;
 
 public class Main {
   public static void main(String[] args){
-    String dir = "/tmp/redis-file";
-    String dbfilename = "rdbfile";
+    ConfigManager configManager = new ConfigManager();
+    configManager.setConfig("dir", "/tmp/redis-file");
+    configManager.setConfig("dbfilename", "rdbfile");
+    configManager.setConfig("port", "6379");
+    // blocking: one ClientHandler thread per connection, virtual: same on virtual threads, nio: selector event loops
+    configManager.setConfig("io-mode", "blocking");
+    configManager.setConfig("io-threads", String.valueOf(Runtime.getRuntime().availableProcessors()));
+    // Split the keys into this many shards, each run by its own thread that the connections forward commands to;
+    // 0 runs every command on its connection's thread
+    configManager.setConfig("shards", "0");
+    // Frequency of background tasks such as active expiry, per second
+    configManager.setConfig("hz", "10");
+    // BGSAVE after <seconds> if at least <changes> writes happened; "" disables automatic snapshots
+    configManager.setConfig("save", "3600 1 300 100 60 10000");
+    // Log every write to dir/appendfilename and replay it at startup; appendfsync is always, everysec or no
+    configManager.setConfig("appendonly", "no");
+    configManager.setConfig("appendfilename", "appendonly.aof");
+    configManager.setConfig("appendfsync", "everysec");
+    // Upper bound of the estimated dataset size in bytes (0: none; units like 100mb work) and what to evict when
+    // a write would exceed it: noeviction, allkeys-lru, allkeys-lfu, volatile-ttl or allkeys-random
+    configManager.setConfig("maxmemory", "0");
+    configManager.setConfig("maxmemory-policy", "noeviction");
+    // Keys sampled per eviction round; more is closer to exact LRU/LFU and slower
+    configManager.setConfig("maxmemory-samples", "5");
+    configManager.setConfig("lfu-log-factor", "10");
+    configManager.setConfig("lfu-decay-time", "1");
+    // Replicate from "<host> <port>"; replicas answer reads and take writes only from their leader
+    configManager.setConfig("replicaof", "");
+    // Writes kept for replicas that reconnect (partial resync), in bytes
+    configManager.setConfig("repl-backlog-size", "1048576");
+    // heap, or offheap to keep string values of at least offheap-min-value-size bytes in direct memory, out of
+    // the GC's way; the JVM caps that at -XX:MaxDirectMemorySize, which defaults to the maximum heap size
+    configManager.setConfig("value-storage", "heap");
+    configManager.setConfig("offheap-min-value-size", "1024");
+    // Hashes, lists, sets and sorted sets stay in a compact packed array up to these many elements of at most
+    // these many bytes; list-max-listpack-size is the entries per node of a long list
+    configManager.setConfig("hash-max-listpack-entries", "128");
+    configManager.setConfig("hash-max-listpack-value", "64");
+    configManager.setConfig("list-max-listpack-size", "128");
+    configManager.setConfig("set-max-intset-entries", "512");
+    configManager.setConfig("set-max-listpack-entries", "128");
+    configManager.setConfig("set-max-listpack-value", "64");
+    configManager.setConfig("zset-max-listpack-entries", "128");
+    configManager.setConfig("zset-max-listpack-value", "64");
+    // Commands running at least this many microseconds go to the SLOWLOG (-1: none, 0: all), which keeps the
+    // last slowlog-max-len of them
+    configManager.setConfig("slowlog-log-slower-than", "10000");
+    configManager.setConfig("slowlog-max-len", "128");
+    // Serve Prometheus metrics over HTTP at :<metrics-port>/metrics; 0 disables the endpoint
+    configManager.setConfig("metrics-port", "0");
 
+    // Every "--name value" pair overrides the config parameter of the same name
     for(int i=0;i<args.length;i++){
-      if("--dir".equals(args[i]) && i+1<args.length){
-        dir = args[i+1];
-      }
-      else if("--dbfilename".equals(args[i]) && i+1<args.length){
-        dbfilename = args[i+1];
+      if(args[i].equals("--replicaof") && i+2<args.length && !args[i+2].startsWith("--") && !args[i+1].contains(" ")){
+        // Also accepted unquoted, as --replicaof host port
+        configManager.setConfig("replicaof", args[i+1] + " " + args[i+2]);
+        i += 2;
+      } else if(args[i].startsWith("--") && i+1<args.length){
+        configManager.setConfig(args[i].substring(2), args[i+1]);
+        i++;
       }
     }
     // To make files for testing
     // mkdir -p /tmp/redis-file
     // java -cp . Main --dir /tmp/redis-file --dbfilename rdbfile
+    // java -cp . Main --io-mode nio --io-threads 4
+    // java -cp . Main --io-mode virtual
+    // java -cp . Main --shards 8
+    // java -cp . Main --save "60 1000"
+    // java -cp . Main --appendonly yes --appendfsync always
+    // java -cp . Main --maxmemory 100mb --maxmemory-policy allkeys-lru
+    // java -cp . Main --port 6380 --dir /tmp/replica --replicaof "localhost 6379"
+    // java -XX:MaxDirectMemorySize=4g -cp . Main --value-storage offheap
+    // java -cp . Main --metrics-port 9121 --slowlog-log-slower-than 1000
 
-    Server server = new Server(dir, dbfilename);
-    System.out.println("Starting server with dir=" + dir + " and dbfilename=" + dbfilename);
+    Server server = new Server(configManager);
+    System.out.println("Starting server with dir=" + configManager.getConfig("dir") + " and dbfilename=" + configManager.getConfig("dbfilename")
+        + " (io-mode=" + configManager.getConfig("io-mode") + ")");
     server.start();
   }
-}
\ No newline at end of file
+}
@@ -1,311 +1,2870 @@
 package com.redis.commands;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Objects;
-import java.util.TreeMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 import com.redis.commands.CommandProcessor.RedisParser;
+import com.redis.data.AppendOnlyFile;
+import com.redis.data.BlockingKeys;
 import com.redis.data.Cache;
+import com.redis.data.CollectionCache;
+import com.redis.data.Evictor;
+import com.redis.data.HashCache;
+import com.redis.data.KeyLocks;
+import com.redis.data.Keyspace;
+import com.redis.data.ListCache;
+import com.redis.data.OffHeapStore;
+import com.redis.data.RedisObject;
+import com.redis.data.SetCache;
+import com.redis.data.SnapshotManager;
 import com.redis.data.StreamCache;
+import com.redis.data.StreamEntry;
+import com.redis.data.StreamGroup;
+import com.redis.data.StreamId;
+import com.redis.data.ZSetCache;
+import com.redis.pubsub.PubSub;
+import com.redis.pubsub.Subscriber;
+import com.redis.replication.ReplicaConnection;
+import com.redis.replication.ReplicationManager;
 
 public class CommandHandler {
-    private final ConcurrentHashMap<String, Cache> setMap;
-    private final ConcurrentHashMap<String, Cache> rdbMap;
-    private final ConcurrentHashMap<String, StreamCache> streamMap;
+    // Parameters CONFIG SET may change while the server runs; the others are only read at startup
+    private static final List<String> MUTABLE_PARAMETERS = List.of("maxmemory", "maxmemory-policy", "maxmemory-samples",
+        "lfu-log-factor", "lfu-decay-time", "save", "appendfsync", "hash-max-listpack-entries", "hash-max-listpack-value",
+        "list-max-listpack-size", "set-max-intset-entries", "set-max-listpack-entries", "set-max-listpack-value",
+        "zset-max-listpack-entries", "zset-max-listpack-value", "slowlog-log-slower-than", "slowlog-max-len");
+
+    // All a RESP2 connection may run while it has subscriptions
+    private static final Set<String> SUBSCRIBED_MODE_COMMANDS = Set.of("subscribe", "unsubscribe", "psubscribe", "punsubscribe", "ping");
+    // Run at once inside MULTI rather than queued
+    private static final Set<String> TRANSACTION_COMMANDS = Set.of("multi", "exec", "discard", "watch");
+
+    // Longest string APPEND and SETRANGE may create, Redis' default proto-max-bulk-len
+    private static final long MAX_STRING_LENGTH = 512L * 1024 * 1024;
+
+    private final Keyspace keyspace;
     private final ConcurrentHashMap<String, String> configMap;
+    private final SnapshotManager snapshotManager;
+    // Null unless appendonly is on
+    private final AppendOnlyFile appendOnlyFile;
+    // Null while replaying the AOF
+    private final ReplicationManager replicationManager;
+    // Null while replaying the AOF, which must apply every write whatever maxmemory says
+    private final Evictor evictor;
+    private final CommandRegistry commandRegistry;
+    // Null while replaying the AOF
+    private final PubSub pubSub;
+    // Set by the connection; null for the AOF replay and the replication link, which can't subscribe
+    private Supplier<Subscriber> subscriberFactory;
+    // Created at the first SUBSCRIBE or PSUBSCRIBE; from then on it carries all of the connection's output
+    private Subscriber subscriber;
+    private final Set<String> subscribedChannels = new LinkedHashSet<>();
+    private final Set<String> subscribedPatterns = new LinkedHashSet<>();
+    // Commands queued since MULTI, copied out of the read buffer, and what they resolved to; null outside MULTI
+    private List<RedisParser> queuedCommands;
+    private List<RedisCommand> queuedResolved;
+    // A command was refused while queuing, so EXEC discards the transaction
+    private boolean transactionFailed;
+    // Set while EXEC runs the queued commands, which then neither lock their keys nor block
+    private boolean executingTransaction;
+    // WATCHed keys and the version of their stripe when they were watched
+    private final Map<String, Long> watchedKeys = new HashMap<>();
+    // ip:port of the client, for SLOWLOG; empty for the AOF replay and the replication link
+    private String clientAddress = "";
+    // How far the AOF must be flushed before this connection replies; 0 when nothing is pending
+    private long aofPosition;
+    // Replication offset after this connection's last write, what WAIT waits for
+    private long replicationOffset;
+    // Set on the connection a replica's leader streams its writes through, the only one allowed to write on a replica
+    private boolean masterLink;
+    private int replicaListeningPort;
+    // Created by PSYNC; the connection takes it after sending the replies before it
+    private ReplicaConnection pendingReplica;
+    private ReplicaConnection replica;
 
-    public CommandHandler(ConcurrentHashMap<String, Cache> setMap, 
-                          ConcurrentHashMap<String, Cache> rdbMap, 
-                          ConcurrentHashMap<String, StreamCache> streamMap,
-                          ConcurrentHashMap<String, String> configMap) {
-        this.setMap = setMap;
-        this.rdbMap = rdbMap;
-        this.streamMap = streamMap;
+    public CommandHandler(Keyspace keyspace, ConcurrentHashMap<String, String> configMap, SnapshotManager snapshotManager,
+                          AppendOnlyFile appendOnlyFile, ReplicationManager replicationManager, Evictor evictor,
+                          CommandRegistry commandRegistry, PubSub pubSub) {
+        this.keyspace = keyspace;
         this.configMap = configMap;
+        this.snapshotManager = snapshotManager;
+        this.appendOnlyFile = appendOnlyFile;
+        this.replicationManager = replicationManager;
+        this.evictor = evictor;
+        this.commandRegistry = commandRegistry;
+        this.pubSub = pubSub;
+    }
+
+    public void setSubscriberFactory(Supplier<Subscriber> subscriberFactory) {
+        this.subscriberFactory = subscriberFactory;
+    }
+
+    // In subscribed mode, checked by CommandRegistry before every command
+    public boolean isSubscribed() {
+      return !subscribedChannels.isEmpty() || !subscribedPatterns.isEmpty();
+    }
+
+    public boolean isAllowedWhileSubscribed(RedisCommand redisCommand) {
+      return SUBSCRIBED_MODE_COMMANDS.contains(redisCommand.getName());
+    }
+
+    // Between MULTI and EXEC or DISCARD, when CommandRegistry queues commands instead of running them
+    public boolean isInMulti() {
+      return queuedCommands != null;
+    }
+
+    public boolean isTransactionCommand(RedisCommand redisCommand) {
+      return TRANSACTION_COMMANDS.contains(redisCommand.getName());
+    }
+
+    public boolean isExecutingTransaction() {
+      return executingTransaction;
+    }
+
+    public void queue(RedisCommand redisCommand, RedisParser command) {
+      queuedResolved.add(redisCommand);
+      queuedCommands.add(command.copy());
+    }
+
+    // What queue() collected and what it resolved to, in order; null outside MULTI
+    public List<RedisParser> getQueuedCommands() {
+      return queuedCommands;
+    }
+
+    public List<RedisCommand> getQueuedResolved() {
+      return queuedResolved;
+    }
+
+    // Called by CommandRegistry when it refuses a command; inside MULTI, EXEC will then discard the transaction
+    public void markTransactionFailed() {
+      if (queuedCommands != null) {
+        transactionFailed = true;
+      }
+    }
+
+    public KeyLocks getKeyLocks() {
+      return keyspace.getKeyLocks();
+    }
+
+    public void setClientAddress(String clientAddress) {
+        this.clientAddress = clientAddress;
+    }
+
+    public String getClientAddress() {
+        return clientAddress;
+    }
+
+    public void setMasterLink(boolean masterLink) {
+        this.masterLink = masterLink;
+    }
+
+    // Replicas only take writes from their leader
+    public boolean isReadOnly() {
+      return replicationManager != null && replicationManager.isReplica() && !masterLink;
+    }
+
+    // Called by CommandRegistry before every DENYOOM command. Replicas leave eviction to their leader, whose
+    // evictions reach them through the stream.
+    public boolean freeMemoryIfNeeded() {
+      return evictor == null || masterLink || evictor.freeMemoryIfNeeded();
+    }
+
+    // Called by CommandRegistry after every WRITE command
+    public void afterWrite() {
+      if (appendOnlyFile != null) {
+        aofPosition = appendOnlyFile.getAppendedPosition();
+      }
+      if (replicationManager != null) {
+        replicationOffset = replicationManager.getMasterOffset();
+      }
+    }
+
+    // Returns the replica this connection turned into with PSYNC, once
+    public ReplicaConnection takeReplica() {
+      ReplicaConnection taken = pendingReplica;
+      pendingReplica = null;
+      replica = taken;
+      return taken;
+    }
+
+    // Called by the connection when it closes
+    public void onClose() {
+      if (replica != null) {
+        replica.close();
+      }
+      for (String channel : subscribedChannels) {
+        pubSub.unsubscribe(channel, subscriber);
+      }
+      for (String pattern : subscribedPatterns) {
+        pubSub.punsubscribe(pattern, subscriber);
+      }
+    }
+
+    // Called by the connection before it sends replies, so writes are only acknowledged once appendfsync allows.
+    // Concurrent connections waiting here share one write and, with appendfsync always, one fsync.
+    public void awaitDurable() {
+      if (aofPosition == 0) {
+        return;
+      }
+      try {
+        appendOnlyFile.await(aofPosition);
+      } catch (IOException e) {
+        System.out.println("Error writing to the append only file: " + e.getMessage());
+      }
+      aofPosition = 0;
+    }
+
+    public void handlePingCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      if (isSubscribed()) {
+        // A subscriber tells a PING reply from a message by its shape, as in Redis
+        outputStream.write("*2\r\n$4\r\npong\r\n");
+        writeBulkString(command.size() > 1 ? command.getString(1) : "", outputStream);
+        return;
+      }
+      if (command.size() > 1) {
+        String message = command.getString(1);
+        outputStream.write("$" + message.length() + "\r\n" + message + "\r\n");
+        return;
+      }
+      outputStream.write("+PONG\r\n");
+    }
+
+    public void handleEchoCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      String message = command.getArguments().get(0);
+      outputStream.write("$" + message.length() + "\r\n" + message + "\r\n");
+    }
+
+    public void handleSetCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      String key = command.getKey();
+      long ttl = -1;
+      if (command.size() == 5) {
+        long amount;
+        try {
+          amount = Long.parseLong(command.getString(4));
+        } catch (NumberFormatException e) {
+          outputStream.write("-ERR value is not an integer or out of range\r\n");
+          return;
+        }
+        if (amount <= 0) {
+          outputStream.write("-ERR invalid expire time in 'set' command\r\n");
+          return;
+        }
+        // EXAT and PXAT are what the AOF logs, so a replayed SET expires at the original moment
+        String option = command.getString(3);
+        try {
+          if (option.equalsIgnoreCase("EX")) {
+            ttl = Math.addExact(System.currentTimeMillis(), Math.multiplyExact(amount, 1000));
+          } else if (option.equalsIgnoreCase("PX")) {
+            ttl = Math.addExact(System.currentTimeMillis(), amount);
+          } else if (option.equalsIgnoreCase("EXAT")) {
+            ttl = Math.multiplyExact(amount, 1000);
+          } else if (option.equalsIgnoreCase("PXAT")) {
+            ttl = amount;
+          } else {
+            outputStream.write("-ERR syntax error\r\n");
+            return;
+          }
+        } catch (ArithmeticException e) {
+          // Past Long.MAX_VALUE milliseconds it would wrap around into the past
+          outputStream.write("-ERR invalid expire time in 'set' command\r\n");
+          return;
+        }
+      } else if (command.size() != 3) {
+        outputStream.write("-ERR syntax error\r\n");
+        return;
+      }
+
+      // SET overwrites the key whatever type it held before
+      keyspace.put(key, keyspace.newCache(command.getData(), command.getOffset(2), command.getLength(2), ttl));
+      outputStream.write("+OK\r\n");
+    }
+
+    public void handleGetCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      String key = command.getKey();
+      // Expired keys are dropped by the lookup itself
+      Cache cacheItem = retainString(key);
+
+      if (cacheItem == null) {
+        outputStream.write("$-1\r\n");
+        return;
+      }
+      // Copied straight into the reply, so an off-heap value never becomes a String
+      try {
+        outputStream.writeBulk(cacheItem);
+      } finally {
+        cacheItem.release();
+      }
+    }
+
+    // Every key is looked up under one multi-key read, so an MSET is either entirely in the reply or not at all.
+    // Keys that don't hold a string are nil, as in Redis.
+    public void handleMgetCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      int count = command.size() - 1;
+      outputStream.write("*" + count + "\r\n");
+      long stamp = keyspace.beginMultiKeyRead();
+      try {
+        for (int i = 1; i <= count; i++) {
+          RedisObject value;
+          do {
+            value = keyspace.get(command.getString(i));
+          } while (value instanceof Cache cache && !cache.retain());
+          if (!(value instanceof Cache cache)) {
+            outputStream.write("$-1\r\n");
+            continue;
+          }
+          try {
+            outputStream.writeBulk(cache);
+          } finally {
+            cache.release();
+          }
+        }
+      } finally {
+        keyspace.endMultiKeyRead(stamp);
+      }
+    }
+
+    // MSET, and MSETNX with onlyIfAbsent
+    public void handleMsetCommand(RedisParser command, ReplyBuffer outputStream, boolean onlyIfAbsent) throws IOException {
+      if (command.size() % 2 == 0) {
+        outputStream.write("-ERR wrong number of arguments for '" + (onlyIfAbsent ? "msetnx" : "mset") + "' command\r\n");
+        return;
+      }
+      // A key given twice takes its last value
+      Map<String, Cache> values = new LinkedHashMap<>();
+      for (int i = 1; i < command.size(); i += 2) {
+        Cache replaced = values.put(command.getString(i), keyspace.newCache(command.getData(), command.getOffset(i + 1), command.getLength(i + 1), -1));
+        if (replaced != null) {
+          replaced.release();
+        }
+      }
+      boolean set = keyspace.putAll(values, onlyIfAbsent);
+      outputStream.write(onlyIfAbsent ? (set ? ":1\r\n" : ":0\r\n") : "+OK\r\n");
+    }
+
+    // DEL, and UNLINK with lazyFree
+    public void handleDelCommand(RedisParser command, ReplyBuffer outputStream, boolean lazyFree) throws IOException {
+      int deleted = 0;
+      for (int i = 1; i < command.size(); i++) {
+        if (keyspace.delete(command.getString(i), lazyFree)) {
+          deleted++;
+        }
+      }
+      outputStream.write(":" + deleted + "\r\n");
+    }
+
+    // A key given more than once is counted as often
+    public void handleExistsCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      int found = 0;
+      long stamp = keyspace.beginMultiKeyRead();
+      try {
+        for (int i = 1; i < command.size(); i++) {
+          if (keyspace.containsKey(command.getString(i))) {
+            found++;
+          }
+        }
+      } finally {
+        keyspace.endMultiKeyRead(stamp);
+      }
+      outputStream.write(":" + found + "\r\n");
+    }
+
+    // The string at key with a reference taken (see RedisObject.retain()), or null; the caller releases it
+    private Cache retainString(String key) {
+      Cache value;
+      do {
+        value = keyspace.get(key, Cache.class);
+      } while (value != null && !value.retain());
+      return value;
+    }
+
+    // INCR, DECR, INCRBY and DECRBY; sign is -1 for the DECR ones. Integers are stored as a long, so this is an
+    // addition, and the read and the write happen in one step on the key (Keyspace.updateString()).
+    public void handleIncrByCommand(RedisParser command, ReplyBuffer outputStream, int sign) throws IOException {
+      long increment = 1;
+      if (command.size() == 3) {
+        try {
+          increment = Long.parseLong(command.getString(2));
+        } catch (NumberFormatException e) {
+          outputStream.write("-ERR value is not an integer or out of range\r\n");
+          return;
+        }
+      }
+      if (sign < 0) {
+        if (increment == Long.MIN_VALUE) {
+          outputStream.write("-ERR decrement would overflow\r\n");
+          return;
+        }
+        increment = -increment;
+      }
+      long delta = increment;
+      Cache updated;
+      try {
+        updated = keyspace.updateString(command.getKey(), current -> {
+          if (current != null && !current.isInteger()) {
+            throw new IllegalArgumentException("value is not an integer or out of range");
+          }
+          long value;
+          try {
+            value = Math.addExact(current == null ? 0 : current.getLong(), delta);
+          } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("increment or decrement would overflow");
+          }
+          return keyspace.newCache(value, current == null ? -1 : current.getTtl());
+        });
+      } catch (IllegalArgumentException e) {
+        outputStream.write("-ERR " + e.getMessage() + "\r\n");
+        return;
+      }
+      outputStream.write(":" + updated.getLong() + "\r\n");
+    }
+
+    public void handleIncrByFloatCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      String incrementString = command.getString(2);
+      double increment;
+      try {
+        increment = parseFloat(incrementString);
+      } catch (NumberFormatException e) {
+        outputStream.write("-ERR value is not a valid float\r\n");
+        return;
+      }
+      Cache updated;
+      try {
+        updated = keyspace.updateString(command.getKey(), current -> {
+          double value = increment;
+          if (current != null) {
+            try {
+              value += parseFloat(current.getValue());
+            } catch (NumberFormatException e) {
+              throw new IllegalArgumentException("value is not a valid float");
+            }
+          }
+          if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("increment would produce NaN or Infinity");
+          }
+          // Redis adds in long double and prints "%.17Lf" with the trailing zeros removed, so 1.1 + 2.2 is "3.3"
+          // rather than the double's 3.3000000000000003. The decimal sum rounded to 17 significant digits and at
+          // most 17 decimals gives the same
+          BigDecimal sum = new BigDecimal(incrementString);
+          if (current != null) {
+            sum = sum.add(new BigDecimal(current.getValue()));
+          }
+          String digits = sum.round(new MathContext(17)).setScale(17, RoundingMode.HALF_EVEN).stripTrailingZeros().toPlainString();
+          return keyspace.newCache(digits.getBytes(StandardCharsets.ISO_8859_1), current == null ? -1 : current.getTtl());
+        });
+      } catch (IllegalArgumentException e) {
+        outputStream.write("-ERR " + e.getMessage() + "\r\n");
+        return;
+      }
+      outputStream.writeBulk(updated);
+    }
+
+    // Plain decimal or scientific notation only; Double.parseDouble alone would also take whitespace, hex, "NaN"
+    // and a trailing 'd' or 'f'
+    private static double parseFloat(String value) {
+      if (value.isEmpty()) {
+        throw new NumberFormatException("empty");
+      }
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        if ((c < '0' || c > '9') && c != '.' && c != '-' && c != '+' && c != 'e' && c != 'E') {
+          throw new NumberFormatException(value);
+        }
+      }
+      return Double.parseDouble(value);
+    }
+
+    public void handleAppendCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      byte[] data = command.getData();
+      int offset = command.getOffset(2);
+      int length = command.getLength(2);
+      Cache updated;
+      try {
+        updated = keyspace.updateString(command.getKey(), current -> {
+          if (current == null) {
+            return keyspace.newCache(data, offset, length, -1);
+          }
+          int currentLength = current.length();
+          checkStringLength((long) currentLength + length);
+          byte[] joined = new byte[currentLength + length];
+          current.copyTo(0, currentLength, joined, 0);
+          System.arraycopy(data, offset, joined, currentLength, length);
+          return keyspace.newCache(joined, current.getTtl());
+        });
+      } catch (IllegalArgumentException e) {
+        outputStream.write("-ERR " + e.getMessage() + "\r\n");
+        return;
+      }
+      outputStream.write(":" + updated.length() + "\r\n");
+    }
+
+    public void handleStrlenCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      // The length of an off-heap value is a field, so it needs no reference
+      Cache value = keyspace.get(command.getKey(), Cache.class);
+      outputStream.write(":" + (value == null ? 0 : value.length()) + "\r\n");
+    }
+
+    public void handleGetrangeCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      long start;
+      long end;
+      try {
+        start = Long.parseLong(command.getString(2));
+        end = Long.parseLong(command.getString(3));
+      } catch (NumberFormatException e) {
+        outputStream.write("-ERR value is not an integer or out of range\r\n");
+        return;
+      }
+      Cache value = retainString(command.getKey());
+      if (value == null) {
+        outputStream.write("$0\r\n\r\n");
+        return;
+      }
+      try {
+        // Negative indexes count from the end; the range is clamped to the string, as in Redis
+        long length = value.length();
+        if (start < 0) {
+          start = Math.max(0, start + length);
+        }
+        if (end < 0) {
+          end = Math.max(0, end + length);
+        }
+        end = Math.min(end, length - 1);
+        if (start > end || length == 0) {
+          outputStream.write("$0\r\n\r\n");
+          return;
+        }
+        outputStream.writeBulk(value, (int) start, (int) (end - start + 1));
+      } finally {
+        value.release();
+      }
+    }
+
+    public void handleSetrangeCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      long position;
+      try {
+        position = Long.parseLong(command.getString(2));
+      } catch (NumberFormatException e) {
+        outputStream.write("-ERR value is not an integer or out of range\r\n");
+        return;
+      }
+      if (position < 0) {
+        outputStream.write("-ERR offset is out of range\r\n");
+        return;
+      }
+      byte[] data = command.getData();
+      int offset = command.getOffset(3);
+      int length = command.getLength(3);
+      Cache updated;
+      try {
+        updated = keyspace.updateString(command.getKey(), current -> {
+          // Nothing to write: the key is neither created nor padded
+          if (length == 0) {
+            return current;
+          }
+          checkStringLength(position + length);
+          int currentLength = current == null ? 0 : current.length();
+          // Padded with zero bytes up to position
+          byte[] bytes = new byte[Math.max(currentLength, (int) position + length)];
+          if (current != null) {
+            current.copyTo(0, currentLength, bytes, 0);
+          }
+          System.arraycopy(data, offset, bytes, (int) position, length);
+          return keyspace.newCache(bytes, current == null ? -1 : current.getTtl());
+        });
+      } catch (IllegalArgumentException e) {
+        outputStream.write("-ERR " + e.getMessage() + "\r\n");
+        return;
+      }
+      outputStream.write(":" + (updated == null ? 0 : updated.length()) + "\r\n");
+    }
+
+    private static void checkStringLength(long length) {
+      if (length > MAX_STRING_LENGTH) {
+        throw new IllegalArgumentException("string exceeds maximum allowed size (proto-max-bulk-len)");
+      }
+    }
+
+    // unitMillis is 1000 for EXPIRE and 1 for PEXPIRE
+    public void handleExpireCommand(RedisParser command, ReplyBuffer outputStream, long unitMillis) throws IOException {
+      long amount;
+      try {
+        amount = Long.parseLong(command.getString(2));
+      } catch (NumberFormatException e) {
+        outputStream.write("-ERR value is not an integer or out of range\r\n");
+        return;
+      }
+      long when;
+      try {
+        when = Math.addExact(System.currentTimeMillis(), Math.multiplyExact(amount, unitMillis));
+      } catch (ArithmeticException e) {
+        writeInvalidExpireTime(command, outputStream);
+        return;
+      }
+      boolean updated = keyspace.setExpire(command.getKey(), when);
+      outputStream.write(updated ? ":1\r\n" : ":0\r\n");
+    }
+
+    // unitMillis is 1000 for EXPIREAT and 1 for PEXPIREAT
+    public void handleExpireAtCommand(RedisParser command, ReplyBuffer outputStream, long unitMillis) throws IOException {
+      long timestamp;
+      try {
+        timestamp = Long.parseLong(command.getString(2));
+      } catch (NumberFormatException e) {
+        outputStream.write("-ERR value is not an integer or out of range\r\n");
+        return;
+      }
+      long when;
+      try {
+        when = Math.multiplyExact(timestamp, unitMillis);
+      } catch (ArithmeticException e) {
+        writeInvalidExpireTime(command, outputStream);
+        return;
+      }
+      boolean updated = keyspace.setExpire(command.getKey(), when);
+      outputStream.write(updated ? ":1\r\n" : ":0\r\n");
+    }
+
+    // For an expire time past what milliseconds since the epoch can hold; the message names the command as sent
+    private void writeInvalidExpireTime(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      outputStream.write("-ERR invalid expire time in '" + command.getString(0).toLowerCase(Locale.ROOT) + "' command\r\n");
+    }
+
+    // unitMillis is 1000 for TTL and 1 for PTTL
+    public void handleTtlCommand(RedisParser command, ReplyBuffer outputStream, long unitMillis) throws IOException {
+      RedisObject value = keyspace.get(command.getKey());
+      if (value == null) {
+        outputStream.write(":-2\r\n");
+      } else if (value.getTtl() == -1) {
+        outputStream.write(":-1\r\n");
+      } else {
+        long remaining = Math.max(0, value.getTtl() - System.currentTimeMillis());
+        outputStream.write(":" + (remaining + unitMillis / 2) / unitMillis + "\r\n");
+      }
+    }
+
+    public void handlePersistCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      outputStream.write(keyspace.persist(command.getKey()) ? ":1\r\n" : ":0\r\n");
+    }
+
+    public void handleInfoCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      // INFO alone is the default sections; all adds the per-command ones, as in Redis
+      Set<String> sections = new HashSet<>();
+      for (int i = 1; i < command.size(); i++) {
+        sections.add(command.getString(i).toLowerCase());
+      }
+      boolean all = sections.contains("all") || sections.contains("everything");
+      boolean defaults = all || sections.isEmpty() || sections.contains("default");
+      ServerStats stats = commandRegistry.getStats();
+      StringBuilder info = new StringBuilder();
+      if (defaults || sections.contains("server")) {
+        info.append("# Server\r\n")
+            .append("process_id:").append(ProcessHandle.current().pid()).append("\r\n")
+            .append("tcp_port:").append(configMap.get("port")).append("\r\n")
+            .append("io_mode:").append(configMap.get("io-mode")).append("\r\n")
+            .append("shards:").append(configMap.get("shards")).append("\r\n")
+            .append("uptime_in_seconds:").append(stats.getUptimeSeconds()).append("\r\n")
+            .append("java_version:").append(Runtime.version()).append("\r\n");
+      }
+      if (defaults || sections.contains("clients")) {
+        info.append("# Clients\r\n")
+            .append("connected_clients:").append(stats.getConnectedClients()).append("\r\n")
+            .append("blocked_clients:").append(stats.getBlockedClients()).append("\r\n");
+      }
+      if (defaults || sections.contains("stats")) {
+        long active = keyspace.getExpiredActive();
+        long lazy = keyspace.getExpiredLazy();
+        info.append("# Stats\r\n")
+            .append("total_connections_received:").append(stats.getConnectionsReceived()).append("\r\n")
+            .append("total_commands_processed:").append(commandRegistry.getCommandsProcessed()).append("\r\n")
+            .append("evicted_keys:").append(evictor.getEvictedKeys()).append("\r\n")
+            .append("expired_keys:").append(active + lazy).append("\r\n")
+            .append("expired_keys_active:").append(active).append("\r\n")
+            .append("expired_keys_lazy:").append(lazy).append("\r\n");
+      }
+      if (defaults || sections.contains("memory")) {
+        Runtime runtime = Runtime.getRuntime();
+        info.append("# Memory\r\n")
+            .append("used_memory:").append(keyspace.getUsedMemory()).append("\r\n")
+            .append("used_memory_heap:").append(runtime.totalMemory() - runtime.freeMemory()).append("\r\n")
+            .append("maxmemory:").append(evictor.getMaxMemory()).append("\r\n")
+            .append("maxmemory_policy:").append(evictor.getPolicy().configName()).append("\r\n")
+            .append("used_memory_heap_max:").append(runtime.maxMemory()).append("\r\n")
+            .append("lazyfree_pending_objects:").append(keyspace.getLazyFreePending()).append("\r\n");
+        long collections = 0;
+        long collectionMillis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+          collections += Math.max(0, collector.getCollectionCount());
+          collectionMillis += Math.max(0, collector.getCollectionTime());
+        }
+        info.append("gc_collections:").append(collections).append("\r\n")
+            .append("gc_time_ms:").append(collectionMillis).append("\r\n");
+        OffHeapStore offHeapStore = keyspace.getOffHeapStore();
+        if (offHeapStore != null) {
+          info.append("used_memory_offheap:").append(offHeapStore.getUsedBytes()).append("\r\n")
+              .append("offheap_pages_bytes:").append(offHeapStore.getPageBytes()).append("\r\n");
+        }
+      }
+      if (defaults || sections.contains("persistence")) {
+        info.append("# Persistence\r\n")
+            .append("rdb_changes_since_last_save:").append(snapshotManager.getChangesSinceLastSave()).append("\r\n")
+            .append("rdb_bgsave_in_progress:").append(snapshotManager.isInProgress() ? 1 : 0).append("\r\n")
+            .append("rdb_last_save_time:").append(snapshotManager.getLastSaveTime()).append("\r\n")
+            .append("rdb_last_bgsave_status:").append(snapshotManager.isLastSaveOk() ? "ok" : "err").append("\r\n")
+            .append("aof_enabled:").append(appendOnlyFile != null ? 1 : 0).append("\r\n");
+        if (appendOnlyFile != null) {
+          info.append("aof_rewrite_in_progress:").append(appendOnlyFile.isRewriteInProgress() ? 1 : 0).append("\r\n")
+              .append("aof_last_bgrewrite_status:").append(appendOnlyFile.isLastRewriteOk() ? "ok" : "err").append("\r\n")
+              .append("aof_last_write_status:").append(appendOnlyFile.isLastWriteOk() ? "ok" : "err").append("\r\n")
+              .append("aof_current_size:").append(appendOnlyFile.getSize()).append("\r\n");
+        }
+      }
+      if (defaults || sections.contains("replication")) {
+        replicationManager.appendInfo(info);
+      }
+      if (all || sections.contains("commandstats")) {
+        info.append("# Commandstats\r\n");
+        for (RedisCommand redisCommand : commandRegistry.getCommands()) {
+          long calls = redisCommand.getCalls();
+          if (calls == 0 && redisCommand.getRejectedCalls() == 0) {
+            continue;
+          }
+          long micros = redisCommand.getMicros();
+          info.append("cmdstat_").append(redisCommand.getName()).append(":calls=").append(calls)
+              .append(",usec=").append(micros)
+              .append(",usec_per_call=").append(String.format(Locale.ROOT, "%.2f", calls == 0 ? 0.0 : (double) micros / calls))
+              .append(",rejected_calls=").append(redisCommand.getRejectedCalls()).append("\r\n");
+        }
+      }
+      if (all || sections.contains("latencystats")) {
+        info.append("# Latencystats\r\n");
+        for (RedisCommand redisCommand : commandRegistry.getCommands()) {
+          long[] snapshot = redisCommand.getHistogram().snapshot();
+          if (LatencyHistogram.total(snapshot) == 0) {
+            continue;
+          }
+          info.append("latency_percentiles_usec_").append(redisCommand.getName())
+              .append(":p50=").append(formatMicros(LatencyHistogram.percentile(snapshot, 50)))
+              .append(",p99=").append(formatMicros(LatencyHistogram.percentile(snapshot, 99)))
+              .append(",p99.9=").append(formatMicros(LatencyHistogram.percentile(snapshot, 99.9))).append("\r\n");
+        }
+      }
+      if (defaults || sections.contains("keyspace")) {
+        info.append("# Keyspace\r\n");
+        if (keyspace.size() > 0) {
+          info.append("db0:keys=").append(keyspace.size()).append(",expires=").append(keyspace.getExpiresCount()).append("\r\n");
+        }
+      }
+      outputStream.write("$" + info.length() + "\r\n" + info + "\r\n");
+    }
+
+    public void handleSaveCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      try {
+        if (!snapshotManager.save()) {
+          writeSnapshotBusy(outputStream);
+          return;
+        }
+      } catch (IOException e) {
+        outputStream.write("-ERR " + e.getMessage() + "\r\n");
+        return;
+      }
+      outputStream.write("+OK\r\n");
+    }
+
+    public void handleBgsaveCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      if (!snapshotManager.backgroundSave()) {
+        writeSnapshotBusy(outputStream);
+        return;
+      }
+      outputStream.write("+Background saving started\r\n");
+    }
+
+    // Only one snapshot runs at a time, whether for an RDB file or an AOF rewrite
+    private void writeSnapshotBusy(ReplyBuffer outputStream) {
+      if (appendOnlyFile != null && appendOnlyFile.isRewriteInProgress()) {
+        outputStream.write("-ERR Background append only file rewriting in progress\r\n");
+      } else {
+        outputStream.write("-ERR Background save already in progress\r\n");
+      }
+    }
+
+    public void handleBgrewriteaofCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      if (appendOnlyFile == null) {
+        outputStream.write("-ERR Append only file is disabled, start the server with --appendonly yes\r\n");
+        return;
+      }
+      if (appendOnlyFile.isRewriteInProgress()) {
+        outputStream.write("-ERR Background append only file rewriting already in progress\r\n");
+        return;
+      }
+      if (!appendOnlyFile.backgroundRewrite()) {
+        writeSnapshotBusy(outputStream);
+        return;
+      }
+      outputStream.write("+Background append only file rewriting started\r\n");
+    }
+
+    // REPLCONF listening-port <port> | capa <capability> | ACK <offset>. ACK comes from a replica after PSYNC
+    // and is not answered, as in Redis.
+    public void handleReplconfCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      String option = command.getString(1);
+      if (option.equalsIgnoreCase("ACK")) {
+        if (replica != null && command.size() > 2) {
+          try {
+            replica.acknowledge(Long.parseLong(command.getString(2)));
+          } catch (NumberFormatException e) {
+            System.out.println("Replica sent a bad REPLCONF ACK: " + command.getString(2));
+          }
+        }
+        return;
+      }
+      if (option.equalsIgnoreCase("listening-port")) {
+        try {
+          replicaListeningPort = Integer.parseInt(command.getString(2));
+        } catch (NumberFormatException e) {
+          outputStream.write("-ERR value is not an integer or out of range\r\n");
+          return;
+        }
+      } else if (!option.equalsIgnoreCase("capa") && !option.equalsIgnoreCase("ip-address")) {
+        outputStream.write("-ERR Unrecognized REPLCONF option: " + option + "\r\n");
+        return;
+      }
+      outputStream.write("+OK\r\n");
+    }
+
+    // PSYNC <replicationid> <offset>. The reply, +FULLRESYNC or +CONTINUE, is sent by the replica's own sender thread
+    // once the connection hands its socket over.
+    public void handlePsyncCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      if (replicationManager.isReplica()) {
+        outputStream.write("-ERR Chained replication is not supported, connect to the leader instead\r\n");
+        return;
+      }
+      long offset;
+      try {
+        offset = Long.parseLong(command.getString(2));
+      } catch (NumberFormatException e) {
+        outputStream.write("-ERR value is not an integer or out of range\r\n");
+        return;
+      }
+      pendingReplica = replicationManager.psync(command.getString(1), offset, replicaListeningPort);
+    }
+
+    // WAIT numreplicas timeout: how many replicas acknowledged this connection's writes so far
+    public void handleWaitCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      if (replicationManager.isReplica()) {
+        outputStream.write("-ERR WAIT cannot be used with replica instances\r\n");
+        return;
+      }
+      int needed;
+      long timeout;
+      try {
+        needed = Integer.parseInt(command.getString(1));
+        timeout = Long.parseLong(command.getString(2));
+      } catch (NumberFormatException e) {
+        outputStream.write("-ERR value is not an integer or out of range\r\n");
+        return;
+      }
+      if (timeout < 0) {
+        outputStream.write("-ERR timeout is negative\r\n");
+        return;
+      }
+      outputStream.write(":" + replicationManager.waitForReplicas(replicationOffset, needed, timeout) + "\r\n");
+    }
+
+    public void handleLastsaveCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      outputStream.write(":" + snapshotManager.getLastSaveTime() + "\r\n");
+    }
+
+    public void handleConfigCommand(RedisParser command, ReplyBuffer outputStream) throws IOException{
+      String subcommand = command.getString(1);
+      if(subcommand.equalsIgnoreCase("SET") && command.size() >= 4 && command.size() % 2 == 0){
+        handleConfigSet(command, outputStream);
+        return;
+      }
+      if(subcommand.equalsIgnoreCase("RESETSTAT") && command.size() == 2){
+        commandRegistry.resetStats();
+        outputStream.write("+OK\r\n");
+        return;
+      }
+      if(!subcommand.equalsIgnoreCase("GET") || command.size() != 3){
+        outputStream.write("-ERR invalid CONFIG command\r\n");
+        return;
+      }
+      String param = command.getArguments().get(1);
+      String value = configMap.get(param);
+      if(value != null){
+        outputStream.write("*2\r\n$"+param.length()+"\r\n"+param+"\r\n$"+value.length()+"\r\n"+value+"\r\n");
+      } else {
+        outputStream.write("-ERR unknown parameter for configuration\r\n");
+      }
+    }
+
+    // CONFIG SET parameter value [parameter value ...], all or nothing as in Redis 7
+    private void handleConfigSet(RedisParser command, ReplyBuffer outputStream) {
+      Map<String, String> previous = new HashMap<>();
+      for (int i = 2; i < command.size(); i += 2) {
+        String param = command.getString(i).toLowerCase();
+        if (!configMap.containsKey(param)) {
+          outputStream.write("-ERR Unknown option or number of arguments for CONFIG SET - '" + param + "'\r\n");
+          return;
+        }
+        if (!MUTABLE_PARAMETERS.contains(param)) {
+          outputStream.write("-ERR CONFIG SET failed (possibly related to argument '" + param + "') - can't set immutable config\r\n");
+          return;
+        }
+      }
+      String param = null;
+      try {
+        for (int i = 2; i < command.size(); i += 2) {
+          param = command.getString(i).toLowerCase();
+          String value = command.getString(i + 1);
+          if (param.equals("appendfsync") && !List.of("always", "everysec", "no").contains(value.toLowerCase())) {
+            throw new IllegalArgumentException("argument must be one of the following: always, everysec, no");
+          } else if (param.equals("save") && !value.isBlank() && value.trim().split("\\s+").length % 2 != 0) {
+            throw new IllegalArgumentException("Invalid save parameters");
+          }
+          previous.putIfAbsent(param, configMap.get(param));
+          configMap.put(param, value.toLowerCase());
+          // Validates the eviction, encoding and slow log parameters
+          evictor.reloadConfig();
+          keyspace.getEncodingLimits().reloadConfig(configMap);
+          commandRegistry.getSlowLog().reloadConfig(configMap);
+        }
+      } catch (IllegalArgumentException e) {
+        configMap.putAll(previous);
+        evictor.reloadConfig();
+        keyspace.getEncodingLimits().reloadConfig(configMap);
+        commandRegistry.getSlowLog().reloadConfig(configMap);
+        String reason = e instanceof NumberFormatException ? "argument couldn't be parsed into an integer" : e.getMessage();
+        outputStream.write("-ERR CONFIG SET failed (possibly related to argument '" + param + "') - " + reason + "\r\n");
+        return;
+      }
+      outputStream.write("+OK\r\n");
+    }
+
+    // SLOWLOG GET [count] | LEN | RESET
+    public void handleSlowlogCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      SlowLog slowLog = commandRegistry.getSlowLog();
+      String subcommand = command.getString(1);
+      if (subcommand.equalsIgnoreCase("LEN") && command.size() == 2) {
+        outputStream.write(":" + slowLog.size() + "\r\n");
+      } else if (subcommand.equalsIgnoreCase("RESET") && command.size() == 2) {
+        slowLog.reset();
+        outputStream.write("+OK\r\n");
+      } else if (subcommand.equalsIgnoreCase("GET") && command.size() <= 3) {
+        int count = 10;
+        if (command.size() == 3) {
+          try {
+            count = Integer.parseInt(command.getString(2));
+          } catch (NumberFormatException e) {
+            count = -2;
+          }
+          if (count < -1) {
+            outputStream.write("-ERR count should be greater than or equal to -1\r\n");
+            return;
+          }
+        }
+        List<SlowLog.Entry> entries = slowLog.get(count);
+        outputStream.write("*" + entries.size() + "\r\n");
+        for (SlowLog.Entry entry : entries) {
+          outputStream.write("*6\r\n:" + entry.id() + "\r\n:" + entry.timestamp() + "\r\n:" + entry.micros() + "\r\n");
+          outputStream.write("*" + entry.arguments().size() + "\r\n");
+          for (String argument : entry.arguments()) {
+            writeBulkString(argument, outputStream);
+          }
+          writeBulkString(entry.client(), outputStream);
+          // No CLIENT SETNAME, so the name is always empty
+          outputStream.write("$0\r\n\r\n");
+        }
+      } else {
+        outputStream.write("-ERR unknown subcommand or wrong number of arguments for '" + subcommand + "'. Try SLOWLOG GET, LEN or RESET.\r\n");
+      }
+    }
+
+    // LATENCY HISTOGRAM [command ...]: per command, its calls and how many took at most 1, 2, 4... microseconds,
+    // leaving out the bounds no call fell into, as in Redis
+    public void handleLatencyCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      String subcommand = command.getString(1);
+      if (!subcommand.equalsIgnoreCase("HISTOGRAM")) {
+        outputStream.write("-ERR unknown subcommand '" + subcommand + "'. Try LATENCY HISTOGRAM.\r\n");
+        return;
+      }
+      List<RedisCommand> selected = new ArrayList<>();
+      if (command.size() == 2) {
+        for (RedisCommand redisCommand : commandRegistry.getCommands()) {
+          if (redisCommand.getCalls() > 0 && !redisCommand.hasFlag(RedisCommand.BLOCKING)) {
+            selected.add(redisCommand);
+          }
+        }
+      } else {
+        for (int i = 2; i < command.size(); i++) {
+          RedisCommand redisCommand = commandRegistry.lookup(command.getData(), command.getOffset(i), command.getLength(i));
+          if (redisCommand != null && !selected.contains(redisCommand)) {
+            selected.add(redisCommand);
+          }
+        }
+      }
+      outputStream.write("*" + selected.size() * 2 + "\r\n");
+      for (RedisCommand redisCommand : selected) {
+        long[] snapshot = redisCommand.getHistogram().snapshot();
+        long[] cumulative = LatencyHistogram.cumulativePowersOfTwo(snapshot);
+        List<Integer> bounds = new ArrayList<>();
+        for (int i = 0; i < cumulative.length; i++) {
+          if (cumulative[i] != (i == 0 ? 0 : cumulative[i - 1])) {
+            bounds.add(i);
+          }
+        }
+        writeBulkString(redisCommand.getName(), outputStream);
+        outputStream.write("*4\r\n$5\r\ncalls\r\n:" + LatencyHistogram.total(snapshot) + "\r\n$14\r\nhistogram_usec\r\n");
+        outputStream.write("*" + bounds.size() * 2 + "\r\n");
+        for (int bound : bounds) {
+          outputStream.write(":" + (1L << bound) + "\r\n:" + cumulative[bound] + "\r\n");
+        }
+      }
+    }
+
+    // SUBSCRIBE channel [channel ...] and PSUBSCRIBE pattern [pattern ...]
+    public void handleSubscribeCommand(RedisParser command, ReplyBuffer outputStream, boolean patterns) throws IOException {
+      if (subscriber == null) {
+        if (subscriberFactory == null) {
+          outputStream.write("-ERR this connection can't subscribe\r\n");
+          return;
+        }
+        subscriber = subscriberFactory.get();
+      }
+      Set<String> subscribed = patterns ? subscribedPatterns : subscribedChannels;
+      List<String> added = new ArrayList<>();
+      for (int i = 1; i < command.size(); i++) {
+        String name = command.getString(i);
+        if (subscribed.add(name)) {
+          added.add(name);
+        }
+        writeSubscription(patterns ? "psubscribe" : "subscribe", name, outputStream);
+      }
+      // The replies so far, confirmations included, go out through the subscriber. Registered and handed over
+      // under its monitor, so a message published meanwhile waits in send() and can't overtake them, and one
+      // published after the client read them is certain to arrive.
+      awaitDurable();
+      synchronized (subscriber) {
+        for (String name : added) {
+          if (patterns) {
+            pubSub.psubscribe(name, subscriber);
+          } else {
+            pubSub.subscribe(name, subscriber);
+          }
+        }
+        subscriber.send(outputStream.toByteArray());
+      }
+      outputStream.reset();
+    }
+
+    // UNSUBSCRIBE [channel ...] and PUNSUBSCRIBE [pattern ...]; without arguments, from all of them
+    public void handleUnsubscribeCommand(RedisParser command, ReplyBuffer outputStream, boolean patterns) throws IOException {
+      Set<String> subscribed = patterns ? subscribedPatterns : subscribedChannels;
+      String kind = patterns ? "punsubscribe" : "unsubscribe";
+      List<String> names = command.size() > 1 ? command.getArguments() : new ArrayList<>(subscribed);
+      if (names.isEmpty()) {
+        writeSubscription(kind, null, outputStream);
+        return;
+      }
+      for (String name : names) {
+        if (subscribed.remove(name)) {
+          if (patterns) {
+            pubSub.punsubscribe(name, subscriber);
+          } else {
+            pubSub.unsubscribe(name, subscriber);
+          }
+        }
+        writeSubscription(kind, name, outputStream);
+      }
+    }
+
+    // [p]subscribe or [p]unsubscribe, the channel or pattern, and how many subscriptions the connection has left
+    private void writeSubscription(String kind, String name, ReplyBuffer outputStream) {
+      outputStream.write("*3\r\n$" + kind.length() + "\r\n" + kind + "\r\n");
+      writeBulkString(name, outputStream);
+      outputStream.write(":" + (subscribedChannels.size() + subscribedPatterns.size()) + "\r\n");
+    }
+
+    public void handlePublishCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      outputStream.write(":" + pubSub.publish(command.getString(1), command.getBytes(2)) + "\r\n");
+    }
+
+    // PUBSUB CHANNELS [pattern] | NUMSUB [channel ...] | NUMPAT
+    public void handlePubsubCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      String subcommand = command.getString(1);
+      if (subcommand.equalsIgnoreCase("CHANNELS") && command.size() <= 3) {
+        List<String> channels = pubSub.getChannels(command.size() == 3 ? command.getString(2) : null);
+        outputStream.write("*" + channels.size() + "\r\n");
+        for (String channel : channels) {
+          writeBulkString(channel, outputStream);
+        }
+      } else if (subcommand.equalsIgnoreCase("NUMSUB")) {
+        outputStream.write("*" + (command.size() - 2) * 2 + "\r\n");
+        for (int i = 2; i < command.size(); i++) {
+          writeBulkString(command.getString(i), outputStream);
+          outputStream.write(":" + pubSub.getSubscriberCount(command.getString(i)) + "\r\n");
+        }
+      } else if (subcommand.equalsIgnoreCase("NUMPAT") && command.size() == 2) {
+        outputStream.write(":" + pubSub.getPatternCount() + "\r\n");
+      } else {
+        outputStream.write("-ERR unknown subcommand or wrong number of arguments for '" + subcommand + "'. Try PUBSUB CHANNELS, NUMSUB or NUMPAT.\r\n");
+      }
+    }
+
+    public void handleMultiCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      if (queuedCommands != null) {
+        outputStream.write("-ERR MULTI calls can not be nested\r\n");
+        return;
+      }
+      queuedCommands = new ArrayList<>();
+      queuedResolved = new ArrayList<>();
+      outputStream.write("+OK\r\n");
+    }
+
+    public void handleDiscardCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      if (queuedCommands == null) {
+        outputStream.write("-ERR DISCARD without MULTI\r\n");
+        return;
+      }
+      endTransaction();
+      outputStream.write("+OK\r\n");
+    }
+
+    // Holds the stripes of the watched keys and of every queued command's keys exclusively, checks that no
+    // watched key changed, then runs the queued commands. Nothing else touches those keys meanwhile, while
+    // transactions and commands on other stripes carry on. A command without key positions (KEYS, XREAD) makes
+    // the transaction hold every stripe. Errors of single commands are their replies, as in Redis: nothing is
+    // rolled back.
+    public void handleExecCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      if (queuedCommands == null) {
+        outputStream.write("-ERR EXEC without MULTI\r\n");
+        return;
+      }
+      if (transactionFailed) {
+        endTransaction();
+        outputStream.write("-EXECABORT Transaction discarded because of previous errors.\r\n");
+        return;
+      }
+      List<RedisParser> commands = queuedCommands;
+      List<RedisCommand> resolved = queuedResolved;
+      KeyLocks keyLocks = getKeyLocks();
+      BitSet stripes = new BitSet();
+      for (String key : watchedKeys.keySet()) {
+        stripes.set(keyLocks.stripe(key));
+      }
+      for (int i = 0; i < commands.size(); i++) {
+        RedisCommand redisCommand = resolved.get(i);
+        if (redisCommand.getFirstKey() > 0) {
+          CommandRegistry.addKeyStripes(redisCommand, commands.get(i), keyLocks, stripes);
+        } else if (redisCommand.hasFlag(RedisCommand.WRITE) || redisCommand.hasFlag(RedisCommand.READONLY)) {
+          stripes = keyLocks.allStripes();
+          break;
+        }
+      }
+      // Built apart and copied out once the locks are gone, so no part of it is sent while they are held
+      ReplyBuffer replies = new ReplyBuffer();
+      keyLocks.lockExclusive(stripes);
+      try {
+        boolean watchedKeyChanged = false;
+        for (Map.Entry<String, Long> watched : watchedKeys.entrySet()) {
+          if (keyLocks.version(keyLocks.stripe(watched.getKey())) != watched.getValue()) {
+            watchedKeyChanged = true;
+            break;
+          }
+        }
+        // Out of MULTI first, so the commands run rather than queue again
+        endTransaction();
+        if (watchedKeyChanged) {
+          replies.write("*-1\r\n");
+        } else {
+          executingTransaction = true;
+          replies.write("*" + commands.size() + "\r\n");
+          for (int i = 0; i < commands.size(); i++) {
+            commandRegistry.dispatch(resolved.get(i), commands.get(i), this, replies);
+          }
+        }
+      } finally {
+        executingTransaction = false;
+        keyLocks.unlockExclusive(stripes);
+      }
+      outputStream.write(replies.toByteArray());
+    }
+
+    // WATCH key [key ...]: EXEC fails if one of them changes before it runs. Each version is read with its stripe
+    // held exclusively, so no command is halfway through changing the key: what the client reads after WATCH is
+    // at least as new as the version.
+    public void handleWatchCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      if (queuedCommands != null) {
+        outputStream.write("-ERR WATCH inside MULTI is not allowed\r\n");
+        return;
+      }
+      KeyLocks keyLocks = getKeyLocks();
+      for (int i = 1; i < command.size(); i++) {
+        String key = command.getString(i);
+        int stripe = keyLocks.stripe(key);
+        keyLocks.lockExclusive(stripe);
+        try {
+          // Watching a key again keeps the version it was first watched at
+          watchedKeys.putIfAbsent(key, keyLocks.version(stripe));
+        } finally {
+          keyLocks.unlockExclusive(stripe);
+        }
+      }
+      outputStream.write("+OK\r\n");
+    }
+
+    public void handleUnwatchCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      watchedKeys.clear();
+      outputStream.write("+OK\r\n");
+    }
+
+    // After EXEC or DISCARD, which also forget the watched keys
+    private void endTransaction() {
+      queuedCommands = null;
+      queuedResolved = null;
+      transactionFailed = false;
+      watchedKeys.clear();
+    }
+
+    public void handleKeysCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      GlobPattern pattern = GlobPattern.compile(command.getString(1));
+      List<String> keys;
+      String literal = pattern.getLiteral();
+      if (literal != null) {
+        // No wildcards: one lookup instead of a pass over the keyspace
+        keys = keyspace.containsKey(literal) ? List.of(literal) : List.of();
+      } else {
+        keys = keyspace.keys(pattern::matches);
+      }
+      outputStream.write("*" + keys.size() + "\r\n");
+      for (String key : keys) {
+        outputStream.write("$" + key.length() + "\r\n" + key + "\r\n");
+        outputStream.drainIfLarge();
+      }
+    }
+
+    // SCAN cursor [MATCH pattern] [COUNT count] [TYPE type]
+    public void handleScanCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      long cursor;
+      try {
+        cursor = Long.parseUnsignedLong(command.getString(1));
+      } catch (NumberFormatException e) {
+        outputStream.write("-ERR invalid cursor\r\n");
+        return;
+      }
+      GlobPattern pattern = null;
+      int count = 10;
+      String type = null;
+      for (int i = 2; i < command.size(); i += 2) {
+        String option = command.getString(i);
+        if (i + 1 >= command.size()) {
+          outputStream.write("-ERR syntax error\r\n");
+          return;
+        }
+        if (option.equalsIgnoreCase("MATCH")) {
+          pattern = GlobPattern.compile(command.getString(i + 1));
+        } else if (option.equalsIgnoreCase("COUNT")) {
+          try {
+            count = Integer.parseInt(command.getString(i + 1));
+          } catch (NumberFormatException e) {
+            outputStream.write("-ERR value is not an integer or out of range\r\n");
+            return;
+          }
+          if (count < 1) {
+            outputStream.write("-ERR syntax error\r\n");
+            return;
+          }
+        } else if (option.equalsIgnoreCase("TYPE")) {
+          type = command.getString(i + 1);
+        } else {
+          outputStream.write("-ERR syntax error\r\n");
+          return;
+        }
+      }
+      GlobPattern match = pattern == null || pattern.matchesAll() ? null : pattern;
+      String matchType = type;
+      List<String> keys = new ArrayList<>();
+      long next = keyspace.scan(cursor, count, (key, value) -> {
+        if ((match == null || match.matches(key)) && (matchType == null || matchType.equalsIgnoreCase(value.getType()))) {
+          keys.add(key);
+        }
+      });
+      String nextCursor = Long.toUnsignedString(next);
+      outputStream.write("*2\r\n$" + nextCursor.length() + "\r\n" + nextCursor + "\r\n*" + keys.size() + "\r\n");
+      for (String key : keys) {
+        outputStream.write("$" + key.length() + "\r\n" + key + "\r\n");
+      }
+    }
+
+    public void handleTypeCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      RedisObject value = keyspace.get(command.getKey());
+      outputStream.write("+" + (value == null ? "none" : value.getType()) + "\r\n");
+    }
+
+    public void handleObjectCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      String subcommand = command.getString(1);
+      if (!subcommand.equalsIgnoreCase("ENCODING") || command.size() != 3) {
+        outputStream.write("-ERR unknown subcommand '" + subcommand + "'. Try OBJECT ENCODING.\r\n");
+        return;
+      }
+      RedisObject value = keyspace.get(command.getString(2));
+      if (value == null) {
+        outputStream.write("$-1\r\n");
+        return;
+      }
+      writeBulkString(value.getEncoding(), outputStream);
+    }
+
+    // HSET key field value [field value ...]
+    public void handleHsetCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      if (command.size() % 2 != 0) {
+        outputStream.write("-ERR wrong number of arguments for 'hset' command\r\n");
+        return;
+      }
+      long added = keyspace.update(command.getKey(), HashCache.class, keyspace::newHash, hash -> {
+        long count = 0;
+        for (int i = 2; i < command.size(); i += 2) {
+          if (hash.put(command.getString(i), command.getString(i + 1))) {
+            count++;
+          }
+        }
+        propagateCommand("HSET", command);
+        return count;
+      });
+      outputStream.write(":" + added + "\r\n");
+    }
+
+    public void handleHgetCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      HashCache hash = keyspace.get(command.getKey(), HashCache.class);
+      String value = null;
+      if (hash != null) {
+        hash.lock();
+        try {
+          value = hash.get(command.getString(2));
+        } finally {
+          hash.unlock();
+        }
+      }
+      writeBulkString(value, outputStream);
+    }
+
+    public void handleHgetallCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      HashCache hash = keyspace.get(command.getKey(), HashCache.class);
+      if (hash == null) {
+        outputStream.write("*0\r\n");
+        return;
+      }
+      hash.lock();
+      try {
+        outputStream.write("*" + hash.size() * 2 + "\r\n");
+        hash.forEach((field, value) -> {
+          writeBulkString(field, outputStream);
+          writeBulkString(value, outputStream);
+        });
+      } finally {
+        hash.unlock();
+      }
+    }
+
+    public void handleHdelCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      Long removed = keyspace.update(command.getKey(), HashCache.class, null, hash -> {
+        long count = 0;
+        for (int i = 2; i < command.size(); i++) {
+          if (hash.remove(command.getString(i))) {
+            count++;
+          }
+        }
+        if (count > 0) {
+          propagateCommand("HDEL", command);
+        }
+        return count;
+      });
+      outputStream.write(":" + (removed == null ? 0 : removed) + "\r\n");
+    }
+
+    public void handleHlenCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      HashCache hash = keyspace.get(command.getKey(), HashCache.class);
+      outputStream.write(":" + (hash == null ? 0 : size(hash)) + "\r\n");
+    }
+
+    public void handleHexistsCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      HashCache hash = keyspace.get(command.getKey(), HashCache.class);
+      boolean exists = false;
+      if (hash != null) {
+        hash.lock();
+        try {
+          exists = hash.contains(command.getString(2));
+        } finally {
+          hash.unlock();
+        }
+      }
+      outputStream.write(exists ? ":1\r\n" : ":0\r\n");
+    }
+
+    public void handleHincrbyCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      long increment;
+      try {
+        increment = Long.parseLong(command.getString(3));
+      } catch (NumberFormatException e) {
+        outputStream.write("-ERR value is not an integer or out of range\r\n");
+        return;
+      }
+      String field = command.getString(2);
+      long updated;
+      try {
+        updated = keyspace.update(command.getKey(), HashCache.class, keyspace::newHash, hash -> {
+          String current = hash.get(field);
+          long value = 0;
+          if (current != null) {
+            try {
+              value = Long.parseLong(current);
+            } catch (NumberFormatException e) {
+              throw new IllegalArgumentException("hash value is not an integer");
+            }
+          }
+          try {
+            value = Math.addExact(value, increment);
+          } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("increment or decrement would overflow");
+          }
+          hash.put(field, Long.toString(value));
+          propagateCommand("HINCRBY", command);
+          return value;
+        });
+      } catch (IllegalArgumentException e) {
+        outputStream.write("-ERR " + e.getMessage() + "\r\n");
+        return;
+      }
+      outputStream.write(":" + updated + "\r\n");
+    }
+
+    // LPUSH and RPUSH key element [element ...]
+    public void handlePushCommand(RedisParser command, ReplyBuffer outputStream, boolean front) throws IOException {
+      String key = command.getKey();
+      long length = keyspace.update(key, ListCache.class, keyspace::newList, list -> {
+        for (int i = 2; i < command.size(); i++) {
+          if (front) {
+            list.pushFront(command.getString(i));
+          } else {
+            list.pushBack(command.getString(i));
+          }
+        }
+        propagateCommand(front ? "LPUSH" : "RPUSH", command);
+        return list.size();
+      });
+      // Wakes the clients in BLPOP and BRPOP on this key, whichever connection they are on
+      keyspace.getBlockingKeys().signal(key);
+      outputStream.write(":" + length + "\r\n");
+    }
+
+    // LPOP and RPOP key [count]
+    public void handlePopCommand(RedisParser command, ReplyBuffer outputStream, boolean front) throws IOException {
+      if (command.size() > 3) {
+        outputStream.write("-ERR syntax error\r\n");
+        return;
+      }
+      long count = 1;
+      if (command.size() == 3) {
+        count = parseCount(command.getString(2));
+        if (count < 0) {
+          outputStream.write("-ERR value is out of range, must be positive\r\n");
+          return;
+        }
+      }
+      long wanted = count;
+      String key = command.getKey();
+      List<String> popped = keyspace.update(key, ListCache.class, null, list -> {
+        List<String> values = new ArrayList<>((int) Math.min(wanted, list.size()));
+        while (values.size() < wanted && !list.isEmpty()) {
+          values.add(front ? list.popFront() : list.popBack());
+        }
+        if (!values.isEmpty()) {
+          // With the count popped, so the replay takes as many even if this popped fewer than asked
+          keyspace.propagate(front ? "LPOP" : "RPOP", key, Integer.toString(values.size()));
+        }
+        return values;
+      });
+      if (command.size() == 2) {
+        writeBulkString(popped == null ? null : popped.get(0), outputStream);
+        return;
+      }
+      if (popped == null) {
+        outputStream.write("*-1\r\n");
+        return;
+      }
+      outputStream.write("*" + popped.size() + "\r\n");
+      for (String value : popped) {
+        writeBulkString(value, outputStream);
+      }
+    }
+
+    // BLPOP and BRPOP key [key ...] timeout: pops from the first non-empty list, or waits up to timeout seconds
+    // (0: forever) for a push to one of them
+    public void handleBlockingPopCommand(RedisParser command, ReplyBuffer outputStream, boolean front) throws IOException {
+      double timeout;
+      try {
+        timeout = parseFloat(command.getString(command.size() - 1));
+      } catch (NumberFormatException e) {
+        outputStream.write("-ERR timeout is not a float or out of range\r\n");
+        return;
+      }
+      if (timeout < 0) {
+        outputStream.write("-ERR timeout is negative\r\n");
+        return;
+      }
+      List<String> keys = command.getArguments().subList(0, command.size() - 2);
+      long deadline = System.currentTimeMillis() + (long) Math.ceil(timeout * 1000);
+      BlockingKeys blockingKeys = keyspace.getBlockingKeys();
+      BlockingKeys.Waiter waiter = null;
+      try {
+        while (true) {
+          for (String key : keys) {
+            String value = keyspace.update(key, ListCache.class, null, list -> {
+              String popped = front ? list.popFront() : list.popBack();
+              // Replicas and the AOF see the pop that happened, not the wait
+              keyspace.propagate(front ? "LPOP" : "RPOP", key);
+              return popped;
+            });
+            if (value != null) {
+              outputStream.write("*2\r\n");
+              writeBulkString(key, outputStream);
+              writeBulkString(value, outputStream);
+              return;
+            }
+          }
+          if (executingTransaction) {
+            // Inside EXEC a blocking command only takes what is there, as in Redis
+            outputStream.write("*-1\r\n");
+            return;
+          }
+          if (waiter == null) {
+            // Check once more after registering: a push between the pops above and the registration would otherwise be lost
+            waiter = blockingKeys.register(keys);
+            continue;
+          }
+          // A wakeup can lose the race for the element to another client, so each wait gets only what is left
+          long remaining = deadline - System.currentTimeMillis();
+          if ((timeout > 0 && remaining <= 0) || !waiter.await(timeout == 0 ? 0 : remaining)) {
+            outputStream.write("*-1\r\n");
+            return;
+          }
+        }
+      } finally {
+        if (waiter != null) {
+          blockingKeys.unregister(waiter);
+        }
+      }
+    }
+
+    public void handleLrangeCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      long start;
+      long stop;
+      try {
+        start = Long.parseLong(command.getString(2));
+        stop = Long.parseLong(command.getString(3));
+      } catch (NumberFormatException e) {
+        outputStream.write("-ERR value is not an integer or out of range\r\n");
+        return;
+      }
+      ListCache list = keyspace.get(command.getKey(), ListCache.class);
+      if (list == null) {
+        outputStream.write("*0\r\n");
+        return;
+      }
+      list.lock();
+      try {
+        long[] range = clampRange(start, stop, list.size());
+        if (range == null) {
+          outputStream.write("*0\r\n");
+          return;
+        }
+        outputStream.write("*" + (range[1] - range[0] + 1) + "\r\n");
+        list.range(range[0], range[1], value -> writeBulkString(value, outputStream));
+      } finally {
+        list.unlock();
+      }
+    }
+
+    public void handleLlenCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      ListCache list = keyspace.get(command.getKey(), ListCache.class);
+      outputStream.write(":" + (list == null ? 0 : size(list)) + "\r\n");
+    }
+
+    public void handleLindexCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      long index;
+      try {
+        index = Long.parseLong(command.getString(2));
+      } catch (NumberFormatException e) {
+        outputStream.write("-ERR value is not an integer or out of range\r\n");
+        return;
+      }
+      ListCache list = keyspace.get(command.getKey(), ListCache.class);
+      String value = null;
+      if (list != null) {
+        list.lock();
+        try {
+          long position = index < 0 ? list.size() + index : index;
+          if (position >= 0 && position < list.size()) {
+            value = list.get(position);
+          }
+        } finally {
+          list.unlock();
+        }
+      }
+      writeBulkString(value, outputStream);
+    }
+
+    public void handleSaddCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      long added = keyspace.update(command.getKey(), SetCache.class, keyspace::newSet, set -> {
+        long count = 0;
+        for (int i = 2; i < command.size(); i++) {
+          if (set.add(command.getString(i))) {
+            count++;
+          }
+        }
+        if (count > 0) {
+          propagateCommand("SADD", command);
+        }
+        return count;
+      });
+      outputStream.write(":" + added + "\r\n");
+    }
+
+    public void handleSremCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      Long removed = keyspace.update(command.getKey(), SetCache.class, null, set -> {
+        long count = 0;
+        for (int i = 2; i < command.size(); i++) {
+          if (set.remove(command.getString(i))) {
+            count++;
+          }
+        }
+        if (count > 0) {
+          propagateCommand("SREM", command);
+        }
+        return count;
+      });
+      outputStream.write(":" + (removed == null ? 0 : removed) + "\r\n");
+    }
+
+    public void handleSismemberCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      SetCache set = keyspace.get(command.getKey(), SetCache.class);
+      boolean member = false;
+      if (set != null) {
+        set.lock();
+        try {
+          member = set.contains(command.getString(2));
+        } finally {
+          set.unlock();
+        }
+      }
+      outputStream.write(member ? ":1\r\n" : ":0\r\n");
+    }
+
+    public void handleSmembersCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      SetCache set = keyspace.get(command.getKey(), SetCache.class);
+      if (set == null) {
+        outputStream.write("*0\r\n");
+        return;
+      }
+      set.lock();
+      try {
+        outputStream.write("*" + set.size() + "\r\n");
+        set.forEach(member -> writeBulkString(member, outputStream));
+      } finally {
+        set.unlock();
+      }
+    }
+
+    public void handleScardCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      SetCache set = keyspace.get(command.getKey(), SetCache.class);
+      outputStream.write(":" + (set == null ? 0 : size(set)) + "\r\n");
+    }
+
+    // Takes the smallest set's members and keeps those every other set has. The sets are locked one at a time,
+    // never together, so two SINTERs can't deadlock; like MGET across separate writes, the result may mix
+    // states of different sets.
+    public void handleSinterCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      List<SetCache> sets = new ArrayList<>(command.size() - 1);
+      for (int i = 1; i < command.size(); i++) {
+        SetCache set = keyspace.get(command.getString(i), SetCache.class);
+        if (set == null) {
+          // Keep checking the types, for the WRONGTYPE error Redis gives
+          sets = null;
+          continue;
+        }
+        if (sets != null) {
+          sets.add(set);
+        }
+      }
+      if (sets == null) {
+        outputStream.write("*0\r\n");
+        return;
+      }
+      sets.sort((a, b) -> Long.compare(size(a), size(b)));
+      List<String> members = new ArrayList<>();
+      SetCache smallest = sets.get(0);
+      smallest.lock();
+      try {
+        smallest.forEach(members::add);
+      } finally {
+        smallest.unlock();
+      }
+      for (int i = 1; i < sets.size() && !members.isEmpty(); i++) {
+        SetCache set = sets.get(i);
+        set.lock();
+        try {
+          members.removeIf(member -> !set.contains(member));
+        } finally {
+          set.unlock();
+        }
+      }
+      outputStream.write("*" + members.size() + "\r\n");
+      for (String member : members) {
+        writeBulkString(member, outputStream);
+      }
+    }
+
+    // ZADD key [NX|XX] [CH] [INCR] score member [score member ...]
+    public void handleZaddCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      boolean nx = false;
+      boolean xx = false;
+      boolean ch = false;
+      boolean incr = false;
+      int first = 2;
+      for (; first < command.size(); first++) {
+        String option = command.getString(first);
+        if (option.equalsIgnoreCase("NX")) {
+          nx = true;
+        } else if (option.equalsIgnoreCase("XX")) {
+          xx = true;
+        } else if (option.equalsIgnoreCase("CH")) {
+          ch = true;
+        } else if (option.equalsIgnoreCase("INCR")) {
+          incr = true;
+        } else {
+          break;
+        }
+      }
+      int pairs = (command.size() - first) / 2;
+      if (pairs == 0 || (command.size() - first) % 2 != 0) {
+        outputStream.write("-ERR syntax error\r\n");
+        return;
+      }
+      if (nx && xx) {
+        outputStream.write("-ERR XX and NX options at the same time are not compatible\r\n");
+        return;
+      }
+      if (incr && pairs > 1) {
+        outputStream.write("-ERR INCR option supports a single increment-element pair\r\n");
+        return;
+      }
+      double[] scores = new double[pairs];
+      for (int i = 0; i < pairs; i++) {
+        try {
+          scores[i] = parseScore(command.getString(first + i * 2));
+        } catch (NumberFormatException e) {
+          outputStream.write("-ERR value is not a valid float\r\n");
+          return;
+        }
+      }
+      boolean onlyNew = nx;
+      boolean onlyExisting = xx;
+      boolean increment = incr;
+      boolean countChanged = ch;
+      int start = first;
+      // Added (or with CH changed) members, and the new score for INCR: NaN when it didn't apply
+      double[] result = {0, Double.NaN};
+      try {
+        keyspace.update(command.getKey(), ZSetCache.class, onlyExisting ? null : keyspace::newZSet, zset -> {
+          long added = 0;
+          long changed = 0;
+          for (int i = 0; i < pairs; i++) {
+            String member = command.getString(start + i * 2 + 1);
+            Double current = zset.score(member);
+            if ((current != null && onlyNew) || (current == null && onlyExisting)) {
+              continue;
+            }
+            double score = scores[i];
+            if (increment && current != null) {
+              score += current;
+              if (Double.isNaN(score)) {
+                throw new IllegalArgumentException("resulting score is not a number (NaN)");
+              }
+            }
+            if (zset.put(member, score)) {
+              added++;
+            } else if (current != score) {
+              changed++;
+            }
+            if (increment) {
+              result[1] = score;
+            }
+          }
+          result[0] = countChanged ? added + changed : added;
+          if (added + changed > 0) {
+            propagateCommand("ZADD", command);
+          }
+          return null;
+        });
+      } catch (IllegalArgumentException e) {
+        outputStream.write("-ERR " + e.getMessage() + "\r\n");
+        return;
+      }
+      if (incr) {
+        writeBulkString(Double.isNaN(result[1]) ? null : formatScore(result[1]), outputStream);
+      } else {
+        outputStream.write(":" + (long) result[0] + "\r\n");
+      }
+    }
+
+    public void handleZincrbyCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      double increment;
+      try {
+        increment = parseScore(command.getString(2));
+      } catch (NumberFormatException e) {
+        outputStream.write("-ERR value is not a valid float\r\n");
+        return;
+      }
+      String member = command.getString(3);
+      double score;
+      try {
+        score = keyspace.update(command.getKey(), ZSetCache.class, keyspace::newZSet, zset -> {
+          Double current = zset.score(member);
+          double value = current == null ? increment : current + increment;
+          if (Double.isNaN(value)) {
+            throw new IllegalArgumentException("resulting score is not a number (NaN)");
+          }
+          zset.put(member, value);
+          propagateCommand("ZINCRBY", command);
+          return value;
+        });
+      } catch (IllegalArgumentException e) {
+        outputStream.write("-ERR " + e.getMessage() + "\r\n");
+        return;
+      }
+      writeBulkString(formatScore(score), outputStream);
+    }
+
+    public void handleZremCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      Long removed = keyspace.update(command.getKey(), ZSetCache.class, null, zset -> {
+        long count = 0;
+        for (int i = 2; i < command.size(); i++) {
+          if (zset.remove(command.getString(i))) {
+            count++;
+          }
+        }
+        if (count > 0) {
+          propagateCommand("ZREM", command);
+        }
+        return count;
+      });
+      outputStream.write(":" + (removed == null ? 0 : removed) + "\r\n");
+    }
+
+    public void handleZscoreCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      ZSetCache zset = keyspace.get(command.getKey(), ZSetCache.class);
+      Double score = null;
+      if (zset != null) {
+        zset.lock();
+        try {
+          score = zset.score(command.getString(2));
+        } finally {
+          zset.unlock();
+        }
+      }
+      writeBulkString(score == null ? null : formatScore(score), outputStream);
+    }
+
+    public void handleZrankCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      ZSetCache zset = keyspace.get(command.getKey(), ZSetCache.class);
+      long rank = -1;
+      if (zset != null) {
+        zset.lock();
+        try {
+          rank = zset.rank(command.getString(2));
+        } finally {
+          zset.unlock();
+        }
+      }
+      outputStream.write(rank < 0 ? "$-1\r\n" : ":" + rank + "\r\n");
+    }
+
+    public void handleZcardCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      ZSetCache zset = keyspace.get(command.getKey(), ZSetCache.class);
+      outputStream.write(":" + (zset == null ? 0 : size(zset)) + "\r\n");
+    }
+
+    // ZRANGE key start stop [WITHSCORES], by rank
+    public void handleZrangeCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      boolean withScores = command.size() == 5 && command.getString(4).equalsIgnoreCase("WITHSCORES");
+      if (command.size() > 5 || (command.size() == 5 && !withScores)) {
+        outputStream.write("-ERR syntax error\r\n");
+        return;
+      }
+      long start;
+      long stop;
+      try {
+        start = Long.parseLong(command.getString(2));
+        stop = Long.parseLong(command.getString(3));
+      } catch (NumberFormatException e) {
+        outputStream.write("-ERR value is not an integer or out of range\r\n");
+        return;
+      }
+      ZSetCache zset = keyspace.get(command.getKey(), ZSetCache.class);
+      if (zset == null) {
+        outputStream.write("*0\r\n");
+        return;
+      }
+      zset.lock();
+      try {
+        long[] range = clampRange(start, stop, zset.size());
+        if (range == null) {
+          outputStream.write("*0\r\n");
+          return;
+        }
+        outputStream.write("*" + (range[1] - range[0] + 1) * (withScores ? 2 : 1) + "\r\n");
+        zset.rangeByRank(range[0], range[1], (member, score) -> writeMember(member, score, withScores, outputStream));
+      } finally {
+        zset.unlock();
+      }
+    }
+
+    // ZRANGEBYSCORE key min max [WITHSCORES] [LIMIT offset count]; "(" before a bound excludes it
+    public void handleZrangebyscoreCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      boolean withScores = false;
+      long offset = 0;
+      long count = -1;
+      for (int i = 4; i < command.size(); i++) {
+        String option = command.getString(i);
+        if (option.equalsIgnoreCase("WITHSCORES")) {
+          withScores = true;
+        } else if (option.equalsIgnoreCase("LIMIT") && i + 2 < command.size()) {
+          try {
+            offset = Long.parseLong(command.getString(i + 1));
+            count = Long.parseLong(command.getString(i + 2));
+          } catch (NumberFormatException e) {
+            outputStream.write("-ERR value is not an integer or out of range\r\n");
+            return;
+          }
+          i += 2;
+        } else {
+          outputStream.write("-ERR syntax error\r\n");
+          return;
+        }
+      }
+      String minArgument = command.getString(2);
+      String maxArgument = command.getString(3);
+      boolean minExclusive = minArgument.startsWith("(");
+      boolean maxExclusive = maxArgument.startsWith("(");
+      double min;
+      double max;
+      try {
+        min = parseScore(minExclusive ? minArgument.substring(1) : minArgument);
+        max = parseScore(maxExclusive ? maxArgument.substring(1) : maxArgument);
+      } catch (NumberFormatException e) {
+        outputStream.write("-ERR min or max is not a float\r\n");
+        return;
+      }
+      ZSetCache zset = keyspace.get(command.getKey(), ZSetCache.class);
+      if (zset == null || offset < 0) {
+        outputStream.write("*0\r\n");
+        return;
+      }
+      // The count isn't known before the walk
+      List<String> reply = new ArrayList<>();
+      boolean scores = withScores;
+      zset.lock();
+      try {
+        zset.rangeByScore(min, minExclusive, max, maxExclusive, offset, count, (member, score) -> {
+          reply.add(member);
+          if (scores) {
+            reply.add(formatScore(score));
+          }
+        });
+      } finally {
+        zset.unlock();
+      }
+      outputStream.write("*" + reply.size() + "\r\n");
+      for (String value : reply) {
+        writeBulkString(value, outputStream);
+      }
     }
 
-    public void handleSetCommand(RedisParser command, BufferedWriter outputStream) throws IOException {
-      String key = command.getKey();
-      String value = command.getValue();
-      long ttl = command.getTTL() == -1 ? -1 : System.currentTimeMillis() + command.getTTL();
+    private static void writeMember(String member, double score, boolean withScore, ReplyBuffer outputStream) {
+      writeBulkString(member, outputStream);
+      if (withScore) {
+        writeBulkString(formatScore(score), outputStream);
+      }
+    }
 
-      if (key != null && value != null) {
-          setMap.put(key, new Cache(value, ttl));
-          outputStream.write("+OK\r\n");
+    // Null writes a null bulk string
+    private static void writeBulkString(String value, ReplyBuffer outputStream) {
+      if (value == null) {
+        outputStream.write("$-1\r\n");
       } else {
-          outputStream.write("-ERR wrong number of arguments\r\n");
+        outputStream.write("$" + value.length() + "\r\n" + value + "\r\n");
       }
     }
 
-    public void handleGetCommand(RedisParser command, BufferedWriter outputStream) throws IOException {
-      String key = command.getKey();
-      Cache cacheItem = setMap.get(key);
-      if(cacheItem == null){
-        cacheItem = rdbMap.get(key);
+    // The command as received, under its canonical name. Collection writes log themselves like this from inside
+    // Keyspace.update(), which keeps their order and makes them exact against snapshots.
+    private void propagateCommand(String name, RedisParser command) {
+      if (!keyspace.hasCommandLog()) {
+        return;
+      }
+      String[] logged = new String[command.size()];
+      logged[0] = name;
+      for (int i = 1; i < logged.length; i++) {
+        logged[i] = command.getString(i);
       }
+      keyspace.propagate(logged);
+    }
 
-      if (cacheItem != null) {
-        if (cacheItem.getTtl() != -1 && System.currentTimeMillis() > cacheItem.getTtl()) {
-          setMap.remove(key);
-          rdbMap.remove(key);
-          outputStream.write("$-1\r\n");
-        } else {
-          outputStream.write("$" + cacheItem.getValue().length() + "\r\n" + cacheItem.getValue() + "\r\n");
-        }
-      } else {
-        outputStream.write("$-1\r\n");
+    private static long size(CollectionCache collection) {
+      collection.lock();
+      try {
+        return collection.size();
+      } finally {
+        collection.unlock();
       }
     }
 
-    public void handleConfigCommand(RedisParser command, BufferedWriter outputStream) throws IOException{
-      if(command.getCommand() == null || !command.getArguments().get(0).equalsIgnoreCase("GET")){
-        outputStream.write("-ERR invalid CONFIG command\r\n");
-        return;
+    // LRANGE and ZRANGE indexes, negative ones counting from the end, as [start, end] within size; null if empty
+    private static long[] clampRange(long start, long end, long size) {
+      if (start < 0) {
+        start = Math.max(0, start + size);
       }
-      String param = command.getArguments().get(1);
-      String value = configMap.get(param);
-      if(value != null){
-        outputStream.write("*2\r\n$"+param.length()+"\r\n"+param+"\r\n$"+value.length()+"\r\n"+value+"\r\n");
-      } else {
-        outputStream.write("-ERR unknown parameter for configuration");
+      if (end < 0) {
+        end += size;
       }
+      end = Math.min(end, size - 1);
+      return start > end ? null : new long[]{start, end};
     }
 
-    public void handleKeysCommand(BufferedWriter outputStream) throws IOException {
-      outputStream.write("*"+rdbMap.size()+"\r\n");
-      for(String key : rdbMap.keySet()){
-        outputStream.write("$" + key.length() + "\r\n" + key + "\r\n");
-        outputStream.flush();
+    // A score argument: a float, or inf with an optional sign
+    private static double parseScore(String value) {
+      if (value.equalsIgnoreCase("inf") || value.equalsIgnoreCase("+inf")) {
+        return Double.POSITIVE_INFINITY;
+      }
+      if (value.equalsIgnoreCase("-inf")) {
+        return Double.NEGATIVE_INFINITY;
       }
+      return parseFloat(value);
     }
 
-    public void handleTypeCommand(RedisParser command, BufferedWriter outputStream) throws IOException {
-      String key = command.getKey();
+    // Nanoseconds as microseconds with three decimals, as INFO latencystats reports them
+    private static String formatMicros(long nanos) {
+      return String.format(Locale.ROOT, "%.3f", nanos / 1000.0);
+    }
 
-      if(setMap.containsKey(key) || rdbMap.containsKey(key)){
-        outputStream.write("+string\r\n");
-        outputStream.flush();
+    // Shortest digits that read back as the same double, in Redis' notation: "3", "1.5", "1e+20", "inf"
+    private static String formatScore(double score) {
+      if (Double.isInfinite(score)) {
+        return score > 0 ? "inf" : "-inf";
       }
-      else if(streamMap.containsKey(key)){
-        outputStream.write("+stream\r\n");
-        outputStream.flush();
+      if (score == Math.rint(score) && Math.abs(score) < 1e17) {
+        return Long.toString((long) score);
       }
-      else{
-        outputStream.write("+none\r\n");
-        outputStream.flush();
+      String digits = Double.toString(score);
+      int exponent = digits.indexOf('E');
+      if (exponent < 0) {
+        return digits;
       }
+      String mantissa = digits.substring(0, exponent);
+      if (mantissa.endsWith(".0")) {
+        mantissa = mantissa.substring(0, mantissa.length() - 2);
+      }
+      int power = Integer.parseInt(digits.substring(exponent + 1));
+      return mantissa + (power < 0 ? "e-" : "e+") + (Math.abs(power) < 10 ? "0" : "") + Math.abs(power);
     }
 
-    public synchronized void handleXADDCommand(RedisParser command, BufferedWriter outputStream) throws IOException {
+    public void handleXADDCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
       String streamKey = command.getKey();
-      String entryId = command.getStreamEntryId();
-      List<String> streamEntries = command.getStreamEntries();
-      StreamCache streamCache = streamMap.getOrDefault(streamKey, new StreamCache());
-
-      long millisecondsTime;
-      int sequenceNumber;
-
-      if (entryId.equals("*")) {
-        millisecondsTime = System.currentTimeMillis();
-        sequenceNumber = 0;
-
-        if (Objects.equals(streamCache.getLastMillisecondsTime(), millisecondsTime)) {
-          sequenceNumber = streamCache.getLastSequenceNumberForMs(millisecondsTime) + 1;
-        }
-      } else {
-        String[] xaddId = entryId.split("-");
-        millisecondsTime = Integer.parseInt(xaddId[0]);
-        if(xaddId[1].equals("*")){
-          int lastSequenceNumber = streamCache.getLastSequenceNumberForMs(millisecondsTime);
-
-          if(lastSequenceNumber >= 0){
-            sequenceNumber = lastSequenceNumber + 1;
-          }
-          else{
-            sequenceNumber = (millisecondsTime == 0) ? 1 : 0;
+      while (true) {
+        StreamCache existing = keyspace.get(streamKey, StreamCache.class);
+        StreamCache streamCache = existing != null ? existing : new StreamCache();
+        streamCache.lock();
+        try {
+          if (appendStreamEntry(command, streamKey, streamCache, existing == null, outputStream)) {
+            break;
           }
+        } finally {
+          streamCache.unlock();
         }
-        else{
-          sequenceNumber = Integer.parseInt(xaddId[1]);
-        }
+      }
+      // Wakes only the clients blocked on this stream, whichever connection they are on
+      keyspace.getBlockingKeys().signal(streamKey);
+    }
 
-        if(millisecondsTime <= 0 && sequenceNumber <=0){
-          outputStream.write("-ERR The ID specified in XADD must be greater than 0-0\r\n");
-          outputStream.flush();
-          return;
-        }
+    // Runs with the stream locked. Returns false if another client created the stream first and the XADD must be retried.
+    private boolean appendStreamEntry(RedisParser command, String streamKey, StreamCache streamCache, boolean isNew, ReplyBuffer outputStream) throws IOException {
+      StreamId lastId = streamCache.getLastId();
+      StreamId entryId;
+      try {
+        entryId = nextStreamId(command.getStreamEntryId(), lastId);
+      } catch (IllegalArgumentException e) {
+        outputStream.write("-" + e.getMessage() + "\r\n");
+        return true;
+      }
 
-        if(millisecondsTime < streamCache.getLastMillisecondsTime() || millisecondsTime == streamCache.getLastMillisecondsTime() && sequenceNumber <= streamCache.getLastSequenceNumber()){
-          outputStream.write("-ERR The ID specified in XADD is equal or smaller than the target stream top item\r\n");
-          outputStream.flush();
-          return;
-        }
+      if (entryId.equals(StreamId.MIN)) {
+        outputStream.write("-ERR The ID specified in XADD must be greater than 0-0\r\n");
+        return true;
+      }
+      if (entryId.compareTo(lastId) <= 0) {
+        outputStream.write("-ERR The ID specified in XADD is equal or smaller than the target stream top item\r\n");
+        return true;
       }
 
-      entryId = millisecondsTime+"-"+sequenceNumber;
-      streamCache.addEntry(entryId, streamEntries);
-      streamMap.put(streamKey, streamCache);
+      // A new stream is only published once the ID is known to be valid, so a rejected XADD creates no key
+      if (isNew && keyspace.getOrCreate(streamKey, StreamCache.class, () -> streamCache) != streamCache) {
+        return false;
+      }
+
+      keyspace.beforeWrite(streamKey, streamCache);
+      List<String> fieldsAndValues = command.getStreamEntries();
+      streamCache.addEntry(entryId, fieldsAndValues);
+      if (keyspace.hasCommandLog()) {
+        // With the ID resolved, so the replayed entry gets the same one
+        List<String> logged = new ArrayList<>(fieldsAndValues.size() + 3);
+        Collections.addAll(logged, "XADD", streamKey, entryId.toString());
+        logged.addAll(fieldsAndValues);
+        keyspace.propagate(logged.toArray(new String[0]));
+      }
 
-      outputStream.write("$"+entryId.length()+"\r\n"+entryId+"\r\n");
-      outputStream.flush();
+      String reply = entryId.toString();
+      outputStream.write("$" + reply.length() + "\r\n" + reply + "\r\n");
+      return true;
+    }
 
-      this.notifyAll();
+    // Resolves "*", "ms-*" and explicit IDs against the stream's top ID. The result may still be <= lastId for explicit IDs.
+    private static StreamId nextStreamId(String requested, StreamId lastId) {
+      if (requested.equals("*")) {
+        long now = System.currentTimeMillis();
+        if (now > lastId.getMilliseconds()) {
+          return new StreamId(now, 0);
+        }
+        // The clock went backwards or several entries landed in the same millisecond
+        return lastId.next();
+      }
+      if (requested.endsWith("-*")) {
+        long milliseconds = StreamId.parse(requested.substring(0, requested.length() - 2), 0).getMilliseconds();
+        if (milliseconds == lastId.getMilliseconds() && lastId.getSequence() != Long.MAX_VALUE) {
+          return new StreamId(milliseconds, lastId.getSequence() + 1);
+        }
+        // A smaller ms is returned as is and rejected by the caller
+        return new StreamId(milliseconds, milliseconds == 0 ? 1 : 0);
+      }
+      return StreamId.parse(requested, 0);
     }
 
-    public void handleXRANGECommand(RedisParser command, BufferedWriter outputStream) throws IOException {
+    public void handleXRANGECommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
       String streamKey = command.getKey();
-      String startId = command.getArguments().get(1);
-      String endId = command.getArguments().get(2);
+      List<String> arguments = command.getArguments();
 
-      StreamCache streamCache = streamMap.get(streamKey);
-      if (streamCache == null) {
-        outputStream.write("*0\r\n");
-        outputStream.flush();
+      StreamId start;
+      StreamId end;
+      long count = 0;
+      try {
+        // "ms" alone covers the whole millisecond: ms-0 as a start, ms-<max> as an end
+        start = StreamId.parse(arguments.get(1), 0);
+        end = StreamId.parse(arguments.get(2), Long.MAX_VALUE);
+      } catch (IllegalArgumentException e) {
+        outputStream.write("-" + e.getMessage() + "\r\n");
         return;
       }
-
-      TreeMap<String, List<String>> entries;
-      startId = startId.contains("-") ? startId : startId + "-0";
-      if(endId.equals("+")){
-        // Get entries with IDs greater than the specified entry ID
-        entries = new TreeMap<>(streamCache.getEntries().tailMap(startId, true));
+      if (arguments.size() == 5 && arguments.get(3).equalsIgnoreCase("count")) {
+        count = parseCount(arguments.get(4));
+        if (count < 0) {
+          outputStream.write("-ERR value is not an integer or out of range\r\n");
+          return;
+        }
+      } else if (arguments.size() != 3) {
+        outputStream.write("-ERR syntax error\r\n");
+        return;
       }
-      else{
-        endId = endId.contains("-") ? endId : endId + "-*";
-
-        if(endId.endsWith("-*")){
-            long endTimeMs = Long.parseLong(endId.split("-")[0]);
-            int lastSequenceNumber = streamCache.getLastSequenceNumberForMs(endTimeMs);
-            endId = endTimeMs + "-" + lastSequenceNumber;
-          }
 
-        entries = new TreeMap<>(streamCache.getEntries().subMap(startId, true, endId, true)); // boolean for including end boundaries
+      StreamCache streamCache = keyspace.get(streamKey, StreamCache.class);
+      if (streamCache == null) {
+        outputStream.write("*0\r\n");
+        return;
       }
 
-      outputStream.write("*"+entries.size()+"\r\n");
-      for(var entry : entries.entrySet()){
-        outputStream.write("*2\r\n$" + entry.getKey().length() + "\r\n" + entry.getKey() + "\r\n");
-        outputStream.write("*"+entry.getValue().size()+"\r\n");
-        for (String value : entry.getValue()) {
-          outputStream.write("$"+value.length()+"\r\n"+value+"\r\n");
-        }
+      List<StreamEntry> entries;
+      streamCache.lock();
+      try {
+        entries = streamCache.range(start, end, count);
+      } finally {
+        streamCache.unlock();
       }
-      outputStream.flush();
+      writeStreamEntries(entries, outputStream);
     }
 
-    public synchronized void handleXREADCommand(RedisParser command, BufferedWriter outputStream) throws IOException {
+    public void handleXREADCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
       List<String> arguments = command.getArguments();
-      int blockIndex = arguments.indexOf("block");
-      int streamsIndex = arguments.indexOf("streams");
+      int blockIndex = indexOfIgnoreCase(arguments, "block");
+      int countIndex = indexOfIgnoreCase(arguments, "count");
+      int streamsIndex = indexOfIgnoreCase(arguments, "streams");
 
       long blockTimeout = 0;
       boolean isBlocking = false;
+      long readCount = 0;
 
-      if (blockIndex != -1 && blockIndex + 1 < arguments.size()) {
+      if (blockIndex != -1 && blockIndex < streamsIndex && blockIndex + 1 < arguments.size()) {
         try {
             blockTimeout = Long.parseLong(arguments.get(blockIndex + 1));
             isBlocking = true;
         } catch (NumberFormatException e) {
             outputStream.write("-ERR Invalid block timeout value\r\n");
-            outputStream.flush();
+            return;
+        }
+        if (blockTimeout < 0) {
+            outputStream.write("-ERR timeout is negative\r\n");
+            return;
+        }
+      }
+
+      if (countIndex != -1 && countIndex < streamsIndex && countIndex + 1 < arguments.size()) {
+        readCount = parseCount(arguments.get(countIndex + 1));
+        if (readCount < 0) {
+            outputStream.write("-ERR value is not an integer or out of range\r\n");
             return;
         }
       }
+      long count = readCount;
       
       if (streamsIndex == -1 || streamsIndex + 1 >= arguments.size()) {
           outputStream.write("-ERR Missing or invalid streams argument\r\n");
-          outputStream.flush();
           return;
       }
       
       // Extract stream keys and entry IDs
       List<String> streamKeys = arguments.subList(streamsIndex + 1, streamsIndex + 1 + (arguments.size() - streamsIndex - 1) / 2);
-      List<String> entryIds = arguments.subList(streamsIndex + 1 + streamKeys.size(), arguments.size());
+      List<String> requestedIds = arguments.subList(streamsIndex + 1 + streamKeys.size(), arguments.size());
       
-      if (streamKeys.size() != entryIds.size()) {
+      if (streamKeys.size() != requestedIds.size()) {
           outputStream.write("-ERR Mismatched number of streams and IDs\r\n");
-          outputStream.flush();
           return;
       }
 
-      long endTime = System.currentTimeMillis() + blockTimeout;
+      // "$" is resolved once, so only entries added after this call started are returned
+      List<StreamId> entryIds = new ArrayList<>(requestedIds.size());
+      for (int i = 0; i < requestedIds.size(); i++) {
+        String entryId = requestedIds.get(i);
+        if (entryId.equals("$")) {
+          StreamCache streamCache = keyspace.get(streamKeys.get(i), StreamCache.class);
+          entryIds.add(streamCache == null ? StreamId.MIN : lastId(streamCache));
+          continue;
+        }
+        try {
+          entryIds.add(StreamId.parse(entryId, 0));
+        } catch (IllegalArgumentException e) {
+          outputStream.write("-" + e.getMessage() + "\r\n");
+          return;
+        }
+      }
+
+      readBlocking(streamKeys, isBlocking, blockTimeout, () -> readStreams(streamKeys, entryIds, count), outputStream);
+    }
 
-      while(true){
-        boolean hasData = false;
-        StringBuilder response = new StringBuilder();
-        response.append("*").append(streamKeys.size()).append("\r\n");
+    // Runs read until it returns entries, registering as a waiter on the streams in between when blocking.
+    // Writes the XREAD-style reply, or a null reply when nothing arrived.
+    private void readBlocking(List<String> streamKeys, boolean isBlocking, long blockTimeout, Supplier<List<List<StreamEntry>>> read, ReplyBuffer outputStream) {
+      BlockingKeys blockingKeys = keyspace.getBlockingKeys();
+      BlockingKeys.Waiter waiter = null;
+      long deadline = System.currentTimeMillis() + blockTimeout;
+      try {
+        while (true) {
+          List<List<StreamEntry>> entries = read.get();
+          if (entries != null) {
+            outputStream.write("*" + streamKeys.size() + "\r\n");
+            for (int i = 0; i < streamKeys.size(); i++) {
+              String streamKey = streamKeys.get(i);
+              outputStream.write("*2\r\n$" + streamKey.length() + "\r\n" + streamKey + "\r\n");
+              writeStreamEntries(entries.get(i), outputStream);
+            }
+            return;
+          }
 
-        for (int i = 0; i < streamKeys.size(); i++) {
-          String streamKey = streamKeys.get(i);
-          String entryId = entryIds.get(i);
-          
-          StreamCache streamCache = streamMap.get(streamKey);
-          if (streamCache == null) {
-              outputStream.write("*2\r\n");
-              outputStream.write("$" + streamKey.length() + "\r\n" + streamKey + "\r\n");
-              outputStream.write("*0\r\n");
-              continue;
+          if (!isBlocking || executingTransaction) {
+            outputStream.write("$-1\r\n");
+            return;
           }
-          
-          entryId = entryId.contains("-") ? entryId : entryId + "-0";
-          
-          // Get entries with IDs greater than the specified entry ID
-          TreeMap<String, List<String>> entries = new TreeMap<>(streamCache.getEntries().tailMap(entryId, false));
 
-          if (!entries.isEmpty()) {
-            hasData = true;
-            response.append("*2\r\n")
-                    .append("$").append(streamKey.length()).append("\r\n").append(streamKey).append("\r\n")
-                    .append("*").append(entries.size()).append("\r\n");
-
-            for (var entry : entries.entrySet()) {
-                response.append("*2\r\n")
-                        .append("$").append(entry.getKey().length()).append("\r\n").append(entry.getKey()).append("\r\n")
-                        .append("*").append(entry.getValue().size()).append("\r\n");
-                for (String value : entry.getValue()) {
-                    response.append("$").append(value.length()).append("\r\n").append(value).append("\r\n");
+          if (waiter == null) {
+            // Check once more after registering: an XADD between the read above and the registration would otherwise be lost
+            waiter = blockingKeys.register(streamKeys);
+            continue;
+          }
+
+          // BLOCK 0 waits until an entry arrives. A wakeup can lose the race for the entry to another client, so
+          // each wait gets only what is left of BLOCK
+          long remaining = deadline - System.currentTimeMillis();
+          if ((blockTimeout > 0 && remaining <= 0) || !waiter.await(blockTimeout == 0 ? 0 : remaining)) {
+            outputStream.write("$-1\r\n");
+            return;
+          }
+        }
+      } finally {
+        if (waiter != null) {
+          blockingKeys.unregister(waiter);
+        }
+      }
+    }
+
+    // Entries after each given ID, one list per stream. Returns null when none of the streams has any.
+    private List<List<StreamEntry>> readStreams(List<String> streamKeys, List<StreamId> entryIds, long count) {
+      boolean hasData = false;
+      List<List<StreamEntry>> result = new ArrayList<>(streamKeys.size());
+
+      for (int i = 0; i < streamKeys.size(); i++) {
+        StreamCache streamCache = keyspace.get(streamKeys.get(i), StreamCache.class);
+
+        List<StreamEntry> entries = List.of();
+        if (streamCache != null) {
+          streamCache.lock();
+          try {
+            entries = streamCache.after(entryIds.get(i), count);
+          } finally {
+            streamCache.unlock();
+          }
+        }
+        hasData |= !entries.isEmpty();
+        result.add(entries);
+      }
+      return hasData ? result : null;
+    }
+
+    private void writeStreamEntries(List<StreamEntry> entries, ReplyBuffer outputStream) {
+      outputStream.write("*" + entries.size() + "\r\n");
+      for (StreamEntry entry : entries) {
+        String id = entry.getId().toString();
+        List<String> fieldsAndValues = entry.getFieldsAndValues();
+        outputStream.write("*2\r\n$" + id.length() + "\r\n" + id + "\r\n*" + fieldsAndValues.size() + "\r\n");
+        for (String value : fieldsAndValues) {
+          outputStream.write("$" + value.length() + "\r\n" + value + "\r\n");
+        }
+      }
+    }
+
+    public void handleXGROUPCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      List<String> arguments = command.getArguments();
+      String subcommand = arguments.get(0);
+      if (subcommand.equalsIgnoreCase("CREATE") && (arguments.size() == 4 || arguments.size() == 5)) {
+        String streamKey = arguments.get(1);
+        boolean mkstream = arguments.size() == 5 && arguments.get(4).equalsIgnoreCase("MKSTREAM");
+        if (arguments.size() == 5 && !mkstream) {
+          outputStream.write("-ERR syntax error\r\n");
+          return;
+        }
+        StreamCache streamCache = mkstream
+            ? keyspace.getOrCreate(streamKey, StreamCache.class, StreamCache::new)
+            : keyspace.get(streamKey, StreamCache.class);
+        if (streamCache == null) {
+          outputStream.write("-ERR The XGROUP subcommand requires the key to exist. Note that for CREATE you may want to use the MKSTREAM option to create an empty stream automatically.\r\n");
+          return;
+        }
+        streamCache.lock();
+        try {
+          String id = arguments.get(3);
+          StreamId lastDeliveredId = id.equals("$") ? streamCache.getLastId() : StreamId.parse(id, 0);
+          keyspace.beforeWrite(streamKey, streamCache);
+          if (!streamCache.createGroup(arguments.get(2), lastDeliveredId)) {
+            outputStream.write("-BUSYGROUP Consumer Group name already exists\r\n");
+            return;
+          }
+          // MKSTREAM always: replay must not depend on whether another command created the stream first
+          keyspace.propagate("XGROUP", "CREATE", streamKey, arguments.get(2), lastDeliveredId.toString(), "MKSTREAM");
+        } catch (IllegalArgumentException e) {
+          outputStream.write("-" + e.getMessage() + "\r\n");
+          return;
+        } finally {
+          streamCache.unlock();
+        }
+        outputStream.write("+OK\r\n");
+      } else if (subcommand.equalsIgnoreCase("DESTROY") && arguments.size() == 3) {
+        String streamKey = arguments.get(1);
+        StreamCache streamCache = keyspace.get(streamKey, StreamCache.class);
+        boolean destroyed = false;
+        if (streamCache != null) {
+          streamCache.lock();
+          try {
+            keyspace.beforeWrite(streamKey, streamCache);
+            destroyed = streamCache.destroyGroup(arguments.get(2));
+            if (destroyed) {
+              keyspace.propagate("XGROUP", "DESTROY", streamKey, arguments.get(2));
+            }
+          } finally {
+            streamCache.unlock();
+          }
+        }
+        // Clients blocked in XREADGROUP on this group get a NOGROUP error instead of waiting forever
+        keyspace.getBlockingKeys().signal(streamKey);
+        outputStream.write(":" + (destroyed ? 1 : 0) + "\r\n");
+      } else if (subcommand.equalsIgnoreCase("SETID") && arguments.size() == 4) {
+        String streamKey = arguments.get(1);
+        String groupName = arguments.get(2);
+        StreamCache streamCache = keyspace.get(streamKey, StreamCache.class);
+        if (streamCache == null) {
+          outputStream.write("-ERR The XGROUP subcommand requires the key to exist. Note that for CREATE you may want to use the MKSTREAM option to create an empty stream automatically.\r\n");
+          return;
+        }
+        streamCache.lock();
+        try {
+          String id = arguments.get(3);
+          StreamId lastDeliveredId = id.equals("$") ? streamCache.getLastId() : StreamId.parse(id, 0);
+          StreamGroup group = streamCache.getGroup(groupName);
+          if (group == null) {
+            outputStream.write("-NOGROUP No such consumer group '" + groupName + "' for key name '" + streamKey + "'\r\n");
+            return;
+          }
+          keyspace.beforeWrite(streamKey, streamCache);
+          group.setLastDeliveredId(lastDeliveredId);
+          keyspace.propagate("XGROUP", "SETID", streamKey, groupName, lastDeliveredId.toString());
+        } catch (IllegalArgumentException e) {
+          outputStream.write("-" + e.getMessage() + "\r\n");
+          return;
+        } finally {
+          streamCache.unlock();
+        }
+        outputStream.write("+OK\r\n");
+      } else {
+        outputStream.write("-ERR unknown subcommand or wrong number of arguments for '" + subcommand + "'. Try XGROUP CREATE, XGROUP SETID or XGROUP DESTROY.\r\n");
+      }
+    }
+
+    public void handleXREADGROUPCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      List<String> arguments = command.getArguments();
+      if (!arguments.get(0).equalsIgnoreCase("GROUP")) {
+        outputStream.write("-ERR syntax error\r\n");
+        return;
+      }
+      String groupName = arguments.get(1);
+      String consumerName = arguments.get(2);
+
+      long blockTimeout = 0;
+      boolean isBlocking = false;
+      long readCount = 0;
+      boolean noAck = false;
+      int streamsIndex = -1;
+      for (int i = 3; i < arguments.size() && streamsIndex == -1; i++) {
+        String option = arguments.get(i);
+        if (option.equalsIgnoreCase("STREAMS")) {
+          streamsIndex = i;
+        } else if (option.equalsIgnoreCase("NOACK")) {
+          noAck = true;
+        } else if (option.equalsIgnoreCase("COUNT") && i + 1 < arguments.size()) {
+          readCount = parseCount(arguments.get(++i));
+          if (readCount < 0) {
+            outputStream.write("-ERR value is not an integer or out of range\r\n");
+            return;
+          }
+        } else if (option.equalsIgnoreCase("BLOCK") && i + 1 < arguments.size()) {
+          blockTimeout = parseCount(arguments.get(++i));
+          if (blockTimeout < 0) {
+            outputStream.write("-ERR timeout is not an integer or out of range\r\n");
+            return;
+          }
+          isBlocking = true;
+        } else {
+          outputStream.write("-ERR syntax error\r\n");
+          return;
+        }
+      }
+
+      if (streamsIndex == -1 || (arguments.size() - streamsIndex - 1) % 2 != 0 || streamsIndex + 1 >= arguments.size()) {
+        outputStream.write("-ERR Unbalanced 'xreadgroup' list of streams: for each stream key an ID or '>' must be specified.\r\n");
+        return;
+      }
+
+      int streams = (arguments.size() - streamsIndex - 1) / 2;
+      List<String> streamKeys = arguments.subList(streamsIndex + 1, streamsIndex + 1 + streams);
+      // null stands for ">": entries never delivered to the group. Other IDs re-read the consumer's own pending entries.
+      List<StreamId> entryIds = new ArrayList<>(streams);
+      for (String id : arguments.subList(streamsIndex + 1 + streams, arguments.size())) {
+        if (id.equals(">")) {
+          entryIds.add(null);
+          continue;
+        }
+        try {
+          entryIds.add(StreamId.parse(id, 0));
+        } catch (IllegalArgumentException e) {
+          outputStream.write("-" + e.getMessage() + "\r\n");
+          return;
+        }
+        // History is served from the PEL and never blocks
+        isBlocking = false;
+      }
+
+      long count = readCount;
+      boolean acknowledged = noAck;
+      try {
+        readBlocking(streamKeys, isBlocking, blockTimeout, () -> readGroup(streamKeys, entryIds, groupName, consumerName, count, acknowledged), outputStream);
+      } catch (IllegalArgumentException e) {
+        outputStream.write("-" + e.getMessage() + "\r\n");
+      }
+    }
+
+    // Like readStreams, for a consumer of groupName. Throws IllegalArgumentException when a stream or the group is missing.
+    private List<List<StreamEntry>> readGroup(List<String> streamKeys, List<StreamId> entryIds, String groupName, String consumerName, long count, boolean noAck) {
+      boolean hasData = false;
+      List<List<StreamEntry>> result = new ArrayList<>(streamKeys.size());
+
+      for (int i = 0; i < streamKeys.size(); i++) {
+        String streamKey = streamKeys.get(i);
+        StreamCache streamCache = keyspace.get(streamKey, StreamCache.class);
+        if (streamCache == null) {
+          throw new IllegalArgumentException("NOGROUP No such key '" + streamKey + "' or consumer group '" + groupName + "' in XREADGROUP with GROUP option");
+        }
+
+        List<StreamEntry> entries = new ArrayList<>();
+        streamCache.lock();
+        try {
+          StreamGroup group = streamCache.getGroup(groupName);
+          if (group == null) {
+            throw new IllegalArgumentException("NOGROUP No such key '" + streamKey + "' or consumer group '" + groupName + "' in XREADGROUP with GROUP option");
+          }
+          keyspace.beforeWrite(streamKey, streamCache);
+          // Deliveries are logged as the XCLAIMs that recreate them, as Redis propagates XREADGROUP
+          boolean logged = keyspace.hasCommandLog();
+          long now = System.currentTimeMillis();
+          StreamGroup.Consumer consumer = group.getOrCreateConsumer(consumerName, now);
+          StreamId entryId = entryIds.get(i);
+          if (entryId == null) {
+            entries = streamCache.after(group.getLastDeliveredId(), count);
+            for (StreamEntry entry : entries) {
+              if (!noAck) {
+                StreamGroup.PendingEntry pending = group.deliver(entry.getId(), consumer, now, true);
+                if (logged) {
+                  keyspace.propagate(AppendOnlyFile.claimCommand(streamKey, groupName, pending));
                 }
+              }
+            }
+            if (!entries.isEmpty()) {
+              group.setLastDeliveredId(entries.get(entries.size() - 1).getId());
+              keyspace.propagate("XGROUP", "SETID", streamKey, groupName, group.getLastDeliveredId().toString());
             }
           } else {
-              response.append("*2\r\n")
-                      .append("$").append(streamKey.length()).append("\r\n").append(streamKey).append("\r\n")
-                      .append("*0\r\n");
+            for (StreamGroup.PendingEntry pending : consumer.getPending().tailMap(entryId, false).values()) {
+              if (count > 0 && entries.size() >= count) {
+                break;
+              }
+              StreamEntry entry = streamCache.get(pending.getId());
+              if (entry != null) {
+                entries.add(entry);
+              }
+            }
+            for (StreamEntry entry : entries) {
+              StreamGroup.PendingEntry pending = group.deliver(entry.getId(), consumer, now, true);
+              if (logged) {
+                keyspace.propagate(AppendOnlyFile.claimCommand(streamKey, groupName, pending));
+              }
+            }
+            // Reading history always answers, even with an empty list
+            hasData = true;
+          }
+        } finally {
+          streamCache.unlock();
+        }
+        hasData |= !entries.isEmpty();
+        result.add(entries);
+      }
+      return hasData ? result : null;
+    }
+
+    public void handleXACKCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      List<String> arguments = command.getArguments();
+      List<StreamId> ids = new ArrayList<>(arguments.size() - 2);
+      try {
+        for (String id : arguments.subList(2, arguments.size())) {
+          ids.add(StreamId.parse(id, 0));
+        }
+      } catch (IllegalArgumentException e) {
+        outputStream.write("-" + e.getMessage() + "\r\n");
+        return;
+      }
+
+      int acknowledged = 0;
+      StreamCache streamCache = keyspace.get(command.getKey(), StreamCache.class);
+      if (streamCache != null) {
+        streamCache.lock();
+        try {
+          StreamGroup group = streamCache.getGroup(arguments.get(1));
+          if (group != null) {
+            keyspace.beforeWrite(command.getKey(), streamCache);
+            List<String> logged = new ArrayList<>(List.of("XACK", command.getKey(), arguments.get(1)));
+            for (StreamId id : ids) {
+              if (group.acknowledge(id)) {
+                acknowledged++;
+                logged.add(id.toString());
+              }
+            }
+            if (acknowledged > 0) {
+              keyspace.propagate(logged.toArray(new String[0]));
+            }
           }
+        } finally {
+          streamCache.unlock();
         }
+      }
+      outputStream.write(":" + acknowledged + "\r\n");
+    }
+
+    // XPENDING key group                                        -> summary
+    // XPENDING key group [IDLE min-idle] start end count [consumer] -> one line per pending entry
+    public void handleXPENDINGCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      List<String> arguments = command.getArguments();
+      String streamKey = command.getKey();
+      String groupName = arguments.get(1);
 
-        if (hasData) {
-          outputStream.write(response.toString());
-          outputStream.flush();
+      long minIdle = 0;
+      int rangeIndex = 2;
+      if (arguments.size() > 2 && arguments.get(2).equalsIgnoreCase("IDLE")) {
+        minIdle = arguments.size() > 3 ? parseCount(arguments.get(3)) : -1;
+        if (minIdle < 0) {
+          outputStream.write("-ERR value is not an integer or out of range\r\n");
           return;
         }
+        rangeIndex = 4;
+      }
+      boolean extended = arguments.size() > 2;
+      if (extended && arguments.size() != rangeIndex + 3 && arguments.size() != rangeIndex + 4) {
+        outputStream.write("-ERR syntax error\r\n");
+        return;
+      }
 
-        if (!isBlocking || blockTimeout <= 0) {
-          outputStream.write("$-1\r\n");
-          outputStream.flush();
+      StreamId start = StreamId.MIN;
+      StreamId end = StreamId.MAX;
+      long count = 0;
+      if (extended) {
+        try {
+          start = StreamId.parse(arguments.get(rangeIndex), 0);
+          end = StreamId.parse(arguments.get(rangeIndex + 1), Long.MAX_VALUE);
+        } catch (IllegalArgumentException e) {
+          outputStream.write("-" + e.getMessage() + "\r\n");
+          return;
+        }
+        count = parseCount(arguments.get(rangeIndex + 2));
+        if (count < 0) {
+          outputStream.write("-ERR value is not an integer or out of range\r\n");
           return;
         }
+      }
 
-        long currentTime = System.currentTimeMillis();
-        if (currentTime >= endTime) {
-          outputStream.write("$-1\r\n");
-          outputStream.flush();
+      StreamCache streamCache = keyspace.get(streamKey, StreamCache.class);
+      if (streamCache == null) {
+        outputStream.write("-NOGROUP No such key '" + streamKey + "' or consumer group '" + groupName + "'\r\n");
+        return;
+      }
+      streamCache.lock();
+      try {
+        StreamGroup group = streamCache.getGroup(groupName);
+        if (group == null) {
+          outputStream.write("-NOGROUP No such key '" + streamKey + "' or consumer group '" + groupName + "'\r\n");
+          return;
+        }
+        if (!extended) {
+          writePendingSummary(group, outputStream);
           return;
         }
 
+        NavigableMap<StreamId, StreamGroup.PendingEntry> pending = group.getPending();
+        if (arguments.size() == rangeIndex + 4) {
+          StreamGroup.Consumer consumer = group.getConsumer(arguments.get(rangeIndex + 3));
+          pending = consumer == null ? Collections.emptyNavigableMap() : consumer.getPending();
+        }
+        long now = System.currentTimeMillis();
+        List<StreamGroup.PendingEntry> selected = new ArrayList<>();
+        if (start.compareTo(end) <= 0) {
+          for (StreamGroup.PendingEntry entry : pending.subMap(start, true, end, true).values()) {
+            if (selected.size() >= count) {
+              break;
+            }
+            if (now - entry.getDeliveryTime() >= minIdle) {
+              selected.add(entry);
+            }
+          }
+        }
+        outputStream.write("*" + selected.size() + "\r\n");
+        for (StreamGroup.PendingEntry entry : selected) {
+          String id = entry.getId().toString();
+          String consumerName = entry.getConsumer().getName();
+          outputStream.write("*4\r\n$" + id.length() + "\r\n" + id + "\r\n$" + consumerName.length() + "\r\n" + consumerName + "\r\n");
+          outputStream.write(":" + Math.max(0, now - entry.getDeliveryTime()) + "\r\n:" + entry.getDeliveryCount() + "\r\n");
+        }
+      } finally {
+        streamCache.unlock();
+      }
+    }
+
+    private void writePendingSummary(StreamGroup group, ReplyBuffer outputStream) {
+      NavigableMap<StreamId, StreamGroup.PendingEntry> pending = group.getPending();
+      if (pending.isEmpty()) {
+        outputStream.write("*4\r\n:0\r\n$-1\r\n$-1\r\n*-1\r\n");
+        return;
+      }
+      String smallest = pending.firstKey().toString();
+      String greatest = pending.lastKey().toString();
+      outputStream.write("*4\r\n:" + pending.size() + "\r\n$" + smallest.length() + "\r\n" + smallest + "\r\n$" + greatest.length() + "\r\n" + greatest + "\r\n");
+      List<StreamGroup.Consumer> withPending = new ArrayList<>();
+      for (StreamGroup.Consumer consumer : group.getConsumers()) {
+        if (!consumer.getPending().isEmpty()) {
+          withPending.add(consumer);
+        }
+      }
+      outputStream.write("*" + withPending.size() + "\r\n");
+      for (StreamGroup.Consumer consumer : withPending) {
+        String name = consumer.getName();
+        String pendingCount = String.valueOf(consumer.getPending().size());
+        outputStream.write("*2\r\n$" + name.length() + "\r\n" + name + "\r\n$" + pendingCount.length() + "\r\n" + pendingCount + "\r\n");
+      }
+    }
+
+    // XCLAIM key group consumer min-idle-time id [id ...] [IDLE ms] [TIME ms-unix-time] [RETRYCOUNT count] [FORCE] [JUSTID]
+    public void handleXCLAIMCommand(RedisParser command, ReplyBuffer outputStream) throws IOException {
+      List<String> arguments = command.getArguments();
+      String streamKey = command.getKey();
+      String groupName = arguments.get(1);
+      String consumerName = arguments.get(2);
+      long minIdle = parseCount(arguments.get(3));
+      if (minIdle < 0) {
+        outputStream.write("-ERR Invalid min-idle-time argument for XCLAIM\r\n");
+        return;
+      }
+
+      long now = System.currentTimeMillis();
+      List<StreamId> ids = new ArrayList<>();
+      int i = 4;
+      for (; i < arguments.size(); i++) {
         try {
-          //This ensures that while one thread is in the synchronized block, no other thread can execute any synchronized code on the same object
-          synchronized (this) {
-            this.wait(endTime - currentTime);
+          ids.add(StreamId.parse(arguments.get(i), 0));
+        } catch (IllegalArgumentException e) {
+          break;
+        }
+      }
+      long deliveryTime = now;
+      long retryCount = -1;
+      boolean force = false;
+      boolean justId = false;
+      for (; i < arguments.size(); i++) {
+        String option = arguments.get(i);
+        boolean hasValue = i + 1 < arguments.size();
+        if (option.equalsIgnoreCase("FORCE")) {
+          force = true;
+        } else if (option.equalsIgnoreCase("JUSTID")) {
+          justId = true;
+        } else if (option.equalsIgnoreCase("IDLE") && hasValue) {
+          deliveryTime = now - Math.max(0, parseCount(arguments.get(++i)));
+        } else if (option.equalsIgnoreCase("TIME") && hasValue) {
+          deliveryTime = parseCount(arguments.get(++i));
+        } else if (option.equalsIgnoreCase("RETRYCOUNT") && hasValue) {
+          retryCount = parseCount(arguments.get(++i));
+        } else {
+          outputStream.write("-ERR Unrecognized XCLAIM option '" + option + "'\r\n");
+          return;
+        }
+      }
+      if (ids.isEmpty() || deliveryTime < 0) {
+        outputStream.write("-ERR syntax error\r\n");
+        return;
+      }
+
+      StreamCache streamCache = keyspace.get(streamKey, StreamCache.class);
+      if (streamCache == null) {
+        outputStream.write("-NOGROUP No such key '" + streamKey + "' or consumer group '" + groupName + "'\r\n");
+        return;
+      }
+      List<StreamEntry> claimed = new ArrayList<>();
+      streamCache.lock();
+      try {
+        StreamGroup group = streamCache.getGroup(groupName);
+        if (group == null) {
+          outputStream.write("-NOGROUP No such key '" + streamKey + "' or consumer group '" + groupName + "'\r\n");
+          return;
+        }
+        keyspace.beforeWrite(streamKey, streamCache);
+        StreamGroup.Consumer consumer = group.getOrCreateConsumer(consumerName, now);
+        for (StreamId id : ids) {
+          StreamGroup.PendingEntry pending = group.getPending().get(id);
+          if (pending == null && !force) {
+            continue;
           }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            outputStream.write("$-1\r\n");
-            outputStream.flush();
-            return;
+          if (pending != null && now - pending.getDeliveryTime() < minIdle) {
+            continue;
+          }
+          StreamEntry entry = streamCache.get(id);
+          if (entry == null) {
+            // The entry is gone from the stream; nothing left to process
+            if (group.acknowledge(id)) {
+              keyspace.propagate("XACK", streamKey, groupName, id.toString());
+            }
+            continue;
+          }
+          // JUSTID claims don't count as deliveries
+          pending = group.deliver(id, consumer, deliveryTime, !justId);
+          if (retryCount >= 0) {
+            pending.setDeliveryCount(retryCount);
+          }
+          keyspace.propagate(AppendOnlyFile.claimCommand(streamKey, groupName, pending));
+          claimed.add(entry);
+        }
+      } finally {
+        streamCache.unlock();
+      }
+
+      if (!justId) {
+        writeStreamEntries(claimed, outputStream);
+        return;
+      }
+      outputStream.write("*" + claimed.size() + "\r\n");
+      for (StreamEntry entry : claimed) {
+        String id = entry.getId().toString();
+        outputStream.write("$" + id.length() + "\r\n" + id + "\r\n");
+      }
+    }
+
+    private StreamId lastId(StreamCache streamCache) {
+      streamCache.lock();
+      try {
+        return streamCache.getLastId();
+      } finally {
+        streamCache.unlock();
+      }
+    }
+
+    // -1 for anything that is not a non-negative integer
+    private static long parseCount(String value) {
+      try {
+        return Math.max(-1, Long.parseLong(value));
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+
+    private static int indexOfIgnoreCase(List<String> arguments, String name) {
+      for (int i = 0; i < arguments.size(); i++) {
+        if (arguments.get(i).equalsIgnoreCase(name)) {
+          return i;
         }
       }
+      return -1;
     }
-}
\ No newline at end of file
+}
@@ -1,79 +1,159 @@
 package com.redis.commands;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class CommandProcessor {
     public static class RedisCommandParser{
-        private BufferedReader inputStream;
+        private static final int READ_BUFFER_SIZE = 16 * 1024;
 
-        public RedisCommandParser(BufferedReader inputStream){
+        private final InputStream inputStream;
+        private final RespParser respParser = new RespParser();
+        // Kept in read mode between calls; the previous command's slices stay valid until the next parseCommand()
+        private ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE).flip();
+
+        public RedisCommandParser(InputStream inputStream){
             this.inputStream = inputStream;
         }
 
         public RedisParser parseCommand() throws IOException{
-        String firstLine = inputStream.readLine();
-        if(firstLine == null || !firstLine.startsWith("*")){
-            throw new IOException("Responding...");
+        RedisParser command;
+        while((command = respParser.parse(buffer)) == null){
+            buffer = RespParser.ensureWritable(buffer.compact());
+            int read = inputStream.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if(read == -1){
+                throw new IOException("Responding...");
+            }
+            buffer.position(buffer.position() + read);
+            buffer.flip();
+        }
+        return command;
         }
 
-        //Parse number of arguments (*3)
-        int numOfArgs = Integer.parseInt(firstLine.substring(1));
-        List<String> arguments = new ArrayList<>();
+        // Next command that is already fully buffered, or null; never blocks on the socket
+        public RedisParser pollBufferedCommand() throws IOException{
+        return respParser.parse(buffer);
+        }
+    }
 
-        //Loading each argument
-        for(int i=0;i<numOfArgs;i++){
-            inputStream.readLine(); // ($3) length of argument
-            String argument = inputStream.readLine();
-            arguments.add(argument);
-        } 
+    // Arguments are slices of a shared byte array (usually the connection's read buffer) and are only
+    // decoded into Strings on demand. ISO-8859-1 maps every byte to exactly one char, so decoded values
+    // round-trip byte for byte and String.length() equals the RESP byte length.
+    public static class RedisParser{
+        private final byte[] data;
+        private final int[] offsets;
+        private final int[] lengths;
+        private final String[] decoded;
+
+        public RedisParser(byte[] data, int[] offsets, int[] lengths){
+        this.data = data;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.decoded = new String[offsets.length];
+        }
 
-        if (arguments.isEmpty()) {
-            throw new IOException("Command not found in input.");
+        // Builds a command from already decoded arguments, e.g. for commands the server issues itself
+        public static RedisParser of(List<String> arguments){
+        int[] offsets = new int[arguments.size()];
+        int[] lengths = new int[arguments.size()];
+        int total = 0;
+        for(int i=0;i<arguments.size();i++){
+            offsets[i] = total;
+            lengths[i] = arguments.get(i).length();
+            total += lengths[i];
+        }
+        byte[] data = new byte[total];
+        for(int i=0;i<arguments.size();i++){
+            byte[] bytes = arguments.get(i).getBytes(StandardCharsets.ISO_8859_1);
+            System.arraycopy(bytes, 0, data, offsets[i], bytes.length);
+        }
+        return new RedisParser(data, offsets, lengths);
         }
 
-        return new RedisParser(arguments);
+        // Detaches the command from the read buffer, for commands that outlive the next read (e.g. offloaded XREAD)
+        public RedisParser copy(){
+        int total = 0;
+        for(int length : lengths){
+            total += length;
+        }
+        byte[] copy = new byte[total];
+        int[] copyOffsets = new int[offsets.length];
+        int position = 0;
+        for(int i=0;i<offsets.length;i++){
+            System.arraycopy(data, offsets[i], copy, position, lengths[i]);
+            copyOffsets[i] = position;
+            position += lengths[i];
+        }
+        return new RedisParser(copy, copyOffsets, lengths.clone());
         }
-    }
 
-    public static class RedisParser{
-        private List<String> arguments;
+        // Number of arguments including the command name
+        public int size(){
+        return offsets.length;
+        }
 
-        public RedisParser(List<String> arguments){
-        this.arguments = arguments;
+        public byte[] getData(){
+        return data;
+        }
+
+        public int getOffset(int index){
+        return offsets[index];
+        }
+
+        public int getLength(int index){
+        return lengths[index];
+        }
+
+        public byte[] getBytes(int index){
+        return Arrays.copyOfRange(data, offsets[index], offsets[index] + lengths[index]);
+        }
+
+        public String getString(int index){
+        String value = decoded[index];
+        if(value == null){
+            value = new String(data, offsets[index], lengths[index], StandardCharsets.ISO_8859_1);
+            decoded[index] = value;
+        }
+        return value;
         }
 
         public String getCommand(){
-        return arguments.get(0).toUpperCase();
+        return getString(0).toUpperCase();
         }
 
         public List<String> getArguments(){
-        return arguments.subList(1, arguments.size());
+        return new AbstractList<String>() {
+            public String get(int index){
+            return getString(index + 1);
+            }
+
+            public int size(){
+            return offsets.length - 1;
+            }
+        };
         }
 
         public String getKey(){
-        return arguments.size() > 1 ? arguments.get(1) : null;
+        return offsets.length > 1 ? getString(1) : null;
         }
 
         public String getValue(){
-        return arguments.size() > 2 ? arguments.get(2) : null;
-        }
-
-        public long getTTL(){
-        if(arguments.size()>4 && "PX".equalsIgnoreCase(arguments.get(3))){
-            return Long.parseLong(arguments.get(4));
-        }
-        return -1;
+        return offsets.length > 2 ? getString(2) : null;
         }
 
         public String getStreamEntryId(){
-        return arguments.size()>2 ? arguments.get(2) : null;
+        return offsets.length>2 ? getString(2) : null;
         }
 
+        // Materialized because the entries are stored in the stream and must not reference the read buffer
         public List<String> getStreamEntries(){
-        return arguments.size()>3 ? arguments.subList(3, arguments.size()) : new ArrayList<>();
+        return offsets.length>3 ? new ArrayList<>(getArguments().subList(2, offsets.length - 1)) : new ArrayList<>();
         }
     }
 }
@@ -0,0 +1,396 @@
+package com.redis.commands;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import com.redis.commands.CommandProcessor.RedisParser;
+import com.redis.data.KeyLocks;
+import com.redis.data.WrongTypeException;
+
+import static com.redis.commands.RedisCommand.*;
+
+// Command table shared by all connections. Names are matched case-insensitively on the raw request bytes
+// through an open-addressing table, so resolving a command allocates nothing.
+public final class CommandRegistry {
+    private RedisCommand[] table = new RedisCommand[32];
+    private final List<RedisCommand> commands = new ArrayList<>();
+    private final SlowLog slowLog = new SlowLog();
+    private final ServerStats stats = new ServerStats();
+
+    public CommandRegistry() {
+        register(new RedisCommand("ping", -1, FAST, 0, 0, 0, CommandHandler::handlePingCommand));
+        // echo -e "*1\r\n$4\r\nPING\r\n" | nc localhost 6379
+        register(new RedisCommand("echo", 2, FAST, 0, 0, 0, CommandHandler::handleEchoCommand));
+        // echo -e "*2\r\n$4\r\nECHO\r\n$13\r\nHello, Redis!\r\n" | nc localhost 6379
+        register(new RedisCommand("set", -3, WRITE | DENYOOM, 1, 1, 1, CommandHandler::handleSetCommand));
+        // echo -e "*3\r\n$3\r\nSET\r\n$3\r\nkey\r\n$5\r\nvalue\r\n" | nc localhost 6379
+        // echo -e "*5\r\n$3\r\nSET\r\n$3\r\nkey\r\n$5\r\nvalue\r\n$2\r\nPX\r\n$4\r\n1000\r\n" | nc localhost 6379
+        register(new RedisCommand("get", 2, READONLY | FAST, 1, 1, 1, CommandHandler::handleGetCommand));
+        // echo -e "*2\r\n$3\r\nGET\r\n$3\r\nkey\r\n" | nc localhost 6379
+        register(new RedisCommand("mget", -2, READONLY | FAST, 1, -1, 1, CommandHandler::handleMgetCommand));
+        // echo -e "*3\r\n$4\r\nMGET\r\n$2\r\nk1\r\n$2\r\nk2\r\n" | nc localhost 6379
+        register(new RedisCommand("mset", -3, WRITE | DENYOOM, 1, -1, 2, (handler, command, out) -> handler.handleMsetCommand(command, out, false)));
+        // echo -e "*5\r\n$4\r\nMSET\r\n$2\r\nk1\r\n$1\r\na\r\n$2\r\nk2\r\n$1\r\nb\r\n" | nc localhost 6379
+        register(new RedisCommand("msetnx", -3, WRITE | DENYOOM, 1, -1, 2, (handler, command, out) -> handler.handleMsetCommand(command, out, true)));
+        register(new RedisCommand("del", -2, WRITE, 1, -1, 1, (handler, command, out) -> handler.handleDelCommand(command, out, false)));
+        // echo -e "*3\r\n$3\r\nDEL\r\n$2\r\nk1\r\n$2\r\nk2\r\n" | nc localhost 6379
+        register(new RedisCommand("unlink", -2, WRITE | FAST, 1, -1, 1, (handler, command, out) -> handler.handleDelCommand(command, out, true)));
+        register(new RedisCommand("exists", -2, READONLY | FAST, 1, -1, 1, CommandHandler::handleExistsCommand));
+        register(new RedisCommand("incr", 2, WRITE | DENYOOM | FAST, 1, 1, 1, (handler, command, out) -> handler.handleIncrByCommand(command, out, 1)));
+        // echo -e "*2\r\n$4\r\nINCR\r\n$7\r\ncounter\r\n" | nc localhost 6379
+        register(new RedisCommand("decr", 2, WRITE | DENYOOM | FAST, 1, 1, 1, (handler, command, out) -> handler.handleIncrByCommand(command, out, -1)));
+        register(new RedisCommand("incrby", 3, WRITE | DENYOOM | FAST, 1, 1, 1, (handler, command, out) -> handler.handleIncrByCommand(command, out, 1)));
+        register(new RedisCommand("decrby", 3, WRITE | DENYOOM | FAST, 1, 1, 1, (handler, command, out) -> handler.handleIncrByCommand(command, out, -1)));
+        register(new RedisCommand("incrbyfloat", 3, WRITE | DENYOOM | FAST, 1, 1, 1, CommandHandler::handleIncrByFloatCommand));
+        // echo -e "*3\r\n$11\r\nINCRBYFLOAT\r\n$7\r\ncounter\r\n$3\r\n0.1\r\n" | nc localhost 6379
+        register(new RedisCommand("append", 3, WRITE | DENYOOM | FAST, 1, 1, 1, CommandHandler::handleAppendCommand));
+        register(new RedisCommand("strlen", 2, READONLY | FAST, 1, 1, 1, CommandHandler::handleStrlenCommand));
+        register(new RedisCommand("getrange", 4, READONLY, 1, 1, 1, CommandHandler::handleGetrangeCommand));
+        // echo -e "*4\r\n$8\r\nGETRANGE\r\n$3\r\nkey\r\n$1\r\n0\r\n$2\r\n-1\r\n" | nc localhost 6379
+        register(new RedisCommand("setrange", 4, WRITE | DENYOOM, 1, 1, 1, CommandHandler::handleSetrangeCommand));
+        register(new RedisCommand("config", -2, ADMIN, 0, 0, 0, CommandHandler::handleConfigCommand));
+        // echo -e "*3\r\n$6\r\nCONFIG\r\n$3\r\nGET\r\n$3\r\ndir\r\n" | nc localhost 6379
+        register(new RedisCommand("keys", 2, READONLY, 0, 0, 0, CommandHandler::handleKeysCommand));
+        // echo -e "*2\r\n$4\r\nKEYS\r\n$1\r\n*\r\n" | nc localhost 6379
+        register(new RedisCommand("scan", -2, READONLY, 0, 0, 0, CommandHandler::handleScanCommand));
+        // echo -e "*6\r\n$4\r\nSCAN\r\n$1\r\n0\r\n$5\r\nMATCH\r\n$6\r\nuser:*\r\n$5\r\nCOUNT\r\n$3\r\n100\r\n" | nc localhost 6379
+        register(new RedisCommand("type", 2, READONLY | FAST, 1, 1, 1, CommandHandler::handleTypeCommand));
+        // echo -e "*2\r\n$4\r\nTYPE\r\n$3\r\nkey\r\n" | nc localhost 6379
+        register(new RedisCommand("expire", 3, WRITE | FAST, 1, 1, 1, (handler, command, out) -> handler.handleExpireCommand(command, out, 1000)));
+        // echo -e "*3\r\n$6\r\nEXPIRE\r\n$3\r\nkey\r\n$2\r\n10\r\n" | nc localhost 6379
+        register(new RedisCommand("pexpire", 3, WRITE | FAST, 1, 1, 1, (handler, command, out) -> handler.handleExpireCommand(command, out, 1)));
+        register(new RedisCommand("expireat", 3, WRITE | FAST, 1, 1, 1, (handler, command, out) -> handler.handleExpireAtCommand(command, out, 1000)));
+        register(new RedisCommand("pexpireat", 3, WRITE | FAST, 1, 1, 1, (handler, command, out) -> handler.handleExpireAtCommand(command, out, 1)));
+        register(new RedisCommand("ttl", 2, READONLY | FAST, 1, 1, 1, (handler, command, out) -> handler.handleTtlCommand(command, out, 1000)));
+        register(new RedisCommand("pttl", 2, READONLY | FAST, 1, 1, 1, (handler, command, out) -> handler.handleTtlCommand(command, out, 1)));
+        register(new RedisCommand("persist", 2, WRITE | FAST, 1, 1, 1, CommandHandler::handlePersistCommand));
+        register(new RedisCommand("info", -1, 0, 0, 0, 0, CommandHandler::handleInfoCommand));
+        // echo -e "*2\r\n$4\r\nINFO\r\n$5\r\nstats\r\n" | nc localhost 6379
+        register(new RedisCommand("save", 1, ADMIN, 0, 0, 0, CommandHandler::handleSaveCommand));
+        register(new RedisCommand("bgsave", -1, ADMIN, 0, 0, 0, CommandHandler::handleBgsaveCommand));
+        // echo -e "*1\r\n$6\r\nBGSAVE\r\n" | nc localhost 6379
+        register(new RedisCommand("lastsave", 1, FAST, 0, 0, 0, CommandHandler::handleLastsaveCommand));
+        register(new RedisCommand("bgrewriteaof", 1, ADMIN, 0, 0, 0, CommandHandler::handleBgrewriteaofCommand));
+        register(new RedisCommand("replconf", -2, ADMIN, 0, 0, 0, CommandHandler::handleReplconfCommand));
+        register(new RedisCommand("psync", 3, ADMIN | NO_MULTI, 0, 0, 0, CommandHandler::handlePsyncCommand));
+        // printf '*3\r\n$5\r\nPSYNC\r\n$1\r\n?\r\n$2\r\n-1\r\n' | nc localhost 6379 | head -c 300
+        register(new RedisCommand("wait", 3, BLOCKING | NO_MULTI, 0, 0, 0, CommandHandler::handleWaitCommand));
+        // echo -e "*3\r\n$4\r\nWAIT\r\n$1\r\n1\r\n$3\r\n500\r\n" | nc localhost 6379
+        register(new RedisCommand("object", -2, READONLY, 2, 2, 1, CommandHandler::handleObjectCommand));
+        // echo -e "*3\r\n$6\r\nOBJECT\r\n$8\r\nENCODING\r\n$3\r\nkey\r\n" | nc localhost 6379
+        register(new RedisCommand("hset", -4, WRITE | DENYOOM | FAST, 1, 1, 1, CommandHandler::handleHsetCommand));
+        // echo -e "*4\r\n$4\r\nHSET\r\n$4\r\nuser\r\n$4\r\nname\r\n$3\r\nann\r\n" | nc localhost 6379
+        register(new RedisCommand("hget", 3, READONLY | FAST, 1, 1, 1, CommandHandler::handleHgetCommand));
+        register(new RedisCommand("hgetall", 2, READONLY, 1, 1, 1, CommandHandler::handleHgetallCommand));
+        register(new RedisCommand("hdel", -3, WRITE | FAST, 1, 1, 1, CommandHandler::handleHdelCommand));
+        register(new RedisCommand("hlen", 2, READONLY | FAST, 1, 1, 1, CommandHandler::handleHlenCommand));
+        register(new RedisCommand("hexists", 3, READONLY | FAST, 1, 1, 1, CommandHandler::handleHexistsCommand));
+        register(new RedisCommand("hincrby", 4, WRITE | DENYOOM | FAST, 1, 1, 1, CommandHandler::handleHincrbyCommand));
+        register(new RedisCommand("lpush", -3, WRITE | DENYOOM | FAST, 1, 1, 1, (handler, command, out) -> handler.handlePushCommand(command, out, true)));
+        // echo -e "*4\r\n$5\r\nLPUSH\r\n$4\r\njobs\r\n$1\r\na\r\n$1\r\nb\r\n" | nc localhost 6379
+        register(new RedisCommand("rpush", -3, WRITE | DENYOOM | FAST, 1, 1, 1, (handler, command, out) -> handler.handlePushCommand(command, out, false)));
+        register(new RedisCommand("lpop", -2, WRITE | FAST, 1, 1, 1, (handler, command, out) -> handler.handlePopCommand(command, out, true)));
+        register(new RedisCommand("rpop", -2, WRITE | FAST, 1, 1, 1, (handler, command, out) -> handler.handlePopCommand(command, out, false)));
+        register(new RedisCommand("blpop", -3, WRITE | BLOCKING, 1, -2, 1, (handler, command, out) -> handler.handleBlockingPopCommand(command, out, true)));
+        // echo -e "*3\r\n$5\r\nBLPOP\r\n$4\r\njobs\r\n$1\r\n5\r\n" | nc localhost 6379
+        register(new RedisCommand("brpop", -3, WRITE | BLOCKING, 1, -2, 1, (handler, command, out) -> handler.handleBlockingPopCommand(command, out, false)));
+        register(new RedisCommand("lrange", 4, READONLY, 1, 1, 1, CommandHandler::handleLrangeCommand));
+        // echo -e "*4\r\n$6\r\nLRANGE\r\n$4\r\njobs\r\n$1\r\n0\r\n$2\r\n-1\r\n" | nc localhost 6379
+        register(new RedisCommand("llen", 2, READONLY | FAST, 1, 1, 1, CommandHandler::handleLlenCommand));
+        register(new RedisCommand("lindex", 3, READONLY, 1, 1, 1, CommandHandler::handleLindexCommand));
+        register(new RedisCommand("sadd", -3, WRITE | DENYOOM | FAST, 1, 1, 1, CommandHandler::handleSaddCommand));
+        // echo -e "*4\r\n$4\r\nSADD\r\n$4\r\ntags\r\n$1\r\n1\r\n$1\r\n2\r\n" | nc localhost 6379
+        register(new RedisCommand("srem", -3, WRITE | FAST, 1, 1, 1, CommandHandler::handleSremCommand));
+        register(new RedisCommand("sismember", 3, READONLY | FAST, 1, 1, 1, CommandHandler::handleSismemberCommand));
+        register(new RedisCommand("smembers", 2, READONLY, 1, 1, 1, CommandHandler::handleSmembersCommand));
+        register(new RedisCommand("scard", 2, READONLY | FAST, 1, 1, 1, CommandHandler::handleScardCommand));
+        register(new RedisCommand("sinter", -2, READONLY, 1, -1, 1, CommandHandler::handleSinterCommand));
+        // echo -e "*3\r\n$6\r\nSINTER\r\n$4\r\ntags\r\n$5\r\nother\r\n" | nc localhost 6379
+        register(new RedisCommand("zadd", -4, WRITE | DENYOOM | FAST, 1, 1, 1, CommandHandler::handleZaddCommand));
+        // echo -e "*4\r\n$4\r\nZADD\r\n$5\r\nboard\r\n$3\r\n1.5\r\n$3\r\nann\r\n" | nc localhost 6379
+        register(new RedisCommand("zincrby", 4, WRITE | DENYOOM | FAST, 1, 1, 1, CommandHandler::handleZincrbyCommand));
+        register(new RedisCommand("zrem", -3, WRITE | FAST, 1, 1, 1, CommandHandler::handleZremCommand));
+        register(new RedisCommand("zscore", 3, READONLY | FAST, 1, 1, 1, CommandHandler::handleZscoreCommand));
+        register(new RedisCommand("zrank", 3, READONLY | FAST, 1, 1, 1, CommandHandler::handleZrankCommand));
+        register(new RedisCommand("zcard", 2, READONLY | FAST, 1, 1, 1, CommandHandler::handleZcardCommand));
+        register(new RedisCommand("zrange", -4, READONLY, 1, 1, 1, CommandHandler::handleZrangeCommand));
+        // echo -e "*5\r\n$6\r\nZRANGE\r\n$5\r\nboard\r\n$1\r\n0\r\n$2\r\n-1\r\n$10\r\nWITHSCORES\r\n" | nc localhost 6379
+        register(new RedisCommand("zrangebyscore", -4, READONLY, 1, 1, 1, CommandHandler::handleZrangebyscoreCommand));
+        // echo -e "*4\r\n$13\r\nZRANGEBYSCORE\r\n$5\r\nboard\r\n$4\r\n-inf\r\n$2\r\n(2\r\n" | nc localhost 6379
+        register(new RedisCommand("xadd", -5, WRITE | DENYOOM | FAST, 1, 1, 1, CommandHandler::handleXADDCommand));
+        register(new RedisCommand("xrange", -4, READONLY, 1, 1, 1, CommandHandler::handleXRANGECommand));
+        register(new RedisCommand("xread", -4, READONLY | BLOCKING, 0, 0, 0, CommandHandler::handleXREADCommand));
+        register(new RedisCommand("xgroup", -3, WRITE | DENYOOM, 2, 2, 1, CommandHandler::handleXGROUPCommand));
+        // echo -e "*5\r\n$6\r\nXGROUP\r\n$6\r\nCREATE\r\n$2\r\nst\r\n$7\r\nworkers\r\n$1\r\n$\r\n" | nc localhost 6379
+        register(new RedisCommand("xreadgroup", -7, WRITE | BLOCKING, 0, 0, 0, CommandHandler::handleXREADGROUPCommand));
+        register(new RedisCommand("xack", -4, WRITE | FAST, 1, 1, 1, CommandHandler::handleXACKCommand));
+        register(new RedisCommand("xpending", -3, READONLY, 1, 1, 1, CommandHandler::handleXPENDINGCommand));
+        register(new RedisCommand("xclaim", -6, WRITE, 1, 1, 1, CommandHandler::handleXCLAIMCommand));
+        register(new RedisCommand("subscribe", -2, PUBSUB | NO_MULTI, 0, 0, 0, (handler, command, out) -> handler.handleSubscribeCommand(command, out, false)));
+        // (printf '*2\r\n$9\r\nSUBSCRIBE\r\n$4\r\nnews\r\n'; sleep 10) | nc localhost 6379
+        register(new RedisCommand("unsubscribe", -1, PUBSUB | NO_MULTI, 0, 0, 0, (handler, command, out) -> handler.handleUnsubscribeCommand(command, out, false)));
+        register(new RedisCommand("psubscribe", -2, PUBSUB | NO_MULTI, 0, 0, 0, (handler, command, out) -> handler.handleSubscribeCommand(command, out, true)));
+        // (printf '*2\r\n$10\r\nPSUBSCRIBE\r\n$6\r\nnews.*\r\n'; sleep 10) | nc localhost 6379
+        register(new RedisCommand("punsubscribe", -1, PUBSUB | NO_MULTI, 0, 0, 0, (handler, command, out) -> handler.handleUnsubscribeCommand(command, out, true)));
+        register(new RedisCommand("publish", 3, PUBSUB | FAST, 0, 0, 0, CommandHandler::handlePublishCommand));
+        // echo -e "*3\r\n$7\r\nPUBLISH\r\n$4\r\nnews\r\n$5\r\nhello\r\n" | nc localhost 6379
+        register(new RedisCommand("pubsub", -2, PUBSUB, 0, 0, 0, CommandHandler::handlePubsubCommand));
+        // echo -e "*3\r\n$6\r\nPUBSUB\r\n$6\r\nNUMSUB\r\n$4\r\nnews\r\n" | nc localhost 6379
+        register(new RedisCommand("multi", 1, FAST, 0, 0, 0, CommandHandler::handleMultiCommand));
+        // echo -e "*1\r\n$5\r\nMULTI\r\n*3\r\n$4\r\nINCR\r\n$1\r\na\r\n*1\r\n$4\r\nEXEC\r\n" | nc localhost 6379
+        register(new RedisCommand("exec", 1, 0, 0, 0, 0, CommandHandler::handleExecCommand));
+        register(new RedisCommand("discard", 1, FAST, 0, 0, 0, CommandHandler::handleDiscardCommand));
+        // No key positions: WATCH locks its keys itself, which it couldn't if dispatch held them already
+        register(new RedisCommand("watch", -2, FAST | NO_MULTI, 0, 0, 0, CommandHandler::handleWatchCommand));
+        register(new RedisCommand("unwatch", 1, FAST, 0, 0, 0, CommandHandler::handleUnwatchCommand));
+        register(new RedisCommand("slowlog", -2, ADMIN, 0, 0, 0, CommandHandler::handleSlowlogCommand));
+        // echo -e "*3\r\n$7\r\nSLOWLOG\r\n$3\r\nGET\r\n$1\r\n5\r\n" | nc localhost 6379
+        register(new RedisCommand("latency", -2, ADMIN, 0, 0, 0, CommandHandler::handleLatencyCommand));
+        // echo -e "*3\r\n$7\r\nLATENCY\r\n$9\r\nHISTOGRAM\r\n$3\r\nget\r\n" | nc localhost 6379
+        register(new RedisCommand("command", -1, ADMIN, 0, 0, 0, (handler, command, out) -> handleCommandCommand(command, out)));
+        // echo -e "*3\r\n$7\r\nCOMMAND\r\n$4\r\nINFO\r\n$3\r\nget\r\n" | nc localhost 6379
+    }
+
+    private void register(RedisCommand command) {
+        if ((commands.size() + 1) * 2 > table.length) {
+            RedisCommand[] old = table;
+            table = new RedisCommand[old.length * 2];
+            for (RedisCommand existing : old) {
+                if (existing != null) {
+                    insert(existing);
+                }
+            }
+        }
+        insert(command);
+        commands.add(command);
+    }
+
+    public List<RedisCommand> getCommands() {
+        return commands;
+    }
+
+    public SlowLog getSlowLog() {
+        return slowLog;
+    }
+
+    public ServerStats getStats() {
+        return stats;
+    }
+
+    public RedisCommand lookup(RedisParser command) {
+        return lookup(command.getData(), command.getOffset(0), command.getLength(0));
+    }
+
+    public RedisCommand lookup(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.ISO_8859_1);
+        return lookup(bytes, 0, bytes.length);
+    }
+
+    public RedisCommand lookup(byte[] data, int offset, int length) {
+        int mask = table.length - 1;
+        for (int slot = hash(data, offset, length) & mask; table[slot] != null; slot = (slot + 1) & mask) {
+            if (matches(table[slot].getNameBytes(), data, offset, length)) {
+                return table[slot];
+            }
+        }
+        return null;
+    }
+
+    // resolved is the result of lookup(command), passed in so callers that inspect flags first don't resolve twice
+    public void dispatch(RedisCommand resolved, RedisParser command, CommandHandler commandHandler, ReplyBuffer outputStream) throws IOException {
+        if (resolved == null) {
+            commandHandler.markTransactionFailed();
+            outputStream.write("-ERR unknown command\r\n");
+            return;
+        }
+        if (!resolved.acceptsArgumentCount(command.size())) {
+            resolved.reject();
+            commandHandler.markTransactionFailed();
+            outputStream.write("-ERR wrong number of arguments for '" + resolved.getName() + "' command\r\n");
+            return;
+        }
+        if (commandHandler.isSubscribed() && !commandHandler.isAllowedWhileSubscribed(resolved)) {
+            resolved.reject();
+            outputStream.write("-ERR Can't execute '" + resolved.getName() + "': only (P)SUBSCRIBE / (P)UNSUBSCRIBE / PING are allowed in this context\r\n");
+            return;
+        }
+        if (commandHandler.isInMulti() && !commandHandler.isTransactionCommand(resolved)) {
+            if (resolved.hasFlag(NO_MULTI)) {
+                resolved.reject();
+                commandHandler.markTransactionFailed();
+                outputStream.write("-ERR Command not allowed inside a transaction\r\n");
+                return;
+            }
+            // Checked again when EXEC runs it, like READONLY and OOM
+            commandHandler.queue(resolved, command);
+            outputStream.write("+QUEUED\r\n");
+            return;
+        }
+        if (resolved.hasFlag(WRITE) && commandHandler.isReadOnly()) {
+            resolved.reject();
+            outputStream.write("-READONLY You can't write against a read only replica.\r\n");
+            return;
+        }
+        if (resolved.hasFlag(DENYOOM) && !commandHandler.freeMemoryIfNeeded()) {
+            resolved.reject();
+            outputStream.write("-OOM command not allowed when used memory > 'maxmemory'.\r\n");
+            return;
+        }
+        boolean blocking = resolved.hasFlag(BLOCKING);
+        if (blocking) {
+            stats.blockingCommandStarted();
+        }
+        try {
+            long elapsed = executeLocked(resolved, command, commandHandler, outputStream);
+            // As in Redis, time spent blocked doesn't make a command slow
+            if (slowLog.isSlow(elapsed) && !blocking) {
+                slowLog.add(command, elapsed, commandHandler.getClientAddress());
+            }
+        } catch (WrongTypeException e) {
+            outputStream.write("-" + e.getMessage() + "\r\n");
+        } finally {
+            if (blocking) {
+                stats.blockingCommandFinished();
+            }
+        }
+        if (resolved.hasFlag(WRITE)) {
+            commandHandler.afterWrite();
+        }
+    }
+
+    public void dispatch(RedisParser command, CommandHandler commandHandler, ReplyBuffer outputStream) throws IOException {
+        dispatch(lookup(command), command, commandHandler, outputStream);
+    }
+
+    // Runs the command with the stripes of its keys held shared, so it never runs in the middle of an EXEC on
+    // them. Commands inside EXEC run under the transaction's exclusive hold instead, and blocking commands, which
+    // may wait for as long as they like, and commands without key positions (KEYS, SCAN, XREAD) take none.
+    private long executeLocked(RedisCommand resolved, RedisParser command, CommandHandler commandHandler, ReplyBuffer outputStream) throws IOException {
+        int firstKey = resolved.getFirstKey();
+        if (firstKey <= 0 || resolved.hasFlag(BLOCKING) || commandHandler.isExecutingTransaction()) {
+            return resolved.execute(commandHandler, command, outputStream);
+        }
+        int lastKey = resolved.lastKeyIndex(command.size());
+        KeyLocks keyLocks = commandHandler.getKeyLocks();
+        if (lastKey == firstKey) {
+            // Single-key commands, most of them, don't allocate
+            int stripe = keyLocks.stripe(command.getData(), command.getOffset(firstKey), command.getLength(firstKey));
+            keyLocks.lockShared(stripe);
+            try {
+                return resolved.execute(commandHandler, command, outputStream);
+            } finally {
+                keyLocks.unlockShared(stripe);
+            }
+        }
+        BitSet stripes = new BitSet();
+        addKeyStripes(resolved, command, keyLocks, stripes);
+        keyLocks.lockShared(stripes);
+        try {
+            return resolved.execute(commandHandler, command, outputStream);
+        } finally {
+            keyLocks.unlockShared(stripes);
+        }
+    }
+
+    // Adds the stripes of the command's keys to stripes
+    static void addKeyStripes(RedisCommand resolved, RedisParser command, KeyLocks keyLocks, BitSet stripes) {
+        if (resolved.getFirstKey() <= 0) {
+            return;
+        }
+        for (int i = resolved.getFirstKey(); i <= resolved.lastKeyIndex(command.size()); i += resolved.getKeyStep()) {
+            stripes.set(keyLocks.stripe(command.getData(), command.getOffset(i), command.getLength(i)));
+        }
+    }
+
+    private void handleCommandCommand(RedisParser command, ReplyBuffer outputStream) {
+        if (command.size() == 1) {
+            outputStream.write("*" + commands.size() + "\r\n");
+            for (RedisCommand redisCommand : commands) {
+                writeCommandInfo(redisCommand, outputStream);
+            }
+            return;
+        }
+        String subcommand = command.getString(1);
+        if (subcommand.equalsIgnoreCase("COUNT")) {
+            outputStream.write(":" + commands.size() + "\r\n");
+        } else if (subcommand.equalsIgnoreCase("INFO")) {
+            outputStream.write("*" + (command.size() - 2) + "\r\n");
+            for (int i = 2; i < command.size(); i++) {
+                RedisCommand redisCommand = lookup(command.getData(), command.getOffset(i), command.getLength(i));
+                if (redisCommand == null) {
+                    outputStream.write("*-1\r\n");
+                } else {
+                    writeCommandInfo(redisCommand, outputStream);
+                }
+            }
+        } else {
+            outputStream.write("-ERR unknown subcommand '" + subcommand + "'. Try COMMAND COUNT or COMMAND INFO.\r\n");
+        }
+    }
+
+    // Sum of every command's calls, INFO's total_commands_processed
+    public long getCommandsProcessed() {
+        long total = 0;
+        for (RedisCommand command : commands) {
+            total += command.getCalls();
+        }
+        return total;
+    }
+
+    // CONFIG RESETSTAT
+    public void resetStats() {
+        for (RedisCommand command : commands) {
+            command.resetStats();
+        }
+        stats.reset();
+    }
+
+    private void writeCommandInfo(RedisCommand redisCommand, ReplyBuffer outputStream) {
+        String name = redisCommand.getName();
+        String[] flags = redisCommand.getFlagNames();
+        outputStream.write("*6\r\n$" + name.length() + "\r\n" + name + "\r\n:" + redisCommand.getArity() + "\r\n");
+        outputStream.write("*" + flags.length + "\r\n");
+        for (String flag : flags) {
+            outputStream.write("+" + flag + "\r\n");
+        }
+        outputStream.write(":" + redisCommand.getFirstKey() + "\r\n:" + redisCommand.getLastKey() + "\r\n:" + redisCommand.getKeyStep() + "\r\n");
+    }
+
+    private void insert(RedisCommand command) {
+        byte[] name = command.getNameBytes();
+        int mask = table.length - 1;
+        int slot = hash(name, 0, name.length) & mask;
+        while (table[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = command;
+    }
+
+    private static int hash(byte[] data, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = hash * 31 + toLower(data[i]);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    // name is stored lower-case, so only the request side needs folding
+    private static boolean matches(byte[] name, byte[] data, int offset, int length) {
+        if (name.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name[i] != toLower(data[offset + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte toLower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b | 0x20) : b;
+    }
+}
@@ -0,0 +1,170 @@
+package com.redis.commands;
+
+import java.util.Arrays;
+
+// Glob-style patterns of KEYS, SCAN MATCH and the like, with Redis' syntax: * ? [abc] [^a-z] and \ to escape.
+// Compiled once per command into an array of tokens, so matching each key neither parses the pattern again nor
+// allocates. "*", a literal and a "prefix*" are recognized and matched without the general algorithm.
+public final class GlobPattern {
+    private static final int ALL = 0;
+    private static final int LITERAL = 1;
+    private static final int PREFIX = 2;
+    private static final int GENERAL = 3;
+
+    private static final byte CHAR = 0;
+    private static final byte ANY = 1;
+    private static final byte STAR = 2;
+    private static final byte CLASS = 3;
+
+    private final int kind;
+    // Literal text for LITERAL and PREFIX
+    private final String literal;
+    private final byte[] types;
+    private final char[] chars;
+    // The chars a CLASS token accepts, as 256-bit sets (strings are byte strings)
+    private final long[][] classes;
+
+    private GlobPattern(int kind, String literal, byte[] types, char[] chars, long[][] classes) {
+        this.kind = kind;
+        this.literal = literal;
+        this.types = types;
+        this.chars = chars;
+        this.classes = classes;
+    }
+
+    public static GlobPattern compile(String pattern) {
+        int length = pattern.length();
+        byte[] types = new byte[length];
+        char[] chars = new char[length];
+        long[][] classes = new long[length][];
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            char c = pattern.charAt(i);
+            switch (c) {
+                case '*' -> {
+                    // A run of stars matches what one does
+                    if (count == 0 || types[count - 1] != STAR) {
+                        types[count++] = STAR;
+                    }
+                }
+                case '?' -> types[count++] = ANY;
+                case '[' -> {
+                    long[] set = new long[4];
+                    boolean negated = i + 1 < length && pattern.charAt(i + 1) == '^';
+                    if (negated) {
+                        i++;
+                    }
+                    // An unterminated class runs to the end of the pattern, as in Redis
+                    while (++i < length && pattern.charAt(i) != ']') {
+                        char from = pattern.charAt(i);
+                        if (from == '\\' && i + 1 < length) {
+                            from = pattern.charAt(++i);
+                        } else if (i + 2 < length && pattern.charAt(i + 1) == '-' && pattern.charAt(i + 2) != ']') {
+                            char to = pattern.charAt(i + 2);
+                            i += 2;
+                            for (int ch = Math.min(from, to); ch <= Math.max(from, to); ch++) {
+                                add(set, (char) ch);
+                            }
+                            continue;
+                        }
+                        add(set, from);
+                    }
+                    if (negated) {
+                        for (int word = 0; word < set.length; word++) {
+                            set[word] = ~set[word];
+                        }
+                    }
+                    types[count] = CLASS;
+                    classes[count++] = set;
+                }
+                case '\\' -> {
+                    types[count] = CHAR;
+                    chars[count++] = i + 1 < length ? pattern.charAt(++i) : '\\';
+                }
+                default -> {
+                    types[count] = CHAR;
+                    chars[count++] = c;
+                }
+            }
+        }
+
+        int literalLength = 0;
+        while (literalLength < count && types[literalLength] == CHAR) {
+            literalLength++;
+        }
+        String literal = new String(chars, 0, literalLength);
+        if (count == 1 && types[0] == STAR) {
+            return new GlobPattern(ALL, null, null, null, null);
+        }
+        if (literalLength == count) {
+            return new GlobPattern(LITERAL, literal, null, null, null);
+        }
+        if (literalLength == count - 1 && types[count - 1] == STAR) {
+            return new GlobPattern(PREFIX, literal, null, null, null);
+        }
+        return new GlobPattern(GENERAL, null, Arrays.copyOf(types, count), chars, classes);
+    }
+
+    private static void add(long[] set, char c) {
+        if (c < 256) {
+            set[c >> 6] |= 1L << c;
+        }
+    }
+
+    public boolean matchesAll() {
+        return kind == ALL;
+    }
+
+    // The only key this pattern matches, or null if it has wildcards
+    public String getLiteral() {
+        return kind == LITERAL ? literal : null;
+    }
+
+    public boolean matches(String text) {
+        switch (kind) {
+            case ALL:
+                return true;
+            case LITERAL:
+                return literal.equals(text);
+            case PREFIX:
+                return text.startsWith(literal);
+            default:
+                return matchGeneral(text);
+        }
+    }
+
+    // Greedy, going back to the last star on a mismatch: O(pattern * text) at worst and no recursion
+    private boolean matchGeneral(String text) {
+        int length = text.length();
+        int p = 0;
+        int t = 0;
+        int starP = -1;
+        int starT = 0;
+        while (t < length) {
+            if (p < types.length) {
+                byte type = types[p];
+                if (type == STAR) {
+                    starP = p++;
+                    starT = t;
+                    continue;
+                }
+                char c = text.charAt(t);
+                if (type == ANY || (type == CHAR && chars[p] == c) || (type == CLASS && c < 256 && (classes[p][c >> 6] & (1L << c)) != 0)) {
+                    p++;
+                    t++;
+                    continue;
+                }
+            }
+            if (starP < 0) {
+                return false;
+            }
+            // Let the last star take one more char
+            p = starP + 1;
+            t = ++starT;
+        }
+        while (p < types.length && types[p] == STAR) {
+            p++;
+        }
+        return p == types.length;
+    }
+}
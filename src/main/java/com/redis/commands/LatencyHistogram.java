@@ -0,0 +1,117 @@
+package com.redis.commands;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Latencies in nanoseconds, counted in log-linear buckets like HdrHistogram: 16 buckets per power of two, so a
+// bucket is at most 1/16 wider than the values in it. Recording is one increment into a fixed array, nothing is
+// allocated. Each stripe of the array is written by a subset of the threads, so connections on different cores
+// rarely contend on a counter; readers add the stripes up.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values from 2^36 ns (about 69 seconds) on all land in the last bucket
+    private static final int MAX_EXPONENT = 36;
+    public static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    // Bounds of the cumulative buckets LATENCY HISTOGRAM and the metrics endpoint report: 1, 2, 4... microseconds
+    public static final int POWER_OF_TWO_BUCKETS = 27;
+    private static final int STRIPES = Math.min(4, Integer.highestOneBit(Runtime.getRuntime().availableProcessors()));
+
+    // For every bucket, the first power-of-two microsecond bound its values are within
+    private static final byte[] POWER_OF_TWO_BUCKET = new byte[BUCKETS];
+
+    static {
+        int power = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            while (power < POWER_OF_TWO_BUCKETS - 1 && highestValue(bucket) > 1000L << power) {
+                power++;
+            }
+            POWER_OF_TWO_BUCKET[bucket] = (byte) power;
+        }
+    }
+
+    // Stripe after stripe, so two stripes never share a cache line except at their ends
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+
+    public void record(long nanos) {
+        int stripe = (int) Thread.currentThread().threadId() & (STRIPES - 1);
+        counts.getAndIncrement(stripe * BUCKETS + bucketOf(nanos));
+    }
+
+    // Counts per bucket, summed over the stripes; not atomic with respect to concurrent record()s
+    public long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                snapshot[bucket] += counts.get(stripe * BUCKETS + bucket);
+            }
+        }
+        return snapshot;
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    public static long total(long[] snapshot) {
+        long total = 0;
+        for (long count : snapshot) {
+            total += count;
+        }
+        return total;
+    }
+
+    // Smallest value, in nanoseconds, that percentile percent of the recorded values are at most; 0 when empty
+    public static long percentile(long[] snapshot, double percentile) {
+        long total = total(snapshot);
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += snapshot[bucket];
+            if (seen >= target) {
+                return highestValue(bucket);
+            }
+        }
+        return highestValue(BUCKETS - 1);
+    }
+
+    // Element i is how many values are at most 2^i microseconds, to within a bucket's width; the last one counts
+    // everything
+    public static long[] cumulativePowersOfTwo(long[] snapshot) {
+        long[] cumulative = new long[POWER_OF_TWO_BUCKETS];
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            cumulative[POWER_OF_TWO_BUCKET[bucket]] += snapshot[bucket];
+        }
+        for (int i = 1; i < POWER_OF_TWO_BUCKETS; i++) {
+            cumulative[i] += cumulative[i - 1];
+        }
+        return cumulative;
+    }
+
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(0, nanos);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        // The bits below the leading one pick the sub-bucket
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // Largest value that falls in bucket
+    static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,151 @@
+package com.redis.commands;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.redis.commands.CommandProcessor.RedisParser;
+
+// Metadata and statistics of one command, resolved once per request by CommandRegistry
+public class RedisCommand {
+    public static final int WRITE = 1;
+    public static final int READONLY = 1 << 1;
+    // May park the calling thread (e.g. XREAD BLOCK), so it must not run on an event-loop thread
+    public static final int BLOCKING = 1 << 2;
+    public static final int ADMIN = 1 << 3;
+    public static final int FAST = 1 << 4;
+    // May grow the dataset, so it is refused when over maxmemory and nothing can be evicted
+    public static final int DENYOOM = 1 << 5;
+    public static final int PUBSUB = 1 << 6;
+    // Refused inside MULTI: it would wait while the transaction holds its keys, or changes what the connection is
+    public static final int NO_MULTI = 1 << 7;
+
+    @FunctionalInterface
+    public interface Executor {
+        void execute(CommandHandler commandHandler, RedisParser command, ReplyBuffer outputStream) throws IOException;
+    }
+
+    private final String name;
+    private final byte[] nameBytes;
+    // Redis convention: N means exactly N arguments (including the name), -N means at least N
+    private final int arity;
+    private final int flags;
+    private final int firstKey;
+    private final int lastKey;
+    private final int keyStep;
+    private final Executor executor;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    // Calls CommandRegistry refused before running them: arity, READONLY or OOM errors
+    private final LongAdder rejectedCalls = new LongAdder();
+    // Blocking commands are left out: their time is mostly waiting, which would hide the cost of everything else
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    public RedisCommand(String name, int arity, int flags, int firstKey, int lastKey, int keyStep, Executor executor) {
+        this.name = name.toLowerCase();
+        this.nameBytes = this.name.getBytes(StandardCharsets.ISO_8859_1);
+        this.arity = arity;
+        this.flags = flags;
+        this.firstKey = firstKey;
+        this.lastKey = lastKey;
+        this.keyStep = keyStep;
+        this.executor = executor;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    byte[] getNameBytes() {
+        return nameBytes;
+    }
+
+    public int getArity() {
+        return arity;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    public int getFirstKey() {
+        return firstKey;
+    }
+
+    public int getLastKey() {
+        return lastKey;
+    }
+
+    public int getKeyStep() {
+        return keyStep;
+    }
+
+    // Index of the last key of a call with argumentCount arguments; below getFirstKey() when the call has none
+    // (e.g. OBJECT HELP)
+    public int lastKeyIndex(int argumentCount) {
+        int last = lastKey < 0 ? argumentCount + lastKey : lastKey;
+        return Math.min(last, argumentCount - 1);
+    }
+
+    public boolean acceptsArgumentCount(int size) {
+        return arity >= 0 ? size == arity : size >= -arity;
+    }
+
+    // Returns how long the command ran, in nanoseconds
+    public long execute(CommandHandler commandHandler, RedisParser command, ReplyBuffer outputStream) throws IOException {
+        long start = System.nanoTime();
+        long elapsed;
+        try {
+            executor.execute(commandHandler, command, outputStream);
+        } finally {
+            elapsed = System.nanoTime() - start;
+            nanos.add(elapsed);
+            calls.increment();
+            if ((flags & BLOCKING) == 0) {
+                histogram.record(elapsed);
+            }
+        }
+        return elapsed;
+    }
+
+    void reject() {
+        rejectedCalls.increment();
+    }
+
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    public long getMicros() {
+        return nanos.sum() / 1000;
+    }
+
+    public long getRejectedCalls() {
+        return rejectedCalls.sum();
+    }
+
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    public void resetStats() {
+        calls.reset();
+        nanos.reset();
+        rejectedCalls.reset();
+        histogram.reset();
+    }
+
+    public String[] getFlagNames() {
+        String[] names = new String[Integer.bitCount(flags)];
+        int i = 0;
+        if (hasFlag(WRITE)) names[i++] = "write";
+        if (hasFlag(READONLY)) names[i++] = "readonly";
+        if (hasFlag(BLOCKING)) names[i++] = "blocking";
+        if (hasFlag(ADMIN)) names[i++] = "admin";
+        if (hasFlag(FAST)) names[i++] = "fast";
+        if (hasFlag(DENYOOM)) names[i++] = "denyoom";
+        if (hasFlag(PUBSUB)) names[i++] = "pubsub";
+        if (hasFlag(NO_MULTI)) names[i++] = "no-multi";
+        return names;
+    }
+}
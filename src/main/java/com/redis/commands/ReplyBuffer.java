@@ -0,0 +1,109 @@
+package com.redis.commands;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.redis.data.Cache;
+
+// Growable byte buffer that collects the replies of every command in a pipelined batch,
+// so the connection can hand them to the socket in a single write
+public class ReplyBuffer {
+    private static final int INITIAL_SIZE = 4 * 1024;
+    private static final int RETAINED_SIZE = 1024 * 1024;
+    // How much of a long reply is buffered before drainIfLarge() hands it to the connection
+    private static final int DRAIN_SIZE = 64 * 1024;
+
+    // Sends buffered replies and resets the buffer, so a long reply can leave while it is still being built
+    @FunctionalInterface
+    public interface Sink {
+        void drain(ReplyBuffer replies) throws IOException;
+    }
+
+    private byte[] bytes = new byte[INITIAL_SIZE];
+    private int size;
+    // Null when the connection can't send part of a reply early, e.g. for offloaded commands
+    private Sink sink;
+
+    public void setSink(Sink sink) {
+        this.sink = sink;
+    }
+
+    // Called between the elements of replies that may be huge (KEYS): once enough is buffered, the connection
+    // sends it, so the reply never has to fit in memory as a whole and the client gets it in steady batches
+    public void drainIfLarge() throws IOException {
+        if (sink != null && size >= DRAIN_SIZE) {
+            sink.drain(this);
+        }
+    }
+
+    // Strings are byte strings (see RedisParser), so every char is written as its low byte
+    public void write(String value) {
+        int length = value.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            bytes[size++] = (byte) value.charAt(i);
+        }
+    }
+
+    public void write(byte[] value, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(value, offset, bytes, size, length);
+        size += length;
+    }
+
+    public void write(byte[] value) {
+        write(value, 0, value.length);
+    }
+
+    // A bulk string reply with the bytes of value
+    public void writeBulk(Cache value) {
+        writeBulk(value, 0, value.length());
+    }
+
+    // A bulk string reply with length bytes of value from start on
+    public void writeBulk(Cache value, int start, int length) {
+        write("$" + length + "\r\n");
+        ensureCapacity(length + 2);
+        value.copyTo(start, length, bytes, size);
+        size += length;
+        bytes[size++] = '\r';
+        bytes[size++] = '\n';
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void reset() {
+        size = 0;
+        // Don't let one huge reply (KEYS, XRANGE) pin its buffer for the rest of the connection
+        if (bytes.length > RETAINED_SIZE) {
+            bytes = new byte[INITIAL_SIZE];
+        }
+    }
+
+    public void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(bytes, 0, size);
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+
+    // View over the buffered bytes; only valid until the next write or reset
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(bytes, 0, size);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+        }
+    }
+}
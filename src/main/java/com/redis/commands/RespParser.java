@@ -0,0 +1,132 @@
+package com.redis.commands;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.redis.commands.CommandProcessor.RedisParser;
+
+// Incremental RESP2 request parser working directly on the bytes of a heap ByteBuffer.
+// Bulk strings are located through their $len prefix, so arguments may contain \r\n or any other byte.
+// A partial frame leaves the buffer position untouched and the parser remembers how far it got,
+// which lets non-blocking callers simply read more bytes and call parse() again.
+public class RespParser {
+    private static final int MAX_ARGUMENTS = 1024 * 1024;
+    private static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private int numOfArgs = -1;
+    private int parsedArgs;
+    private int bulkLength = -1;
+    // Bytes of the current frame already consumed, relative to the frame start so compact() does not invalidate it
+    private int scanned;
+    private int[] offsets;
+    private int[] lengths;
+
+    // Expects the buffer in read mode. Returns null until a whole command is available.
+    public RedisParser parse(ByteBuffer buffer) throws IOException {
+        int frameStart = buffer.position();
+        int limit = buffer.limit();
+        int pos = frameStart + scanned;
+
+        if (numOfArgs < 0) {
+            int lineEnd = findLineEnd(buffer, pos, limit);
+            if (lineEnd < 0) {
+                return null;
+            }
+            if (buffer.get(pos) != '*') {
+                throw new IOException("Responding...");
+            }
+            numOfArgs = parseLength(buffer, pos + 1, lineEnd, MAX_ARGUMENTS);
+            if (numOfArgs == 0) {
+                throw new IOException("Command not found in input.");
+            }
+            offsets = new int[numOfArgs];
+            lengths = new int[numOfArgs];
+            pos = lineEnd + 2;
+            scanned = pos - frameStart;
+        }
+
+        while (parsedArgs < numOfArgs) {
+            if (bulkLength < 0) {
+                int lineEnd = findLineEnd(buffer, pos, limit);
+                if (lineEnd < 0) {
+                    return null;
+                }
+                if (buffer.get(pos) != '$') {
+                    throw new IOException("Protocol error: expected '$', got '" + (char) buffer.get(pos) + "'");
+                }
+                bulkLength = parseLength(buffer, pos + 1, lineEnd, MAX_BULK_LENGTH);
+                pos = lineEnd + 2;
+                scanned = pos - frameStart;
+            }
+            if (limit - pos < bulkLength + 2) {
+                return null;
+            }
+            if (buffer.get(pos + bulkLength) != '\r' || buffer.get(pos + bulkLength + 1) != '\n') {
+                throw new IOException("Protocol error: bulk string not terminated by CRLF");
+            }
+            offsets[parsedArgs] = pos - frameStart;
+            lengths[parsedArgs] = bulkLength;
+            parsedArgs++;
+            pos += bulkLength + 2;
+            scanned = pos - frameStart;
+            bulkLength = -1;
+        }
+
+        // Arguments stay slices of the buffer's backing array; no per-argument copy is made
+        int base = buffer.arrayOffset() + frameStart;
+        for (int i = 0; i < numOfArgs; i++) {
+            offsets[i] += base;
+        }
+        RedisParser command = new RedisParser(buffer.array(), offsets, lengths);
+        buffer.position(pos);
+        numOfArgs = -1;
+        parsedArgs = 0;
+        scanned = 0;
+        offsets = null;
+        lengths = null;
+        return command;
+    }
+
+    // Returns a buffer (in write mode) with room for at least one more read, doubling the capacity if it is full
+    public static ByteBuffer ensureWritable(ByteBuffer buffer) {
+        if (buffer.hasRemaining()) {
+            return buffer;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    // Index of the '\r' of the next CRLF at or after from, or -1 if the line is not complete yet
+    private static int findLineEnd(ByteBuffer buffer, int from, int limit) throws IOException {
+        for (int i = from; i < limit - 1; i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n') {
+                return i;
+            }
+        }
+        if (limit - from > MAX_LINE_LENGTH) {
+            throw new IOException("Protocol error: too big count or length line");
+        }
+        return -1;
+    }
+
+    private static int parseLength(ByteBuffer buffer, int from, int to, int max) throws IOException {
+        if (from == to) {
+            throw new IOException("Protocol error: invalid length");
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            byte digit = buffer.get(i);
+            if (digit < '0' || digit > '9') {
+                throw new IOException("Protocol error: invalid length");
+            }
+            value = value * 10 + (digit - '0');
+            if (value > max) {
+                throw new IOException("Protocol error: invalid length");
+            }
+        }
+        return (int) value;
+    }
+}
@@ -0,0 +1,52 @@
+package com.redis.commands;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server-wide counters for INFO and the metrics endpoint; the per-command ones are in RedisCommand
+public class ServerStats {
+    private final long startTime = System.currentTimeMillis();
+    private final LongAdder connectionsReceived = new LongAdder();
+    private final AtomicInteger connectedClients = new AtomicInteger();
+    // Connections inside a BLOCKING command, which may be waiting for data or replicas
+    private final AtomicInteger blockedClients = new AtomicInteger();
+
+    // Called by the connection handlers on accept and by the connections when they close
+    public void clientConnected() {
+        connectionsReceived.increment();
+        connectedClients.incrementAndGet();
+    }
+
+    public void clientDisconnected() {
+        connectedClients.decrementAndGet();
+    }
+
+    void blockingCommandStarted() {
+        blockedClients.incrementAndGet();
+    }
+
+    void blockingCommandFinished() {
+        blockedClients.decrementAndGet();
+    }
+
+    public long getUptimeSeconds() {
+        return (System.currentTimeMillis() - startTime) / 1000;
+    }
+
+    public long getConnectionsReceived() {
+        return connectionsReceived.sum();
+    }
+
+    public int getConnectedClients() {
+        return connectedClients.get();
+    }
+
+    public int getBlockedClients() {
+        return blockedClients.get();
+    }
+
+    // CONFIG RESETSTAT; the gauges stay as they are
+    public void reset() {
+        connectionsReceived.reset();
+    }
+}
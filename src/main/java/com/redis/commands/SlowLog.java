@@ -0,0 +1,129 @@
+package com.redis.commands;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.redis.commands.CommandProcessor.RedisParser;
+
+// Commands that ran longer than slowlog-log-slower-than microseconds, newest first, in a ring buffer of
+// slowlog-max-len entries like Redis' SLOWLOG. Checking the threshold is one comparison; only a slow command
+// copies its arguments and takes the lock.
+public class SlowLog {
+    // The config parameters this class reads; CONFIG SET of one of them calls reloadConfig()
+    public static final String[] PARAMETERS = {"slowlog-log-slower-than", "slowlog-max-len"};
+
+    // Like Redis, at most this many arguments and this many bytes of each are kept
+    private static final int MAX_ARGUMENTS = 32;
+    private static final int MAX_ARGUMENT_LENGTH = 128;
+
+    public record Entry(long id, long timestamp, long micros, List<String> arguments, String client) {
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private Entry[] entries = new Entry[128];
+    // Index of the next entry to write and how many are in use
+    private int next;
+    private int size;
+    private long nextId;
+
+    // Long.MAX_VALUE when disabled, so the check stays a single comparison
+    private volatile long slowerThanNanos = 10_000_000;
+
+    // Parses the parameters once. Throws IllegalArgumentException on a bad value and keeps the previous settings then.
+    public void reloadConfig(Map<String, String> configMap) {
+        long slowerThan = Long.parseLong(configMap.getOrDefault("slowlog-log-slower-than", "10000"));
+        int maxLength = Integer.parseInt(configMap.getOrDefault("slowlog-max-len", "128"));
+        if (maxLength < 0) {
+            throw new IllegalArgumentException("argument must be a non-negative integer");
+        }
+        // Negative disables the log, 0 logs every command
+        slowerThanNanos = slowerThan < 0 ? Long.MAX_VALUE : slowerThan * 1000;
+        lock.lock();
+        try {
+            if (maxLength != entries.length) {
+                List<Entry> kept = get(maxLength);
+                entries = new Entry[maxLength];
+                // Oldest first, so the newest ends up just before next
+                for (int i = kept.size() - 1; i >= 0; i--) {
+                    entries[kept.size() - 1 - i] = kept.get(i);
+                }
+                size = kept.size();
+                next = maxLength == 0 ? 0 : size % maxLength;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isSlow(long nanos) {
+        return nanos >= slowerThanNanos;
+    }
+
+    public void add(RedisParser command, long nanos, String client) {
+        int count = Math.min(command.size(), MAX_ARGUMENTS);
+        List<String> arguments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (i == MAX_ARGUMENTS - 1 && command.size() > MAX_ARGUMENTS) {
+                arguments.add("... (" + (command.size() - MAX_ARGUMENTS + 1) + " more arguments)");
+                break;
+            }
+            int length = command.getLength(i);
+            if (length > MAX_ARGUMENT_LENGTH) {
+                arguments.add(new String(command.getData(), command.getOffset(i), MAX_ARGUMENT_LENGTH, StandardCharsets.ISO_8859_1)
+                    + "... (" + (length - MAX_ARGUMENT_LENGTH) + " more bytes)");
+            } else {
+                arguments.add(command.getString(i));
+            }
+        }
+        lock.lock();
+        try {
+            if (entries.length == 0) {
+                return;
+            }
+            entries[next] = new Entry(nextId++, System.currentTimeMillis() / 1000, nanos / 1000, arguments, client);
+            next = (next + 1) % entries.length;
+            size = Math.min(size + 1, entries.length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The newest count entries, newest first; count < 0 returns all of them
+    public List<Entry> get(int count) {
+        lock.lock();
+        try {
+            int n = count < 0 ? size : Math.min(count, size);
+            List<Entry> newest = new ArrayList<>(n);
+            for (int i = 1; i <= n; i++) {
+                newest.add(entries[(next - i + entries.length) % entries.length]);
+            }
+            return newest;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void reset() {
+        lock.lock();
+        try {
+            Arrays.fill(entries, null);
+            next = 0;
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.redis.data;
+
+// Periodic task that deletes keys whose TTL passed even if nobody reads them again.
+// Each run stops after its time budget so a burst of expirations cannot starve the server.
+public class ActiveExpireCycle implements Runnable {
+    private final Keyspace keyspace;
+    private final long budgetNanos;
+
+    public ActiveExpireCycle(Keyspace keyspace, long budgetMillis) {
+        this.keyspace = keyspace;
+        this.budgetNanos = budgetMillis * 1_000_000L;
+    }
+
+    public void run() {
+        try {
+            long deadline = System.nanoTime() + budgetNanos;
+            long now = System.currentTimeMillis();
+            ExpiryIndex.Entry due;
+            int checked = 0;
+            while ((due = keyspace.getExpiryIndex().firstDue(now)) != null) {
+                keyspace.expireActively(due.key, due.deadline);
+                // nanoTime() is not free, so the budget is only checked every few keys
+                if ((++checked & 15) == 0 && System.nanoTime() > deadline) {
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            // A failure must not cancel the scheduled task
+            System.out.println("Error in active expire cycle: " + e.getMessage());
+        }
+    }
+}
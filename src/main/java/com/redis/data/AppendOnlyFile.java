@@ -0,0 +1,485 @@
+package com.redis.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// The append-only file: every write as a RESP command, replayed at startup to rebuild the keyspace.
+// Commands are appended to a memory buffer while the key is locked and reach the file when a connection is about
+// to reply (await()) or once a second. Whoever gets the file lock writes everything buffered so far, so with
+// appendfsync always the clients waiting behind it find their commands already forced and share one fsync.
+public class AppendOnlyFile implements CommandLog {
+    // Name used for the temporary consumer group that recreates an empty stream, see rewriteStream()
+    private static final String EMPTY_STREAM_GROUP = "aof-rewrite-empty-stream";
+    private static final int REWRITE_BATCH = 64;
+
+    private final Keyspace keyspace;
+    private final ConcurrentHashMap<String, String> configMap;
+    private final Path path;
+
+    // Guards buffer, appended and rewriteBuffer. Taken inside compute(), so it is never held for I/O.
+    private final ReentrantLock bufferLock = new ReentrantLock();
+    private CommandBuffer buffer = new CommandBuffer();
+    // Bytes appended since startup: the position clients wait for
+    private long appended;
+    // Commands logged while a rewrite runs, for the end of the new file
+    private CommandBuffer rewriteBuffer;
+
+    // Guards channel and spare; held while writing and, for appendfsync always, while forcing
+    private final ReentrantLock ioLock = new ReentrantLock();
+    private CommandBuffer spare = new CommandBuffer();
+    private FileChannel channel;
+    private volatile long written;
+    private final AtomicLong synced = new AtomicLong();
+
+    private final AtomicBoolean rewriting = new AtomicBoolean();
+    private volatile boolean lastWriteOk = true;
+    private volatile boolean lastRewriteOk = true;
+
+    public AppendOnlyFile(Keyspace keyspace, ConcurrentHashMap<String, String> configMap) {
+        this.keyspace = keyspace;
+        this.configMap = configMap;
+        this.path = Path.of(configMap.get("dir"), configMap.get("appendfilename"));
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    // Opens the file for appending. A missing file is first created from the keyspace as loaded from the RDB file.
+    public void open() throws IOException {
+        if (!Files.exists(path)) {
+            if (!rewrite()) {
+                throw new IOException("Can't create the append only file while a snapshot is running");
+            }
+            return;
+        }
+        ioLock.lock();
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } finally {
+            ioLock.unlock();
+        }
+    }
+
+    @Override
+    public void lock() {
+        bufferLock.lock();
+    }
+
+    @Override
+    public void unlock() {
+        bufferLock.unlock();
+    }
+
+    @Override
+    public void append(String... command) {
+        bufferLock.lock();
+        try {
+            int before = buffer.size();
+            buffer.append(command);
+            appended += buffer.size() - before;
+            if (rewriteBuffer != null) {
+                rewriteBuffer.append(command);
+            }
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+
+    public long getAppendedPosition() {
+        bufferLock.lock();
+        try {
+            return appended;
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+
+    // Returns once everything appended up to position is in the file, and on disk with appendfsync always.
+    // Called before replies go out, so a client never sees a write acknowledged that a crash could lose
+    // beyond what the fsync policy allows.
+    public void await(long position) throws IOException {
+        boolean always = "always".equals(configMap.get("appendfsync"));
+        if ((always ? synced.get() : written) >= position) {
+            return;
+        }
+        ioLock.lock();
+        try {
+            // A client that waited for the lock usually finds its commands written, and forced, by the previous holder
+            if ((always ? synced.get() : written) >= position) {
+                return;
+            }
+            long target = drain();
+            if (always) {
+                channel.force(false);
+                synced.accumulateAndGet(target, Math::max);
+            }
+        } catch (IOException e) {
+            lastWriteOk = false;
+            throw e;
+        } finally {
+            ioLock.unlock();
+        }
+    }
+
+    // Called once a second from its own thread: writes what no client flushed and, with appendfsync everysec,
+    // forces the file without holding the file lock, so clients keep writing meanwhile
+    public void flushEverySecond() {
+        try {
+            long target;
+            FileChannel current;
+            ioLock.lock();
+            try {
+                target = drain();
+                current = channel;
+            } finally {
+                ioLock.unlock();
+            }
+            if ("everysec".equals(configMap.get("appendfsync")) && synced.get() < target) {
+                current.force(false);
+                synced.accumulateAndGet(target, Math::max);
+            }
+        } catch (ClosedChannelException e) {
+            // A rewrite replaced the file in the meantime, and forced the new one
+        } catch (IOException e) {
+            lastWriteOk = false;
+            System.out.println("Error writing to the append only file: " + e.getMessage());
+        }
+    }
+
+    // Runs with ioLock held. Returns the position now written.
+    private long drain() throws IOException {
+        long target;
+        bufferLock.lock();
+        try {
+            CommandBuffer full = buffer;
+            buffer = spare;
+            spare = full;
+            target = appended;
+        } finally {
+            bufferLock.unlock();
+        }
+        try {
+            spare.writeTo(channel);
+        } finally {
+            spare.reset();
+        }
+        written = target;
+        lastWriteOk = true;
+        return target;
+    }
+
+    // Returns false if a rewrite, or a snapshot for BGSAVE, is already running
+    public boolean backgroundRewrite() {
+        Keyspace.Snapshot snapshot = beginRewrite();
+        if (snapshot == null) {
+            return false;
+        }
+        Thread rewriter = new Thread(() -> {
+            try {
+                finishRewrite(snapshot);
+            } catch (IOException e) {
+                System.out.println("Background AOF rewrite error: " + e.getMessage());
+            }
+        }, "aof-rewrite");
+        rewriter.setDaemon(true);
+        rewriter.start();
+        return true;
+    }
+
+    // Rewrites in the calling thread. Returns false if a rewrite or snapshot is already running.
+    public boolean rewrite() throws IOException {
+        Keyspace.Snapshot snapshot = beginRewrite();
+        if (snapshot == null) {
+            return false;
+        }
+        finishRewrite(snapshot);
+        return true;
+    }
+
+    public boolean isRewriteInProgress() {
+        return rewriting.get();
+    }
+
+    public boolean isLastWriteOk() {
+        return lastWriteOk;
+    }
+
+    public boolean isLastRewriteOk() {
+        return lastRewriteOk;
+    }
+
+    public long getSize() {
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    // Commands logged from here on go to the rewrite buffer as well. It starts before the snapshot point, so a
+    // write racing with it may land in both the snapshot and the buffer: every logged command is idempotent
+    // (absolute IDs and times, FORCE claims), and replaying it twice changes nothing. Collection writes, whose
+    // commands are not, hold bufferLock across the write and the append (see Keyspace.update()).
+    private Keyspace.Snapshot beginRewrite() {
+        if (!rewriting.compareAndSet(false, true)) {
+            return null;
+        }
+        bufferLock.lock();
+        try {
+            Keyspace.Snapshot snapshot = keyspace.beginSnapshot();
+            if (snapshot == null) {
+                rewriting.set(false);
+                return null;
+            }
+            rewriteBuffer = new CommandBuffer();
+            return snapshot;
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+
+    private void finishRewrite(Keyspace.Snapshot snapshot) throws IOException {
+        long started = System.currentTimeMillis();
+        Path temp = path.resolveSibling("temp-rewriteaof-" + ProcessHandle.current().pid() + ".aof");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            CommandBuffer commands = new CommandBuffer();
+            keyspace.snapshot(snapshot, (key, value, ttl) -> {
+                rewriteKey(commands, key, value, ttl);
+                if (commands.size() >= RdbInput.BUFFER_SIZE) {
+                    commands.writeTo(out);
+                    commands.reset();
+                }
+            });
+            commands.writeTo(out);
+
+            // Catch up with the writes made meanwhile, so the final step under the locks has little left to copy
+            CommandBuffer logged;
+            bufferLock.lock();
+            try {
+                logged = rewriteBuffer;
+                rewriteBuffer = new CommandBuffer();
+            } finally {
+                bufferLock.unlock();
+            }
+            logged.writeTo(out);
+
+            ioLock.lock();
+            bufferLock.lock();
+            try {
+                rewriteBuffer.writeTo(out);
+                out.force(true);
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                if (channel != null) {
+                    channel.close();
+                }
+                channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                // Everything still buffered for the old file is in the rewrite buffer, and so already in the new one
+                buffer.reset();
+                written = appended;
+                synced.accumulateAndGet(appended, Math::max);
+            } finally {
+                rewriteBuffer = null;
+                bufferLock.unlock();
+                ioLock.unlock();
+            }
+            lastRewriteOk = true;
+            System.out.println("Append only file rewritten in " + (System.currentTimeMillis() - started) + " ms");
+        } catch (IOException | RuntimeException e) {
+            lastRewriteOk = false;
+            bufferLock.lock();
+            try {
+                rewriteBuffer = null;
+            } finally {
+                bufferLock.unlock();
+            }
+            throw e;
+        } finally {
+            Files.deleteIfExists(temp);
+            rewriting.set(false);
+        }
+    }
+
+    // The shortest commands that recreate the key. Those of strings and streams are idempotent; a collection
+    // can't race with its own logged writes (see beginRewrite()), so it is rebuilt with plain RPUSH, SADD...
+    private static void rewriteKey(CommandBuffer commands, String key, RedisObject value, long ttl) {
+        if (value instanceof Cache cache) {
+            if (ttl == -1) {
+                commands.append("SET", key, cache.getValue());
+            } else {
+                commands.append("SET", key, cache.getValue(), "PXAT", Long.toString(ttl));
+            }
+            return;
+        }
+        if (value instanceof StreamCache stream) {
+            rewriteStream(commands, key, stream);
+        } else if (value instanceof CollectionCache collection) {
+            rewriteCollection(commands, key, collection);
+        }
+        if (ttl != -1) {
+            commands.append("PEXPIREAT", key, Long.toString(ttl));
+        }
+    }
+
+    // Up to REWRITE_BATCH elements per command, like Redis' AOF_REWRITE_ITEMS_PER_CMD
+    private static void rewriteCollection(CommandBuffer commands, String key, CollectionCache collection) {
+        String name;
+        int width;
+        if (collection instanceof HashCache) {
+            name = "HSET";
+            width = 2;
+        } else if (collection instanceof ListCache) {
+            name = "RPUSH";
+            width = 1;
+        } else if (collection instanceof SetCache) {
+            name = "SADD";
+            width = 1;
+        } else {
+            name = "ZADD";
+            width = 2;
+        }
+        List<String> batch = new ArrayList<>(2 + REWRITE_BATCH * width);
+        Runnable flush = () -> {
+            if (batch.size() > 2) {
+                commands.append(batch.toArray(new String[0]));
+                batch.subList(2, batch.size()).clear();
+            }
+        };
+        batch.add(name);
+        batch.add(key);
+        Consumer<String> add = element -> {
+            batch.add(element);
+            if (batch.size() == 2 + REWRITE_BATCH * width) {
+                flush.run();
+            }
+        };
+        if (collection instanceof HashCache hash) {
+            hash.forEach((field, value) -> {
+                batch.add(field);
+                add.accept(value);
+            });
+        } else if (collection instanceof ListCache list) {
+            list.forEach(add);
+        } else if (collection instanceof SetCache set) {
+            set.forEach(add);
+        } else {
+            ((ZSetCache) collection).forEach((member, score) -> {
+                // Double.toString reads back as the same double
+                batch.add(Double.isInfinite(score) ? (score > 0 ? "inf" : "-inf") : Double.toString(score));
+                add.accept(member);
+            });
+        }
+        flush.run();
+    }
+
+    private static void rewriteStream(CommandBuffer commands, String key, StreamCache stream) {
+        if (stream.isEmpty() && stream.getGroups().isEmpty()) {
+            // There is no command that creates an empty stream by itself
+            commands.append("XGROUP", "CREATE", key, EMPTY_STREAM_GROUP, "0", "MKSTREAM");
+            commands.append("XGROUP", "DESTROY", key, EMPTY_STREAM_GROUP);
+            return;
+        }
+        List<StreamEntry> entries = stream.range(StreamId.MIN, StreamId.MAX, 1000);
+        while (!entries.isEmpty()) {
+            for (StreamEntry entry : entries) {
+                List<String> fieldsAndValues = entry.getFieldsAndValues();
+                String[] command = new String[3 + fieldsAndValues.size()];
+                command[0] = "XADD";
+                command[1] = key;
+                command[2] = entry.getId().toString();
+                for (int i = 0; i < fieldsAndValues.size(); i++) {
+                    command[3 + i] = fieldsAndValues.get(i);
+                }
+                commands.append(command);
+            }
+            entries = stream.after(entries.get(entries.size() - 1).getId(), 1000);
+        }
+        for (StreamGroup group : stream.getGroups()) {
+            commands.append("XGROUP", "CREATE", key, group.getName(), group.getLastDeliveredId().toString(), "MKSTREAM");
+            // Consumers without pending entries are not kept; they are created again on their next read
+            for (StreamGroup.PendingEntry pending : group.getPending().values()) {
+                commands.append(claimCommand(key, group.getName(), pending));
+            }
+        }
+    }
+
+    // XCLAIM with the entry's absolute delivery time and count: replays the delivery however often it is applied
+    public static String[] claimCommand(String key, String groupName, StreamGroup.PendingEntry pending) {
+        return new String[] {"XCLAIM", key, groupName, pending.getConsumer().getName(), "0", pending.getId().toString(),
+            "TIME", Long.toString(pending.getDeliveryTime()), "RETRYCOUNT", Long.toString(pending.getDeliveryCount()), "FORCE", "JUSTID"};
+    }
+
+    // Growable buffer of RESP-encoded commands. Strings are byte strings, one char per byte.
+    private static final class CommandBuffer {
+        private byte[] bytes = new byte[4096];
+        private int size;
+
+        void append(String... command) {
+            appendHeader('*', command.length);
+            for (String argument : command) {
+                int length = argument.length();
+                appendHeader('$', length);
+                ensureCapacity(length + 2);
+                for (int i = 0; i < length; i++) {
+                    bytes[size++] = (byte) argument.charAt(i);
+                }
+                bytes[size++] = '\r';
+                bytes[size++] = '\n';
+            }
+        }
+
+        private void appendHeader(char type, int length) {
+            ensureCapacity(13);
+            bytes[size++] = (byte) type;
+            if (length < 10) {
+                bytes[size++] = (byte) ('0' + length);
+            } else {
+                String digits = Integer.toString(length);
+                for (int i = 0; i < digits.length(); i++) {
+                    bytes[size++] = (byte) digits.charAt(i);
+                }
+            }
+            bytes[size++] = '\r';
+            bytes[size++] = '\n';
+        }
+
+        int size() {
+            return size;
+        }
+
+        void reset() {
+            size = 0;
+            // Don't keep a burst's worth of memory for good
+            if (bytes.length > RdbInput.BUFFER_SIZE) {
+                bytes = new byte[4096];
+            }
+        }
+
+        void writeTo(FileChannel target) throws IOException {
+            ByteBuffer data = ByteBuffer.wrap(bytes, 0, size);
+            while (data.hasRemaining()) {
+                target.write(data);
+            }
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.redis.data;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+// Clients blocked on keys (XREAD BLOCK, BLPOP), shared by all connections. A write to a key wakes only the
+// waiters registered on that key. Parking uses LockSupport, so waiting virtual threads release their carrier.
+public class BlockingKeys {
+    public static final class Waiter {
+        private final Thread owner = Thread.currentThread();
+        private final List<String> keys;
+        private volatile boolean signalled;
+
+        private Waiter(List<String> keys) {
+            this.keys = keys;
+        }
+
+        private void signal() {
+            signalled = true;
+            LockSupport.unpark(owner);
+        }
+
+        // Parks until signalled. timeoutMillis 0 waits forever. Returns false on timeout or interrupt.
+        public boolean await(long timeoutMillis) {
+            long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+            while (!signalled) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                if (timeoutMillis == 0) {
+                    LockSupport.park(this);
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+            signalled = false;
+            return true;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Set<Waiter>> waiters = new ConcurrentHashMap<>();
+
+    // Must be followed by a re-check of the keys before awaiting, otherwise a write that landed
+    // between the caller's last check and the registration would be missed
+    public Waiter register(List<String> keys) {
+        Waiter waiter = new Waiter(keys);
+        for (String key : keys) {
+            waiters.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(waiter);
+        }
+        return waiter;
+    }
+
+    public void unregister(Waiter waiter) {
+        for (String key : waiter.keys) {
+            waiters.computeIfPresent(key, (k, set) -> {
+                set.remove(waiter);
+                return set.isEmpty() ? null : set;
+            });
+        }
+    }
+
+    public void signal(String key) {
+        Collection<Waiter> blocked = waiters.get(key);
+        if (blocked != null) {
+            for (Waiter waiter : blocked) {
+                waiter.signal();
+            }
+        }
+    }
+}
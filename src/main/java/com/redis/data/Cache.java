@@ -1,18 +1,123 @@
 package com.redis.data;
-public class Cache{
-    String value;
-    long ttl;
 
-    public Cache(String value, long ttl){
+import java.nio.charset.StandardCharsets;
+
+// A string value: raw bytes, or a long for values that are canonical decimal integers (Redis' OBJ_ENCODING_INT),
+// which INCR and friends work on without parsing. Immutable apart from the TTL; writes replace the whole value
+// inside compute(), see Keyspace.updateString().
+public class Cache extends RedisObject{
+    // Object header, the fields of RedisObject and these
+    private static final int OVERHEAD = 56;
+    // Header of the byte[]
+    private static final int ARRAY_OVERHEAD = 16;
+    // "-9223372036854775808"
+    static final int MAX_INTEGER_LENGTH = 20;
+    // Longest string Redis stores in one allocation with its object header
+    private static final int EMBSTR_SIZE_LIMIT = 44;
+    // Digits of the integers Redis shares (OBJ_SHARED_INTEGERS), so replying with a small counter allocates nothing
+    private static final int SHARED_INTEGERS = 10000;
+    private static final byte[][] SHARED_DIGITS = new byte[SHARED_INTEGERS][];
+
+    static {
+        for(int i = 0; i < SHARED_INTEGERS; i++){
+            SHARED_DIGITS[i] = Integer.toString(i).getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    // Null for an integer, which is in number
+    private final byte[] value;
+    private final long number;
+
+    // value is kept, not copied
+    Cache(byte[] value, long ttl){
         this.value = value;
+        this.number = 0;
+        this.ttl = ttl;
+    }
+
+    Cache(long number, long ttl){
+        this.value = null;
+        this.number = number;
         this.ttl = ttl;
     }
 
-    public long getTtl(){
-        return ttl;
+    // The integer data[offset, offset + length) spells, in the canonical form only (no sign but '-', no leading
+    // zeros, no "-0"), so the value converts back to the same bytes. Null if it isn't one.
+    static Cache ofInteger(byte[] data, int offset, int length, long ttl){
+        if(length == 0 || length > MAX_INTEGER_LENGTH){
+            return null;
+        }
+        boolean negative = data[offset] == '-';
+        int i = negative ? offset + 1 : offset;
+        int end = offset + length;
+        if(i == end || data[i] < '0' || data[i] > '9' || (data[i] == '0' && (negative || end - i > 1))){
+            return null;
+        }
+        // Accumulated negatively, so Long.MIN_VALUE fits
+        long result = 0;
+        for(; i < end; i++){
+            int digit = data[i] - '0';
+            if(digit < 0 || digit > 9 || result < (Long.MIN_VALUE + digit) / 10){
+                return null;
+            }
+            result = result * 10 - digit;
+        }
+        if(!negative){
+            if(result == Long.MIN_VALUE){
+                return null;
+            }
+            result = -result;
+        }
+        return new Cache(result, ttl);
+    }
+
+    public String getType(){
+        return "string";
+    }
+
+    public String getEncoding(){
+        if(value == null){
+            return "int";
+        }
+        return value.length <= EMBSTR_SIZE_LIMIT ? "embstr" : "raw";
     }
 
+    public long memoryUsage(){
+        return value == null ? OVERHEAD : OVERHEAD + ARRAY_OVERHEAD + value.length;
+    }
+
+    public boolean isInteger(){
+        return value == null;
+    }
+
+    // Only meaningful if isInteger()
+    public long getLong(){
+        return number;
+    }
+
+    // The bytes of the value. Shared with the value itself, so callers must not change them.
+    public byte[] getBytes(){
+        if(value != null){
+            return value;
+        }
+        if(number >= 0 && number < SHARED_INTEGERS){
+            return SHARED_DIGITS[(int) number];
+        }
+        return Long.toString(number).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // For the AOF, replication and RDB files, which work with Strings
     public String getValue(){
-        return value;
+        return new String(getBytes(), StandardCharsets.ISO_8859_1);
+    }
+
+    // Length in bytes
+    public int length(){
+        return value != null ? value.length : getBytes().length;
+    }
+
+    // Copies length bytes of the value from start on to destination at offset
+    public void copyTo(int start, int length, byte[] destination, int offset){
+        System.arraycopy(getBytes(), start, destination, offset, length);
     }
 }
@@ -0,0 +1,33 @@
+package com.redis.data;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+// Base of hashes, lists, sets and sorted sets. They change in place and are shared by all connections, so
+// readers and writers hold the lock while touching the contents; writers go through Keyspace.update(), which
+// also deletes the key once the collection is empty. Each starts in a compact encoding and converts once it
+// outgrows the limits.
+public abstract class CollectionCache extends RedisObject {
+    private final ReentrantLock lock = new ReentrantLock();
+    final EncodingLimits limits;
+
+    CollectionCache(EncodingLimits limits) {
+        this.limits = limits;
+    }
+
+    @Override
+    public void lock() {
+        lock.lock();
+    }
+
+    @Override
+    public void unlock() {
+        lock.unlock();
+    }
+
+    // Number of elements: fields, members or list entries
+    public abstract long size();
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
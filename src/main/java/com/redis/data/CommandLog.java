@@ -0,0 +1,14 @@
+package com.redis.data;
+
+// Receives every write as a command that redoes it, such as the append-only file.
+// Keyspace calls it while the key is locked, so the commands for one key arrive in the order their writes
+// happened; implementations must only buffer and never block on I/O.
+public interface CommandLog {
+    void append(String... command);
+
+    // Held by Keyspace.update() around a write and its append(); a snapshot point fixed under the same lock
+    // (see AppendOnlyFile.beginRewrite(), ReplicationManager.sendSnapshot()) then falls before or after both
+    void lock();
+
+    void unlock();
+}
@@ -0,0 +1,48 @@
+package com.redis.data;
+
+import java.util.Map;
+
+// Up to which size hashes, lists, sets and sorted sets keep their compact encoding, Redis' *-max-listpack-*
+// and set-max-intset-entries parameters. One instance per keyspace, shared by every collection in it, so
+// CONFIG SET applies to existing keys at their next write. Past a limit a collection converts for good.
+public class EncodingLimits {
+    // The config parameters this class reads; CONFIG SET of one of them calls reloadConfig()
+    public static final String[] PARAMETERS = {"hash-max-listpack-entries", "hash-max-listpack-value", "list-max-listpack-size",
+        "set-max-intset-entries", "set-max-listpack-entries", "set-max-listpack-value", "zset-max-listpack-entries", "zset-max-listpack-value"};
+
+    // Redis' defaults, until the server loads its config
+    volatile int hashMaxEntries = 128;
+    volatile int hashMaxValue = 64;
+    // Entries per list node; a list of one node is a listpack, a longer one a quicklist
+    volatile int listMaxSize = 128;
+    volatile int setMaxIntsetEntries = 512;
+    volatile int setMaxEntries = 128;
+    volatile int setMaxValue = 64;
+    volatile int zsetMaxEntries = 128;
+    volatile int zsetMaxValue = 64;
+
+    // Parses the parameters once, so writes only read fields. Throws IllegalArgumentException on a bad value
+    // and keeps the previous settings then.
+    public void reloadConfig(Map<String, String> configMap) {
+        int[] values = new int[PARAMETERS.length];
+        for (int i = 0; i < PARAMETERS.length; i++) {
+            String value = configMap.get(PARAMETERS[i]);
+            values[i] = value == null ? -1 : Integer.parseInt(value);
+            if (value != null && values[i] < 0) {
+                throw new IllegalArgumentException("argument must be a non-negative integer");
+            }
+            // 0 would make every list node full before it holds anything
+            if (i == 2 && values[i] == 0) {
+                throw new IllegalArgumentException("argument must be at least 1");
+            }
+        }
+        hashMaxEntries = values[0] >= 0 ? values[0] : hashMaxEntries;
+        hashMaxValue = values[1] >= 0 ? values[1] : hashMaxValue;
+        listMaxSize = values[2] >= 0 ? values[2] : listMaxSize;
+        setMaxIntsetEntries = values[3] >= 0 ? values[3] : setMaxIntsetEntries;
+        setMaxEntries = values[4] >= 0 ? values[4] : setMaxEntries;
+        setMaxValue = values[5] >= 0 ? values[5] : setMaxValue;
+        zsetMaxEntries = values[6] >= 0 ? values[6] : zsetMaxEntries;
+        zsetMaxValue = values[7] >= 0 ? values[7] : zsetMaxValue;
+    }
+}
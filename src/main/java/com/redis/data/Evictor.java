@@ -0,0 +1,281 @@
+package com.redis.data;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// maxmemory: before a write that may grow the dataset, evicts keys until the estimated used memory is under the
+// limit again. LRU and LFU are approximated as in Redis: each round samples maxmemory-samples keys into a small
+// pool that keeps the best candidates seen so far, and evicts the best one, so no round scans the keyspace.
+public class Evictor {
+    public enum Policy {
+        NOEVICTION, ALLKEYS_LRU, ALLKEYS_LFU, VOLATILE_TTL, ALLKEYS_RANDOM;
+
+        public String configName() {
+            return name().toLowerCase(Locale.ROOT).replace('_', '-');
+        }
+
+        static Policy fromConfig(String value) {
+            for (Policy policy : values()) {
+                if (policy.configName().equalsIgnoreCase(value)) {
+                    return policy;
+                }
+            }
+            throw new IllegalArgumentException("argument must be one of the following: noeviction, allkeys-lru, allkeys-lfu, volatile-ttl, allkeys-random");
+        }
+    }
+
+    // The config parameters this class reads; CONFIG SET of one of them calls reloadConfig()
+    public static final String[] PARAMETERS = {"maxmemory", "maxmemory-policy", "maxmemory-samples", "lfu-log-factor", "lfu-decay-time"};
+
+    private static final int POOL_SIZE = 16;
+    private static final int LRU_CLOCK_MAX = (1 << 24) - 1;
+    // Counter of a new key, so it isn't evicted before it had a chance to be read
+    private static final int LFU_INIT_VAL = 5;
+
+    private final Keyspace keyspace;
+    private final ConcurrentHashMap<String, String> configMap;
+    private final LongAdder evictedKeys = new LongAdder();
+    // Guards the pool; one thread evicts at a time, like the single-threaded original
+    private final ReentrantLock lock = new ReentrantLock();
+    // Candidates sorted by ascending idle score; the best one to evict is at the end
+    private final long[] poolIdle = new long[POOL_SIZE];
+    private final String[] poolKeys = new String[POOL_SIZE];
+    private int poolSize;
+
+    private volatile long maxMemory;
+    private volatile Policy policy = Policy.NOEVICTION;
+    private volatile int samples;
+    private volatile int lfuLogFactor;
+    private volatile int lfuDecayTime;
+
+    public Evictor(Keyspace keyspace, ConcurrentHashMap<String, String> configMap) {
+        this.keyspace = keyspace;
+        this.configMap = configMap;
+        reloadConfig();
+    }
+
+    // Parses the parameters once, so writes only read fields. Throws IllegalArgumentException on a bad value
+    // and keeps the previous settings then.
+    public final void reloadConfig() {
+        long newMaxMemory = parseMemory(configMap.get("maxmemory"));
+        Policy newPolicy = Policy.fromConfig(configMap.get("maxmemory-policy"));
+        int newSamples = parsePositive("maxmemory-samples");
+        int newLogFactor = parsePositive("lfu-log-factor");
+        int newDecayTime = parsePositive("lfu-decay-time");
+        maxMemory = newMaxMemory;
+        // In bytes from now on, as CONFIG GET reports it
+        configMap.put("maxmemory", Long.toString(newMaxMemory));
+        samples = newSamples;
+        lfuLogFactor = newLogFactor;
+        lfuDecayTime = newDecayTime;
+        if (newPolicy != policy) {
+            lock.lock();
+            try {
+                // Idle scores of the two families don't compare
+                poolSize = 0;
+                policy = newPolicy;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private int parsePositive(String parameter) {
+        int value = Integer.parseInt(configMap.get(parameter));
+        if (value < 0) {
+            throw new IllegalArgumentException("argument must be a positive integer");
+        }
+        return value;
+    }
+
+    // Bytes, with Redis' units: k/m/g are powers of 1000, kb/mb/gb powers of 1024
+    public static long parseMemory(String value) {
+        String lower = value.trim().toLowerCase(Locale.ROOT);
+        long unit = 1;
+        String[][] units = {{"kb", "1024"}, {"mb", "1048576"}, {"gb", "1073741824"}, {"k", "1000"}, {"m", "1000000"}, {"g", "1000000000"}, {"b", "1"}};
+        for (String[] suffix : units) {
+            if (lower.endsWith(suffix[0])) {
+                unit = Long.parseLong(suffix[1]);
+                lower = lower.substring(0, lower.length() - suffix[0].length());
+                break;
+            }
+        }
+        long amount = Long.parseLong(lower);
+        if (amount < 0) {
+            throw new IllegalArgumentException("argument must be a memory value");
+        }
+        return amount * unit;
+    }
+
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public long getEvictedKeys() {
+        return evictedKeys.sum();
+    }
+
+    // Called before a write that may use more memory. Returns false if the dataset is over maxmemory and nothing
+    // can be evicted, in which case the write is refused.
+    public boolean freeMemoryIfNeeded() {
+        long limit = maxMemory;
+        if (limit == 0 || keyspace.getUsedMemory() <= limit) {
+            return true;
+        }
+        if (policy == Policy.NOEVICTION) {
+            return false;
+        }
+        lock.lock();
+        try {
+            while (keyspace.getUsedMemory() > limit) {
+                if (!evictOne()) {
+                    return false;
+                }
+                evictedKeys.increment();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean evictOne() {
+        switch (policy) {
+            case VOLATILE_TTL -> {
+                // The expiry index is ordered by deadline, so the key closest to expiring is its first entry
+                ExpiryIndex.Entry first;
+                while ((first = keyspace.getExpiryIndex().first()) != null) {
+                    if (keyspace.evict(first.key)) {
+                        return true;
+                    }
+                    keyspace.getExpiryIndex().remove(first.key, first.deadline);
+                }
+                return false;
+            }
+            case ALLKEYS_RANDOM -> {
+                for (int attempt = 0; attempt < 16; attempt++) {
+                    String[] sampled = new String[1];
+                    keyspace.sampleKeys(1, (key, value) -> sampled[0] = key);
+                    if (sampled[0] != null && keyspace.evict(sampled[0])) {
+                        return true;
+                    }
+                    if (keyspace.size() == 0) {
+                        return false;
+                    }
+                }
+                return false;
+            }
+            default -> {
+                while (true) {
+                    populatePool();
+                    if (poolSize == 0) {
+                        return false;
+                    }
+                    // Best candidate first; it may have been deleted or overwritten since it was sampled
+                    String key = poolKeys[--poolSize];
+                    poolKeys[poolSize] = null;
+                    if (keyspace.evict(key)) {
+                        return true;
+                    }
+                }
+            }
+        }
+    }
+
+    private void populatePool() {
+        boolean lfu = policy == Policy.ALLKEYS_LFU;
+        long now = System.currentTimeMillis();
+        keyspace.sampleKeys(samples, (key, value) -> insert(key, lfu ? 255 - decayedCounter(value.access, now) : lruIdle(value.access, now)));
+    }
+
+    private void insert(String key, long idle) {
+        for (int i = 0; i < poolSize; i++) {
+            if (poolKeys[i].equals(key)) {
+                return;
+            }
+        }
+        int position = 0;
+        while (position < poolSize && poolIdle[position] < idle) {
+            position++;
+        }
+        if (poolSize == POOL_SIZE) {
+            if (position == 0) {
+                // Worse than every candidate in a full pool
+                return;
+            }
+            // Drop the worst candidate to make room
+            position--;
+            System.arraycopy(poolIdle, 1, poolIdle, 0, position);
+            System.arraycopy(poolKeys, 1, poolKeys, 0, position);
+        } else {
+            System.arraycopy(poolIdle, position, poolIdle, position + 1, poolSize - position);
+            System.arraycopy(poolKeys, position, poolKeys, position + 1, poolSize - position);
+            poolSize++;
+        }
+        poolIdle[position] = idle;
+        poolKeys[position] = key;
+    }
+
+    // Called when a key is created. Under LFU an overwritten key keeps the counter of the value it replaces.
+    void initAccess(RedisObject value, RedisObject replaced, long now) {
+        if (policy == Policy.ALLKEYS_LFU) {
+            value.access = replaced != null ? replaced.access : (lfuMinutes(now) << 8) | LFU_INIT_VAL;
+            touch(value, now);
+        } else {
+            value.access = lruClock(now);
+        }
+    }
+
+    // Called on every lookup
+    void touch(RedisObject value, long now) {
+        if (policy != Policy.ALLKEYS_LFU) {
+            value.access = lruClock(now);
+            return;
+        }
+        int counter = decayedCounter(value.access, now);
+        value.access = (lfuMinutes(now) << 8) | logIncrement(counter);
+    }
+
+    private static int lruClock(long now) {
+        return (int) (now / 1000) & LRU_CLOCK_MAX;
+    }
+
+    private static long lruIdle(int access, long now) {
+        int clock = lruClock(now);
+        // The 24-bit clock wraps every 194 days
+        return clock >= access ? clock - access : clock + (LRU_CLOCK_MAX - access);
+    }
+
+    private static int lfuMinutes(long now) {
+        return (int) (now / 60000) & 0xFFFF;
+    }
+
+    // The counter drops by one for every lfu-decay-time minutes since it was last decayed
+    private int decayedCounter(int access, long now) {
+        int counter = access & 0xFF;
+        if (lfuDecayTime == 0) {
+            return counter;
+        }
+        int minutes = lfuMinutes(now);
+        int last = access >>> 8;
+        int elapsed = minutes >= last ? minutes - last : 0xFFFF - last + minutes;
+        return Math.max(0, counter - elapsed / lfuDecayTime);
+    }
+
+    // Logarithmic counter: the more accesses it has, the less likely another one increments it
+    private int logIncrement(int counter) {
+        if (counter == 255) {
+            return counter;
+        }
+        double base = Math.max(0, counter - LFU_INIT_VAL);
+        double probability = 1.0 / (base * lfuLogFactor + 1);
+        return ThreadLocalRandom.current().nextDouble() < probability ? counter + 1 : counter;
+    }
+}
@@ -0,0 +1,53 @@
+package com.redis.data;
+
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.LongAdder;
+
+// Keys with a TTL ordered by deadline, so the active expiry cycle only ever looks at keys that are due.
+// Keyspace keeps exactly one entry per volatile key by updating it inside the key's compute().
+class ExpiryIndex {
+    static final class Entry {
+        final long deadline;
+        final String key;
+
+        Entry(long deadline, String key) {
+            this.deadline = deadline;
+            this.key = key;
+        }
+    }
+
+    private static final Comparator<Entry> ORDER = Comparator.<Entry>comparingLong(entry -> entry.deadline)
+        .thenComparing(entry -> entry.key);
+
+    private final ConcurrentSkipListSet<Entry> entries = new ConcurrentSkipListSet<>(ORDER);
+    // ConcurrentSkipListSet.size() walks the whole set
+    private final LongAdder size = new LongAdder();
+
+    void add(String key, long deadline) {
+        if (deadline != -1 && entries.add(new Entry(deadline, key))) {
+            size.increment();
+        }
+    }
+
+    void remove(String key, long deadline) {
+        if (deadline != -1 && entries.remove(new Entry(deadline, key))) {
+            size.decrement();
+        }
+    }
+
+    // Earliest entry whose deadline has passed, or null
+    Entry firstDue(long now) {
+        Entry first = entries.isEmpty() ? null : entries.first();
+        return first != null && first.deadline < now ? first : null;
+    }
+
+    // Entry with the earliest deadline, or null
+    Entry first() {
+        return entries.isEmpty() ? null : entries.first();
+    }
+
+    long size() {
+        return size.sum();
+    }
+}
@@ -0,0 +1,132 @@
+package com.redis.data;
+
+import java.util.HashMap;
+import java.util.function.BiConsumer;
+
+// A hash: field, value, field, value... in a PackedList while it has at most hash-max-listpack-entries fields
+// of at most hash-max-listpack-value bytes, then a HashMap. Call with the lock held.
+public class HashCache extends CollectionCache {
+    // Object header, fields and the lock
+    private static final int OVERHEAD = 64;
+    // A HashMap node, its table slot and two Strings without their bytes
+    private static final int TABLE_ENTRY_OVERHEAD = 120;
+
+    private PackedList packed = new PackedList();
+    private HashMap<String, String> table;
+    // Bytes of every field and value, while the hash is a table
+    private long tableBytes;
+
+    HashCache(EncodingLimits limits) {
+        super(limits);
+    }
+
+    public String getType() {
+        return "hash";
+    }
+
+    public String getEncoding() {
+        return packed != null ? "listpack" : "hashtable";
+    }
+
+    public long memoryUsage() {
+        if (packed != null) {
+            return OVERHEAD + packed.memoryUsage();
+        }
+        return OVERHEAD + 48 + table.size() * (long) TABLE_ENTRY_OVERHEAD + tableBytes;
+    }
+
+    public long size() {
+        return packed != null ? packed.count() / 2 : table.size();
+    }
+
+    // Null if the field doesn't exist
+    public String get(String field) {
+        if (table != null) {
+            return table.get(field);
+        }
+        int at = packed.find(packed.start(), field, 2);
+        return at < 0 ? null : packed.getString(packed.next(at));
+    }
+
+    public boolean contains(String field) {
+        return table != null ? table.containsKey(field) : packed.find(packed.start(), field, 2) >= 0;
+    }
+
+    // Returns true if the field is new
+    public boolean put(String field, String value) {
+        if (packed != null) {
+            int at = packed.find(packed.start(), field, 2);
+            if (at >= 0 && value.length() <= limits.hashMaxValue) {
+                packed.replace(packed.next(at), value);
+                return false;
+            }
+            if (at < 0 && size() < limits.hashMaxEntries && field.length() <= limits.hashMaxValue && value.length() <= limits.hashMaxValue) {
+                packed.add(field);
+                packed.add(value);
+                return true;
+            }
+            convert();
+        }
+        String previous = table.put(field, value);
+        if (previous == null) {
+            tableBytes += field.length() + value.length();
+            return true;
+        }
+        tableBytes += value.length() - previous.length();
+        return false;
+    }
+
+    public boolean remove(String field) {
+        if (table != null) {
+            String previous = table.remove(field);
+            if (previous == null) {
+                return false;
+            }
+            tableBytes -= field.length() + previous.length();
+            return true;
+        }
+        int at = packed.find(packed.start(), field, 2);
+        if (at < 0) {
+            return false;
+        }
+        packed.remove(packed.next(at));
+        packed.remove(at);
+        return true;
+    }
+
+    public void forEach(BiConsumer<String, String> visitor) {
+        if (table != null) {
+            table.forEach(visitor);
+            return;
+        }
+        for (int offset = packed.start(); offset < packed.end(); ) {
+            int value = packed.next(offset);
+            visitor.accept(packed.getString(offset), packed.getString(value));
+            offset = packed.next(value);
+        }
+    }
+
+    private void convert() {
+        HashMap<String, String> converted = new HashMap<>();
+        forEach((field, value) -> {
+            converted.put(field, value);
+            tableBytes += field.length() + value.length();
+        });
+        table = converted;
+        packed = null;
+    }
+
+    @Override
+    HashCache copy() {
+        HashCache copy = new HashCache(limits);
+        copy.ttl = ttl;
+        if (packed != null) {
+            copy.packed = packed.copy();
+        } else {
+            copy.packed = null;
+            copy.table = new HashMap<>(table);
+            copy.tableBytes = tableBytes;
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,135 @@
+package com.redis.data;
+
+import java.util.Arrays;
+
+// The encoding of small sets of integers, like Redis' intset: the members sorted in one byte array, each 2, 4
+// or 8 bytes wide (little-endian) depending on the largest one, found by binary search.
+final class IntSet {
+    // Object header, fields and the array's header
+    private static final int OVERHEAD = 40;
+
+    private byte[] contents = new byte[0];
+    private int width = 2;
+    private int count;
+
+    int count() {
+        return count;
+    }
+
+    long memoryUsage() {
+        return OVERHEAD + contents.length;
+    }
+
+    long get(int index) {
+        int offset = index * width;
+        long value = 0;
+        for (int i = width - 1; i >= 0; i--) {
+            value = (value << 8) | (contents[offset + i] & 0xFF);
+        }
+        // Sign-extend from the width
+        int shift = 64 - width * 8;
+        return (value << shift) >> shift;
+    }
+
+    boolean contains(long value) {
+        return widthOf(value) <= width && search(value) >= 0;
+    }
+
+    // Returns false if value was a member already
+    boolean add(long value) {
+        int needed = widthOf(value);
+        if (needed > width) {
+            upgrade(needed);
+        }
+        int index = search(value);
+        if (index >= 0) {
+            return false;
+        }
+        index = -index - 1;
+        contents = Arrays.copyOf(contents, (count + 1) * width);
+        System.arraycopy(contents, index * width, contents, (index + 1) * width, (count - index) * width);
+        set(index, value);
+        count++;
+        return true;
+    }
+
+    boolean remove(long value) {
+        if (widthOf(value) > width) {
+            return false;
+        }
+        int index = search(value);
+        if (index < 0) {
+            return false;
+        }
+        System.arraycopy(contents, (index + 1) * width, contents, index * width, (count - index - 1) * width);
+        count--;
+        contents = Arrays.copyOf(contents, count * width);
+        return true;
+    }
+
+    IntSet copy() {
+        IntSet copy = new IntSet();
+        copy.contents = contents.clone();
+        copy.width = width;
+        copy.count = count;
+        return copy;
+    }
+
+    // The canonical integer member is, as SADD decides whether a set stays an intset; null if it isn't one
+    static Long parse(String member) {
+        int length = member.length();
+        if (length == 0 || length > Cache.MAX_INTEGER_LENGTH) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) member.charAt(i);
+        }
+        Cache integer = Cache.ofInteger(bytes, 0, length, -1);
+        return integer == null ? null : integer.getLong();
+    }
+
+    private static int widthOf(long value) {
+        if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            return 2;
+        }
+        return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE ? 4 : 8;
+    }
+
+    // Index of value, or -(insertion point) - 1
+    private int search(long value) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long found = get(middle);
+            if (found < value) {
+                low = middle + 1;
+            } else if (found > value) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -low - 1;
+    }
+
+    private void upgrade(int newWidth) {
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = get(i);
+        }
+        width = newWidth;
+        contents = new byte[count * width];
+        for (int i = 0; i < count; i++) {
+            set(i, values[i]);
+        }
+    }
+
+    private void set(int index, long value) {
+        int offset = index * width;
+        for (int i = 0; i < width; i++) {
+            contents[offset + i] = (byte) (value >> (8 * i));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.redis.data;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.StampedLock;
+
+// What MULTI/EXEC and WATCH need to stay atomic without a global lock. Keys hash to one of STRIPES stripes, each
+// with a lock and a version. Every command holds the stripes of its keys shared while it runs, EXEC holds the
+// stripes of its transaction's keys exclusively, so transactions on other keys still run alongside it. The
+// keyspace bumps a key's version on every change to it, expiry and eviction included; WATCH remembers it and
+// EXEC aborts if it moved. Keys sharing a stripe also share a version, which can abort a transaction that
+// didn't really conflict, but never lets one through that did.
+public class KeyLocks {
+    private static final int STRIPES = 4096;
+
+    private final StampedLock[] locks = new StampedLock[STRIPES];
+    private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+
+    public KeyLocks() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new StampedLock();
+        }
+    }
+
+    public int stripe(String key) {
+        return spread(key.hashCode());
+    }
+
+    // Same stripe as stripe(String) for the key with these bytes, without decoding it
+    public int stripe(byte[] data, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + (data[i] & 0xff);
+        }
+        return spread(hash);
+    }
+
+    private static int spread(int hash) {
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    // Called by the keyspace inside every change to key, before it is visible: WATCH reads versions with the
+    // stripe held exclusively, so it never sees the new version of a change it can't see yet
+    void touch(String key) {
+        versions.incrementAndGet(stripe(key));
+    }
+
+    public long version(int stripe) {
+        return versions.get(stripe);
+    }
+
+    // The unlock methods don't take the stamp, so callers need not carry one per stripe
+
+    public void lockShared(int stripe) {
+        locks[stripe].readLock();
+    }
+
+    public void unlockShared(int stripe) {
+        locks[stripe].tryUnlockRead();
+    }
+
+    public void lockExclusive(int stripe) {
+        locks[stripe].writeLock();
+    }
+
+    public void unlockExclusive(int stripe) {
+        locks[stripe].tryUnlockWrite();
+    }
+
+    // Several stripes are always taken in ascending order, so two commands locking the same ones can't deadlock
+
+    public void lockShared(BitSet stripes) {
+        for (int stripe = stripes.nextSetBit(0); stripe >= 0; stripe = stripes.nextSetBit(stripe + 1)) {
+            lockShared(stripe);
+        }
+    }
+
+    public void unlockShared(BitSet stripes) {
+        for (int stripe = stripes.nextSetBit(0); stripe >= 0; stripe = stripes.nextSetBit(stripe + 1)) {
+            unlockShared(stripe);
+        }
+    }
+
+    public void lockExclusive(BitSet stripes) {
+        for (int stripe = stripes.nextSetBit(0); stripe >= 0; stripe = stripes.nextSetBit(stripe + 1)) {
+            lockExclusive(stripe);
+        }
+    }
+
+    public void unlockExclusive(BitSet stripes) {
+        for (int stripe = stripes.nextSetBit(0); stripe >= 0; stripe = stripes.nextSetBit(stripe + 1)) {
+            unlockExclusive(stripe);
+        }
+    }
+
+    public BitSet allStripes() {
+        BitSet all = new BitSet(STRIPES);
+        all.set(0, STRIPES);
+        return all;
+    }
+}
@@ -0,0 +1,850 @@
+package com.redis.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+// The single key -> typed value table. Every command resolves its key with one hash lookup,
+// and a key exists exactly once whatever its type.
+public class Keyspace {
+    // Estimated per-key cost on top of the value: the table node, the key String and its bytes
+    private static final int ENTRY_OVERHEAD = 88;
+
+    private final ConcurrentHashMap<String, RedisObject> entries = new ConcurrentHashMap<>();
+    // All changes to a key's TTL happen inside compute() on that key, which keeps the index exact
+    private final ExpiryIndex expiryIndex = new ExpiryIndex();
+    private final LongAdder expiredActive = new LongAdder();
+    private final LongAdder expiredLazy = new LongAdder();
+    private final BlockingKeys blockingKeys = new BlockingKeys();
+    // Number of writes since startup, for save points and INFO persistence
+    private final LongAdder dirty = new LongAdder();
+    private final AtomicLong snapshotEpochs = new AtomicLong();
+    private final AtomicBoolean snapshotRunning = new AtomicBoolean();
+    // Set from beginSnapshot() until snapshot() returns. Writers then record the value a key had when the snapshot started
+    // before changing it, so the snapshot is point-in-time without stopping them (copy-on-write per key).
+    private volatile Snapshot snapshot;
+    // Empty until the server starts logging, so loading and AOF replay don't log themselves again.
+    // Copied on change: the AOF at startup, the replication backlog when the first replica connects.
+    private volatile CommandLog[] commandLogs = new CommandLog[0];
+    // Sum of every key's accountedBytes, what maxmemory is compared with
+    private final LongAdder usedMemory = new LongAdder();
+    // Keeps the access metadata of values; null until the server sets it, so loading doesn't pay for it
+    private volatile Evictor evictor;
+    // Set with value-storage offheap, before loading
+    private volatile OffHeapStore offHeapStore;
+    // Shared by every hash, list, set and sorted set, which read it when they grow
+    private final EncodingLimits encodingLimits = new EncodingLimits();
+    // Multi-key writes (MSET, MSETNX) hold it exclusively, so no reader sees some of their keys changed and others
+    // not. Single-key lookups only take an optimistic stamp and validate it, which writes no shared memory.
+    private final StampedLock multiKeyLock = new StampedLock();
+    // Per-key versions for WATCH and the key locks of MULTI/EXEC
+    private final KeyLocks keyLocks = new KeyLocks();
+    // UNLINK hands values whose memory must be given back explicitly (off heap) to this thread
+    private final ExecutorService lazyFreeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "lazyfree");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LongAdder lazyFreePending = new LongAdder();
+
+    public interface SnapshotVisitor {
+        // value is locked while visited; ttl is the TTL it had when the snapshot started
+        void visit(String key, RedisObject value, long ttl) throws IOException;
+    }
+
+    // A key's state when the snapshot started: value null if it did not exist. written once snapshot() handled the key.
+    private record PreImage(RedisObject value, long ttl, boolean written) {
+    }
+
+    // The point in time a snapshot captures, from beginSnapshot()
+    public static final class Snapshot {
+        private final long epoch;
+        private final ConcurrentHashMap<String, PreImage> preImages = new ConcurrentHashMap<>();
+        private volatile boolean closed;
+
+        private Snapshot(long epoch) {
+            this.epoch = epoch;
+        }
+    }
+
+    // Lazily drops the key if its TTL has passed
+    public RedisObject get(String key) {
+        long stamp = multiKeyLock.tryOptimisticRead();
+        RedisObject value = lookup(key);
+        if (multiKeyLock.validate(stamp)) {
+            return value;
+        }
+        // A multi-key write overlapped the lookup; look again once it is done
+        stamp = multiKeyLock.readLock();
+        try {
+            return lookup(key);
+        } finally {
+            multiKeyLock.unlockRead(stamp);
+        }
+    }
+
+    // Between these, no multi-key write is half done, for readers of several keys (MGET, EXISTS). Lookups in
+    // between still use get().
+    public long beginMultiKeyRead() {
+        return multiKeyLock.readLock();
+    }
+
+    public void endMultiKeyRead(long stamp) {
+        multiKeyLock.unlockRead(stamp);
+    }
+
+    private RedisObject lookup(String key) {
+        RedisObject value = entries.get(key);
+        if (value == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (value.isExpired(now)) {
+            expireLazily(key, value);
+            return null;
+        }
+        Evictor current = evictor;
+        if (current != null) {
+            current.touch(value, now);
+        }
+        return value;
+    }
+
+    // Returns null for a missing key and throws WrongTypeException if the key holds another type
+    public <T extends RedisObject> T get(String key, Class<T> type) {
+        RedisObject value = get(key);
+        if (value == null) {
+            return null;
+        }
+        if (!type.isInstance(value)) {
+            throw new WrongTypeException();
+        }
+        return type.cast(value);
+    }
+
+    public <T extends RedisObject> T getOrCreate(String key, Class<T> type, Supplier<T> factory) {
+        T value = get(key, type);
+        if (value != null) {
+            return value;
+        }
+        RedisObject created = entries.compute(key, (k, existing) -> {
+            if (existing != null && !existing.isExpired(System.currentTimeMillis())) {
+                return existing;
+            }
+            preserve(k, existing);
+            T fresh = factory.get();
+            if (existing != null) {
+                expiryIndex.remove(k, existing.ttl);
+                expiredLazy.increment();
+                uncharge(existing);
+                fresh.snapshotEpoch = existing.snapshotEpoch;
+            }
+            charge(k, fresh, null);
+            return fresh;
+        });
+        if (!type.isInstance(created)) {
+            throw new WrongTypeException();
+        }
+        return type.cast(created);
+    }
+
+    // Replaces whatever the key held before, regardless of its type. Strings are logged as SET; other types
+    // are only put by the loaders, which run before there is a command log.
+    public void put(String key, RedisObject value) {
+        entries.compute(key, (k, existing) -> replace(k, existing, value));
+    }
+
+    // put() inside compute()
+    private RedisObject replace(String key, RedisObject existing, RedisObject value) {
+        preserve(key, existing);
+        if (existing != null) {
+            expiryIndex.remove(key, existing.ttl);
+            uncharge(existing);
+            // Written out by a running snapshot already, so later writes need no pre-image either
+            value.snapshotEpoch = existing.snapshotEpoch;
+        }
+        charge(key, value, existing);
+        expiryIndex.add(key, value.ttl);
+        if (value instanceof Cache cache) {
+            propagateSet(key, cache);
+        }
+        return value;
+    }
+
+    // MSET, and MSETNX with onlyIfAbsent, which puts nothing if one of the keys exists and returns false then.
+    // Holds multiKeyLock, so readers see every key change at once. Single-key writes don't take the lock: one
+    // racing with MSETNX on a key makes MSETNX undo the keys it put already, which no reader can observe.
+    // The command logs get one SET per key, each in order with the other writes to its key. Takes over the
+    // values: those it doesn't put are released.
+    public boolean putAll(Map<String, ? extends RedisObject> values, boolean onlyIfAbsent) {
+        long stamp = multiKeyLock.writeLock();
+        try {
+            if (!onlyIfAbsent) {
+                values.forEach(this::put);
+                return true;
+            }
+            List<Map.Entry<String, ? extends RedisObject>> added = new ArrayList<>(values.size());
+            for (Map.Entry<String, ? extends RedisObject> entry : values.entrySet()) {
+                boolean[] absent = new boolean[1];
+                entries.compute(entry.getKey(), (k, existing) -> {
+                    if (existing != null && !existing.isExpired(System.currentTimeMillis())) {
+                        return existing;
+                    }
+                    absent[0] = true;
+                    return replace(k, existing, entry.getValue());
+                });
+                if (!absent[0]) {
+                    for (Map.Entry<String, ? extends RedisObject> undo : added) {
+                        entries.computeIfPresent(undo.getKey(), (k, existing) -> existing == undo.getValue() ? unlinkLocked(k, existing, false) : existing);
+                    }
+                    // The rest never got into the table
+                    values.values().stream().skip(added.size()).forEach(RedisObject::release);
+                    return false;
+                }
+                added.add(entry);
+            }
+            return true;
+        } finally {
+            multiKeyLock.unlockWrite(stamp);
+        }
+    }
+
+    // DEL, and UNLINK with lazyFree, which gives the value's memory back on the lazyfree thread. Logged as DEL.
+    // Returns false if the key didn't exist.
+    public boolean delete(String key, boolean lazyFree) {
+        boolean[] deleted = new boolean[1];
+        entries.computeIfPresent(key, (k, existing) -> {
+            if (existing.isExpired(System.currentTimeMillis())) {
+                preserve(k, existing);
+                expiryIndex.remove(k, existing.ttl);
+                expiredLazy.increment();
+                uncharge(existing);
+                return null;
+            }
+            deleted[0] = true;
+            return unlinkLocked(k, existing, lazyFree);
+        });
+        return deleted[0];
+    }
+
+    // Removes existing from key inside compute() and logs it as DEL; returns null for compute()
+    private RedisObject unlinkLocked(String key, RedisObject existing, boolean lazyFree) {
+        preserve(key, existing);
+        expiryIndex.remove(key, existing.ttl);
+        if (lazyFree && existing instanceof OffHeapCache) {
+            usedMemory.add(-existing.accountedBytes);
+            lazyFreePending.increment();
+            lazyFreeExecutor.execute(() -> {
+                existing.release();
+                lazyFreePending.decrement();
+            });
+        } else {
+            uncharge(existing);
+        }
+        propagate("DEL", key);
+        return null;
+    }
+
+    // Runs write on the collection at key, with the collection locked and inside compute() on the key, so it is
+    // ordered with every other write to the key. factory creates the collection if the key doesn't exist; without
+    // one, write isn't called and update returns null. A write that leaves the collection empty deletes the key.
+    // The command logs are held across write, which propagates what it did: a snapshot that starts meanwhile
+    // (BGREWRITEAOF, a replica's full sync) sees either both the change and its command or neither, so list
+    // commands, which replay twice differently, need not be made idempotent. Returns what write returned.
+    @SuppressWarnings("unchecked")
+    public <T extends CollectionCache, R> R update(String key, Class<T> type, Supplier<T> factory, Function<T, R> write) {
+        while (true) {
+            T found = get(key, type);
+            T value = found != null ? found : factory != null ? factory.get() : null;
+            if (value == null) {
+                return null;
+            }
+            // Before compute(), in the order Keyspace.snapshot() takes the two
+            value.lock();
+            try {
+                Object[] result = new Object[1];
+                boolean[] done = new boolean[1];
+                entries.compute(key, (k, existing) -> {
+                    boolean expired = existing != null && existing.isExpired(System.currentTimeMillis());
+                    if ((expired ? null : existing) != found) {
+                        // Deleted, replaced or created by another client since get(); look again
+                        return existing;
+                    }
+                    done[0] = true;
+                    if (found == null) {
+                        preserve(k, existing);
+                        if (existing != null) {
+                            expiryIndex.remove(k, existing.ttl);
+                            expiredLazy.increment();
+                            uncharge(existing);
+                            value.snapshotEpoch = existing.snapshotEpoch;
+                        }
+                    } else {
+                        preserveContents(k, value);
+                    }
+                    CommandLog[] logs = commandLogs;
+                    for (CommandLog log : logs) {
+                        log.lock();
+                    }
+                    try {
+                        result[0] = write.apply(value);
+                    } finally {
+                        for (int i = logs.length - 1; i >= 0; i--) {
+                            logs[i].unlock();
+                        }
+                    }
+                    if (value.isEmpty()) {
+                        if (found != null) {
+                            expiryIndex.remove(k, value.ttl);
+                            uncharge(value);
+                        }
+                        return null;
+                    }
+                    if (found == null) {
+                        charge(k, value, null);
+                    } else {
+                        account(k, value);
+                    }
+                    return value;
+                });
+                if (done[0]) {
+                    return (R) result[0];
+                }
+            } finally {
+                value.unlock();
+            }
+        }
+    }
+
+    // Atomically replaces the string at key with update(current), where current is null if the key doesn't exist.
+    // update returns current to leave the key as it is, and may throw to refuse the change, which throws here.
+    // Counters and the like read and write the key in one compute(), so concurrent INCRs on a key never lose an
+    // update and reach the command logs in the order they were applied. Returns what update returned.
+    public Cache updateString(String key, UnaryOperator<Cache> update) {
+        Cache[] result = new Cache[1];
+        entries.compute(key, (k, existing) -> {
+            boolean expired = existing != null && existing.isExpired(System.currentTimeMillis());
+            RedisObject live = expired ? null : existing;
+            if (live != null && !(live instanceof Cache)) {
+                throw new WrongTypeException();
+            }
+            Cache current = (Cache) live;
+            Cache updated = update.apply(current);
+            result[0] = updated;
+            if (updated == current && !expired) {
+                return existing;
+            }
+            preserve(k, existing);
+            if (existing != null) {
+                expiryIndex.remove(k, existing.ttl);
+                if (expired) {
+                    expiredLazy.increment();
+                }
+                uncharge(existing);
+                if (updated != null) {
+                    updated.snapshotEpoch = existing.snapshotEpoch;
+                }
+            }
+            if (updated == null) {
+                return null;
+            }
+            charge(k, updated, live);
+            expiryIndex.add(k, updated.ttl);
+            propagateSet(k, updated);
+            return updated;
+        });
+        return result[0];
+    }
+
+    // Logs the SET that recreates value. Checks for a log first, so an off-heap value isn't turned into a String
+    // when nothing logs it.
+    private void propagateSet(String key, Cache value) {
+        if (commandLogs.length == 0) {
+            return;
+        }
+        if (value.ttl == -1) {
+            propagate("SET", key, value.getValue());
+        } else {
+            propagate("SET", key, value.getValue(), "PXAT", Long.toString(value.ttl));
+        }
+    }
+
+    // Unlike delete(), not logged
+    public RedisObject remove(String key) {
+        RedisObject[] removed = new RedisObject[1];
+        entries.computeIfPresent(key, (k, existing) -> {
+            preserve(k, existing);
+            expiryIndex.remove(k, existing.ttl);
+            uncharge(existing);
+            removed[0] = existing.isExpired(System.currentTimeMillis()) ? null : existing;
+            return null;
+        });
+        return removed[0];
+    }
+
+    public boolean containsKey(String key) {
+        return get(key) != null;
+    }
+
+    // Sets an absolute expiry in epoch milliseconds. A deadline in the past deletes the key right away.
+    // Returns false if the key does not exist.
+    public boolean setExpire(String key, long deadline) {
+        boolean[] found = new boolean[1];
+        entries.computeIfPresent(key, (k, existing) -> {
+            long now = System.currentTimeMillis();
+            preserve(k, existing);
+            expiryIndex.remove(k, existing.ttl);
+            if (existing.isExpired(now)) {
+                expiredLazy.increment();
+                uncharge(existing);
+                return null;
+            }
+            found[0] = true;
+            // Logged as an absolute time, so replaying it later expires the key at the same moment
+            propagate("PEXPIREAT", k, Long.toString(deadline));
+            if (deadline <= now) {
+                uncharge(existing);
+                return null;
+            }
+            existing.ttl = deadline;
+            expiryIndex.add(k, deadline);
+            return existing;
+        });
+        return found[0];
+    }
+
+    // Returns false if the key does not exist or has no TTL
+    public boolean persist(String key) {
+        boolean[] persisted = new boolean[1];
+        entries.computeIfPresent(key, (k, existing) -> {
+            if (existing.isExpired(System.currentTimeMillis())) {
+                preserve(k, existing);
+                expiryIndex.remove(k, existing.ttl);
+                expiredLazy.increment();
+                uncharge(existing);
+                return null;
+            }
+            if (existing.ttl != -1) {
+                preserve(k, existing);
+                expiryIndex.remove(k, existing.ttl);
+                existing.ttl = -1;
+                persisted[0] = true;
+                propagate("PERSIST", k);
+            }
+            return existing;
+        });
+        return persisted[0];
+    }
+
+    // Every key filter accepts, in one pass over the table
+    public List<String> keys(Predicate<String> filter) {
+        long now = System.currentTimeMillis();
+        List<String> keys = new ArrayList<>();
+        entries.forEach((key, value) -> {
+            if (!value.isExpired(now) && filter.test(key)) {
+                keys.add(key);
+            }
+        });
+        return keys;
+    }
+
+    // SCAN: visits about count keys from cursor on, skipping expired ones, and returns the cursor to continue
+    // with, 0 when done. See TableCursor for what the cursor means.
+    public long scan(long cursor, int count, BiConsumer<String, RedisObject> visitor) {
+        long now = System.currentTimeMillis();
+        return TableCursor.scan(entries, cursor, count, (key, value) -> {
+            if (!value.isExpired(now)) {
+                visitor.accept(key, value);
+            }
+        });
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getExpiresCount() {
+        return expiryIndex.size();
+    }
+
+    public long getExpiredActive() {
+        return expiredActive.sum();
+    }
+
+    public long getExpiredLazy() {
+        return expiredLazy.sum();
+    }
+
+    public long getUsedMemory() {
+        return usedMemory.sum();
+    }
+
+    public void setEvictor(Evictor evictor) {
+        this.evictor = evictor;
+    }
+
+    public void setOffHeapStore(OffHeapStore offHeapStore) {
+        this.offHeapStore = offHeapStore;
+    }
+
+    public OffHeapStore getOffHeapStore() {
+        return offHeapStore;
+    }
+
+    // A string value of a copy of data[offset, offset + length): an integer if it spells one, off heap when the
+    // store is on and the value is large enough, otherwise a byte[]
+    public Cache newCache(byte[] data, int offset, int length, long ttl) {
+        if (length <= Cache.MAX_INTEGER_LENGTH) {
+            Cache integer = Cache.ofInteger(data, offset, length, ttl);
+            if (integer != null) {
+                return integer;
+            }
+        }
+        OffHeapStore store = offHeapStore;
+        if (store != null && length >= store.getMinValueSize()) {
+            return new OffHeapCache(store, data, offset, length, ttl);
+        }
+        return new Cache(Arrays.copyOfRange(data, offset, offset + length), ttl);
+    }
+
+    // Like newCache(value, 0, value.length, ttl), but keeps value instead of copying it when it stays on the heap
+    public Cache newCache(byte[] value, long ttl) {
+        OffHeapStore store = offHeapStore;
+        if (value.length <= Cache.MAX_INTEGER_LENGTH || (store != null && value.length >= store.getMinValueSize())) {
+            return newCache(value, 0, value.length, ttl);
+        }
+        return new Cache(value, ttl);
+    }
+
+    public Cache newCache(long number, long ttl) {
+        return new Cache(number, ttl);
+    }
+
+    public HashCache newHash() {
+        return new HashCache(encodingLimits);
+    }
+
+    public ListCache newList() {
+        return new ListCache(encodingLimits);
+    }
+
+    public SetCache newSet() {
+        return new SetCache(encodingLimits);
+    }
+
+    public ZSetCache newZSet() {
+        return new ZSetCache(encodingLimits);
+    }
+
+    public EncodingLimits getEncodingLimits() {
+        return encodingLimits;
+    }
+
+    // Values UNLINK handed to the lazyfree thread that it hasn't freed yet
+    public long getLazyFreePending() {
+        return lazyFreePending.sum();
+    }
+
+    public long getDirty() {
+        return dirty.sum();
+    }
+
+    public boolean isSnapshotRunning() {
+        return snapshot != null;
+    }
+
+    // Not safe against concurrent calls: the server adds the AOF before it accepts clients, and the backlog is added once
+    public void addCommandLog(CommandLog commandLog) {
+        CommandLog[] logs = Arrays.copyOf(commandLogs, commandLogs.length + 1);
+        logs[logs.length - 1] = commandLog;
+        commandLogs = logs;
+    }
+
+    public boolean hasCommandLog() {
+        return commandLogs.length > 0;
+    }
+
+    // Logs a write that recreates a change. For in-place changes, call it while still holding the value's lock.
+    public void propagate(String... command) {
+        for (CommandLog log : commandLogs) {
+            log.append(command);
+        }
+    }
+
+    // Drops every key, before a replica loads its leader's snapshot
+    public void clear() {
+        for (String key : new ArrayList<>(entries.keySet())) {
+            remove(key);
+        }
+    }
+
+    // Must be called, with value locked, before changing a value in place (XADD, consumer group updates)
+    public void beforeWrite(String key, RedisObject value) {
+        // In-place changes are charged here, so the accounting lags one write behind on each value
+        account(key, value);
+        preserveContents(key, value);
+    }
+
+    // Brings the key's share of used memory up to date with value's current size
+    private void account(String key, RedisObject value) {
+        long bytes = ENTRY_OVERHEAD + key.length() + value.memoryUsage();
+        usedMemory.add(bytes - value.accountedBytes);
+        value.accountedBytes = bytes;
+    }
+
+    // Like preserve(), for a value about to change in place: the pre-image is a copy of its contents
+    private void preserveContents(String key, RedisObject value) {
+        dirty.increment();
+        keyLocks.touch(key);
+        Snapshot current = snapshot;
+        if (current == null || value.snapshotEpoch == current.epoch) {
+            return;
+        }
+        current.preImages.compute(key, (k, preImage) -> {
+            if (preImage == null) {
+                return new PreImage(value.copy(), value.ttl, false);
+            }
+            // A TTL change or delete recorded the object itself; its contents are about to change, so copy them now
+            if (preImage.value == value && !preImage.written) {
+                return new PreImage(value.copy(), preImage.ttl, false);
+            }
+            return preImage;
+        });
+    }
+
+    // Fixes the point in time for snapshot(current, visitor), which must follow, possibly from another thread.
+    // This lets BGSAVE capture the keyspace as of the command rather than as of when its thread gets going.
+    // Only one snapshot runs at a time: returns null while another one (BGSAVE, BGREWRITEAOF) is running.
+    public Snapshot beginSnapshot() {
+        if (!snapshotRunning.compareAndSet(false, true)) {
+            return null;
+        }
+        Snapshot current = new Snapshot(snapshotEpochs.incrementAndGet());
+        snapshot = current;
+        return current;
+    }
+
+    // Visits every key as it was at beginSnapshot(), while other threads keep writing
+    public void snapshot(Snapshot current, SnapshotVisitor visitor) throws IOException {
+        try {
+            // Keys that existed at the start are either still in the table or were deleted and left a pre-image
+            for (String key : new ArrayList<>(entries.keySet())) {
+                visit(current, key, visitor);
+            }
+            for (Map.Entry<String, PreImage> entry : current.preImages.entrySet()) {
+                PreImage preImage = entry.getValue();
+                if (!preImage.written() && preImage.value() != null) {
+                    visitLocked(entry.getKey(), preImage, null, visitor);
+                }
+            }
+        } finally {
+            snapshot = null;
+            current.closed = true;
+            // Drop the references pre-images hold. remove() settles a race with a writer adding one right now
+            // (see preserve()), so each is released once.
+            for (String key : current.preImages.keySet()) {
+                PreImage preImage = current.preImages.remove(key);
+                if (preImage != null && preImage.value() != null) {
+                    preImage.value().release();
+                }
+            }
+            snapshotRunning.set(false);
+        }
+    }
+
+    private void visit(Snapshot current, String key, SnapshotVisitor visitor) throws IOException {
+        RedisObject live = entries.get(key);
+        while (true) {
+            // Held from the check below until the value is written, so no in-place change slips in between
+            if (live != null) {
+                live.lock();
+            }
+            try {
+                RedisObject expected = live;
+                RedisObject[] found = new RedisObject[1];
+                PreImage[] image = new PreImage[1];
+                boolean[] retained = new boolean[1];
+                entries.compute(key, (k, existing) -> {
+                    found[0] = existing;
+                    if (existing != expected) {
+                        return existing;
+                    }
+                    PreImage preImage = current.preImages.get(k);
+                    if (preImage != null) {
+                        image[0] = preImage;
+                        current.preImages.put(k, new PreImage(preImage.value(), preImage.ttl(), true));
+                    } else if (existing != null) {
+                        image[0] = new PreImage(existing, existing.ttl, true);
+                        existing.snapshotEpoch = current.epoch;
+                        // Writes no longer record it, so it may leave the table before it is written out
+                        retained[0] = existing.retain();
+                    } else {
+                        // Created after the start and already gone again; keeps later writes from recording it
+                        current.preImages.put(k, new PreImage(null, -1, true));
+                    }
+                    return existing;
+                });
+                if (found[0] == expected) {
+                    try {
+                        if (image[0] != null && image[0].value() != null) {
+                            visitLocked(key, image[0], live, visitor);
+                        }
+                    } finally {
+                        if (retained[0]) {
+                            image[0].value().release();
+                        }
+                    }
+                    return;
+                }
+            } finally {
+                if (live != null) {
+                    live.unlock();
+                }
+            }
+            live = entries.get(key);
+        }
+    }
+
+    private static void visitLocked(String key, PreImage image, RedisObject alreadyLocked, SnapshotVisitor visitor) throws IOException {
+        RedisObject value = image.value();
+        if (image.ttl() != -1 && image.ttl() <= System.currentTimeMillis()) {
+            return;
+        }
+        if (value == alreadyLocked) {
+            visitor.visit(key, value, image.ttl());
+            return;
+        }
+        value.lock();
+        try {
+            visitor.visit(key, value, image.ttl());
+        } finally {
+            value.unlock();
+        }
+    }
+
+    public KeyLocks getKeyLocks() {
+        return keyLocks;
+    }
+
+    public BlockingKeys getBlockingKeys() {
+        return blockingKeys;
+    }
+
+    ExpiryIndex getExpiryIndex() {
+        return expiryIndex;
+    }
+
+    void expireActively(String key, long deadline) {
+        entries.compute(key, (k, existing) -> {
+            // Removed unconditionally so the cycle always makes progress, even on an entry that went stale
+            expiryIndex.remove(k, deadline);
+            if (existing != null && existing.ttl == deadline) {
+                preserve(k, existing);
+                expiredActive.increment();
+                uncharge(existing);
+                return null;
+            }
+            return existing;
+        });
+    }
+
+    // Called inside compute() on key before existing (null if absent) is replaced, removed or has its TTL changed
+    private void preserve(String key, RedisObject existing) {
+        dirty.increment();
+        keyLocks.touch(key);
+        Snapshot current = snapshot;
+        if (current == null || (existing != null && existing.snapshotEpoch == current.epoch)) {
+            return;
+        }
+        if (existing == null) {
+            current.preImages.putIfAbsent(key, new PreImage(null, -1, false));
+            return;
+        }
+        // The pre-image keeps an off-heap value alive after the table drops it
+        existing.retain();
+        if (current.preImages.putIfAbsent(key, new PreImage(existing, existing.ttl, false)) != null) {
+            existing.release();
+        } else if (current.closed && current.preImages.remove(key) != null) {
+            // The snapshot ended meanwhile and may not have seen it
+            existing.release();
+        }
+    }
+
+    private void expireLazily(String key, RedisObject value) {
+        entries.computeIfPresent(key, (k, existing) -> {
+            if (existing == value) {
+                preserve(k, existing);
+                expiryIndex.remove(k, existing.ttl);
+                expiredLazy.increment();
+                uncharge(existing);
+                return null;
+            }
+            return existing;
+        });
+    }
+
+    // Called inside compute() when value takes key's slot, in place of replaced (null for a new key)
+    private void charge(String key, RedisObject value, RedisObject replaced) {
+        value.accountedBytes = ENTRY_OVERHEAD + key.length() + value.memoryUsage();
+        usedMemory.add(value.accountedBytes);
+        Evictor current = evictor;
+        if (current != null) {
+            current.initAccess(value, replaced, System.currentTimeMillis());
+        }
+    }
+
+    // Called inside compute() when value leaves the table
+    private void uncharge(RedisObject value) {
+        usedMemory.add(-value.accountedBytes);
+        value.release();
+    }
+
+    // Deletes the key for maxmemory; the AOF and replicas get a DEL. Returns false if the key is gone already.
+    boolean evict(String key) {
+        boolean[] evicted = new boolean[1];
+        entries.computeIfPresent(key, (k, existing) -> {
+            evicted[0] = true;
+            return unlinkLocked(k, existing, false);
+        });
+        return evicted[0];
+    }
+
+    // Passes up to count keys that sit next to each other in the table, starting at a random place, like Redis'
+    // dictGetSomeKeys(). The table's spliterator is halved at random until about count keys are left, which costs
+    // O(log n) and never walks the whole table. May pass fewer keys, or none, if that stretch is sparse.
+    void sampleKeys(int count, BiConsumer<String, RedisObject> sampler) {
+        Spliterator<Map.Entry<String, RedisObject>> spliterator = entries.entrySet().spliterator();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (spliterator.estimateSize() > count) {
+            Spliterator<Map.Entry<String, RedisObject>> prefix = spliterator.trySplit();
+            if (prefix == null) {
+                break;
+            }
+            if (random.nextBoolean()) {
+                spliterator = prefix;
+            }
+        }
+        int[] taken = new int[1];
+        while (taken[0] < count && spliterator.tryAdvance(entry -> {
+            sampler.accept(entry.getKey(), entry.getValue());
+            taken[0]++;
+        })) {
+        }
+    }
+}
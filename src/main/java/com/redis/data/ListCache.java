@@ -0,0 +1,185 @@
+package com.redis.data;
+
+import java.util.function.Consumer;
+
+// A list as a deque of PackedList nodes of at most list-max-listpack-size entries each, like Redis' quicklist:
+// pushes and pops only touch the node at their end, and an index skips whole nodes by their counts. A list that
+// fits one node is a plain listpack. Call with the lock held.
+public class ListCache extends CollectionCache {
+    // Object header, fields, the lock and the node array's header
+    private static final int OVERHEAD = 80;
+
+    // Circular array of the nodes, from head to tail
+    private PackedList[] nodes = new PackedList[1];
+    private int head;
+    private int nodeCount;
+    private long size;
+    // Sum of the nodes' memoryUsage(), updated as they change
+    private long nodeBytes;
+
+    ListCache(EncodingLimits limits) {
+        super(limits);
+    }
+
+    public String getType() {
+        return "list";
+    }
+
+    public String getEncoding() {
+        return nodeCount > 1 ? "quicklist" : "listpack";
+    }
+
+    public long memoryUsage() {
+        return OVERHEAD + nodes.length * 4L + nodeBytes;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public void pushFront(String value) {
+        if (nodeCount == 0 || node(0).count() >= limits.listMaxSize) {
+            addNode(true);
+        }
+        PackedList first = node(0);
+        nodeBytes -= first.memoryUsage();
+        first.insert(first.start(), value);
+        nodeBytes += first.memoryUsage();
+        size++;
+    }
+
+    public void pushBack(String value) {
+        if (nodeCount == 0 || node(nodeCount - 1).count() >= limits.listMaxSize) {
+            addNode(false);
+        }
+        PackedList last = node(nodeCount - 1);
+        nodeBytes -= last.memoryUsage();
+        last.add(value);
+        nodeBytes += last.memoryUsage();
+        size++;
+    }
+
+    // Null when empty
+    public String popFront() {
+        if (size == 0) {
+            return null;
+        }
+        PackedList first = node(0);
+        String value = first.getString(first.start());
+        nodeBytes -= first.memoryUsage();
+        first.remove(first.start());
+        size--;
+        if (first.count() == 0) {
+            nodes[head] = null;
+            head = (head + 1) % nodes.length;
+            nodeCount--;
+        } else {
+            nodeBytes += first.memoryUsage();
+        }
+        return value;
+    }
+
+    public String popBack() {
+        if (size == 0) {
+            return null;
+        }
+        PackedList last = node(nodeCount - 1);
+        int offset = last.last();
+        String value = last.getString(offset);
+        nodeBytes -= last.memoryUsage();
+        last.remove(offset);
+        size--;
+        if (last.count() == 0) {
+            nodes[(head + nodeCount - 1) % nodes.length] = null;
+            nodeCount--;
+        } else {
+            nodeBytes += last.memoryUsage();
+        }
+        return value;
+    }
+
+    // 0 <= index < size()
+    public String get(long index) {
+        int[] position = locate(index);
+        PackedList node = node(position[0]);
+        return node.getString(node.offsetOf(position[1]));
+    }
+
+    // Visits the entries from start to end, both included, with 0 <= start <= end < size()
+    public void range(long start, long end, Consumer<String> visitor) {
+        int[] position = locate(start);
+        long remaining = end - start + 1;
+        for (int n = position[0]; n < nodeCount && remaining > 0; n++) {
+            PackedList node = node(n);
+            int offset = node.offsetOf(n == position[0] ? position[1] : 0);
+            for (; offset < node.end() && remaining > 0; offset = node.next(offset), remaining--) {
+                visitor.accept(node.getString(offset));
+            }
+        }
+    }
+
+    public void forEach(Consumer<String> visitor) {
+        if (size > 0) {
+            range(0, size - 1, visitor);
+        }
+    }
+
+    private PackedList node(int index) {
+        return nodes[(head + index) % nodes.length];
+    }
+
+    // Node and index within it of the entry at index, walking from whichever end is closer
+    private int[] locate(long index) {
+        if (index < size / 2) {
+            for (int n = 0; ; n++) {
+                int count = node(n).count();
+                if (index < count) {
+                    return new int[]{n, (int) index};
+                }
+                index -= count;
+            }
+        }
+        long fromEnd = size - 1 - index;
+        for (int n = nodeCount - 1; ; n--) {
+            int count = node(n).count();
+            if (fromEnd < count) {
+                return new int[]{n, count - 1 - (int) fromEnd};
+            }
+            fromEnd -= count;
+        }
+    }
+
+    private void addNode(boolean atHead) {
+        if (nodeCount == nodes.length) {
+            PackedList[] grown = new PackedList[nodes.length * 2];
+            for (int i = 0; i < nodeCount; i++) {
+                grown[i] = node(i);
+            }
+            nodes = grown;
+            head = 0;
+        }
+        PackedList node = new PackedList();
+        nodeBytes += node.memoryUsage();
+        if (atHead) {
+            head = (head - 1 + nodes.length) % nodes.length;
+            nodes[head] = node;
+        } else {
+            nodes[(head + nodeCount) % nodes.length] = node;
+        }
+        nodeCount++;
+    }
+
+    @Override
+    ListCache copy() {
+        ListCache copy = new ListCache(limits);
+        copy.ttl = ttl;
+        copy.nodes = new PackedList[nodes.length];
+        for (int i = 0; i < nodeCount; i++) {
+            copy.nodes[i] = node(i).copy();
+        }
+        copy.nodeCount = nodeCount;
+        copy.size = size;
+        copy.nodeBytes = nodeBytes;
+        return copy;
+    }
+}
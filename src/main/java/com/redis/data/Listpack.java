@@ -0,0 +1,170 @@
+package com.redis.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// The listpack serialization Redis uses for stream and list nodes in RDB files: a 6 byte header (total bytes, element
+// count), elements of encoding + data + backward length, and a 0xFF terminator. Strings are byte strings.
+final class Listpack {
+    private static final int HEADER_SIZE = 6;
+    private static final int END = 0xFF;
+
+    private byte[] data = new byte[256];
+    private int size = HEADER_SIZE;
+    private int count;
+
+    void add(String value) {
+        int length = value.length();
+        ensureCapacity(length + 10);
+        int start = size;
+        if (length < 64) {
+            data[size++] = (byte) (0x80 | length);
+        } else if (length < 4096) {
+            data[size++] = (byte) (0xE0 | (length >> 8));
+            data[size++] = (byte) length;
+        } else {
+            data[size++] = (byte) 0xF0;
+            putLE(length, 4);
+        }
+        for (int i = 0; i < length; i++) {
+            data[size++] = (byte) value.charAt(i);
+        }
+        finishElement(start);
+    }
+
+    void add(long value) {
+        ensureCapacity(16);
+        int start = size;
+        if (value >= 0 && value <= 127) {
+            data[size++] = (byte) value;
+        } else if (value >= -4096 && value <= 4095) {
+            int unsigned = (int) (value < 0 ? (1 << 13) + value : value);
+            data[size++] = (byte) (0xC0 | (unsigned >> 8));
+            data[size++] = (byte) unsigned;
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            data[size++] = (byte) 0xF1;
+            putLE(value, 2);
+        } else if (value >= -(1 << 23) && value < (1 << 23)) {
+            data[size++] = (byte) 0xF2;
+            putLE(value, 3);
+        } else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            data[size++] = (byte) 0xF3;
+            putLE(value, 4);
+        } else {
+            data[size++] = (byte) 0xF4;
+            putLE(value, 8);
+        }
+        finishElement(start);
+    }
+
+    byte[] toByteArray() {
+        byte[] bytes = Arrays.copyOf(data, size + 1);
+        bytes[size] = (byte) END;
+        writeLE(bytes, 0, bytes.length, 4);
+        // 65535 means "count the elements", as in Redis
+        writeLE(bytes, 4, Math.min(count, 65535), 2);
+        return bytes;
+    }
+
+    // Elements in order: Long for integer encodings, String for string encodings
+    @SuppressWarnings("deprecation")
+    static List<Object> decode(byte[] listpack) {
+        List<Object> elements = new ArrayList<>();
+        int position = HEADER_SIZE;
+        while ((listpack[position] & 0xFF) != END) {
+            int b = listpack[position] & 0xFF;
+            int length;
+            if ((b & 0x80) == 0) {
+                elements.add((long) b);
+                length = 1;
+            } else if ((b & 0xC0) == 0x80) {
+                int stringLength = b & 0x3F;
+                // The deprecated hibyte constructor is exactly the ISO-8859-1 decoding
+                elements.add(new String(listpack, 0, position + 1, stringLength));
+                length = 1 + stringLength;
+            } else if ((b & 0xE0) == 0xC0) {
+                int unsigned = ((b & 0x1F) << 8) | (listpack[position + 1] & 0xFF);
+                elements.add((long) (unsigned >= 4096 ? unsigned - 8192 : unsigned));
+                length = 2;
+            } else if ((b & 0xF0) == 0xE0) {
+                int stringLength = ((b & 0x0F) << 8) | (listpack[position + 1] & 0xFF);
+                elements.add(new String(listpack, 0, position + 2, stringLength));
+                length = 2 + stringLength;
+            } else if (b == 0xF0) {
+                int stringLength = (int) readLE(listpack, position + 1, 4);
+                elements.add(new String(listpack, 0, position + 5, stringLength));
+                length = 5 + stringLength;
+            } else if (b >= 0xF1 && b <= 0xF4) {
+                int bytes = b == 0xF1 ? 2 : b == 0xF2 ? 3 : b == 0xF3 ? 4 : 8;
+                long value = readLE(listpack, position + 1, bytes);
+                // Sign-extend from the encoded width
+                int shift = 64 - bytes * 8;
+                elements.add((value << shift) >> shift);
+                length = 1 + bytes;
+            } else {
+                throw new IllegalArgumentException("Invalid listpack encoding " + b);
+            }
+            position += length + backlenSize(length);
+        }
+        return elements;
+    }
+
+    static long asLong(Object element) {
+        return element instanceof Long ? (Long) element : Long.parseLong((String) element);
+    }
+
+    static String asString(Object element) {
+        return element instanceof String ? (String) element : element.toString();
+    }
+
+    // The backward length lets readers walk the listpack from the end; it encodes the element length 7 bits per byte
+    private void finishElement(int start) {
+        long length = size - start;
+        int bytes = backlenSize((int) length);
+        ensureCapacity(bytes);
+        for (int i = bytes - 1; i >= 0; i--) {
+            int chunk = (int) ((length >> (7 * i)) & 127);
+            data[size++] = (byte) (i == bytes - 1 ? chunk : chunk | 128);
+        }
+        count++;
+    }
+
+    private static int backlenSize(int length) {
+        if (length <= 127) {
+            return 1;
+        } else if (length < 16383) {
+            return 2;
+        } else if (length < 2097151) {
+            return 3;
+        } else if (length < 268435455) {
+            return 4;
+        }
+        return 5;
+    }
+
+    private void putLE(long value, int bytes) {
+        writeLE(data, size, value, bytes);
+        size += bytes;
+    }
+
+    private static void writeLE(byte[] target, int offset, long value, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            target[offset + i] = (byte) (value >> (8 * i));
+        }
+    }
+
+    private static long readLE(byte[] source, int offset, int bytes) {
+        long value = 0;
+        for (int i = 0; i < bytes; i++) {
+            value |= (long) (source[offset + i] & 0xFF) << (8 * i);
+        }
+        return value;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, size + extra));
+        }
+    }
+}
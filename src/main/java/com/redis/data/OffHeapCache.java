@@ -0,0 +1,77 @@
+package com.redis.data;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A string value whose bytes live in a slot of the OffHeapStore. The slot is handed back when the last
+// reference goes: the keyspace holds one while the key has this value, a snapshot one while it keeps the value
+// as a pre-image, and every reader one while it copies the bytes out (see RedisObject.retain()).
+public class OffHeapCache extends Cache {
+    // Object header and fields of this Cache, its AtomicInteger and the slot's ByteBuffer
+    private static final int OVERHEAD = 144;
+
+    private final OffHeapStore store;
+    private final ByteBuffer slot;
+    private final int length;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    OffHeapCache(OffHeapStore store, byte[] data, int offset, int length, long ttl) {
+        super((byte[]) null, ttl);
+        this.store = store;
+        this.length = length;
+        this.slot = store.allocate(length);
+        slot.put(0, data, offset, length);
+    }
+
+    @Override
+    public String getEncoding() {
+        return "raw";
+    }
+
+    @Override
+    public boolean retain() {
+        int count;
+        do {
+            count = references.get();
+            if (count == 0) {
+                return false;
+            }
+        } while (!references.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    @Override
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            store.free(slot);
+        }
+    }
+
+    @Override
+    public boolean isInteger() {
+        return false;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public void copyTo(int start, int length, byte[] destination, int offset) {
+        slot.get(start, destination, offset, length);
+    }
+
+    // A copy on the heap; callers hold a reference
+    @Override
+    public byte[] getBytes() {
+        byte[] bytes = new byte[length];
+        slot.get(0, bytes, 0, length);
+        return bytes;
+    }
+
+    @Override
+    public long memoryUsage() {
+        return OVERHEAD + slot.capacity();
+    }
+}
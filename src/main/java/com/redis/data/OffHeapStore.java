@@ -0,0 +1,117 @@
+package com.redis.data;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Slab allocator for string values outside the Java heap (value-storage offheap), in the style of memcached:
+// 1 MB direct pages are cut into slots of one size class each, classes growing by a factor of 1.25, and freed
+// slots go on their class's free list for the next value of that size. Pages are never given back, so the GC
+// never sees the bytes and a steady workload allocates nothing once the pages exist.
+public class OffHeapStore {
+    private static final int PAGE_SIZE = 1 << 20;
+    private static final int SMALLEST_SLOT = 64;
+    private static final double GROWTH_FACTOR = 1.25;
+
+    private static final class SizeClass {
+        final int slotSize;
+        final ReentrantLock lock = new ReentrantLock();
+        ByteBuffer[] free = new ByteBuffer[16];
+        int freeCount;
+        // Page slots are still being cut from, and where the next one starts
+        ByteBuffer page;
+        int nextOffset;
+
+        SizeClass(int slotSize) {
+            this.slotSize = slotSize;
+        }
+    }
+
+    private final SizeClass[] classes;
+    private final int[] slotSizes;
+    private final int minValueSize;
+    private final AtomicLong pageBytes = new AtomicLong();
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    public OffHeapStore(int minValueSize) {
+        this.minValueSize = minValueSize;
+        int[] sizes = new int[64];
+        int count = 0;
+        for (double size = SMALLEST_SLOT; size < PAGE_SIZE; size *= GROWTH_FACTOR) {
+            // 8-byte aligned, like the classes of memcached's slabs
+            sizes[count++] = ((int) size + 7) & ~7;
+        }
+        sizes[count++] = PAGE_SIZE;
+        this.slotSizes = Arrays.copyOf(sizes, count);
+        this.classes = new SizeClass[count];
+        for (int i = 0; i < count; i++) {
+            classes[i] = new SizeClass(slotSizes[i]);
+        }
+    }
+
+    // Values shorter than this stay on the heap, where a slot's bookkeeping would cost more than it saves
+    public int getMinValueSize() {
+        return minValueSize;
+    }
+
+    // A slot of at least length bytes. Values larger than a page get a direct buffer of their own, which the GC
+    // frees once the value is gone.
+    ByteBuffer allocate(int length) {
+        if (length > PAGE_SIZE) {
+            usedBytes.addAndGet(length);
+            return ByteBuffer.allocateDirect(length);
+        }
+        int index = Arrays.binarySearch(slotSizes, length);
+        SizeClass sizeClass = classes[index >= 0 ? index : -index - 1];
+        usedBytes.addAndGet(sizeClass.slotSize);
+        sizeClass.lock.lock();
+        try {
+            if (sizeClass.freeCount > 0) {
+                ByteBuffer slot = sizeClass.free[--sizeClass.freeCount];
+                sizeClass.free[sizeClass.freeCount] = null;
+                return slot;
+            }
+            if (sizeClass.page == null || sizeClass.nextOffset + sizeClass.slotSize > PAGE_SIZE) {
+                sizeClass.page = ByteBuffer.allocateDirect(PAGE_SIZE);
+                sizeClass.nextOffset = 0;
+                pageBytes.addAndGet(PAGE_SIZE);
+            }
+            ByteBuffer slot = sizeClass.page.slice(sizeClass.nextOffset, sizeClass.slotSize);
+            sizeClass.nextOffset += sizeClass.slotSize;
+            return slot;
+        } finally {
+            sizeClass.lock.unlock();
+        }
+    }
+
+    // Called once the last reference to the value in slot is gone
+    void free(ByteBuffer slot) {
+        int capacity = slot.capacity();
+        usedBytes.addAndGet(-capacity);
+        if (capacity > PAGE_SIZE) {
+            // A buffer of its own
+            return;
+        }
+        SizeClass sizeClass = classes[Arrays.binarySearch(slotSizes, capacity)];
+        sizeClass.lock.lock();
+        try {
+            if (sizeClass.freeCount == sizeClass.free.length) {
+                sizeClass.free = Arrays.copyOf(sizeClass.free, sizeClass.freeCount * 2);
+            }
+            sizeClass.free[sizeClass.freeCount++] = slot;
+        } finally {
+            sizeClass.lock.unlock();
+        }
+    }
+
+    // Bytes in slots that hold values
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    // Bytes of direct memory taken by pages, used or not
+    public long getPageBytes() {
+        return pageBytes.get();
+    }
+}
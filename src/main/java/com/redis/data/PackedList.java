@@ -0,0 +1,227 @@
+package com.redis.data;
+
+import java.util.Arrays;
+
+// The compact encoding of small hashes, lists, sets and sorted sets, like Redis' listpack: every element in one
+// byte array, so a small collection costs one object and its bytes instead of a node and a String per element.
+// Elements are addressed by their byte offset and walked from the front; collections only stay packed while
+// they are small (see EncodingLimits), which keeps the linear scans short. Strings are byte strings.
+//
+// Element layout: a header byte, then the data. 0x00-0x7F: a string of that length. 0x80-0xBF: a string whose
+// length is the low 6 bits and the next byte. 0xC0: a string with a 4 byte length. 0xF0: an 8 byte long.
+final class PackedList {
+    private static final int STRING_4 = 0xC0;
+    private static final int LONG = 0xF0;
+    // Object header, fields and the array's header
+    private static final int OVERHEAD = 48;
+
+    private byte[] data;
+    private int size;
+    private int count;
+
+    PackedList() {
+        data = new byte[32];
+    }
+
+    private PackedList(byte[] data, int size, int count) {
+        this.data = data;
+        this.size = size;
+        this.count = count;
+    }
+
+    int count() {
+        return count;
+    }
+
+    int bytes() {
+        return size;
+    }
+
+    long memoryUsage() {
+        return OVERHEAD + data.length;
+    }
+
+    // Offset of the first element; elements run up to end()
+    int start() {
+        return 0;
+    }
+
+    int end() {
+        return size;
+    }
+
+    int next(int offset) {
+        int header = data[offset] & 0xFF;
+        if (header < 0x80) {
+            return offset + 1 + header;
+        } else if (header < STRING_4) {
+            return offset + 2 + (((header & 0x3F) << 8) | (data[offset + 1] & 0xFF));
+        } else if (header == STRING_4) {
+            return offset + 5 + readInt(offset + 1);
+        }
+        return offset + 9;
+    }
+
+    // Offset of the element at index, end() if index == count()
+    int offsetOf(int index) {
+        int offset = 0;
+        for (int i = 0; i < index; i++) {
+            offset = next(offset);
+        }
+        return offset;
+    }
+
+    // Offset of the last element, -1 when empty
+    int last() {
+        if (count == 0) {
+            return -1;
+        }
+        int offset = 0;
+        for (int next = next(offset); next < size; next = next(offset)) {
+            offset = next;
+        }
+        return offset;
+    }
+
+    boolean isLong(int offset) {
+        return (data[offset] & 0xFF) == LONG;
+    }
+
+    long getLong(int offset) {
+        long value = 0;
+        for (int i = 1; i <= 8; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    @SuppressWarnings("deprecation")
+    String getString(int offset) {
+        int header = data[offset] & 0xFF;
+        if (header == LONG) {
+            return Long.toString(getLong(offset));
+        }
+        int start = dataStart(offset);
+        // The deprecated hibyte constructor is exactly the ISO-8859-1 decoding
+        return new String(data, 0, start, next(offset) - start);
+    }
+
+    // Compares without decoding the element
+    boolean equalsAt(int offset, String value) {
+        if (isLong(offset)) {
+            return getString(offset).equals(value);
+        }
+        int start = dataStart(offset);
+        int length = next(offset) - start;
+        if (length != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if ((data[start + i] & 0xFF) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Offset of the first element equal to value at or after from, stepping step elements at a time; -1 if none
+    int find(int from, String value, int step) {
+        for (int offset = from; offset < size; ) {
+            if (equalsAt(offset, value)) {
+                return offset;
+            }
+            for (int i = 0; i < step && offset < size; i++) {
+                offset = next(offset);
+            }
+        }
+        return -1;
+    }
+
+    void add(String value) {
+        insert(size, value);
+    }
+
+    void add(long value) {
+        insert(size, value);
+    }
+
+    // Inserts before the element at offset and returns the offset after the new one
+    int insert(int offset, String value) {
+        int length = value.length();
+        int header = length < 0x80 ? 1 : length < 0x4000 ? 2 : 5;
+        open(offset, header + length);
+        if (header == 1) {
+            data[offset] = (byte) length;
+        } else if (header == 2) {
+            data[offset] = (byte) (0x80 | (length >> 8));
+            data[offset + 1] = (byte) length;
+        } else {
+            data[offset] = (byte) STRING_4;
+            writeInt(offset + 1, length);
+        }
+        for (int i = 0; i < length; i++) {
+            data[offset + header + i] = (byte) value.charAt(i);
+        }
+        return offset + header + length;
+    }
+
+    int insert(int offset, long value) {
+        open(offset, 9);
+        data[offset] = (byte) LONG;
+        for (int i = 8; i >= 1; i--) {
+            data[offset + i] = (byte) value;
+            value >>= 8;
+        }
+        return offset + 9;
+    }
+
+    void replace(int offset, String value) {
+        remove(offset);
+        insert(offset, value);
+    }
+
+    void replace(int offset, long value) {
+        remove(offset);
+        insert(offset, value);
+    }
+
+    void remove(int offset) {
+        int next = next(offset);
+        System.arraycopy(data, next, data, offset, size - next);
+        size -= next - offset;
+        count--;
+        // Give memory back once a shrinking collection uses a quarter of its array
+        if (data.length > 64 && size < data.length / 4) {
+            data = Arrays.copyOf(data, data.length / 2);
+        }
+    }
+
+    PackedList copy() {
+        return new PackedList(Arrays.copyOf(data, Math.max(size, 1)), size, count);
+    }
+
+    private void open(int offset, int length) {
+        if (size + length > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, size + length));
+        }
+        System.arraycopy(data, offset, data, offset + length, size - offset);
+        size += length;
+        count++;
+    }
+
+    private int dataStart(int offset) {
+        int header = data[offset] & 0xFF;
+        return offset + (header < 0x80 ? 1 : header < STRING_4 ? 2 : 5);
+    }
+
+    private int readInt(int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    private void writeInt(int offset, int value) {
+        data[offset] = (byte) (value >> 24);
+        data[offset + 1] = (byte) (value >> 16);
+        data[offset + 2] = (byte) (value >> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
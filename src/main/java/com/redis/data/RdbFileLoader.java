@@ -1,73 +1,632 @@
 package com.redis.data;
 
-import com.redis.utils.StreamLength;
-
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
 
+// Loads an RDB file in two stages: this thread parses the file sequentially into batches of raw records,
+// and worker threads decode them (LZF, integer strings, String creation) and insert them into the keyspace.
+// Parsing only copies bytes, so it keeps up with several decoding workers.
 public class RdbFileLoader {
+    private static final int BATCH_RECORDS = 4096;
+    private static final int BATCH_BYTES = 4 << 20;
+
+    // Opcodes, shared with RdbFileWriter
+    static final int OPCODE_IDLE = 0xF8;
+    static final int OPCODE_FREQ = 0xF9;
+    static final int OPCODE_AUX = 0xFA;
+    static final int OPCODE_RESIZEDB = 0xFB;
+    static final int OPCODE_EXPIRETIME_MS = 0xFC;
+    static final int OPCODE_EXPIRETIME = 0xFD;
+    static final int OPCODE_SELECTDB = 0xFE;
+    static final int OPCODE_EOF = 0xFF;
+
+    // Value types
+    static final int TYPE_STRING = 0;
+    static final int TYPE_LIST = 1;
+    static final int TYPE_SET = 2;
+    static final int TYPE_ZSET = 3;
+    static final int TYPE_HASH = 4;
+    static final int TYPE_ZSET_2 = 5;
+    static final int TYPE_SET_INTSET = 11;
+    static final int TYPE_LIST_QUICKLIST = 14;
+    static final int TYPE_STREAM_LISTPACKS = 15;
+    static final int TYPE_HASH_LISTPACK = 16;
+    static final int TYPE_ZSET_LISTPACK = 17;
+    static final int TYPE_LIST_QUICKLIST_2 = 18;
+    static final int TYPE_STREAM_LISTPACKS_2 = 19;
+    static final int TYPE_SET_LISTPACK = 20;
+    static final int TYPE_STREAM_LISTPACKS_3 = 21;
+
+    // Stream entry flags inside listpack nodes
+    static final int STREAM_ITEM_FLAG_DELETED = 1;
+    static final int STREAM_ITEM_FLAG_SAMEFIELDS = 2;
+    // Quicklist node containers: one element as a plain string, or a listpack of them
+    static final int QUICKLIST_NODE_PLAIN = 1;
+    static final int QUICKLIST_NODE_PACKED = 2;
+
     private final String dir;
     private final String dbFilename;
-    private final ConcurrentHashMap<String, Cache> rdbMap;
+    private final Keyspace keyspace;
+    private final int workers;
+    private final LongAdder loaded = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private long skipped;
+
+    public RdbFileLoader(String dir, String dbFilename, Keyspace keyspace) {
+        this(dir, dbFilename, keyspace, Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
 
-    public RdbFileLoader(String dir, String dbFilename, ConcurrentHashMap<String, Cache> rdbMap) {
+    public RdbFileLoader(String dir, String dbFilename, Keyspace keyspace, int workers) {
         this.dir = dir;
         this.dbFilename = dbFilename;
-        this.rdbMap = rdbMap;
+        this.keyspace = keyspace;
+        this.workers = workers;
     }
 
     public void load() {
-        StreamLength streamLength = new StreamLength();
         Path dbPath = Path.of(dir, dbFilename);
-        File dbfile = new File(dbPath.toString());
-
-        if (!dbfile.exists()) {
+        if (!Files.exists(dbPath)) {
             return;
         }
 
-        try (InputStream inputStream = new FileInputStream(dbfile)) {
-            int read;
-            while ((read = inputStream.read()) != -1) {
-                if (read == 0xFB) {
-                    streamLength.getLen(inputStream);
-                    streamLength.getLen(inputStream);
+        long started = System.nanoTime();
+        // Bounded, so a slow keyspace applies back-pressure to the parser instead of buffering the whole file
+        BlockingQueue<Batch> full = new ArrayBlockingQueue<>(workers * 2);
+        BlockingQueue<Batch> free = new ArrayBlockingQueue<>(workers * 2 + 2);
+        Thread[] threads = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            threads[i] = new Thread(() -> insertBatches(full, free), "rdb-load-" + i);
+            threads[i].start();
+        }
+
+        try (RdbInput input = new RdbInput(dbPath)) {
+            parse(input, full, free);
+        } catch (IOException e) {
+            System.out.println("Error reading RDB file: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (int i = 0; i < workers; i++) {
+                putUninterruptibly(full, Batch.END);
+            }
+            for (Thread thread : threads) {
+                joinUninterruptibly(thread);
+            }
+        }
+
+        System.out.println("Loaded " + loaded.sum() + " keys from " + dbPath + " in " + (System.nanoTime() - started) / 1_000_000 + " ms"
+            + " (" + expired.sum() + " already expired, " + skipped + " of unsupported types or other databases skipped)");
+    }
+
+    public long getLoaded() {
+        return loaded.sum();
+    }
+
+    private void parse(RdbInput input, BlockingQueue<Batch> full, BlockingQueue<Batch> free) throws IOException, InterruptedException {
+        byte[] header = new byte[9];
+        input.readFully(header, 0, header.length);
+        if (!new String(header, 0, 5, StandardCharsets.ISO_8859_1).equals("REDIS")) {
+            throw new IOException("Not an RDB file");
+        }
+
+        Batch batch = new Batch();
+        long db = 0;
+        long ttl = -1;
+        while (true) {
+            int type = input.readUnsignedByte();
+            switch (type) {
+                case OPCODE_EOF:
+                    // The 8 byte checksum that follows is not verified
+                    if (batch.count > 0) {
+                        full.put(batch);
+                    }
+                    return;
+                case OPCODE_AUX:
+                    input.skipString();
+                    input.skipString();
+                    continue;
+                case OPCODE_SELECTDB:
+                    db = input.readLength();
+                    continue;
+                case OPCODE_RESIZEDB:
+                    input.readLength();
+                    input.readLength();
+                    continue;
+                case OPCODE_EXPIRETIME:
+                    ttl = (input.readIntLE() & 0xFFFFFFFFL) * 1000;
+                    continue;
+                case OPCODE_EXPIRETIME_MS:
+                    ttl = input.readLongLE();
+                    continue;
+                case OPCODE_IDLE:
+                    input.readLength();
+                    continue;
+                case OPCODE_FREQ:
+                    input.readUnsignedByte();
+                    continue;
+                default:
                     break;
+            }
+
+            // Only database 0 exists in this server
+            if (type == TYPE_STRING && db == 0) {
+                batch.ttls[batch.count] = ttl;
+                batch.readString(input);
+                batch.readString(input);
+                batch.count++;
+                if (batch.count == BATCH_RECORDS || batch.size >= BATCH_BYTES) {
+                    full.put(batch);
+                    Batch reused = free.poll();
+                    batch = reused != null ? reused : new Batch();
+                }
+            } else if (isStream(type) && db == 0) {
+                // Streams are rare and large; they are rebuilt right here instead of going through the workers
+                String key = readString(input);
+                StreamCache stream = readStream(input, type);
+                if (ttl == -1 || ttl > System.currentTimeMillis()) {
+                    stream.ttl = ttl;
+                    keyspace.put(key, stream);
+                    loaded.increment();
+                } else {
+                    expired.increment();
                 }
+            } else if (isCollection(type) && db == 0) {
+                // Like streams, collections are built on this thread
+                String key = readString(input);
+                CollectionCache collection = readCollection(input, type);
+                if (collection.isEmpty()) {
+                    skipped++;
+                } else if (ttl == -1 || ttl > System.currentTimeMillis()) {
+                    collection.ttl = ttl;
+                    keyspace.put(key, collection);
+                    loaded.increment();
+                } else {
+                    expired.increment();
+                }
+            } else {
+                input.skipString();
+                skipValue(input, type);
+                skipped++;
             }
+            ttl = -1;
+        }
+    }
 
-            while ((read = inputStream.read()) != -1) {
-                int type = read;
-                if (type == 0xFF) {
-                    break;
+    private static void skipValue(RdbInput input, int type) throws IOException {
+        switch (type) {
+            case TYPE_STRING:
+                input.skipString();
+                break;
+            case TYPE_LIST:
+            case TYPE_SET:
+            case TYPE_LIST_QUICKLIST:
+                for (long n = input.readLength(); n > 0; n--) {
+                    input.skipString();
+                }
+                break;
+            case TYPE_HASH:
+                for (long n = input.readLength() * 2; n > 0; n--) {
+                    input.skipString();
+                }
+                break;
+            case TYPE_ZSET:
+                for (long n = input.readLength(); n > 0; n--) {
+                    input.skipString();
+                    // Scores are a length-prefixed decimal string; 253-255 stand for nan, +inf and -inf
+                    int length = input.readUnsignedByte();
+                    if (length < 253) {
+                        input.skip(length);
+                    }
+                }
+                break;
+            case TYPE_ZSET_2:
+                for (long n = input.readLength(); n > 0; n--) {
+                    input.skipString();
+                    input.skip(Double.BYTES);
                 }
+                break;
+            case TYPE_LIST_QUICKLIST_2:
+                for (long n = input.readLength(); n > 0; n--) {
+                    input.readLength();
+                    input.skipString();
+                }
+                break;
+            case TYPE_STREAM_LISTPACKS:
+            case TYPE_STREAM_LISTPACKS_2:
+            case TYPE_STREAM_LISTPACKS_3:
+                readStream(input, type);
+                break;
+            case 9: case 10: case TYPE_SET_INTSET: case 12: case 13: case TYPE_HASH_LISTPACK: case TYPE_ZSET_LISTPACK: case TYPE_SET_LISTPACK:
+                // zipmap, ziplist, intset and listpack encodings are stored as one string blob
+                input.skipString();
+                break;
+            default:
+                throw new IOException("Unsupported RDB value type " + type);
+        }
+    }
 
-                long ttl = -1;
-                if (type == 0xFC) {
-                    ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
-                    buffer.put(inputStream.readNBytes(Long.BYTES));
-                    buffer.flip();
-                    ttl = buffer.getLong();
-                    type = inputStream.read();
+    private static boolean isStream(int type) {
+        return type == TYPE_STREAM_LISTPACKS || type == TYPE_STREAM_LISTPACKS_2 || type == TYPE_STREAM_LISTPACKS_3;
+    }
+
+    // The ziplist encodings of Redis before 7.0 (9, 10, 12, 13 and the quicklist of ziplists) are skipped
+    private static boolean isCollection(int type) {
+        return switch (type) {
+            case TYPE_LIST, TYPE_SET, TYPE_ZSET, TYPE_HASH, TYPE_ZSET_2, TYPE_SET_INTSET, TYPE_HASH_LISTPACK, TYPE_ZSET_LISTPACK,
+                TYPE_LIST_QUICKLIST_2, TYPE_SET_LISTPACK -> true;
+            default -> false;
+        };
+    }
+
+    // Rebuilds the collection element by element, so it gets this server's encoding for its size whatever
+    // encoding it was saved in
+    private CollectionCache readCollection(RdbInput input, int type) throws IOException {
+        try {
+            switch (type) {
+                case TYPE_LIST, TYPE_LIST_QUICKLIST_2 -> {
+                    ListCache list = keyspace.newList();
+                    for (long n = input.readLength(); n > 0; n--) {
+                        if (type == TYPE_LIST) {
+                            list.pushBack(readString(input));
+                        } else if (input.readLength() == QUICKLIST_NODE_PLAIN) {
+                            // A single element too large for a listpack
+                            list.pushBack(readString(input));
+                        } else {
+                            for (Object element : Listpack.decode(input.readStringBytes())) {
+                                list.pushBack(Listpack.asString(element));
+                            }
+                        }
+                    }
+                    return list;
+                }
+                case TYPE_SET, TYPE_SET_INTSET, TYPE_SET_LISTPACK -> {
+                    SetCache set = keyspace.newSet();
+                    if (type == TYPE_SET) {
+                        for (long n = input.readLength(); n > 0; n--) {
+                            set.add(readString(input));
+                        }
+                    } else if (type == TYPE_SET_INTSET) {
+                        // Encoding (bytes per integer) and count as 32 bit little-endian, then the sorted integers
+                        ByteBuffer intset = ByteBuffer.wrap(input.readStringBytes()).order(ByteOrder.LITTLE_ENDIAN);
+                        int width = intset.getInt();
+                        for (int n = intset.getInt(); n > 0; n--) {
+                            long value = width == 2 ? intset.getShort() : width == 4 ? intset.getInt() : intset.getLong();
+                            set.add(Long.toString(value));
+                        }
+                    } else {
+                        for (Object element : Listpack.decode(input.readStringBytes())) {
+                            set.add(Listpack.asString(element));
+                        }
+                    }
+                    return set;
+                }
+                case TYPE_HASH, TYPE_HASH_LISTPACK -> {
+                    HashCache hash = keyspace.newHash();
+                    if (type == TYPE_HASH) {
+                        for (long n = input.readLength(); n > 0; n--) {
+                            hash.put(readString(input), readString(input));
+                        }
+                    } else {
+                        List<Object> elements = Listpack.decode(input.readStringBytes());
+                        for (int i = 0; i + 1 < elements.size(); i += 2) {
+                            hash.put(Listpack.asString(elements.get(i)), Listpack.asString(elements.get(i + 1)));
+                        }
+                    }
+                    return hash;
+                }
+                default -> {
+                    ZSetCache zset = keyspace.newZSet();
+                    if (type == TYPE_ZSET_LISTPACK) {
+                        List<Object> elements = Listpack.decode(input.readStringBytes());
+                        for (int i = 0; i + 1 < elements.size(); i += 2) {
+                            zset.put(Listpack.asString(elements.get(i)), Double.parseDouble(Listpack.asString(elements.get(i + 1))));
+                        }
+                        return zset;
+                    }
+                    for (long n = input.readLength(); n > 0; n--) {
+                        String member = readString(input);
+                        zset.put(member, type == TYPE_ZSET_2 ? Double.longBitsToDouble(input.readLongLE()) : readDecimalScore(input));
+                    }
+                    return zset;
                 }
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid collection of type " + type + ": " + e.getMessage());
+        }
+    }
 
-                int keyLen = streamLength.getLen(inputStream);
-                byte[] keyBytes = new byte[keyLen];
-                inputStream.read(keyBytes);
-                String parsedKey = new String(keyBytes, StandardCharsets.UTF_8);
+    // Scores of the original sorted set type: a length-prefixed decimal string, 253-255 standing for nan, +inf and -inf
+    private static double readDecimalScore(RdbInput input) throws IOException {
+        int length = input.readUnsignedByte();
+        switch (length) {
+            case 253:
+                return Double.NaN;
+            case 254:
+                return Double.POSITIVE_INFINITY;
+            case 255:
+                return Double.NEGATIVE_INFINITY;
+            default:
+                byte[] digits = new byte[length];
+                input.readFully(digits, 0, length);
+                return Double.parseDouble(new String(digits, StandardCharsets.ISO_8859_1));
+        }
+    }
 
-                int valueLen = streamLength.getLen(inputStream);
-                byte[] valueBytes = new byte[valueLen];
-                inputStream.read(valueBytes);
-                String parsedValue = new String(valueBytes, StandardCharsets.UTF_8);
+    private static String readString(RdbInput input) throws IOException {
+        return new String(input.readStringBytes(), StandardCharsets.ISO_8859_1);
+    }
 
-                rdbMap.put(parsedKey, new Cache(parsedValue, ttl));
+    // Streams are a series of listpack nodes keyed by their master ID, followed by the stream's metadata
+    // and its consumer groups. Format versions 2 and 3 add counters and the consumers' active time.
+    private static StreamCache readStream(RdbInput input, int type) throws IOException {
+        StreamCache stream = new StreamCache();
+        for (long nodes = input.readLength(); nodes > 0; nodes--) {
+            StreamId master = readRawStreamId(input.readStringBytes(), 0);
+            List<Object> elements;
+            try {
+                elements = Listpack.decode(input.readStringBytes());
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid stream listpack: " + e.getMessage());
             }
-        } catch (IOException e) {
-            System.out.println("Error reading RDB file: " + e.getMessage());
+            readStreamNode(stream, master, elements);
+        }
+        input.readLength();
+        StreamId lastId = new StreamId(input.readLength(), input.readLength());
+        if (lastId.compareTo(stream.getLastId()) > 0) {
+            stream.setLastId(lastId);
+        }
+        if (type != TYPE_STREAM_LISTPACKS) {
+            // First ID, max deleted ID and entries added; all derived from the entries here
+            for (int i = 0; i < 5; i++) {
+                input.readLength();
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        for (long groups = input.readLength(); groups > 0; groups--) {
+            String name = new String(input.readStringBytes(), StandardCharsets.ISO_8859_1);
+            StreamId lastDelivered = new StreamId(input.readLength(), input.readLength());
+            if (type != TYPE_STREAM_LISTPACKS) {
+                input.readLength();
+            }
+            stream.createGroup(name, lastDelivered);
+            StreamGroup group = stream.getGroup(name);
+
+            // The group PEL carries delivery time and count, the consumer PELs only say who owns each entry
+            Map<StreamId, long[]> deliveries = new HashMap<>();
+            byte[] rawId = new byte[16];
+            for (long pending = input.readLength(); pending > 0; pending--) {
+                input.readFully(rawId, 0, rawId.length);
+                long deliveryTime = input.readLongLE();
+                long deliveryCount = input.readLength();
+                deliveries.put(readRawStreamId(rawId, 0), new long[] {deliveryTime, deliveryCount});
+            }
+            for (long consumers = input.readLength(); consumers > 0; consumers--) {
+                String consumerName = new String(input.readStringBytes(), StandardCharsets.ISO_8859_1);
+                long seenTime = input.readLongLE();
+                if (type == TYPE_STREAM_LISTPACKS_3) {
+                    input.readLongLE();
+                }
+                StreamGroup.Consumer consumer = group.getOrCreateConsumer(consumerName, seenTime);
+                for (long pending = input.readLength(); pending > 0; pending--) {
+                    input.readFully(rawId, 0, rawId.length);
+                    StreamId id = readRawStreamId(rawId, 0);
+                    long[] delivery = deliveries.getOrDefault(id, new long[] {now, 1});
+                    group.deliver(id, consumer, delivery[0], false).setDeliveryCount(delivery[1]);
+                }
+            }
+        }
+        return stream;
+    }
+
+    // Node layout: count, deleted, master field count, master fields, 0, then per entry:
+    // flags, ms delta, seq delta, [field count], fields and values (values only with SAMEFIELDS), element count
+    private static void readStreamNode(StreamCache stream, StreamId master, List<Object> elements) throws IOException {
+        try {
+            int position = 2;
+            int masterFieldCount = (int) Listpack.asLong(elements.get(position++));
+            List<String> masterFields = new ArrayList<>(masterFieldCount);
+            for (int i = 0; i < masterFieldCount; i++) {
+                masterFields.add(Listpack.asString(elements.get(position++)));
+            }
+            position++;
+            while (position < elements.size()) {
+                int flags = (int) Listpack.asLong(elements.get(position++));
+                StreamId id = new StreamId(master.getMilliseconds() + Listpack.asLong(elements.get(position++)),
+                    master.getSequence() + Listpack.asLong(elements.get(position++)));
+                boolean sameFields = (flags & STREAM_ITEM_FLAG_SAMEFIELDS) != 0;
+                int pairs = sameFields ? masterFieldCount : (int) Listpack.asLong(elements.get(position++));
+                List<String> fieldsAndValues = new ArrayList<>(pairs * 2);
+                for (int i = 0; i < pairs; i++) {
+                    fieldsAndValues.add(sameFields ? masterFields.get(i) : Listpack.asString(elements.get(position++)));
+                    fieldsAndValues.add(Listpack.asString(elements.get(position++)));
+                }
+                position++;
+                if ((flags & STREAM_ITEM_FLAG_DELETED) == 0) {
+                    stream.addEntry(id, fieldsAndValues);
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid stream node: " + e.getMessage());
+        }
+    }
+
+    // Stream IDs in node keys and PELs are 16 raw bytes: milliseconds and sequence, big-endian
+    static StreamId readRawStreamId(byte[] raw, int offset) throws IOException {
+        if (raw.length < offset + 16) {
+            throw new IOException("Invalid stream ID");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(raw, offset, 16);
+        return new StreamId(buffer.getLong(), buffer.getLong());
+    }
+
+    private void insertBatches(BlockingQueue<Batch> full, BlockingQueue<Batch> free) {
+        while (true) {
+            Batch batch;
+            try {
+                batch = full.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (batch == Batch.END) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < batch.count; i++) {
+                long ttl = batch.ttls[i];
+                // Keys that expired while the server was down are dropped instead of loaded and expired again
+                if (ttl != -1 && ttl <= now) {
+                    expired.increment();
+                    continue;
+                }
+                keyspace.put(batch.decode(2 * i), batch.decodeValue(2 * i + 1, keyspace, ttl));
+                loaded.increment();
+            }
+            batch.reset();
+            free.offer(batch);
+        }
+    }
+
+    private static void putUninterruptibly(BlockingQueue<Batch> queue, Batch batch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(batch);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Raw records as read from the file: key and value strings are kept in their RDB encoding
+    // (plain bytes, an integer, or LZF-compressed bytes) and only decoded by the worker.
+    private static final class Batch {
+        static final Batch END = new Batch();
+
+        private static final byte RAW = 0;
+        private static final byte INTEGER = 1;
+        private static final byte LZF = 2;
+
+        final long[] ttls = new long[BATCH_RECORDS];
+        int count;
+        // Two strings per record: key at 2 * i, value at 2 * i + 1
+        private final byte[] kinds = new byte[BATCH_RECORDS * 2];
+        private final long[] offsetsOrIntegers = new long[BATCH_RECORDS * 2];
+        private final int[] lengths = new int[BATCH_RECORDS * 2];
+        private final int[] decompressedLengths = new int[BATCH_RECORDS * 2];
+        private byte[] data = new byte[1 << 16];
+        int size;
+        private int strings;
+
+        void readString(RdbInput input) throws IOException {
+            int index = strings++;
+            int first = input.readUnsignedByte();
+            if (first >> 6 != RdbInput.ENCODED) {
+                kinds[index] = RAW;
+                copy(input, index, input.readLength(first));
+                return;
+            }
+            switch (first & 0x3F) {
+                case RdbInput.ENCODING_INT8 -> integer(index, (byte) input.readUnsignedByte());
+                case RdbInput.ENCODING_INT16 -> integer(index, input.readShortLE());
+                case RdbInput.ENCODING_INT32 -> integer(index, input.readIntLE());
+                case RdbInput.ENCODING_LZF -> {
+                    long compressed = input.readLength();
+                    long decompressed = input.readLength();
+                    if (decompressed > Integer.MAX_VALUE) {
+                        throw new IOException("String too long: " + decompressed);
+                    }
+                    kinds[index] = LZF;
+                    decompressedLengths[index] = (int) decompressed;
+                    copy(input, index, compressed);
+                }
+                default -> throw new IOException("Unknown string encoding " + (first & 0x3F));
+            }
+        }
+
+        String decode(int index) {
+            switch (kinds[index]) {
+                case INTEGER:
+                    return Long.toString(offsetsOrIntegers[index]);
+                case LZF:
+                    byte[] decompressed = RdbInput.lzfDecompress(data, (int) offsetsOrIntegers[index], lengths[index], decompressedLengths[index]);
+                    return new String(decompressed, StandardCharsets.ISO_8859_1);
+                default:
+                    return new String(data, (int) offsetsOrIntegers[index], lengths[index], StandardCharsets.ISO_8859_1);
+            }
+        }
+
+        // Straight to the value's bytes, or its integer, without a String in between
+        Cache decodeValue(int index, Keyspace keyspace, long ttl) {
+            switch (kinds[index]) {
+                case INTEGER:
+                    return keyspace.newCache(offsetsOrIntegers[index], ttl);
+                case LZF:
+                    byte[] decompressed = RdbInput.lzfDecompress(data, (int) offsetsOrIntegers[index], lengths[index], decompressedLengths[index]);
+                    return keyspace.newCache(decompressed, 0, decompressed.length, ttl);
+                default:
+                    return keyspace.newCache(data, (int) offsetsOrIntegers[index], lengths[index], ttl);
+            }
+        }
+
+        void reset() {
+            count = 0;
+            size = 0;
+            strings = 0;
+            // A batch that had to hold a huge value gives the memory back
+            if (data.length > BATCH_BYTES * 2) {
+                data = new byte[1 << 16];
+            }
+        }
+
+        private void integer(int index, long value) {
+            kinds[index] = INTEGER;
+            offsetsOrIntegers[index] = value;
+        }
+
+        private void copy(RdbInput input, int index, long length) throws IOException {
+            if (length > Integer.MAX_VALUE - size) {
+                throw new IOException("String too long: " + length);
+            }
+            int n = (int) length;
+            if (size + n > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + n));
+            }
+            input.readFully(data, size, n);
+            offsetsOrIntegers[index] = size;
+            lengths[index] = n;
+            size += n;
         }
     }
 }
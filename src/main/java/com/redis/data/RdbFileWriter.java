@@ -0,0 +1,253 @@
+package com.redis.data;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import static com.redis.data.RdbFileLoader.*;
+
+// Writes the keyspace as an RDB version 11 file, readable by RdbFileLoader and by Redis 7.2+.
+// The dump is point-in-time (see Keyspace.beginSnapshot()) and writers keep running while it is made.
+public class RdbFileWriter {
+    private static final String HEADER = "REDIS0011";
+    // Entries per listpack node, as Redis' stream-node-max-entries
+    private static final int STREAM_NODE_ENTRIES = 100;
+    // Entries per quicklist node, as Redis' default list-max-listpack-size
+    private static final int LIST_NODE_ENTRIES = 128;
+
+    private final Keyspace keyspace;
+    private long keysWritten;
+
+    public RdbFileWriter(Keyspace keyspace) {
+        this.keyspace = keyspace;
+    }
+
+    // Writes to a temporary file next to target and renames it over target once it is complete and synced,
+    // so a crash in the middle of a save never leaves a truncated file behind. Returns the number of keys written.
+    public long write(Path target, Keyspace.Snapshot snapshot) throws IOException {
+        Path temp = target.resolveSibling("temp-" + ProcessHandle.current().pid() + "-" + Thread.currentThread().threadId() + ".rdb");
+        try {
+            try (RdbOutput output = new RdbOutput(temp)) {
+                writeTo(output, snapshot);
+                output.sync();
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return keysWritten;
+    }
+
+    private void writeTo(RdbOutput output, Keyspace.Snapshot snapshot) throws IOException {
+        for (int i = 0; i < HEADER.length(); i++) {
+            output.writeByte(HEADER.charAt(i));
+        }
+        writeAux(output, "redis-ver", "7.2.0");
+        writeAux(output, "redis-bits", "64");
+        writeAux(output, "ctime", Long.toString(System.currentTimeMillis() / 1000));
+
+        output.writeByte(OPCODE_SELECTDB);
+        output.writeLength(0);
+        // Only a sizing hint for the reader, so the counts from before the snapshot are good enough
+        output.writeByte(OPCODE_RESIZEDB);
+        output.writeLength(keyspace.size());
+        output.writeLength(keyspace.getExpiresCount());
+
+        keysWritten = 0;
+        keyspace.snapshot(snapshot, (key, value, ttl) -> writeKey(output, key, value, ttl));
+
+        output.writeByte(OPCODE_EOF);
+        // A zero checksum tells readers that checksumming was disabled
+        output.writeLongLE(0);
+    }
+
+    private void writeKey(RdbOutput output, String key, RedisObject value, long ttl) throws IOException {
+        int type;
+        if (value instanceof Cache) {
+            type = TYPE_STRING;
+        } else if (value instanceof StreamCache) {
+            type = TYPE_STREAM_LISTPACKS_3;
+        } else if (value instanceof HashCache) {
+            type = TYPE_HASH;
+        } else if (value instanceof ListCache) {
+            type = TYPE_LIST_QUICKLIST_2;
+        } else if (value instanceof SetCache) {
+            type = TYPE_SET;
+        } else if (value instanceof ZSetCache) {
+            type = TYPE_ZSET_2;
+        } else {
+            return;
+        }
+        if (ttl != -1) {
+            output.writeByte(OPCODE_EXPIRETIME_MS);
+            output.writeLongLE(ttl);
+        }
+        output.writeByte(type);
+        output.writeString(key);
+        if (value instanceof Cache cache) {
+            if (cache.isInteger()) {
+                output.writeInteger(cache.getLong());
+            } else {
+                output.writeString(cache.getBytes());
+            }
+        } else if (value instanceof StreamCache stream) {
+            writeStream(output, stream);
+        } else {
+            writeCollection(output, (CollectionCache) value);
+        }
+        keysWritten++;
+    }
+
+    // Plain element lists, except lists as quicklist nodes; the visitors can't throw, so IOExceptions are carried out
+    // of them unchecked
+    private static void writeCollection(RdbOutput output, CollectionCache collection) throws IOException {
+        output.writeLength(collection instanceof ListCache list ? (list.size() + LIST_NODE_ENTRIES - 1) / LIST_NODE_ENTRIES : collection.size());
+        try {
+            if (collection instanceof HashCache hash) {
+                hash.forEach((field, value) -> {
+                    writeUnchecked(output, field);
+                    writeUnchecked(output, value);
+                });
+            } else if (collection instanceof SetCache set) {
+                set.forEach(member -> writeUnchecked(output, member));
+            } else if (collection instanceof ZSetCache zset) {
+                zset.forEach((member, score) -> {
+                    writeUnchecked(output, member);
+                    try {
+                        output.writeLongLE(Double.doubleToLongBits(score));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } else {
+                ListCache list = (ListCache) collection;
+                for (long start = 0; start < list.size(); start += LIST_NODE_ENTRIES) {
+                    Listpack listpack = new Listpack();
+                    list.range(start, Math.min(start + LIST_NODE_ENTRIES, list.size()) - 1, listpack::add);
+                    output.writeLength(QUICKLIST_NODE_PACKED);
+                    output.writeString(listpack.toByteArray());
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void writeUnchecked(RdbOutput output, String value) {
+        try {
+            output.writeString(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeAux(RdbOutput output, String name, String value) throws IOException {
+        output.writeByte(OPCODE_AUX);
+        output.writeString(name);
+        output.writeString(value);
+    }
+
+    // The layout RdbFileLoader.readStream() reads back, in its version 3 form
+    private static void writeStream(RdbOutput output, StreamCache stream) throws IOException {
+        long nodes = (stream.length() + STREAM_NODE_ENTRIES - 1) / STREAM_NODE_ENTRIES;
+        output.writeLength(nodes);
+        StreamId after = null;
+        StreamId first = StreamId.MIN;
+        for (long node = 0; node < nodes; node++) {
+            List<StreamEntry> entries = after == null
+                ? stream.range(StreamId.MIN, StreamId.MAX, STREAM_NODE_ENTRIES)
+                : stream.after(after, STREAM_NODE_ENTRIES);
+            if (node == 0) {
+                first = entries.get(0).getId();
+            }
+            output.writeString(rawStreamId(entries.get(0).getId()));
+            output.writeString(streamNode(entries));
+            after = entries.get(entries.size() - 1).getId();
+        }
+
+        StreamId lastId = stream.getLastId();
+        output.writeLength(stream.length());
+        output.writeLength(lastId.getMilliseconds());
+        output.writeLength(lastId.getSequence());
+        output.writeLength(first.getMilliseconds());
+        output.writeLength(first.getSequence());
+        // Max deleted entry ID: nothing is ever deleted here
+        output.writeLength(0);
+        output.writeLength(0);
+        output.writeLength(stream.length());
+
+        output.writeLength(stream.getGroups().size());
+        for (StreamGroup group : stream.getGroups()) {
+            output.writeString(group.getName());
+            output.writeLength(group.getLastDeliveredId().getMilliseconds());
+            output.writeLength(group.getLastDeliveredId().getSequence());
+            // Entries read is not tracked; -1 marks it as unknown
+            output.writeLength(-1);
+
+            output.writeLength(group.getPending().size());
+            for (StreamGroup.PendingEntry pending : group.getPending().values()) {
+                output.writeBytes(rawStreamId(pending.getId()), 0, 16);
+                output.writeLongLE(pending.getDeliveryTime());
+                output.writeLength(pending.getDeliveryCount());
+            }
+            output.writeLength(group.getConsumers().size());
+            for (StreamGroup.Consumer consumer : group.getConsumers()) {
+                output.writeString(consumer.getName());
+                output.writeLongLE(consumer.getSeenTime());
+                output.writeLongLE(consumer.getSeenTime());
+                output.writeLength(consumer.getPending().size());
+                for (StreamId id : consumer.getPending().keySet()) {
+                    output.writeBytes(rawStreamId(id), 0, 16);
+                }
+            }
+        }
+    }
+
+    private static byte[] streamNode(List<StreamEntry> entries) {
+        StreamId master = entries.get(0).getId();
+        List<String> masterFieldsAndValues = entries.get(0).getFieldsAndValues();
+        int masterFieldCount = masterFieldsAndValues.size() / 2;
+
+        Listpack listpack = new Listpack();
+        listpack.add(entries.size());
+        listpack.add(0);
+        listpack.add(masterFieldCount);
+        for (int i = 0; i < masterFieldCount; i++) {
+            listpack.add(masterFieldsAndValues.get(i * 2));
+        }
+        listpack.add(0);
+
+        for (StreamEntry entry : entries) {
+            List<String> fieldsAndValues = entry.getFieldsAndValues();
+            int pairs = fieldsAndValues.size() / 2;
+            boolean sameFields = pairs == masterFieldCount;
+            for (int i = 0; sameFields && i < pairs; i++) {
+                sameFields = fieldsAndValues.get(i * 2).equals(masterFieldsAndValues.get(i * 2));
+            }
+            listpack.add(sameFields ? STREAM_ITEM_FLAG_SAMEFIELDS : 0);
+            listpack.add(entry.getId().getMilliseconds() - master.getMilliseconds());
+            listpack.add(entry.getId().getSequence() - master.getSequence());
+            if (sameFields) {
+                for (int i = 0; i < pairs; i++) {
+                    listpack.add(fieldsAndValues.get(i * 2 + 1));
+                }
+                listpack.add(pairs + 3);
+            } else {
+                listpack.add(pairs);
+                for (String fieldOrValue : fieldsAndValues) {
+                    listpack.add(fieldOrValue);
+                }
+                listpack.add(pairs * 2 + 4);
+            }
+        }
+        return listpack.toByteArray();
+    }
+
+    private static byte[] rawStreamId(StreamId id) {
+        return ByteBuffer.allocate(16).putLong(id.getMilliseconds()).putLong(id.getSequence()).array();
+    }
+}
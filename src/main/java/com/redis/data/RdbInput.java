@@ -0,0 +1,224 @@
+package com.redis.data;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Sequential reader over an RDB file. Reads the channel through one large buffer, so parsing costs no
+// system call per field, and every read is exact: a short read from the channel just refills the buffer.
+final class RdbInput implements Closeable {
+    static final int BUFFER_SIZE = 1 << 20;
+
+    // Length prefixes with the two top bits set announce a specially encoded string instead of a length
+    static final int ENCODED = 3;
+    static final int ENCODING_INT8 = 0;
+    static final int ENCODING_INT16 = 1;
+    static final int ENCODING_INT32 = 2;
+    static final int ENCODING_LZF = 3;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    RdbInput(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        buffer.limit(0);
+    }
+
+    int readUnsignedByte() throws IOException {
+        require(1);
+        return buffer.get() & 0xFF;
+    }
+
+    // Little-endian, as used by the expiry opcodes
+    int readIntLE() throws IOException {
+        require(4);
+        return Integer.reverseBytes(buffer.getInt());
+    }
+
+    long readLongLE() throws IOException {
+        require(8);
+        return Long.reverseBytes(buffer.getLong());
+    }
+
+    short readShortLE() throws IOException {
+        require(2);
+        return Short.reverseBytes(buffer.getShort());
+    }
+
+    void readFully(byte[] target, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                fill();
+            }
+            int chunk = Math.min(length, buffer.remaining());
+            buffer.get(target, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    void skip(long length) throws IOException {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                fill();
+            }
+            int chunk = (int) Math.min(length, buffer.remaining());
+            buffer.position(buffer.position() + chunk);
+            length -= chunk;
+        }
+    }
+
+    long readLength() throws IOException {
+        int first = readUnsignedByte();
+        if (first >> 6 == ENCODED) {
+            throw new IOException("Unexpected string encoding where a length was expected");
+        }
+        return readLength(first);
+    }
+
+    // first is the already consumed first byte of a length whose top two bits are not ENCODED
+    long readLength(int first) throws IOException {
+        switch (first >> 6) {
+            case 0:
+                return first & 0x3F;
+            case 1:
+                return ((first & 0x3F) << 8) | readUnsignedByte();
+            default:
+                if (first == 0x80) {
+                    require(4);
+                    return buffer.getInt() & 0xFFFFFFFFL;
+                }
+                if (first == 0x81) {
+                    require(8);
+                    return buffer.getLong();
+                }
+                throw new IOException("Unknown length encoding " + first);
+        }
+    }
+
+    // Skips one string in any of its encodings
+    void skipString() throws IOException {
+        int first = readUnsignedByte();
+        if (first >> 6 != ENCODED) {
+            skip(readLength(first));
+            return;
+        }
+        switch (first & 0x3F) {
+            case ENCODING_INT8 -> skip(1);
+            case ENCODING_INT16 -> skip(2);
+            case ENCODING_INT32 -> skip(4);
+            case ENCODING_LZF -> {
+                long compressed = readLength();
+                readLength();
+                skip(compressed);
+            }
+            default -> throw new IOException("Unknown string encoding " + (first & 0x3F));
+        }
+    }
+
+    // Reads one string in any of its encodings; integers come back as their decimal digits
+    byte[] readStringBytes() throws IOException {
+        int first = readUnsignedByte();
+        if (first >> 6 != ENCODED) {
+            long length = readLength(first);
+            if (length > Integer.MAX_VALUE - 8) {
+                throw new IOException("String too long: " + length);
+            }
+            byte[] value = new byte[(int) length];
+            readFully(value, 0, value.length);
+            return value;
+        }
+        switch (first & 0x3F) {
+            case ENCODING_INT8:
+                return Long.toString((byte) readUnsignedByte()).getBytes(StandardCharsets.ISO_8859_1);
+            case ENCODING_INT16:
+                return Long.toString(readShortLE()).getBytes(StandardCharsets.ISO_8859_1);
+            case ENCODING_INT32:
+                return Long.toString(readIntLE()).getBytes(StandardCharsets.ISO_8859_1);
+            case ENCODING_LZF:
+                long compressed = readLength();
+                long decompressed = readLength();
+                if (compressed > Integer.MAX_VALUE - 8 || decompressed > Integer.MAX_VALUE - 8) {
+                    throw new IOException("String too long: " + decompressed);
+                }
+                byte[] data = new byte[(int) compressed];
+                readFully(data, 0, data.length);
+                return lzfDecompress(data, 0, data.length, (int) decompressed);
+            default:
+                throw new IOException("Unknown string encoding " + (first & 0x3F));
+        }
+    }
+
+    // Makes at least n bytes available in the buffer (n must not exceed its capacity)
+    private void require(int n) throws IOException {
+        if (buffer.remaining() < n) {
+            fill();
+            if (buffer.remaining() < n) {
+                throw new EOFException("Unexpected end of RDB file");
+            }
+        }
+    }
+
+    // Keeps the unread tail and reads as much as fits behind it
+    private void fill() throws IOException {
+        buffer.compact();
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        buffer.flip();
+        if (total == 0 && !buffer.hasRemaining()) {
+            throw new EOFException("Unexpected end of RDB file");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // liblzf decompression, the format Redis uses for compressed strings
+    static byte[] lzfDecompress(byte[] in, int offset, int length, int decompressedLength) {
+        byte[] out = new byte[decompressedLength];
+        int ip = offset;
+        int end = offset + length;
+        int op = 0;
+        while (ip < end) {
+            int control = in[ip++] & 0xFF;
+            if (control < 32) {
+                // Literal run of control + 1 bytes
+                int run = control + 1;
+                System.arraycopy(in, ip, out, op, run);
+                ip += run;
+                op += run;
+            } else {
+                // Back reference: copies may overlap their source, so they go byte by byte
+                int run = control >> 5;
+                if (run == 7) {
+                    run += in[ip++] & 0xFF;
+                }
+                run += 2;
+                int ref = op - ((control & 0x1F) << 8) - (in[ip++] & 0xFF) - 1;
+                if (ref < 0) {
+                    throw new IllegalStateException("Invalid LZF back reference");
+                }
+                for (int i = 0; i < run; i++) {
+                    out[op++] = out[ref++];
+                }
+            }
+        }
+        if (op != decompressedLength) {
+            throw new IllegalStateException("LZF data decompressed to " + op + " bytes, expected " + decompressedLength);
+        }
+        return out;
+    }
+}
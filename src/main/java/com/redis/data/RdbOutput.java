@@ -0,0 +1,128 @@
+package com.redis.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Sequential writer for RDB files, the counterpart of RdbInput: everything goes through one large buffer
+// and reaches the FileChannel in big writes.
+final class RdbOutput implements Closeable {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(RdbInput.BUFFER_SIZE);
+
+    RdbOutput(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    void writeByte(int value) throws IOException {
+        require(1);
+        buffer.put((byte) value);
+    }
+
+    void writeIntLE(int value) throws IOException {
+        require(4);
+        buffer.putInt(Integer.reverseBytes(value));
+    }
+
+    void writeLongLE(long value) throws IOException {
+        require(8);
+        buffer.putLong(Long.reverseBytes(value));
+    }
+
+    void writeBytes(byte[] source, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int chunk = Math.min(length, buffer.remaining());
+            buffer.put(source, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    // Lengths above 32 bits, and negative values such as an unknown entries-read counter, take the 64-bit form
+    void writeLength(long length) throws IOException {
+        if (length >= 0 && length < 1 << 6) {
+            writeByte((int) length);
+        } else if (length >= 0 && length < 1 << 14) {
+            require(2);
+            buffer.put((byte) (0x40 | (length >> 8)));
+            buffer.put((byte) length);
+        } else if (length >= 0 && length <= 0xFFFFFFFFL) {
+            require(5);
+            buffer.put((byte) 0x80);
+            buffer.putInt((int) length);
+        } else {
+            require(9);
+            buffer.put((byte) 0x81);
+            buffer.putLong(length);
+        }
+    }
+
+    void writeString(byte[] value) throws IOException {
+        writeLength(value.length);
+        writeBytes(value, 0, value.length);
+    }
+
+    // A string in the shortest of the integer encodings RdbInput reads back, or as digits if it needs more than 32 bits
+    void writeInteger(long value) throws IOException {
+        int encoded = RdbInput.ENCODED << 6;
+        if (value == (byte) value) {
+            writeByte(encoded | RdbInput.ENCODING_INT8);
+            writeByte((int) value);
+        } else if (value == (short) value) {
+            writeByte(encoded | RdbInput.ENCODING_INT16);
+            require(2);
+            buffer.putShort(Short.reverseBytes((short) value));
+        } else if (value == (int) value) {
+            writeByte(encoded | RdbInput.ENCODING_INT32);
+            writeIntLE((int) value);
+        } else {
+            writeString(Long.toString(value));
+        }
+    }
+
+    // Byte strings: one char per byte, as everywhere else in the server
+    void writeString(String value) throws IOException {
+        int length = value.length();
+        writeLength(length);
+        for (int i = 0; i < length; ) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int end = Math.min(length, i + buffer.remaining());
+            for (; i < end; i++) {
+                buffer.put((byte) value.charAt(i));
+            }
+        }
+    }
+
+    // Pushes everything to the file and to the disk
+    void sync() throws IOException {
+        drain();
+        channel.force(true);
+    }
+
+    private void require(int n) throws IOException {
+        if (buffer.remaining() < n) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,54 @@
+package com.redis.data;
+
+// Base of every value stored in the Keyspace. The type tag makes TYPE and WRONGTYPE checks a field read.
+public abstract class RedisObject {
+    // Absolute expiry time in epoch milliseconds, -1 when the key does not expire.
+    // Only changed by Keyspace inside compute() on the key; volatile for the lock-free readers.
+    volatile long ttl = -1;
+    // Epoch of the last snapshot that already wrote this value out; see Keyspace.snapshot()
+    volatile long snapshotEpoch;
+    // Access metadata for eviction, packed like Redis' robj.lru: a 24-bit LRU clock in seconds, or under an LFU
+    // policy the minute of the last decay in the high 16 bits and a logarithmic access counter in the low 8.
+    // Updated by readers without a lock; eviction only needs an approximation. See Evictor.
+    int access;
+    // Bytes this key is charged in Keyspace's used memory, as of the last time it was accounted
+    long accountedBytes;
+
+    public abstract String getType();
+
+    // How the value is stored, as OBJECT ENCODING reports it
+    public abstract String getEncoding();
+
+    // Estimated heap footprint of the value, not counting the key
+    public abstract long memoryUsage();
+
+    public long getTtl(){
+        return ttl;
+    }
+
+    public boolean isExpired(long now){
+        return ttl != -1 && now > ttl;
+    }
+
+    // Values changed in place guard their contents with these; immutable values need no lock
+    public void lock(){
+    }
+
+    public void unlock(){
+    }
+
+    // Off-heap values count their users, so their memory is only reused after the last one is done. Whoever reads
+    // the bytes outside the key's compute() takes a reference first; false means the value was freed meanwhile
+    // and the key must be looked up again. The keyspace's own reference is dropped when the value leaves it.
+    public boolean retain(){
+        return true;
+    }
+
+    public void release(){
+    }
+
+    // Values changed in place return a deep copy, so a snapshot can keep their contents from before a write
+    RedisObject copy(){
+        return this;
+    }
+}
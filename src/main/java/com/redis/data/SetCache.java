@@ -0,0 +1,149 @@
+package com.redis.data;
+
+import java.util.HashSet;
+import java.util.function.Consumer;
+
+// A set: an IntSet while every member is an integer and there are at most set-max-intset-entries, else a
+// PackedList while it has at most set-max-listpack-entries members of at most set-max-listpack-value bytes,
+// then a HashSet. Call with the lock held.
+public class SetCache extends CollectionCache {
+    // Object header, fields and the lock
+    private static final int OVERHEAD = 64;
+    // A HashMap node behind the HashSet, its table slot and a String without its bytes
+    private static final int TABLE_ENTRY_OVERHEAD = 80;
+
+    private IntSet intSet = new IntSet();
+    private PackedList packed;
+    private HashSet<String> table;
+    // Bytes of every member, while the set is a table
+    private long tableBytes;
+
+    SetCache(EncodingLimits limits) {
+        super(limits);
+    }
+
+    public String getType() {
+        return "set";
+    }
+
+    public String getEncoding() {
+        return intSet != null ? "intset" : packed != null ? "listpack" : "hashtable";
+    }
+
+    public long memoryUsage() {
+        if (intSet != null) {
+            return OVERHEAD + intSet.memoryUsage();
+        }
+        if (packed != null) {
+            return OVERHEAD + packed.memoryUsage();
+        }
+        return OVERHEAD + 64 + table.size() * (long) TABLE_ENTRY_OVERHEAD + tableBytes;
+    }
+
+    public long size() {
+        return intSet != null ? intSet.count() : packed != null ? packed.count() : table.size();
+    }
+
+    public boolean contains(String member) {
+        if (intSet != null) {
+            Long integer = IntSet.parse(member);
+            return integer != null && intSet.contains(integer);
+        }
+        return packed != null ? packed.find(packed.start(), member, 1) >= 0 : table.contains(member);
+    }
+
+    // Returns false if member was in the set already
+    public boolean add(String member) {
+        if (intSet != null) {
+            Long integer = IntSet.parse(member);
+            if (integer != null && (intSet.count() < limits.setMaxIntsetEntries || intSet.contains(integer))) {
+                return intSet.add(integer);
+            }
+            if (contains(member)) {
+                return false;
+            }
+            // A small set of short members goes on as a listpack, like Redis 7.2
+            if (intSet.count() < limits.setMaxEntries && member.length() <= limits.setMaxValue) {
+                PackedList converted = new PackedList();
+                for (int i = 0; i < intSet.count(); i++) {
+                    converted.add(Long.toString(intSet.get(i)));
+                }
+                packed = converted;
+                intSet = null;
+            } else {
+                convert();
+            }
+        }
+        if (packed != null) {
+            if (packed.find(packed.start(), member, 1) >= 0) {
+                return false;
+            }
+            if (packed.count() < limits.setMaxEntries && member.length() <= limits.setMaxValue) {
+                packed.add(member);
+                return true;
+            }
+            convert();
+        }
+        if (table.add(member)) {
+            tableBytes += member.length();
+            return true;
+        }
+        return false;
+    }
+
+    public boolean remove(String member) {
+        if (intSet != null) {
+            Long integer = IntSet.parse(member);
+            return integer != null && intSet.remove(integer);
+        }
+        if (packed != null) {
+            int at = packed.find(packed.start(), member, 1);
+            if (at < 0) {
+                return false;
+            }
+            packed.remove(at);
+            return true;
+        }
+        if (table.remove(member)) {
+            tableBytes -= member.length();
+            return true;
+        }
+        return false;
+    }
+
+    public void forEach(Consumer<String> visitor) {
+        if (intSet != null) {
+            for (int i = 0; i < intSet.count(); i++) {
+                visitor.accept(Long.toString(intSet.get(i)));
+            }
+        } else if (packed != null) {
+            for (int offset = packed.start(); offset < packed.end(); offset = packed.next(offset)) {
+                visitor.accept(packed.getString(offset));
+            }
+        } else {
+            table.forEach(visitor);
+        }
+    }
+
+    private void convert() {
+        HashSet<String> converted = new HashSet<>();
+        forEach(member -> {
+            converted.add(member);
+            tableBytes += member.length();
+        });
+        table = converted;
+        intSet = null;
+        packed = null;
+    }
+
+    @Override
+    SetCache copy() {
+        SetCache copy = new SetCache(limits);
+        copy.ttl = ttl;
+        copy.intSet = intSet != null ? intSet.copy() : null;
+        copy.packed = packed != null ? packed.copy() : null;
+        copy.table = table != null ? new HashSet<>(table) : null;
+        copy.tableBytes = tableBytes;
+        return copy;
+    }
+}
@@ -0,0 +1,132 @@
+package com.redis.data;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// SAVE, BGSAVE and the "save <seconds> <changes> ..." points. One snapshot runs at a time; BGSAVE writes it
+// from its own thread while clients keep reading and writing.
+public class SnapshotManager {
+    // After a failed background save, save points wait this long before trying again, as in Redis
+    private static final long RETRY_DELAY_MILLIS = 5000;
+
+    private final Keyspace keyspace;
+    private final ConcurrentHashMap<String, String> configMap;
+    private final AtomicBoolean inProgress = new AtomicBoolean();
+    private volatile long lastSaveTime = System.currentTimeMillis();
+    private volatile long lastAttemptTime;
+    private volatile long dirtyAtLastSave;
+    private volatile boolean lastSaveOk = true;
+
+    public SnapshotManager(Keyspace keyspace, ConcurrentHashMap<String, String> configMap) {
+        this.keyspace = keyspace;
+        this.configMap = configMap;
+        this.dirtyAtLastSave = keyspace.getDirty();
+    }
+
+    // Saves in the calling thread. Returns false if another save or an AOF rewrite is already running.
+    public boolean save() throws IOException {
+        if (!inProgress.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            long dirty = keyspace.getDirty();
+            Keyspace.Snapshot snapshot = keyspace.beginSnapshot();
+            if (snapshot == null) {
+                return false;
+            }
+            writeSnapshot(dirty, snapshot);
+        } finally {
+            inProgress.set(false);
+        }
+        return true;
+    }
+
+    // Returns false if another save or an AOF rewrite is already running
+    public boolean backgroundSave() {
+        if (!inProgress.compareAndSet(false, true)) {
+            return false;
+        }
+        long dirty = keyspace.getDirty();
+        Keyspace.Snapshot snapshot = keyspace.beginSnapshot();
+        if (snapshot == null) {
+            inProgress.set(false);
+            return false;
+        }
+        Thread saver = new Thread(() -> {
+            try {
+                writeSnapshot(dirty, snapshot);
+            } catch (IOException e) {
+                System.out.println("Background saving error: " + e.getMessage());
+            } finally {
+                inProgress.set(false);
+            }
+        }, "rdb-bgsave");
+        saver.setDaemon(true);
+        saver.start();
+        return true;
+    }
+
+    // Called once a second by the server cron
+    public void checkSavePoints() {
+        String savePoints = configMap.get("save");
+        if (savePoints == null || savePoints.isBlank() || inProgress.get()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (!lastSaveOk && now - lastAttemptTime < RETRY_DELAY_MILLIS) {
+            return;
+        }
+        long changes = getChangesSinceLastSave();
+        String[] parts = savePoints.trim().split("\\s+");
+        for (int i = 0; i + 1 < parts.length; i += 2) {
+            long seconds;
+            long minChanges;
+            try {
+                seconds = Long.parseLong(parts[i]);
+                minChanges = Long.parseLong(parts[i + 1]);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (changes >= minChanges && now - lastSaveTime >= seconds * 1000) {
+                System.out.println(minChanges + " changes in " + seconds + " seconds. Saving...");
+                backgroundSave();
+                return;
+            }
+        }
+    }
+
+    public boolean isInProgress() {
+        return inProgress.get();
+    }
+
+    // Epoch seconds of the last successful save, or of startup
+    public long getLastSaveTime() {
+        return lastSaveTime / 1000;
+    }
+
+    public long getChangesSinceLastSave() {
+        return keyspace.getDirty() - dirtyAtLastSave;
+    }
+
+    public boolean isLastSaveOk() {
+        return lastSaveOk;
+    }
+
+    // dirty is the write count at beginSnapshot(): later writes are not in the snapshot and still count as unsaved
+    private void writeSnapshot(long dirty, Keyspace.Snapshot snapshot) throws IOException {
+        long started = System.currentTimeMillis();
+        lastAttemptTime = started;
+        try {
+            long keys = new RdbFileWriter(keyspace).write(Path.of(configMap.get("dir"), configMap.get("dbfilename")), snapshot);
+            dirtyAtLastSave = dirty;
+            lastSaveTime = started;
+            lastSaveOk = true;
+            System.out.println("DB saved on disk: " + keys + " keys in " + (System.currentTimeMillis() - started) + " ms");
+        } catch (IOException e) {
+            lastSaveOk = false;
+            throw e;
+        }
+    }
+}
@@ -1,39 +1,152 @@
 package com.redis.data;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class StreamCache{
-    private TreeMap<String, List<String>> entries = new TreeMap<>();
+// Entries live in packed StreamNodes indexed by their first ID, so XADD appends to the last node in O(1)
+// (O(log n) when a node is opened) and XRANGE seeks in O(log n): one tree lookup plus a binary search in the node.
+public class StreamCache extends RedisObject{
+    // Rough per-item footprints for memoryUsage(): a group with its maps, and a PEL entry indexed twice
+    private static final int GROUP_OVERHEAD = 200;
+    private static final int PENDING_ENTRY_OVERHEAD = 160;
 
-    public void addEntry(String entryId, List<String> entry){
-        entries.put(entryId, entry);
+    private final TreeMap<StreamId, StreamNode> nodes = new TreeMap<>();
+    private StreamNode lastNode;
+    private StreamId lastId = StreamId.MIN;
+    private long length;
+    // Sum of memoryUsage() of every node but lastNode, which is still growing
+    private long closedNodeBytes;
+    private final Map<String, StreamGroup> groups = new HashMap<>();
+    // Streams are shared by all connections; readers and writers hold this while touching entries
+    private final ReentrantLock lock = new ReentrantLock();
+
+    @Override
+    public void lock(){
+        lock.lock();
+    }
+
+    @Override
+    public void unlock(){
+        lock.unlock();
+    }
+
+    public String getType(){
+        return "stream";
+    }
+
+    public String getEncoding(){
+        return "stream";
     }
 
-    public long getLastMillisecondsTime(){
-        if(entries.isEmpty()){
-        return -1;
+    // The caller must have checked that id is greater than getLastId()
+    public void addEntry(StreamId id, List<String> fieldsAndValues){
+        if(lastNode == null || lastNode.isFull()){
+            if(lastNode != null){
+                lastNode.trim();
+                closedNodeBytes += lastNode.memoryUsage();
+            }
+            lastNode = new StreamNode(id, fieldsAndValues);
+            nodes.put(id, lastNode);
         }
-        return Long.parseLong(entries.lastKey().split("-")[0]);
+        lastNode.append(id, fieldsAndValues);
+        lastId = id;
+        length++;
     }
 
-    public int getLastSequenceNumber(){
-        if(entries.isEmpty()){
-        return -1;
+    // Called with the lock held
+    public long memoryUsage(){
+        long bytes = 120 + closedNodeBytes + (lastNode != null ? lastNode.memoryUsage() : 0);
+        for(StreamGroup group : groups.values()){
+            bytes += GROUP_OVERHEAD + group.getPending().size() * (long) PENDING_ENTRY_OVERHEAD;
         }
-        return Integer.parseInt(entries.lastKey().split("-")[1]);
+        return bytes;
+    }
+
+    // 0-0 for an empty stream
+    public StreamId getLastId(){
+        return lastId;
+    }
+
+    // Only for loading: a stream whose newest entries were deleted keeps a last ID above its last entry
+    void setLastId(StreamId lastId){
+        this.lastId = lastId;
+    }
+
+    public long length(){
+        return length;
     }
 
-    public int getLastSequenceNumberForMs(long milliseconds){
-        String preSequenceNumberPart = milliseconds + "-";
-        return entries.descendingMap().entrySet().stream()
-                .filter(entry -> entry.getKey().startsWith(preSequenceNumberPart))
-                .findFirst()
-                .map(entry -> Integer.parseInt(entry.getKey().split("-")[1]))
-                .orElse(-1);
+    public boolean isEmpty(){
+        return length == 0;
     }
 
-    public TreeMap<String, List<String>> getEntries(){
+    // Entries with start <= id <= end, at most count of them (count <= 0 means no limit)
+    public List<StreamEntry> range(StreamId start, StreamId end, long count){
+        List<StreamEntry> entries = new ArrayList<>();
+        if(start.compareTo(end) > 0){
+            return entries;
+        }
+        // The node holding start is the last one whose first ID is <= start
+        StreamId from = nodes.floorKey(start);
+        for(StreamNode node : nodes.tailMap(from == null ? start : from, true).values()){
+            for(int i = node.lowerBound(start); i < node.count(); i++){
+                if(node.idAt(i).compareTo(end) > 0 || (count > 0 && entries.size() >= count)){
+                    return entries;
+                }
+                entries.add(node.entryAt(i));
+            }
+        }
         return entries;
     }
-}
\ No newline at end of file
+
+    // Entries strictly after id, as XREAD needs
+    public List<StreamEntry> after(StreamId id, long count){
+        return id.equals(StreamId.MAX) ? new ArrayList<>() : range(id.next(), StreamId.MAX, count);
+    }
+
+    // Returns false if a group with that name already exists
+    public boolean createGroup(String name, StreamId lastDeliveredId){
+        return groups.putIfAbsent(name, new StreamGroup(name, lastDeliveredId)) == null;
+    }
+
+    public boolean destroyGroup(String name){
+        return groups.remove(name) != null;
+    }
+
+    public StreamGroup getGroup(String name){
+        return groups.get(name);
+    }
+
+    public Collection<StreamGroup> getGroups(){
+        return groups.values();
+    }
+
+    // The entry with exactly this ID, or null
+    public StreamEntry get(StreamId id){
+        List<StreamEntry> entries = range(id, id, 1);
+        return entries.isEmpty() ? null : entries.get(0);
+    }
+
+    // Called with the lock held
+    @Override
+    StreamCache copy(){
+        StreamCache copy = new StreamCache();
+        copy.ttl = ttl;
+        for(StreamNode node : nodes.values()){
+            for(int i = 0; i < node.count(); i++){
+                StreamEntry entry = node.entryAt(i);
+                copy.addEntry(entry.getId(), entry.getFieldsAndValues());
+            }
+        }
+        copy.lastId = lastId;
+        for(StreamGroup group : groups.values()){
+            copy.groups.put(group.getName(), group.copy());
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,22 @@
+package com.redis.data;
+
+import java.util.List;
+
+public class StreamEntry {
+    private final StreamId id;
+    // Flattened field, value, field, value, ...
+    private final List<String> fieldsAndValues;
+
+    public StreamEntry(StreamId id, List<String> fieldsAndValues) {
+        this.id = id;
+        this.fieldsAndValues = fieldsAndValues;
+    }
+
+    public StreamId getId() {
+        return id;
+    }
+
+    public List<String> getFieldsAndValues() {
+        return fieldsAndValues;
+    }
+}
@@ -0,0 +1,147 @@
+package com.redis.data;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+// A consumer group of one stream. The pending entries list (PEL) is indexed by ID both for the whole group
+// and per consumer, so XACK and XCLAIM are O(log n) whatever the number of in-flight entries.
+// Like the stream's entries, groups are only touched with the stream locked.
+public class StreamGroup {
+    public static final class Consumer {
+        private final String name;
+        private final TreeMap<StreamId, PendingEntry> pending = new TreeMap<>();
+        private long seenTime;
+
+        private Consumer(String name, long seenTime) {
+            this.name = name;
+            this.seenTime = seenTime;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public NavigableMap<StreamId, PendingEntry> getPending() {
+            return pending;
+        }
+
+        public long getSeenTime() {
+            return seenTime;
+        }
+    }
+
+    public static final class PendingEntry {
+        private final StreamId id;
+        private Consumer consumer;
+        private long deliveryTime;
+        private long deliveryCount;
+
+        private PendingEntry(StreamId id) {
+            this.id = id;
+        }
+
+        public StreamId getId() {
+            return id;
+        }
+
+        public Consumer getConsumer() {
+            return consumer;
+        }
+
+        public long getDeliveryTime() {
+            return deliveryTime;
+        }
+
+        public long getDeliveryCount() {
+            return deliveryCount;
+        }
+
+        // XCLAIM RETRYCOUNT
+        public void setDeliveryCount(long deliveryCount) {
+            this.deliveryCount = deliveryCount;
+        }
+    }
+
+    private final String name;
+    private StreamId lastDeliveredId;
+    private final TreeMap<StreamId, PendingEntry> pending = new TreeMap<>();
+    private final Map<String, Consumer> consumers = new LinkedHashMap<>();
+
+    public StreamGroup(String name, StreamId lastDeliveredId) {
+        this.name = name;
+        this.lastDeliveredId = lastDeliveredId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public StreamId getLastDeliveredId() {
+        return lastDeliveredId;
+    }
+
+    public void setLastDeliveredId(StreamId lastDeliveredId) {
+        this.lastDeliveredId = lastDeliveredId;
+    }
+
+    public NavigableMap<StreamId, PendingEntry> getPending() {
+        return pending;
+    }
+
+    public Collection<Consumer> getConsumers() {
+        return consumers.values();
+    }
+
+    public Consumer getConsumer(String consumerName) {
+        return consumers.get(consumerName);
+    }
+
+    // Consumers are created the first time they read or claim, as in Redis
+    public Consumer getOrCreateConsumer(String consumerName, long now) {
+        Consumer consumer = consumers.computeIfAbsent(consumerName, n -> new Consumer(n, now));
+        consumer.seenTime = now;
+        return consumer;
+    }
+
+    // Records that the entry was handed to consumer, moving it out of another consumer's PEL if needed
+    public PendingEntry deliver(StreamId id, Consumer consumer, long deliveryTime, boolean countDelivery) {
+        PendingEntry entry = pending.computeIfAbsent(id, PendingEntry::new);
+        if (entry.consumer != consumer) {
+            if (entry.consumer != null) {
+                entry.consumer.pending.remove(id);
+            }
+            entry.consumer = consumer;
+            consumer.pending.put(id, entry);
+        }
+        entry.deliveryTime = deliveryTime;
+        if (countDelivery) {
+            entry.deliveryCount++;
+        }
+        return entry;
+    }
+
+    // Returns false if the entry was not pending
+    public boolean acknowledge(StreamId id) {
+        PendingEntry entry = pending.remove(id);
+        if (entry == null) {
+            return false;
+        }
+        entry.consumer.pending.remove(id);
+        return true;
+    }
+
+    StreamGroup copy() {
+        StreamGroup copy = new StreamGroup(name, lastDeliveredId);
+        for (Consumer consumer : consumers.values()) {
+            copy.consumers.put(consumer.name, new Consumer(consumer.name, consumer.seenTime));
+        }
+        for (PendingEntry entry : pending.values()) {
+            PendingEntry copied = copy.deliver(entry.id, copy.consumers.get(entry.consumer.name), entry.deliveryTime, false);
+            copied.deliveryCount = entry.deliveryCount;
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,75 @@
+package com.redis.data;
+
+// Stream entry ID as a primitive (milliseconds, sequence) pair, ordered numerically: 9-0 < 10-0
+public final class StreamId implements Comparable<StreamId> {
+    public static final StreamId MIN = new StreamId(0, 0);
+    public static final StreamId MAX = new StreamId(Long.MAX_VALUE, Long.MAX_VALUE);
+
+    private final long milliseconds;
+    private final long sequence;
+
+    public StreamId(long milliseconds, long sequence) {
+        this.milliseconds = milliseconds;
+        this.sequence = sequence;
+    }
+
+    // Parses "ms-seq", "ms" (sequence defaults to missingSequence), "-" and "+"
+    public static StreamId parse(String id, long missingSequence) {
+        if (id.equals("-")) {
+            return MIN;
+        }
+        if (id.equals("+")) {
+            return MAX;
+        }
+        try {
+            int dash = id.indexOf('-');
+            if (dash == -1) {
+                return new StreamId(parseUnsigned(id), missingSequence);
+            }
+            return new StreamId(parseUnsigned(id.substring(0, dash)), parseUnsigned(id.substring(dash + 1)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("ERR Invalid stream ID specified as stream command argument");
+        }
+    }
+
+    private static long parseUnsigned(String value) {
+        long parsed = Long.parseLong(value);
+        if (parsed < 0) {
+            throw new NumberFormatException(value);
+        }
+        return parsed;
+    }
+
+    public long getMilliseconds() {
+        return milliseconds;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    // Smallest ID greater than this one, used for exclusive starts (XREAD)
+    public StreamId next() {
+        if (sequence != Long.MAX_VALUE) {
+            return new StreamId(milliseconds, sequence + 1);
+        }
+        return milliseconds == Long.MAX_VALUE ? this : new StreamId(milliseconds + 1, 0);
+    }
+
+    public int compareTo(StreamId other) {
+        int byMilliseconds = Long.compare(milliseconds, other.milliseconds);
+        return byMilliseconds != 0 ? byMilliseconds : Long.compare(sequence, other.sequence);
+    }
+
+    public boolean equals(Object other) {
+        return other instanceof StreamId && compareTo((StreamId) other) == 0;
+    }
+
+    public int hashCode() {
+        return Long.hashCode(milliseconds) * 31 + Long.hashCode(sequence);
+    }
+
+    public String toString() {
+        return milliseconds + "-" + sequence;
+    }
+}
@@ -0,0 +1,175 @@
+package com.redis.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// A block of consecutive stream entries packed into one byte array, similar to a Redis listpack node.
+// IDs are stored as varint deltas from the node's first ID, and entries whose field names match the
+// first entry's ("master") fields only store their values. Strings are byte strings (ISO-8859-1).
+//
+// Entry layout: msDelta, seq (or seqDelta when ms is equal), flags, count, [field], value, ...
+// where every number is an unsigned varint and every string is a varint length followed by its bytes.
+final class StreamNode {
+    static final int MAX_ENTRIES = 100;
+    static final int MAX_BYTES = 4096;
+
+    private static final int SAME_FIELDS = 1;
+
+    private final StreamId first;
+    private final String[] masterFields;
+    private byte[] data = new byte[128];
+    private int size;
+    private int[] offsets = new int[8];
+    private int count;
+
+    StreamNode(StreamId first, List<String> fieldsAndValues) {
+        this.first = first;
+        this.masterFields = new String[fieldsAndValues.size() / 2];
+        for (int i = 0; i < masterFields.length; i++) {
+            masterFields[i] = fieldsAndValues.get(i * 2);
+        }
+    }
+
+    StreamId getFirst() {
+        return first;
+    }
+
+    int count() {
+        return count;
+    }
+
+    // Arrays plus object headers, fields and the node's entry in the stream's TreeMap
+    long memoryUsage() {
+        return 120 + data.length + offsets.length * 4L;
+    }
+
+    boolean isFull() {
+        return count >= MAX_ENTRIES || size >= MAX_BYTES;
+    }
+
+    // IDs must be appended in increasing order, which XADD guarantees
+    void append(StreamId id, List<String> fieldsAndValues) {
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+        }
+        offsets[count++] = size;
+
+        long msDelta = id.getMilliseconds() - first.getMilliseconds();
+        writeVarint(msDelta);
+        writeVarint(msDelta == 0 ? id.getSequence() - first.getSequence() : id.getSequence());
+
+        boolean sameFields = hasMasterFields(fieldsAndValues);
+        writeVarint(sameFields ? SAME_FIELDS : 0);
+        writeVarint(fieldsAndValues.size() / 2);
+        for (int i = 0; i < fieldsAndValues.size(); i++) {
+            if (i % 2 == 1 || !sameFields) {
+                writeString(fieldsAndValues.get(i));
+            }
+        }
+    }
+
+    // Releases the slack of the growable arrays once no more entries will be appended
+    void trim() {
+        data = Arrays.copyOf(data, size);
+        offsets = Arrays.copyOf(offsets, count);
+    }
+
+    StreamId idAt(int index) {
+        int[] position = {offsets[index]};
+        return readId(position);
+    }
+
+    StreamEntry entryAt(int index) {
+        int[] position = {offsets[index]};
+        StreamId id = readId(position);
+        boolean sameFields = (readVarint(position) & SAME_FIELDS) != 0;
+        int pairs = (int) readVarint(position);
+        List<String> fieldsAndValues = new ArrayList<>(pairs * 2);
+        for (int i = 0; i < pairs; i++) {
+            fieldsAndValues.add(sameFields ? masterFields[i] : readString(position));
+            fieldsAndValues.add(readString(position));
+        }
+        return new StreamEntry(id, fieldsAndValues);
+    }
+
+    // Index of the first entry with an ID >= id, or count() if there is none
+    int lowerBound(StreamId id) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (idAt(middle).compareTo(id) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private boolean hasMasterFields(List<String> fieldsAndValues) {
+        if (fieldsAndValues.size() / 2 != masterFields.length) {
+            return false;
+        }
+        for (int i = 0; i < masterFields.length; i++) {
+            if (!masterFields[i].equals(fieldsAndValues.get(i * 2))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private StreamId readId(int[] position) {
+        long msDelta = readVarint(position);
+        long seq = readVarint(position);
+        return msDelta == 0
+            ? new StreamId(first.getMilliseconds(), first.getSequence() + seq)
+            : new StreamId(first.getMilliseconds() + msDelta, seq);
+    }
+
+    private void writeVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            data[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[size++] = (byte) value;
+    }
+
+    private long readVarint(int[] position) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private void writeString(String value) {
+        int length = value.length();
+        writeVarint(length);
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            data[size++] = (byte) value.charAt(i);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private String readString(int[] position) {
+        int length = (int) readVarint(position);
+        // The deprecated hibyte constructor is exactly the ISO-8859-1 decoding, without a charset lookup
+        String value = new String(data, 0, position[0], length);
+        position[0] += length;
+        return value;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, size + extra));
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.redis.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+// Stateless cursor over a ConcurrentHashMap, for SCAN and the HSCAN-style commands of collection types: the cursor
+// is the index of the next bin of the map's table, 0 to start and 0 again once every bin was visited.
+// A ConcurrentHashMap's table only ever doubles, which moves the keys of bin b to bins b and b + n, both at or
+// after b. So continuing at the same index after a resize misses no key that was there the whole time; like
+// Redis' SCAN it may return a key twice. The map's spliterator, halved down to the wanted bins, reaches them in
+// O(log n) without walking the table, and follows a resize that is in progress.
+public final class TableCursor {
+    private TableCursor() {
+    }
+
+    // Visits about count entries from cursor on and returns the cursor to continue with
+    public static <K, V> long scan(ConcurrentHashMap<K, V> map, long cursor, int count, BiConsumer<? super K, ? super V> visitor) {
+        long start = cursor;
+        int[] visited = new int[1];
+        while (visited[0] < count) {
+            Spliterator<Map.Entry<K, V>> root = map.entrySet().spliterator();
+            // The root covers bins [0, n). Halving its lower part until it can't be split any more finds n and leaves
+            // pieces [0, 1), [1, 2), [2, 4), ... [n / 2, n), all of the same table.
+            List<Spliterator<Map.Entry<K, V>>> uppers = new ArrayList<>();
+            Spliterator<Map.Entry<K, V>> upper;
+            while ((upper = root.trySplit()) != null) {
+                uppers.add(upper);
+            }
+            long bins = 1L << uppers.size();
+            if (start >= bins) {
+                return 0;
+            }
+            Spliterator<Map.Entry<K, V>> piece;
+            long low;
+            long high;
+            if (start == 0) {
+                piece = root;
+                low = 0;
+                high = 1;
+            } else {
+                int bit = 63 - Long.numberOfLeadingZeros(start);
+                piece = uppers.get(uppers.size() - 1 - bit);
+                low = 1L << bit;
+                high = low << 1;
+            }
+            // Enough bins for the rest of count at the current load, as a block aligned on its size within the piece
+            long perBin = Math.max(1, map.mappingCount() / bins);
+            long size = Math.min(Long.highestOneBit(Math.max(1, (count - visited[0]) / perBin)), high - low);
+            if (start != 0) {
+                size = Math.min(size, Long.lowestOneBit(start));
+            }
+            while (high - low > size) {
+                long middle = (low + high) >>> 1;
+                Spliterator<Map.Entry<K, V>> upperHalf = piece.trySplit();
+                if (start >= middle) {
+                    piece = upperHalf;
+                    low = middle;
+                } else {
+                    high = middle;
+                }
+            }
+            piece.forEachRemaining(entry -> {
+                visited[0]++;
+                visitor.accept(entry.getKey(), entry.getValue());
+            });
+            start += size;
+            if (start >= bins) {
+                return 0;
+            }
+        }
+        return start;
+    }
+}
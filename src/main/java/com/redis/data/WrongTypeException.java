@@ -0,0 +1,9 @@
+package com.redis.data;
+
+public class WrongTypeException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public WrongTypeException() {
+        super("WRONGTYPE Operation against a key holding the wrong kind of value");
+    }
+}
@@ -0,0 +1,223 @@
+package com.redis.data;
+
+import java.util.HashMap;
+
+// A sorted set: member, score, member, score... ordered by score then member in a PackedList while it has at
+// most zset-max-listpack-entries members of at most zset-max-listpack-value bytes, then a ZSkipList for the
+// order plus a HashMap from member to score, like Redis. Call with the lock held.
+public class ZSetCache extends CollectionCache {
+    // Object header, fields and the lock
+    private static final int OVERHEAD = 64;
+    // A skip list node with its arrays, a HashMap node with its slot and boxed score, and the member String
+    private static final int TABLE_ENTRY_OVERHEAD = 160;
+
+    @FunctionalInterface
+    public interface MemberVisitor {
+        void visit(String member, double score);
+    }
+
+    // Scores are stored as the bits of the double, so they read back exactly
+    private PackedList packed = new PackedList();
+    private ZSkipList skipList;
+    private HashMap<String, Double> scores;
+    // Bytes of every member, while the set is a skip list
+    private long tableBytes;
+
+    ZSetCache(EncodingLimits limits) {
+        super(limits);
+    }
+
+    public String getType() {
+        return "zset";
+    }
+
+    public String getEncoding() {
+        return packed != null ? "listpack" : "skiplist";
+    }
+
+    public long memoryUsage() {
+        if (packed != null) {
+            return OVERHEAD + packed.memoryUsage();
+        }
+        return OVERHEAD + 48 + ZSkipList.MAX_LEVEL * 12 + scores.size() * (long) TABLE_ENTRY_OVERHEAD + tableBytes;
+    }
+
+    public long size() {
+        return packed != null ? packed.count() / 2 : scores.size();
+    }
+
+    // Null if member isn't in the set
+    public Double score(String member) {
+        if (scores != null) {
+            return scores.get(member);
+        }
+        int at = packed.find(packed.start(), member, 2);
+        return at < 0 ? null : scoreAt(packed.next(at));
+    }
+
+    // Adds member or moves it to score; returns true if it is new
+    public boolean put(String member, double score) {
+        if (packed != null) {
+            int at = packed.find(packed.start(), member, 2);
+            if (at >= 0) {
+                if (scoreAt(packed.next(at)) == score) {
+                    return false;
+                }
+                packed.remove(packed.next(at));
+                packed.remove(at);
+            } else if (size() >= limits.zsetMaxEntries || member.length() > limits.zsetMaxValue) {
+                convert();
+            }
+            if (packed != null) {
+                int offset = packed.start();
+                while (offset < packed.end()) {
+                    int scoreOffset = packed.next(offset);
+                    double found = scoreAt(scoreOffset);
+                    if (found > score || (found == score && packed.getString(offset).compareTo(member) > 0)) {
+                        break;
+                    }
+                    offset = packed.next(scoreOffset);
+                }
+                packed.insert(packed.insert(offset, member), Double.doubleToLongBits(score));
+                return at < 0;
+            }
+        }
+        Double previous = scores.put(member, score);
+        if (previous != null) {
+            if (previous == score) {
+                return false;
+            }
+            skipList.delete(previous, member);
+        } else {
+            tableBytes += member.length();
+        }
+        skipList.insert(score, member);
+        return previous == null;
+    }
+
+    public boolean remove(String member) {
+        if (scores != null) {
+            Double previous = scores.remove(member);
+            if (previous == null) {
+                return false;
+            }
+            skipList.delete(previous, member);
+            tableBytes -= member.length();
+            return true;
+        }
+        int at = packed.find(packed.start(), member, 2);
+        if (at < 0) {
+            return false;
+        }
+        packed.remove(packed.next(at));
+        packed.remove(at);
+        return true;
+    }
+
+    // 0-based position of member in score order, -1 if it isn't in the set
+    public long rank(String member) {
+        if (scores != null) {
+            Double score = scores.get(member);
+            return score == null ? -1 : skipList.rank(score, member) - 1;
+        }
+        long rank = 0;
+        for (int offset = packed.start(); offset < packed.end(); offset = packed.next(packed.next(offset)), rank++) {
+            if (packed.equalsAt(offset, member)) {
+                return rank;
+            }
+        }
+        return -1;
+    }
+
+    // Visits the members at ranks start to end, both included, with 0 <= start <= end < size()
+    public void rangeByRank(long start, long end, MemberVisitor visitor) {
+        long remaining = end - start + 1;
+        if (packed != null) {
+            for (int offset = packed.offsetOf((int) start * 2); offset < packed.end() && remaining > 0; remaining--) {
+                int scoreOffset = packed.next(offset);
+                visitor.visit(packed.getString(offset), scoreAt(scoreOffset));
+                offset = packed.next(scoreOffset);
+            }
+            return;
+        }
+        for (ZSkipList.Node node = skipList.byRank(start + 1); node != null && remaining > 0; node = node.next(), remaining--) {
+            visitor.visit(node.member, node.score);
+        }
+    }
+
+    // Visits the members with min <= score <= max (< for the exclusive ends), skipping offset of them and
+    // stopping after count (count < 0: no limit)
+    public void rangeByScore(double min, boolean minExclusive, double max, boolean maxExclusive, long offset, long count, MemberVisitor visitor) {
+        if (packed != null) {
+            for (int at = packed.start(); at < packed.end() && count != 0; ) {
+                int scoreOffset = packed.next(at);
+                double score = scoreAt(scoreOffset);
+                if (maxExclusive ? score >= max : score > max) {
+                    return;
+                }
+                if (minExclusive ? score > min : score >= min) {
+                    if (offset > 0) {
+                        offset--;
+                    } else {
+                        visitor.visit(packed.getString(at), score);
+                        count--;
+                    }
+                }
+                at = packed.next(scoreOffset);
+            }
+            return;
+        }
+        for (ZSkipList.Node node = skipList.firstFrom(min, minExclusive); node != null && count != 0; node = node.next()) {
+            if (maxExclusive ? node.score >= max : node.score > max) {
+                return;
+            }
+            if (offset > 0) {
+                offset--;
+            } else {
+                visitor.visit(node.member, node.score);
+                count--;
+            }
+        }
+    }
+
+    public void forEach(MemberVisitor visitor) {
+        if (size() > 0) {
+            rangeByRank(0, size() - 1, visitor);
+        }
+    }
+
+    private double scoreAt(int offset) {
+        return Double.longBitsToDouble(packed.getLong(offset));
+    }
+
+    private void convert() {
+        ZSkipList converted = new ZSkipList();
+        HashMap<String, Double> convertedScores = new HashMap<>();
+        forEach((member, score) -> {
+            converted.insert(score, member);
+            convertedScores.put(member, score);
+            tableBytes += member.length();
+        });
+        skipList = converted;
+        scores = convertedScores;
+        packed = null;
+    }
+
+    @Override
+    ZSetCache copy() {
+        ZSetCache copy = new ZSetCache(limits);
+        copy.ttl = ttl;
+        if (packed != null) {
+            copy.packed = packed.copy();
+        } else {
+            copy.packed = null;
+            copy.skipList = new ZSkipList();
+            copy.scores = new HashMap<>(scores);
+            for (ZSkipList.Node node = skipList.first(); node != null; node = node.next()) {
+                copy.skipList.insert(node.score, node.member);
+            }
+            copy.tableBytes = tableBytes;
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,186 @@
+package com.redis.data;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+// The ordered half of a large sorted set, Redis' zskiplist: members ordered by score, then by member, with
+// every forward link recording how many nodes it skips (its span), so finding a member's rank or the member at
+// a rank takes O(log n) like a search. The other half is a hash table from member to score, see ZSetCache.
+final class ZSkipList {
+    static final int MAX_LEVEL = 32;
+    // Chance of a node reaching each next level
+    private static final double P = 0.25;
+
+    static final class Node {
+        final String member;
+        final double score;
+        Node backward;
+        final Node[] forward;
+        final long[] span;
+
+        private Node(int level, String member, double score) {
+            this.member = member;
+            this.score = score;
+            this.forward = new Node[level];
+            this.span = new long[level];
+        }
+
+        Node next() {
+            return forward[0];
+        }
+    }
+
+    private final Node header = new Node(MAX_LEVEL, null, 0);
+    private Node tail;
+    private long length;
+    private int level = 1;
+
+    long length() {
+        return length;
+    }
+
+    Node first() {
+        return header.forward[0];
+    }
+
+    Node last() {
+        return tail;
+    }
+
+    // The caller makes sure member is not in the list already
+    void insert(double score, String member) {
+        Node[] update = new Node[MAX_LEVEL];
+        long[] rank = new long[MAX_LEVEL];
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            rank[i] = i == level - 1 ? 0 : rank[i + 1];
+            while (x.forward[i] != null && before(x.forward[i], score, member)) {
+                rank[i] += x.span[i];
+                x = x.forward[i];
+            }
+            update[i] = x;
+        }
+        int newLevel = randomLevel();
+        if (newLevel > level) {
+            for (int i = level; i < newLevel; i++) {
+                rank[i] = 0;
+                update[i] = header;
+                update[i].span[i] = length;
+            }
+            level = newLevel;
+        }
+        x = new Node(newLevel, member, score);
+        for (int i = 0; i < newLevel; i++) {
+            x.forward[i] = update[i].forward[i];
+            update[i].forward[i] = x;
+            x.span[i] = update[i].span[i] - (rank[0] - rank[i]);
+            update[i].span[i] = (rank[0] - rank[i]) + 1;
+        }
+        for (int i = newLevel; i < level; i++) {
+            update[i].span[i]++;
+        }
+        x.backward = update[0] == header ? null : update[0];
+        if (x.forward[0] != null) {
+            x.forward[0].backward = x;
+        } else {
+            tail = x;
+        }
+        length++;
+    }
+
+    // Returns false if the member isn't there with this score
+    boolean delete(double score, String member) {
+        Node[] update = new Node[MAX_LEVEL];
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && before(x.forward[i], score, member)) {
+                x = x.forward[i];
+            }
+            update[i] = x;
+        }
+        x = x.forward[0];
+        if (x == null || x.score != score || !x.member.equals(member)) {
+            return false;
+        }
+        for (int i = 0; i < level; i++) {
+            if (update[i].forward[i] == x) {
+                update[i].span[i] += x.span[i] - 1;
+                update[i].forward[i] = x.forward[i];
+            } else {
+                update[i].span[i]--;
+            }
+        }
+        if (x.forward[0] != null) {
+            x.forward[0].backward = x.backward;
+        } else {
+            tail = x.backward;
+        }
+        while (level > 1 && header.forward[level - 1] == null) {
+            level--;
+        }
+        length--;
+        return true;
+    }
+
+    // 1-based rank of the member with this score, 0 if it isn't there
+    long rank(double score, String member) {
+        long rank = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && (before(x.forward[i], score, member) || isAt(x.forward[i], score, member))) {
+                rank += x.span[i];
+                x = x.forward[i];
+            }
+            if (x != header && isAt(x, score, member)) {
+                return rank;
+            }
+        }
+        return 0;
+    }
+
+    // The node at a 1-based rank, null if out of range
+    Node byRank(long rank) {
+        if (rank < 1 || rank > length) {
+            return null;
+        }
+        long traversed = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && traversed + x.span[i] <= rank) {
+                traversed += x.span[i];
+                x = x.forward[i];
+            }
+            if (traversed == rank) {
+                return x;
+            }
+        }
+        return null;
+    }
+
+    // The first node with a score above min, or at min unless exclusive; null if none
+    Node firstFrom(double min, boolean exclusive) {
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && (exclusive ? x.forward[i].score <= min : x.forward[i].score < min)) {
+                x = x.forward[i];
+            }
+        }
+        return x.forward[0];
+    }
+
+    private static boolean before(Node node, double score, String member) {
+        return node.score < score || (node.score == score && node.member.compareTo(member) < 0);
+    }
+
+    private static boolean isAt(Node node, double score, String member) {
+        return node.score == score && node.member.equals(member);
+    }
+
+    private static int randomLevel() {
+        int level = 1;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (level < MAX_LEVEL && random.nextDouble() < P) {
+            level++;
+        }
+        return level;
+    }
+}
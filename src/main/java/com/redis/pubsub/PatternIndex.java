@@ -0,0 +1,139 @@
+package com.redis.pubsub;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.redis.commands.GlobPattern;
+
+// PSUBSCRIBE patterns in a trie of their literal prefixes, the chars before the first * ? [ or \. A publish walks
+// the trie along the channel name and only matches the patterns stored on that path, so patterns that can't
+// match because their prefix differs are never looked at. Subscribing takes the write lock, publishing the read
+// lock, so publishes run concurrently.
+class PatternIndex {
+    private static final class Node {
+        final HashMap<Character, Node> children = new HashMap<>();
+        // Patterns whose literal prefix ends at this node
+        final HashMap<String, Entry> patterns = new HashMap<>();
+
+        boolean isEmpty() {
+            return children.isEmpty() && patterns.isEmpty();
+        }
+    }
+
+    private static final class Entry {
+        final GlobPattern glob;
+        // The start of every pmessage of this pattern, encoded once
+        final byte[] header;
+        final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+        Entry(String pattern) {
+            this.glob = GlobPattern.compile(pattern);
+            this.header = PubSub.concat(PubSub.PMESSAGE, PubSub.bulk(pattern));
+        }
+    }
+
+    private final Node root = new Node();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private int size;
+
+    void add(String pattern, Subscriber subscriber) {
+        lock.writeLock().lock();
+        try {
+            Node node = root;
+            for (int i = 0; i < literalPrefixLength(pattern); i++) {
+                node = node.children.computeIfAbsent(pattern.charAt(i), c -> new Node());
+            }
+            Entry entry = node.patterns.get(pattern);
+            if (entry == null) {
+                entry = new Entry(pattern);
+                node.patterns.put(pattern, entry);
+                size++;
+            }
+            entry.subscribers.add(subscriber);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(String pattern, Subscriber subscriber) {
+        lock.writeLock().lock();
+        try {
+            List<Node> path = new ArrayList<>();
+            Node node = root;
+            path.add(node);
+            for (int i = 0; i < literalPrefixLength(pattern) && node != null; i++) {
+                node = node.children.get(pattern.charAt(i));
+                path.add(node);
+            }
+            Entry entry = node == null ? null : node.patterns.get(pattern);
+            if (entry == null || !entry.subscribers.remove(subscriber) || !entry.subscribers.isEmpty()) {
+                return;
+            }
+            node.patterns.remove(pattern);
+            size--;
+            // Drop the nodes only this pattern needed, from the leaf up
+            for (int i = path.size() - 1; i > 0 && path.get(i).isEmpty(); i--) {
+                path.get(i - 1).children.remove(pattern.charAt(i - 1));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Sends a pmessage to the subscribers of every pattern channel matches; returns how many got one. The
+    // matches are collected under the read lock and sent after it is released: PSUBSCRIBE takes the write lock
+    // while holding a subscriber's monitor, which send() may wait for, so sending under the lock could deadlock.
+    long publish(String channel, byte[] channelAndMessage) {
+        List<Entry> matched = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            Node node = root;
+            for (int i = 0; ; i++) {
+                for (Entry entry : node.patterns.values()) {
+                    if (!entry.subscribers.isEmpty() && entry.glob.matches(channel)) {
+                        matched.add(entry);
+                    }
+                }
+                if (i == channel.length() || (node = node.children.get(channel.charAt(i))) == null) {
+                    break;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        long receivers = 0;
+        for (Entry entry : matched) {
+            byte[] message = PubSub.concat(entry.header, channelAndMessage);
+            // The subscriber sets are concurrent, so they can be walked without the index lock
+            for (Subscriber subscriber : entry.subscribers) {
+                subscriber.send(message);
+                receivers++;
+            }
+        }
+        return receivers;
+    }
+
+    // Distinct patterns with at least one subscriber, PUBSUB NUMPAT
+    int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static int literalPrefixLength(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == '\\') {
+                return i;
+            }
+        }
+        return pattern.length();
+    }
+}
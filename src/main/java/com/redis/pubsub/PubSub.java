@@ -0,0 +1,102 @@
+package com.redis.pubsub;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.redis.commands.GlobPattern;
+
+// Channels and patterns of every subscribed connection. PUBLISH encodes its message once per channel, and once
+// per matching pattern, and hands the same array to every subscriber, which queues it without copying.
+public class PubSub {
+    static final byte[] MESSAGE = "*3\r\n$7\r\nmessage\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    static final byte[] PMESSAGE = "*4\r\n$8\r\npmessage\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final ConcurrentHashMap<String, Set<Subscriber>> channels = new ConcurrentHashMap<>();
+    private final PatternIndex patterns = new PatternIndex();
+
+    public void subscribe(String channel, Subscriber subscriber) {
+        // compute() so an UNSUBSCRIBE dropping the last subscriber can't remove the set this one is added to
+        channels.compute(channel, (name, subscribers) -> {
+            Set<Subscriber> updated = subscribers != null ? subscribers : ConcurrentHashMap.newKeySet();
+            updated.add(subscriber);
+            return updated;
+        });
+    }
+
+    public void unsubscribe(String channel, Subscriber subscriber) {
+        channels.computeIfPresent(channel, (name, subscribers) -> {
+            subscribers.remove(subscriber);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+    }
+
+    public void psubscribe(String pattern, Subscriber subscriber) {
+        patterns.add(pattern, subscriber);
+    }
+
+    public void punsubscribe(String pattern, Subscriber subscriber) {
+        patterns.remove(pattern, subscriber);
+    }
+
+    // Returns how many subscribers got the message, counting a connection once per matching subscription
+    public long publish(String channel, byte[] message) {
+        byte[] channelAndMessage = concat(bulk(channel), bulk(message));
+        long receivers = 0;
+        Set<Subscriber> subscribers = channels.get(channel);
+        if (subscribers != null) {
+            byte[] encoded = concat(MESSAGE, channelAndMessage);
+            for (Subscriber subscriber : subscribers) {
+                subscriber.send(encoded);
+                receivers++;
+            }
+        }
+        return receivers + patterns.publish(channel, channelAndMessage);
+    }
+
+    // PUBSUB CHANNELS: channels with at least one subscriber, matching pattern if it isn't null
+    public List<String> getChannels(String pattern) {
+        GlobPattern glob = pattern == null ? null : GlobPattern.compile(pattern);
+        List<String> names = new ArrayList<>();
+        for (String channel : channels.keySet()) {
+            if (glob == null || glob.matches(channel)) {
+                names.add(channel);
+            }
+        }
+        return names;
+    }
+
+    // PUBSUB NUMSUB, not counting pattern subscribers
+    public int getSubscriberCount(String channel) {
+        Set<Subscriber> subscribers = channels.get(channel);
+        return subscribers == null ? 0 : subscribers.size();
+    }
+
+    // PUBSUB NUMPAT
+    public int getPatternCount() {
+        return patterns.size();
+    }
+
+    static byte[] bulk(String value) {
+        return bulk(value.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    static byte[] bulk(byte[] value) {
+        byte[] header = ("$" + value.length + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] bulk = new byte[header.length + value.length + 2];
+        System.arraycopy(header, 0, bulk, 0, header.length);
+        System.arraycopy(value, 0, bulk, header.length, value.length);
+        bulk[bulk.length - 2] = '\r';
+        bulk[bulk.length - 1] = '\n';
+        return bulk;
+    }
+
+    static byte[] concat(byte[] first, byte[] second) {
+        byte[] joined = new byte[first.length + second.length];
+        System.arraycopy(first, 0, joined, 0, first.length);
+        System.arraycopy(second, 0, joined, first.length, second.length);
+        return joined;
+    }
+}
@@ -0,0 +1,13 @@
+package com.redis.pubsub;
+
+// A connection PUBLISH delivers messages to. send() must not block: a slow subscriber only grows its own backlog,
+// and is disconnected once that passes MAX_PENDING_BYTES. SUBSCRIBE registers the connection and sends its
+// confirmations while holding the subscriber's monitor, so an implementation that publishers can reach directly
+// synchronizes send() to keep messages behind the confirmations.
+public interface Subscriber {
+    // Like the hard limit of Redis' default client-output-buffer-limit for pubsub clients
+    long MAX_PENDING_BYTES = 32L * 1024 * 1024;
+
+    // message is an encoded reply shared with every other receiver, so it must not be modified
+    void send(byte[] message);
+}
@@ -0,0 +1,99 @@
+package com.redis.replication;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// The leader's side of one replica after its PSYNC. A thread of its own sends the snapshot, or +CONTINUE,
+// and then streams the backlog; the connection that received PSYNC keeps reading the replica's REPLCONF ACKs.
+public class ReplicaConnection {
+    // How long the sender waits for new commands before checking whether the replica is gone
+    private static final long IDLE_CHECK_MILLIS = 1000;
+
+    private final ReplicationManager replicationManager;
+    private final int listeningPort;
+    // -1 for a full resync, otherwise the offset to continue from
+    private final long continueFrom;
+    private volatile String address = "?";
+    private volatile String state = "wait_bgsave";
+    private volatile long ackOffset;
+    private volatile long lastAckTime = System.currentTimeMillis();
+    private volatile boolean closed;
+
+    ReplicaConnection(ReplicationManager replicationManager, int listeningPort, long continueFrom) {
+        this.replicationManager = replicationManager;
+        this.listeningPort = listeningPort;
+        this.continueFrom = continueFrom;
+    }
+
+    // Called by the connection once the replies before PSYNC are out; out belongs to this replica from now on
+    public void start(OutputStream out, String address) {
+        this.address = address;
+        Thread sender = new Thread(() -> send(out), "replica-" + address + ":" + listeningPort);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    private void send(OutputStream out) {
+        try {
+            long position;
+            if (continueFrom < 0) {
+                position = replicationManager.sendSnapshot(out, this);
+            } else {
+                out.write(("+CONTINUE " + replicationManager.getReplicationId() + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                position = continueFrom;
+            }
+            state = "online";
+            System.out.println("Replica " + address + ":" + listeningPort + " is online at offset " + position);
+
+            ReplicationBacklog backlog = replicationManager.getBacklog();
+            byte[] chunk = new byte[64 * 1024];
+            while (!closed) {
+                int length = backlog.read(position, chunk, IDLE_CHECK_MILLIS);
+                if (length > 0) {
+                    out.write(chunk, 0, length);
+                    out.flush();
+                    position += length;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Replica " + address + ":" + listeningPort + " lost: " + e.getMessage());
+        } finally {
+            close();
+            try {
+                // Also ends the connection's read loop, which then cleans up as for any client
+                out.close();
+            } catch (IOException e) {
+                System.out.println("IOException: " + e.getMessage());
+            }
+        }
+    }
+
+    void setState(String state) {
+        this.state = state;
+    }
+
+    public void acknowledge(long offset) {
+        ackOffset = offset;
+        lastAckTime = System.currentTimeMillis();
+        replicationManager.onAcknowledge();
+    }
+
+    public void close() {
+        if (!closed) {
+            closed = true;
+            replicationManager.remove(this);
+        }
+    }
+
+    long getAckOffset() {
+        return ackOffset;
+    }
+
+    // slaveN line of INFO replication
+    String describe() {
+        long lag = (System.currentTimeMillis() - lastAckTime) / 1000;
+        return "ip=" + address + ",port=" + listeningPort + ",state=" + state + ",offset=" + ackOffset + ",lag=" + lag;
+    }
+}
@@ -0,0 +1,115 @@
+package com.redis.replication;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.redis.data.CommandLog;
+
+// The replication stream: every write as a RESP command, kept in a fixed-size ring. Replica senders read
+// their way through it, and a replica that reconnects resumes from it as long as its offset was not
+// overwritten yet (partial resync). Offsets count every byte ever appended, as master_repl_offset.
+public class ReplicationBacklog implements CommandLog {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final byte[] ring;
+    private volatile long offset;
+
+    public ReplicationBacklog(int size) {
+        this.ring = new byte[size];
+    }
+
+    // Held by a full resync while it fixes its snapshot point, so no command slips in between the two
+    @Override
+    public void lock() {
+        lock.lock();
+    }
+
+    @Override
+    public void unlock() {
+        lock.unlock();
+    }
+
+    @Override
+    public void append(String... command) {
+        lock.lock();
+        try {
+            long position = offset;
+            position = putHeader(position, '*', command.length);
+            for (String argument : command) {
+                int length = argument.length();
+                position = putHeader(position, '$', length);
+                for (int i = 0; i < length; i++) {
+                    ring[(int) (position++ % ring.length)] = (byte) argument.charAt(i);
+                }
+                ring[(int) (position++ % ring.length)] = '\r';
+                ring[(int) (position++ % ring.length)] = '\n';
+            }
+            offset = position;
+            if (lock.hasWaiters(appended)) {
+                appended.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long putHeader(long position, char type, int length) {
+        ring[(int) (position++ % ring.length)] = (byte) type;
+        String digits = Integer.toString(length);
+        for (int i = 0; i < digits.length(); i++) {
+            ring[(int) (position++ % ring.length)] = (byte) digits.charAt(i);
+        }
+        ring[(int) (position++ % ring.length)] = '\r';
+        ring[(int) (position++ % ring.length)] = '\n';
+        return position;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getSize() {
+        return ring.length;
+    }
+
+    // Offset of the oldest byte still in the ring
+    public long getStartOffset() {
+        return Math.max(0, offset - ring.length);
+    }
+
+    // True if a replica that has read up to position can continue from the ring
+    public boolean contains(long position) {
+        return position >= getStartOffset() && position <= offset;
+    }
+
+    // Copies the bytes after position into destination, waiting up to timeoutMillis for some to arrive.
+    // Returns 0 on timeout. Throws when position was overwritten: the replica fell too far behind.
+    public int read(long position, byte[] destination, long timeoutMillis) throws IOException {
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (offset == position) {
+                if (nanos <= 0) {
+                    return 0;
+                }
+                nanos = appended.awaitNanos(nanos);
+            }
+            if (!contains(position)) {
+                throw new IOException("Replica fell behind the replication backlog");
+            }
+            int length = (int) Math.min(destination.length, offset - position);
+            int start = (int) (position % ring.length);
+            int first = Math.min(length, ring.length - start);
+            System.arraycopy(ring, start, destination, 0, first);
+            System.arraycopy(ring, 0, destination, first, length - first);
+            return length;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.redis.replication;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.redis.data.Keyspace;
+import com.redis.data.RdbFileWriter;
+
+// Replication state of this server. As a leader: the backlog, the connected replicas, PSYNC and WAIT.
+// As a replica (--replicaof): where the leader is and how far its stream was applied, kept up to date by
+// the server's MasterLink, so a reconnect can ask for a partial resync.
+public class ReplicationManager {
+    // How long a full resync waits between attempts while a BGSAVE or AOF rewrite holds the snapshot
+    private static final long SNAPSHOT_RETRY_MILLIS = 100;
+
+    private final Keyspace keyspace;
+    private final ConcurrentHashMap<String, String> configMap;
+    private final String replicationId = randomReplicationId();
+    private final List<ReplicaConnection> replicas = new CopyOnWriteArrayList<>();
+    // Guards backlog creation, and signals WAIT when a replica acknowledges
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition acknowledged = lock.newCondition();
+    // Created when the first replica connects, so a server without replicas logs nothing
+    private volatile ReplicationBacklog backlog;
+
+    // Replica side; masterHost is null on a leader
+    private final String masterHost;
+    private final int masterPort;
+    private volatile String masterReplicationId;
+    private volatile long masterOffset = -1;
+    private volatile boolean linkUp;
+    private volatile boolean syncInProgress;
+    private volatile long lastMasterIoTime;
+
+    public ReplicationManager(Keyspace keyspace, ConcurrentHashMap<String, String> configMap) {
+        this.keyspace = keyspace;
+        this.configMap = configMap;
+        String replicaOf = configMap.get("replicaof");
+        if (replicaOf == null || replicaOf.isBlank() || replicaOf.equalsIgnoreCase("no one")) {
+            this.masterHost = null;
+            this.masterPort = 0;
+        } else {
+            String[] hostAndPort = replicaOf.trim().split("\\s+");
+            this.masterHost = hostAndPort[0];
+            this.masterPort = Integer.parseInt(hostAndPort[1]);
+        }
+    }
+
+    private static String randomReplicationId() {
+        byte[] bytes = new byte[20];
+        new SecureRandom().nextBytes(bytes);
+        return HexFormat.of().formatHex(bytes);
+    }
+
+    public boolean isReplica() {
+        return masterHost != null;
+    }
+
+    public String getReplicationId() {
+        return replicationId;
+    }
+
+    // 0 until a replica connected for the first time
+    public long getMasterOffset() {
+        ReplicationBacklog current = backlog;
+        return current == null ? 0 : current.getOffset();
+    }
+
+    ReplicationBacklog getBacklog() {
+        return backlog;
+    }
+
+    // PSYNC replicationId offset: offset is the first byte the replica is missing, or -1 for "send everything".
+    // Continues from the backlog when it still holds that byte, otherwise answers with a full resync.
+    public ReplicaConnection psync(String requestedId, long requestedOffset, int listeningPort) {
+        ReplicationBacklog current = ensureBacklog();
+        long continueFrom = -1;
+        if (requestedId.equals(replicationId) && requestedOffset > 0 && current.contains(requestedOffset - 1)) {
+            continueFrom = requestedOffset - 1;
+        }
+        ReplicaConnection replica = new ReplicaConnection(this, listeningPort, continueFrom);
+        replicas.add(replica);
+        return replica;
+    }
+
+    private ReplicationBacklog ensureBacklog() {
+        lock.lock();
+        try {
+            if (backlog == null) {
+                ReplicationBacklog created = new ReplicationBacklog(Integer.parseInt(configMap.get("repl-backlog-size")));
+                keyspace.addCommandLog(created);
+                backlog = created;
+            }
+            return backlog;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // +FULLRESYNC, then the snapshot as "$<length>\r\n<RDB file>". Returns the offset the stream continues from.
+    // The snapshot point and that offset are fixed together under the backlog lock. A write racing with it may be
+    // both in the snapshot and in the stream after it, which is harmless: logged commands are idempotent, except
+    // those of collection writes, which hold the backlog lock across the write (see Keyspace.update()).
+    long sendSnapshot(OutputStream out, ReplicaConnection replica) throws IOException {
+        Path file = Path.of(configMap.get("dir"), "temp-repl-" + ProcessHandle.current().pid() + "-" + Thread.currentThread().threadId() + ".rdb");
+        // Before the snapshot starts: once it has, only the writer ends it
+        Files.createDirectories(file.getParent());
+        Keyspace.Snapshot snapshot;
+        long offset;
+        while (true) {
+            backlog.lock();
+            try {
+                snapshot = keyspace.beginSnapshot();
+                offset = backlog.getOffset();
+            } finally {
+                backlog.unlock();
+            }
+            if (snapshot != null) {
+                break;
+            }
+            try {
+                Thread.sleep(SNAPSHOT_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a snapshot");
+            }
+        }
+        out.write(("+FULLRESYNC " + replicationId + " " + offset + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+
+        try {
+            new RdbFileWriter(keyspace).write(file, snapshot);
+            replica.setState("send_bulk");
+            out.write(("$" + Files.size(file) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            Files.copy(file, out);
+            out.flush();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        return offset;
+    }
+
+    void remove(ReplicaConnection replica) {
+        replicas.remove(replica);
+        onAcknowledge();
+    }
+
+    void onAcknowledge() {
+        lock.lock();
+        try {
+            acknowledged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // WAIT: blocks until needed replicas acknowledged offset, or timeoutMillis (0: forever) passed.
+    // Returns how many did.
+    public int waitForReplicas(long offset, int needed, long timeoutMillis) {
+        int count = countAcknowledged(offset);
+        if (count >= needed || replicas.isEmpty()) {
+            return count;
+        }
+        // Replicas only report their offset once a second on their own; ask them right away
+        backlog.append("REPLCONF", "GETACK", "*");
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while ((count = countAcknowledged(offset)) < needed) {
+                if (timeoutMillis == 0) {
+                    acknowledged.await();
+                } else if (nanos <= 0) {
+                    break;
+                } else {
+                    nanos = acknowledged.awaitNanos(nanos);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+        return count;
+    }
+
+    private int countAcknowledged(long offset) {
+        int count = 0;
+        for (ReplicaConnection replica : replicas) {
+            if (replica.getAckOffset() >= offset) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public String getMasterHost() {
+        return masterHost;
+    }
+
+    public int getMasterPort() {
+        return masterPort;
+    }
+
+    // Replication ID and offset to ask the leader for in PSYNC: "?" and -1 before the first sync
+    public String getMasterReplicationId() {
+        return masterReplicationId == null ? "?" : masterReplicationId;
+    }
+
+    public long getMasterLinkOffset() {
+        return masterOffset;
+    }
+
+    public void setMasterLinkOffset(String replicationId, long offset) {
+        this.masterReplicationId = replicationId;
+        this.masterOffset = offset;
+    }
+
+    public void setMasterLinkOffset(long offset) {
+        this.masterOffset = offset;
+        this.lastMasterIoTime = System.currentTimeMillis();
+    }
+
+    public void setLinkUp(boolean linkUp) {
+        this.linkUp = linkUp;
+        this.lastMasterIoTime = System.currentTimeMillis();
+    }
+
+    public void setSyncInProgress(boolean syncInProgress) {
+        this.syncInProgress = syncInProgress;
+    }
+
+    public void appendInfo(StringBuilder info) {
+        info.append("# Replication\r\n");
+        if (isReplica()) {
+            info.append("role:slave\r\n")
+                .append("master_host:").append(masterHost).append("\r\n")
+                .append("master_port:").append(masterPort).append("\r\n")
+                .append("master_link_status:").append(linkUp ? "up" : "down").append("\r\n")
+                .append("master_last_io_seconds_ago:").append(linkUp ? (System.currentTimeMillis() - lastMasterIoTime) / 1000 : -1).append("\r\n")
+                .append("master_sync_in_progress:").append(syncInProgress ? 1 : 0).append("\r\n")
+                .append("slave_repl_offset:").append(Math.max(0, masterOffset)).append("\r\n")
+                .append("master_replid:").append(getMasterReplicationId()).append("\r\n")
+                .append("master_repl_offset:").append(Math.max(0, masterOffset)).append("\r\n");
+            return;
+        }
+        ReplicationBacklog current = backlog;
+        info.append("role:master\r\n")
+            .append("connected_slaves:").append(replicas.size()).append("\r\n");
+        int i = 0;
+        for (ReplicaConnection replica : replicas) {
+            info.append("slave").append(i++).append(':').append(replica.describe()).append("\r\n");
+        }
+        info.append("master_replid:").append(replicationId).append("\r\n")
+            .append("master_repl_offset:").append(getMasterOffset()).append("\r\n")
+            .append("repl_backlog_active:").append(current != null ? 1 : 0).append("\r\n")
+            .append("repl_backlog_size:").append(current != null ? current.getSize() : configMap.get("repl-backlog-size")).append("\r\n")
+            .append("repl_backlog_first_byte_offset:").append(current != null ? current.getStartOffset() + 1 : 0).append("\r\n")
+            .append("repl_backlog_histlen:").append(current != null ? current.getOffset() - current.getStartOffset() : 0).append("\r\n");
+    }
+}
@@ -1,85 +1,69 @@
 package com.redis.server;
 
-import com.redis.data.Cache;
-import com.redis.data.StreamCache;
 import com.redis.commands.CommandHandler;
+import com.redis.commands.CommandRegistry;
+import com.redis.commands.RedisCommand;
+import com.redis.commands.ReplyBuffer;
 import com.redis.commands.CommandProcessor.*;
+import com.redis.replication.ReplicaConnection;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.concurrent.ConcurrentHashMap;
 
-public class ClientHandler extends Thread{
+public class ClientHandler implements Runnable{
     private final Socket clientSocket;
     private final CommandHandler commandHandler;
+    private final CommandRegistry commandRegistry;
+    private final ShardExecutor shardExecutor;
+    // Set at the first SUBSCRIBE; owns the socket's output from then on
+    private SocketSubscriber subscriber;
 
-    public ClientHandler(Socket clientSocket, ConcurrentHashMap<String, Cache> setMap, 
-                         ConcurrentHashMap<String, Cache> rdbMap, ConcurrentHashMap<String, StreamCache> streamMap,
-                         ConcurrentHashMap<String, String> configMap) {
+    public ClientHandler(Socket clientSocket, CommandRegistry commandRegistry, ShardExecutor shardExecutor, CommandHandler commandHandler) {
         this.clientSocket = clientSocket;
-        this.commandHandler = new CommandHandler(setMap, rdbMap, streamMap, configMap);
+        this.commandRegistry = commandRegistry;
+        this.shardExecutor = shardExecutor;
+        this.commandHandler = commandHandler;
     }
 
     public void run(){
-      try(BufferedReader inputStream = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-      BufferedWriter outputStream = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()));) {
+      try(InputStream inputStream = clientSocket.getInputStream();
+      OutputStream outputStream = clientSocket.getOutputStream()) {
         RedisCommandParser parser = new RedisCommandParser(inputStream);
+        ReplyBuffer replyBuffer = new ReplyBuffer();
+        replyBuffer.setSink(replies -> flush(replies, outputStream));
+        commandHandler.setSubscriberFactory(() -> subscriber = new SocketSubscriber(clientSocket, outputStream));
 
         while(true){
             RedisParser command = parser.parseCommand();
 
-            switch (command.getCommand()) {
-              case "PING":
-                outputStream.write("+PONG\r\n");
-                // echo -e "*1\r\n$4\r\nPING\r\n" | nc localhost 6379
-                break;
-              case "SET":
-                commandHandler.handleSetCommand(command, outputStream);
-                // echo -e "*3\r\n$3\r\nSET\r\n$3\r\nkey\r\n$5\r\nvalue\r\n" | nc localhost 6379
-                // echo -e "*5\r\n$3\r\nSET\r\n$3\r\nkey\r\n$5\r\nvalue\r\n$2\r\nPX\r\n$4\r\n1000\r\n" | nc localhost 6379
-                break;
-              case "GET":
-                commandHandler.handleGetCommand(command, outputStream);
-                // echo -e "*2\r\n$3\r\nGET\r\n$3\r\nkey\r\n" | nc localhost 6379
-                // echo -e "*2\r\n$3\r\nGET\r\n$7\r\nunknown\r\n" | nc localhost 6379
-                break;
-              case "ECHO":
-                String message = command.getArguments().get(0);
-                outputStream.write("$" + message.length() + "\r\n" + message + "\r\n");
-                // echo -e "*2\r\n$4\r\nECHO\r\n$13\r\nHello, Redis!\r\n" | nc localhost 6379
-                break;
-              case "CONFIG":
-                commandHandler.handleConfigCommand(command, outputStream);
-                // echo -e "*2\r\n$6\r\nCONFIG\r\n$3\r\nGET\r\n$3\r\ndir\r\n" | nc localhost 6379
-                // echo -e "*2\r\n$6\r\nCONFIG\r\n$3\r\nGET\r\n$10\r\ndbfilename\r\n" | nc localhost 6379
-                break;
-              case "KEYS":
-                commandHandler.handleKeysCommand(outputStream);
-                // echo -e "*2\r\n$4\r\nKEYS\r\n$1\r\n*\r\n" | nc localhost 6379
-                break;
-              case "TYPE":
-                commandHandler.handleTypeCommand(command, outputStream);
-                // echo -e "*2\r\n$4\r\nTYPE\r\n$3\r\nkey\r\n" | nc localhost 6379
-                break;
-              case "XADD":
-                commandHandler.handleXADDCommand(command, outputStream);
-                break;
-              case "XRANGE":
-                commandHandler.handleXRANGECommand(command, outputStream);
-                break;
-              case "XREAD":
-                commandHandler.handleXREADCommand(command, outputStream);
-                break;
-              default:
-                outputStream.write("-ERR unknown command\r\n");
-                break;
+            // Pipelining: run every command that already arrived, then send all replies in one write
+            do {
+              RedisCommand redisCommand = commandRegistry.lookup(command);
+              if (redisCommand != null && redisCommand.hasFlag(RedisCommand.BLOCKING) && !replyBuffer.isEmpty()) {
+                // Don't hold earlier replies back while this command waits
+                flush(replyBuffer, outputStream);
+              }
+              shardExecutor.dispatch(redisCommand, command, commandHandler, replyBuffer);
+            } while ((command = parser.pollBufferedCommand()) != null);
+
+            flush(replyBuffer, outputStream);
+
+            ReplicaConnection replica = commandHandler.takeReplica();
+            if (replica != null) {
+              // PSYNC: the output now belongs to the replica's sender, and only REPLCONF ACKs come in
+              replica.start(outputStream, clientSocket.getInetAddress().getHostAddress());
+              readAcknowledgements(parser);
+              return;
             }
-            //To send the data immediately instead of waiting to be filled
-            outputStream.flush();
         }
       } catch (IOException e) {
         System.out.println("IOException: " + e.getMessage());
       } finally {
+        commandHandler.onClose();
+        commandRegistry.getStats().clientDisconnected();
+        if (subscriber != null) {
+          subscriber.close();
+        }
         try {
           if (clientSocket != null) {
             clientSocket.close();
@@ -89,4 +73,26 @@ public class ClientHandler extends Thread{
         }
       }
     }
+
+    private void readAcknowledgements(RedisCommandParser parser) throws IOException {
+      ReplyBuffer discarded = new ReplyBuffer();
+      while (true) {
+        commandRegistry.dispatch(parser.parseCommand(), commandHandler, discarded);
+        discarded.reset();
+      }
+    }
+
+    private void flush(ReplyBuffer replyBuffer, OutputStream outputStream) throws IOException {
+      commandHandler.awaitDurable();
+      if (subscriber != null) {
+        // Queued behind the messages already on their way, which the subscriber's writer is sending
+        if (!replyBuffer.isEmpty()) {
+          subscriber.send(replyBuffer.toByteArray());
+        }
+      } else {
+        replyBuffer.writeTo(outputStream);
+        outputStream.flush();
+      }
+      replyBuffer.reset();
+    }
   }
@@ -3,35 +3,48 @@ package com.redis.server;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.ConcurrentHashMap;
-import com.redis.data.Cache;
-import com.redis.data.StreamCache;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import com.redis.commands.CommandHandler;
+import com.redis.commands.CommandRegistry;
 
 public class ConnectionHandler {
     private final int port;
-    private final ConcurrentHashMap<String, Cache> setMap;
-    private final ConcurrentHashMap<String, Cache> rdbMap;
-    private final ConcurrentHashMap<String, StreamCache> streamMap;
-    private final ConcurrentHashMap<String, String> configMap;
+    private final CommandRegistry commandRegistry;
+    private final ShardExecutor shardExecutor;
+    // One CommandHandler per connection
+    private final Supplier<CommandHandler> commandHandlers;
+    private final boolean virtualThreads;
     
-    public ConnectionHandler(int port, 
-                             ConcurrentHashMap<String, Cache> setMap, 
-                             ConcurrentHashMap<String, Cache> rdbMap, 
-                             ConcurrentHashMap<String, StreamCache> streamMap, 
-                             ConcurrentHashMap<String, String> configMap) {
+    public ConnectionHandler(int port, boolean virtualThreads,
+                             CommandRegistry commandRegistry, ShardExecutor shardExecutor,
+                             Supplier<CommandHandler> commandHandlers) {
         this.port = port;
-        this.setMap = setMap;
-        this.rdbMap = rdbMap;
-        this.streamMap = streamMap;
-        this.configMap = configMap;
+        this.commandRegistry = commandRegistry;
+        this.shardExecutor = shardExecutor;
+        this.commandHandlers = commandHandlers;
+        this.virtualThreads = virtualThreads;
     }
 
     public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        // A virtual thread parked in readLine() or XREAD BLOCK releases its carrier, so idle clients cost no OS thread
+        try (ServerSocket serverSocket = new ServerSocket(port);
+             ExecutorService executor = virtualThreads ? Executors.newVirtualThreadPerTaskExecutor() : null) {
             serverSocket.setReuseAddress(true);
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                new ClientHandler(clientSocket, setMap, rdbMap, streamMap, configMap).start();
+                // Replies are flushed once per batch already, so Nagle only delays them behind the client's delayed ACK
+                clientSocket.setTcpNoDelay(true);
+                commandRegistry.getStats().clientConnected();
+                CommandHandler commandHandler = commandHandlers.get();
+                commandHandler.setClientAddress(clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort());
+                ClientHandler clientHandler = new ClientHandler(clientSocket, commandRegistry, shardExecutor, commandHandler);
+                if (executor != null) {
+                    executor.execute(clientHandler);
+                } else {
+                    new Thread(clientHandler).start();
+                }
             }
         } catch (IOException e) {
             System.out.println("Error starting server: " + e.getMessage());
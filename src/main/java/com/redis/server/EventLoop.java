@@ -0,0 +1,86 @@
+package com.redis.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+class EventLoop extends Thread {
+    private final Selector selector;
+    private final ExecutorService blockingExecutor;
+    private final Queue<NioClient> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+
+    EventLoop(int id, ExecutorService blockingExecutor) throws IOException {
+        super("event-loop-" + id);
+        this.selector = Selector.open();
+        this.blockingExecutor = blockingExecutor;
+    }
+
+    ExecutorService getBlockingExecutor() {
+        return blockingExecutor;
+    }
+
+    // Called from the acceptor thread
+    void register(NioClient client) {
+        pendingRegistrations.add(client);
+        selector.wakeup();
+    }
+
+    // Runs a task on this loop's thread, used to hand results of offloaded commands back to their connection
+    void execute(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+
+                NioClient client;
+                while ((client = pendingRegistrations.poll()) != null) {
+                    try {
+                        client.attach(client.getChannel().register(selector, SelectionKey.OP_READ, client));
+                    } catch (ClosedChannelException e) {
+                        client.close();
+                    }
+                }
+
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    NioClient selected = (NioClient) key.attachment();
+                    if (!key.isValid()) {
+                        selected.close();
+                        continue;
+                    }
+                    try {
+                        if (key.isWritable()) {
+                            selected.onWritable();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            selected.onReadable();
+                        }
+                    } catch (RuntimeException e) {
+                        // A malformed command only costs its own connection, never the whole loop
+                        System.out.println("Error handling client: " + e.getMessage());
+                        selected.close();
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("IOException: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.redis.server;
+
+import com.redis.commands.CommandHandler;
+import com.redis.commands.CommandProcessor.RedisParser;
+import com.redis.commands.CommandRegistry;
+import com.redis.commands.ReplyBuffer;
+import com.redis.commands.RespParser;
+import com.redis.data.AppendOnlyFile;
+import com.redis.data.Keyspace;
+import com.redis.data.RdbFileLoader;
+import com.redis.replication.ReplicationManager;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A replica's connection to its leader (--replicaof host port): handshake, PSYNC, loading the snapshot on a
+// full resync, then applying the stream of writes. Reconnects with the offset it got to, so a short
+// disconnect only costs a partial resync.
+class MasterLink extends Thread {
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    // How often the replica reports its offset (REPLCONF ACK), like Redis' replication cron
+    private static final int ACK_INTERVAL_MILLIS = 1000;
+
+    private final ReplicationManager replicationManager;
+    private final Keyspace keyspace;
+    private final CommandRegistry commandRegistry;
+    private final CommandHandler commandHandler;
+    private final ConcurrentHashMap<String, String> configMap;
+    private final AppendOnlyFile appendOnlyFile;
+
+    MasterLink(ReplicationManager replicationManager, Keyspace keyspace, CommandRegistry commandRegistry,
+               CommandHandler commandHandler, ConcurrentHashMap<String, String> configMap, AppendOnlyFile appendOnlyFile) {
+        super("replication");
+        setDaemon(true);
+        this.replicationManager = replicationManager;
+        this.keyspace = keyspace;
+        this.commandRegistry = commandRegistry;
+        this.commandHandler = commandHandler;
+        this.configMap = configMap;
+        this.appendOnlyFile = appendOnlyFile;
+        commandHandler.setMasterLink(true);
+    }
+
+    public void run() {
+        while (true) {
+            try (Socket socket = new Socket(replicationManager.getMasterHost(), replicationManager.getMasterPort())) {
+                sync(socket);
+            } catch (IOException e) {
+                System.out.println("Connection with the leader lost: " + e.getMessage());
+            } catch (RuntimeException e) {
+                System.out.println("Error applying the replication stream: " + e.getMessage());
+            }
+            replicationManager.setLinkUp(false);
+            replicationManager.setSyncInProgress(false);
+            try {
+                Thread.sleep(RECONNECT_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void sync(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+
+        send(out, "PING");
+        expect(in, "+PONG");
+        send(out, "REPLCONF", "listening-port", configMap.get("port"));
+        expect(in, "+OK");
+        send(out, "REPLCONF", "capa", "psync2");
+        expect(in, "+OK");
+
+        long offset = replicationManager.getMasterLinkOffset();
+        String replicationId = replicationManager.getMasterReplicationId();
+        send(out, "PSYNC", replicationId, offset < 0 ? "-1" : Long.toString(offset + 1));
+        String reply = readLine(in);
+        if (reply.startsWith("+FULLRESYNC ")) {
+            String[] parts = reply.split(" ");
+            loadSnapshot(in);
+            replicationManager.setMasterLinkOffset(parts[1], Long.parseLong(parts[2]));
+        } else if (reply.startsWith("+CONTINUE")) {
+            System.out.println("Partial resync from offset " + offset);
+        } else {
+            throw new IOException("Unexpected reply to PSYNC: " + reply);
+        }
+        replicationManager.setLinkUp(true);
+        System.out.println("Connected to leader " + replicationManager.getMasterHost() + ":" + replicationManager.getMasterPort());
+        applyStream(socket, in, out);
+    }
+
+    private void loadSnapshot(InputStream in) throws IOException {
+        replicationManager.setSyncInProgress(true);
+        String header = readLine(in);
+        if (!header.startsWith("$")) {
+            throw new IOException("Expected the snapshot, got " + header);
+        }
+        long length = Long.parseLong(header.substring(1));
+        String fileName = "temp-replica-" + ProcessHandle.current().pid() + ".rdb";
+        Path file = Path.of(configMap.get("dir"), fileName);
+        Files.createDirectories(file.getParent());
+        try (OutputStream fileOut = Files.newOutputStream(file)) {
+            byte[] chunk = new byte[64 * 1024];
+            long remaining = length;
+            while (remaining > 0) {
+                int read = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                if (read == -1) {
+                    throw new IOException("Leader closed the connection during the snapshot transfer");
+                }
+                fileOut.write(chunk, 0, read);
+                remaining -= read;
+            }
+        }
+        try {
+            long started = System.currentTimeMillis();
+            keyspace.clear();
+            new RdbFileLoader(configMap.get("dir"), fileName, keyspace).load();
+            System.out.println("Loaded " + length + " bytes of snapshot from the leader in "
+                + (System.currentTimeMillis() - started) + " ms");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        if (appendOnlyFile != null) {
+            // The AOF logged the old dataset; start it over from the new one
+            while (!appendOnlyFile.rewrite()) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while rewriting the append only file");
+                }
+            }
+        }
+        replicationManager.setSyncInProgress(false);
+    }
+
+    // Applies the leader's writes through the normal dispatch, counting every byte so a reconnect knows where to
+    // continue. REPLCONF GETACK is answered right away, otherwise the offset is reported once a second.
+    private void applyStream(Socket socket, InputStream in, OutputStream out) throws IOException {
+        socket.setSoTimeout(ACK_INTERVAL_MILLIS);
+        RespParser respParser = new RespParser();
+        ReplyBuffer discarded = new ReplyBuffer();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long offset = replicationManager.getMasterLinkOffset();
+        long lastAck = 0;
+        while (true) {
+            int read;
+            try {
+                read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } catch (SocketTimeoutException e) {
+                read = 0;
+            }
+            if (read == -1) {
+                throw new IOException("Leader closed the connection");
+            }
+            buffer.position(buffer.position() + read);
+            buffer.flip();
+            RedisParser command;
+            int start = buffer.position();
+            while ((command = respParser.parse(buffer)) != null) {
+                offset += buffer.position() - start;
+                start = buffer.position();
+                if (command.getCommand().equals("REPLCONF") && command.size() > 1 && command.getString(1).equalsIgnoreCase("GETACK")) {
+                    lastAck = 0;
+                } else {
+                    commandRegistry.dispatch(command, commandHandler, discarded);
+                    discarded.reset();
+                }
+            }
+            buffer.compact();
+            buffer = RespParser.ensureWritable(buffer);
+            if (read > 0) {
+                replicationManager.setMasterLinkOffset(offset);
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastAck >= ACK_INTERVAL_MILLIS) {
+                send(out, "REPLCONF", "ACK", Long.toString(offset));
+                lastAck = now;
+            }
+        }
+    }
+
+    private static void send(OutputStream out, String... command) throws IOException {
+        StringBuilder encoded = new StringBuilder("*").append(command.length).append("\r\n");
+        for (String argument : command) {
+            encoded.append('$').append(argument.length()).append("\r\n").append(argument).append("\r\n");
+        }
+        out.write(encoded.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    private static void expect(InputStream in, String expected) throws IOException {
+        String reply = readLine(in);
+        if (!reply.startsWith(expected)) {
+            throw new IOException("Leader replied " + reply + " instead of " + expected);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new IOException("Leader closed the connection");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+}
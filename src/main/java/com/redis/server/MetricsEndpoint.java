@@ -0,0 +1,114 @@
+package com.redis.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import com.redis.commands.CommandRegistry;
+import com.redis.commands.LatencyHistogram;
+import com.redis.commands.RedisCommand;
+import com.redis.commands.ServerStats;
+import com.redis.data.Evictor;
+import com.redis.data.Keyspace;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// GET /metrics on metrics-port in the Prometheus text format: the INFO counters and gauges plus a latency
+// histogram per command. Everything is read when scraped, so the command path does no extra work for it.
+public class MetricsEndpoint {
+    // Histogram bounds exported, 1 microsecond to about a second; slower calls only count towards +Inf
+    private static final int EXPORTED_BUCKETS = 21;
+
+    private final int port;
+    private final Keyspace keyspace;
+    private final Evictor evictor;
+    private final CommandRegistry commandRegistry;
+
+    public MetricsEndpoint(int port, Keyspace keyspace, Evictor evictor, CommandRegistry commandRegistry) {
+        this.port = port;
+        this.keyspace = keyspace;
+        this.evictor = evictor;
+        this.commandRegistry = commandRegistry;
+    }
+
+    public void start() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", this::handle);
+        // The default executor is the server's own dispatcher thread, which is plenty for a scraper
+        server.start();
+        System.out.println("Serving metrics on port " + port);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    String render() {
+        ServerStats stats = commandRegistry.getStats();
+        StringBuilder text = new StringBuilder();
+        metric(text, "redis_uptime_seconds", "gauge", "Seconds since the server started", stats.getUptimeSeconds());
+        metric(text, "redis_connected_clients", "gauge", "Open client connections", stats.getConnectedClients());
+        metric(text, "redis_blocked_clients", "gauge", "Clients inside a blocking command", stats.getBlockedClients());
+        metric(text, "redis_connections_received_total", "counter", "Connections accepted", stats.getConnectionsReceived());
+        metric(text, "redis_commands_processed_total", "counter", "Commands run", commandRegistry.getCommandsProcessed());
+        metric(text, "redis_memory_used_bytes", "gauge", "Estimated size of the dataset", keyspace.getUsedMemory());
+        metric(text, "redis_memory_max_bytes", "gauge", "maxmemory, 0 when unlimited", evictor.getMaxMemory());
+        metric(text, "redis_db_keys", "gauge", "Keys in the keyspace", keyspace.size());
+        metric(text, "redis_db_keys_expiring", "gauge", "Keys with a time to live", keyspace.getExpiresCount());
+        metric(text, "redis_expired_keys_total", "counter", "Keys removed because they expired",
+            keyspace.getExpiredActive() + keyspace.getExpiredLazy());
+        metric(text, "redis_evicted_keys_total", "counter", "Keys evicted to stay under maxmemory", evictor.getEvictedKeys());
+
+        text.append("# HELP redis_commands_total Calls per command\n# TYPE redis_commands_total counter\n");
+        for (RedisCommand command : commandRegistry.getCommands()) {
+            if (command.getCalls() > 0) {
+                text.append("redis_commands_total{cmd=\"").append(command.getName()).append("\"} ").append(command.getCalls()).append('\n');
+            }
+        }
+        text.append("# HELP redis_commands_rejected_total Calls refused before running, per command\n# TYPE redis_commands_rejected_total counter\n");
+        for (RedisCommand command : commandRegistry.getCommands()) {
+            if (command.getRejectedCalls() > 0) {
+                text.append("redis_commands_rejected_total{cmd=\"").append(command.getName()).append("\"} ").append(command.getRejectedCalls()).append('\n');
+            }
+        }
+        text.append("# HELP redis_command_duration_seconds Time to run a command, without blocking commands\n")
+            .append("# TYPE redis_command_duration_seconds histogram\n");
+        for (RedisCommand command : commandRegistry.getCommands()) {
+            long[] snapshot = command.getHistogram().snapshot();
+            long count = LatencyHistogram.total(snapshot);
+            if (count == 0) {
+                continue;
+            }
+            long[] cumulative = LatencyHistogram.cumulativePowersOfTwo(snapshot);
+            String name = command.getName();
+            for (int i = 0; i < EXPORTED_BUCKETS; i++) {
+                text.append("redis_command_duration_seconds_bucket{cmd=\"").append(name).append("\",le=\"")
+                    .append(String.format(Locale.ROOT, "%.6f", (1L << i) / 1e6)).append("\"} ").append(cumulative[i]).append('\n');
+            }
+            text.append("redis_command_duration_seconds_bucket{cmd=\"").append(name).append("\",le=\"+Inf\"} ").append(count).append('\n')
+                .append("redis_command_duration_seconds_sum{cmd=\"").append(name).append("\"} ")
+                .append(String.format(Locale.ROOT, "%.6f", command.getMicros() / 1e6)).append('\n')
+                .append("redis_command_duration_seconds_count{cmd=\"").append(name).append("\"} ").append(count).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static void metric(StringBuilder text, String name, String type, String help, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n')
+            .append("# TYPE ").append(name).append(' ').append(type).append('\n')
+            .append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,288 @@
+package com.redis.server;
+
+import com.redis.commands.CommandHandler;
+import com.redis.commands.CommandProcessor.RedisParser;
+import com.redis.commands.CommandRegistry;
+import com.redis.commands.RedisCommand;
+import com.redis.commands.ReplyBuffer;
+import com.redis.commands.RespParser;
+import com.redis.pubsub.Subscriber;
+import com.redis.replication.ReplicaConnection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+// Per-connection state of the event-loop mode. Only ever touched by its owning EventLoop thread,
+// except for the CommandHandler while an offloaded blocking command is running (reads are paused then).
+class NioClient implements Subscriber {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private final SocketChannel channel;
+    private final EventLoop eventLoop;
+    private final CommandHandler commandHandler;
+    private final CommandRegistry commandRegistry;
+    // The event loop waits while a shard runs a command for it
+    private final ShardExecutor shardExecutor;
+    private final RespParser respParser = new RespParser();
+    private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    private final ReplyBuffer replyBuffer = new ReplyBuffer();
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private SelectionKey selectionKey;
+    private boolean blocked;
+    private boolean closed;
+    // Bytes of pub/sub messages queued since the socket last took everything, to spot slow subscribers
+    private long messageBacklog;
+
+    NioClient(SocketChannel channel, EventLoop eventLoop, CommandRegistry commandRegistry, ShardExecutor shardExecutor, CommandHandler commandHandler) {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.commandRegistry = commandRegistry;
+        this.shardExecutor = shardExecutor;
+        commandHandler.setSubscriberFactory(() -> this);
+        this.commandHandler = commandHandler;
+        // Whatever the socket doesn't take right away waits in pendingWrites, as for any reply
+        replyBuffer.setSink(replies -> flush());
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    void attach(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    void onReadable() {
+        try {
+            readBuffer = RespParser.ensureWritable(readBuffer);
+            if (channel.read(readBuffer) == -1) {
+                close();
+                return;
+            }
+            processInput();
+            flush();
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
+            close();
+        }
+    }
+
+    void onWritable() {
+        try {
+            flush();
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
+            close();
+        }
+    }
+
+    private void processInput() throws IOException {
+        readBuffer.flip();
+        try {
+            while (!blocked) {
+                RedisParser command = respParser.parse(readBuffer);
+                if (command == null) {
+                    break;
+                }
+                RedisCommand redisCommand = commandRegistry.lookup(command);
+                if (redisCommand != null && redisCommand.hasFlag(RedisCommand.BLOCKING)) {
+                    // The read buffer is reused before the offloaded command runs, so it gets its own copy
+                    queueReplies();
+                    offload(redisCommand, command.copy());
+                } else {
+                    // Replies of the whole pipelined batch accumulate here and leave in one write
+                    shardExecutor.dispatch(redisCommand, command, commandHandler, replyBuffer);
+                    ReplicaConnection replica = commandHandler.takeReplica();
+                    if (replica != null) {
+                        handOver(replica);
+                    }
+                }
+            }
+        } finally {
+            readBuffer.compact();
+        }
+    }
+
+    private void offload(RedisCommand redisCommand, RedisParser command) {
+        blocked = true;
+        updateInterest();
+        eventLoop.getBlockingExecutor().execute(() -> {
+            ReplyBuffer offloadedReply = new ReplyBuffer();
+            try {
+                commandRegistry.dispatch(redisCommand, command, commandHandler, offloadedReply);
+            } catch (IOException | RuntimeException e) {
+                System.out.println("IOException: " + e.getMessage());
+            }
+            eventLoop.execute(() -> resume(offloadedReply));
+        });
+    }
+
+    // PSYNC: the connection leaves the event loop. Once the selector dropped its key the channel turns blocking,
+    // the replica's sender writes to it and a blocking-executor thread reads the replica's REPLCONF ACKs.
+    private void handOver(ReplicaConnection replica) {
+        blocked = true;
+        queueReplies();
+        selectionKey.cancel();
+        eventLoop.execute(() -> {
+            try {
+                channel.configureBlocking(true);
+                for (ByteBuffer pending : pendingWrites) {
+                    while (pending.hasRemaining()) {
+                        channel.write(pending);
+                    }
+                }
+                pendingWrites.clear();
+            } catch (IOException e) {
+                System.out.println("IOException: " + e.getMessage());
+                close();
+                return;
+            }
+            replica.start(Channels.newOutputStream(channel), channel.socket().getInetAddress().getHostAddress());
+            eventLoop.getBlockingExecutor().execute(this::readAcknowledgements);
+        });
+    }
+
+    private void readAcknowledgements() {
+        ReplyBuffer discarded = new ReplyBuffer();
+        try {
+            while (true) {
+                readBuffer.flip();
+                RedisParser command;
+                while ((command = respParser.parse(readBuffer)) != null) {
+                    commandRegistry.dispatch(command, commandHandler, discarded);
+                    discarded.reset();
+                }
+                readBuffer.compact();
+                readBuffer = RespParser.ensureWritable(readBuffer);
+                if (channel.read(readBuffer) == -1) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
+        }
+        eventLoop.execute(this::close);
+    }
+
+    private void resume(ReplyBuffer reply) {
+        if (closed) {
+            return;
+        }
+        pendingWrites.add(reply.asByteBuffer());
+        blocked = false;
+        try {
+            // Commands pipelined behind the blocking one were left in the read buffer
+            processInput();
+            flush();
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
+            close();
+        }
+    }
+
+    // Pub/sub output, called by publishers on any thread and by this client's own SUBSCRIBE, which hands over the
+    // reply buffer's content. The publisher never touches the socket: the message is queued on the loop, which
+    // writes it between two batches of replies, and after the SUBSCRIBE that registered this client.
+    @Override
+    public void send(byte[] message) {
+        if (Thread.currentThread() == eventLoop) {
+            // Queued behind whatever this client's reply buffer already flushed; OP_WRITE sends it
+            enqueue(message);
+            updateInterest();
+            return;
+        }
+        eventLoop.execute(() -> {
+            enqueue(message);
+            try {
+                if (!closed) {
+                    flush();
+                }
+            } catch (IOException e) {
+                System.out.println("IOException: " + e.getMessage());
+                close();
+            }
+        });
+    }
+
+    private void enqueue(byte[] message) {
+        if (closed) {
+            return;
+        }
+        if (!pendingWrites.isEmpty()) {
+            messageBacklog += message.length;
+            if (messageBacklog > MAX_PENDING_BYTES) {
+                System.out.println("Closing subscriber: more than " + MAX_PENDING_BYTES + " bytes behind");
+                close();
+                return;
+            }
+        }
+        // Shares the array with every other subscriber; the wrapper only tracks this socket's position
+        pendingWrites.add(ByteBuffer.wrap(message));
+    }
+
+    private void queueReplies() {
+        if (!replyBuffer.isEmpty()) {
+            pendingWrites.add(ByteBuffer.wrap(replyBuffer.toByteArray()));
+            replyBuffer.reset();
+        }
+    }
+
+    private void flush() throws IOException {
+        // Blocks the loop on the AOF like Redis' beforeSleep(); clients of other loops waiting share the fsync
+        commandHandler.awaitDurable();
+        if (pendingWrites.isEmpty() && !replyBuffer.isEmpty()) {
+            // Common case: write the batch straight from the reply buffer and only copy what the socket didn't take
+            ByteBuffer batch = replyBuffer.asByteBuffer();
+            channel.write(batch);
+            if (batch.hasRemaining()) {
+                ByteBuffer rest = ByteBuffer.allocate(batch.remaining());
+                rest.put(batch).flip();
+                pendingWrites.add(rest);
+            }
+            replyBuffer.reset();
+        } else if (!pendingWrites.isEmpty() || !replyBuffer.isEmpty()) {
+            queueReplies();
+            // Gathering write: every queued reply in a single syscall
+            channel.write(pendingWrites.toArray(new ByteBuffer[0]));
+        }
+        while (!pendingWrites.isEmpty() && !pendingWrites.peek().hasRemaining()) {
+            pendingWrites.poll();
+        }
+        if (pendingWrites.isEmpty()) {
+            messageBacklog = 0;
+        }
+        updateInterest();
+    }
+
+    private void updateInterest() {
+        if (selectionKey == null || !selectionKey.isValid()) {
+            return;
+        }
+        int ops = blocked ? 0 : SelectionKey.OP_READ;
+        if (!pendingWrites.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        selectionKey.interestOps(ops);
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        commandHandler.onClose();
+        commandRegistry.getStats().clientDisconnected();
+        if (selectionKey != null) {
+            selectionKey.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.redis.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import com.redis.commands.CommandHandler;
+import com.redis.commands.CommandRegistry;
+
+public class NioConnectionHandler {
+    private final int port;
+    private final int ioThreads;
+    private final CommandRegistry commandRegistry;
+    private final ShardExecutor shardExecutor;
+    // One CommandHandler per connection
+    private final Supplier<CommandHandler> commandHandlers;
+
+    public NioConnectionHandler(int port, int ioThreads,
+                                CommandRegistry commandRegistry, ShardExecutor shardExecutor,
+                                Supplier<CommandHandler> commandHandlers) {
+        this.port = port;
+        this.ioThreads = Math.max(1, ioThreads);
+        this.commandRegistry = commandRegistry;
+        this.shardExecutor = shardExecutor;
+        this.commandHandlers = commandHandlers;
+    }
+
+    public void start() {
+        // Blocking commands (XREAD BLOCK) are parked here so they never stall an event loop
+        ExecutorService blockingExecutor = Executors.newCachedThreadPool();
+        EventLoop[] eventLoops = new EventLoop[ioThreads];
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(new InetSocketAddress(port));
+
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop(i, blockingExecutor);
+                eventLoops[i].start();
+            }
+
+            int next = 0;
+            while (true) {
+                SocketChannel clientChannel = serverChannel.accept();
+                clientChannel.configureBlocking(false);
+                clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                // Round-robin: each connection is owned by exactly one event loop for its whole lifetime
+                EventLoop eventLoop = eventLoops[next];
+                next = (next + 1) % eventLoops.length;
+                commandRegistry.getStats().clientConnected();
+                CommandHandler commandHandler = commandHandlers.get();
+                InetSocketAddress remote = (InetSocketAddress) clientChannel.getRemoteAddress();
+                commandHandler.setClientAddress(remote.getAddress().getHostAddress() + ":" + remote.getPort());
+                eventLoop.register(new NioClient(clientChannel, eventLoop, commandRegistry, shardExecutor, commandHandler));
+            }
+        } catch (IOException e) {
+            System.out.println("Error starting server: " + e.getMessage());
+        } finally {
+            blockingExecutor.shutdownNow();
+        }
+    }
+}
@@ -1,33 +1,168 @@
 package com.redis.server;
 
-import com.redis.data.Cache;
-import com.redis.data.StreamCache;
+import com.redis.commands.CommandHandler;
+import com.redis.commands.CommandProcessor.RedisParser;
+import com.redis.commands.CommandRegistry;
+import com.redis.commands.ReplyBuffer;
+import com.redis.commands.RespParser;
+import com.redis.data.ActiveExpireCycle;
+import com.redis.data.AppendOnlyFile;
+import com.redis.data.Evictor;
+import com.redis.data.Keyspace;
+import com.redis.data.OffHeapStore;
 import com.redis.data.RdbFileLoader;
+import com.redis.data.SnapshotManager;
+import com.redis.pubsub.PubSub;
+import com.redis.replication.ReplicationManager;
 
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 public class Server {
     private final ConfigManager configManager;
-    private final ConcurrentHashMap<String, Cache> setMap;
-    private final ConcurrentHashMap<String, Cache> rdbMap;
-    private final ConcurrentHashMap<String, StreamCache> streamMap;
-
-    public Server(String dir, String dbFilename) {
-        this.configManager = new ConfigManager();
-        this.setMap = new ConcurrentHashMap<>();
-        this.rdbMap = new ConcurrentHashMap<>();
-        this.streamMap = new ConcurrentHashMap<>();
-        
-        configManager.setConfig("dir", dir);
-        configManager.setConfig("dbfilename", dbFilename);
-        
-        RdbFileLoader rdbLoader = new RdbFileLoader(dir, dbFilename, rdbMap);
+    private final Keyspace keyspace;
+    private final CommandRegistry commandRegistry;
+    private final SnapshotManager snapshotManager;
+    private final AppendOnlyFile appendOnlyFile;
+    private final ReplicationManager replicationManager;
+    private final Evictor evictor;
+
+    public Server(ConfigManager configManager) {
+        this.configManager = configManager;
+        this.keyspace = new Keyspace();
+        this.commandRegistry = new CommandRegistry();
+        if ("offheap".equalsIgnoreCase(configManager.getConfig("value-storage"))) {
+            // Before loading, so loaded values go off heap too
+            keyspace.setOffHeapStore(new OffHeapStore(Integer.parseInt(configManager.getConfig("offheap-min-value-size"))));
+        }
+        // Also before loading, so loaded collections get the configured encodings
+        keyspace.getEncodingLimits().reloadConfig(configManager.getConfigMap());
+        commandRegistry.getSlowLog().reloadConfig(configManager.getConfigMap());
+
+        if ("yes".equalsIgnoreCase(configManager.getConfig("appendonly"))) {
+            // As in Redis, the AOF is more complete than the last snapshot, so it wins when it exists
+            this.appendOnlyFile = new AppendOnlyFile(keyspace, configManager.getConfigMap());
+            if (Files.exists(appendOnlyFile.getPath())) {
+                replayAppendOnlyFile();
+            } else {
+                loadRdbFile();
+            }
+            try {
+                appendOnlyFile.open();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Can't open the append only file", e);
+            }
+            keyspace.addCommandLog(appendOnlyFile);
+        } else {
+            this.appendOnlyFile = null;
+            loadRdbFile();
+        }
+        this.snapshotManager = new SnapshotManager(keyspace, configManager.getConfigMap());
+        this.replicationManager = new ReplicationManager(keyspace, configManager.getConfigMap());
+        // Set after loading, which then needn't track accesses; a dataset loaded over maxmemory is evicted by the first writes
+        this.evictor = new Evictor(keyspace, configManager.getConfigMap());
+        keyspace.setEvictor(evictor);
+    }
+
+    private void loadRdbFile() {
+        RdbFileLoader rdbLoader = new RdbFileLoader(configManager.getConfig("dir"), configManager.getConfig("dbfilename"), keyspace);
         rdbLoader.load();
     }
 
+    // Runs every logged command through the normal dispatch, before the command log is attached so nothing is
+    // logged twice. A command cut short by a crash at the end of the file is dropped, and the file truncated
+    // before it, like Redis' aof-load-truncated.
+    private void replayAppendOnlyFile() {
+        long started = System.currentTimeMillis();
+        CommandHandler commandHandler = new CommandHandler(keyspace, configManager.getConfigMap(), null, null, null, null, commandRegistry, null);
+        ReplyBuffer replies = new ReplyBuffer();
+        RespParser respParser = new RespParser();
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        long commands = 0;
+        long consumed = 0;
+        try (FileChannel channel = FileChannel.open(appendOnlyFile.getPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                RedisParser command;
+                while ((command = respParser.parse(buffer)) != null) {
+                    commandRegistry.dispatch(command, commandHandler, replies);
+                    replies.reset();
+                    commands++;
+                }
+                consumed += buffer.position();
+                buffer.compact();
+                buffer = RespParser.ensureWritable(buffer);
+            }
+            if (consumed < channel.size()) {
+                System.out.println("Append only file ends with an incomplete command, truncating it from "
+                    + channel.size() + " to " + consumed + " bytes");
+                channel.truncate(consumed);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Bad file format reading the append only file " + appendOnlyFile.getPath(), e);
+        }
+        System.out.println("Replayed " + commands + " commands from " + appendOnlyFile.getPath()
+            + " in " + (System.currentTimeMillis() - started) + " ms");
+    }
+
+    // Background tasks, like Redis' serverCron: the active expiry cycle hz times per second with a 25% CPU budget
+    // per run, and the save points once a second
+    private void startCron() {
+        int hz = Math.max(1, Integer.parseInt(configManager.getConfig("hz")));
+        long periodMillis = 1000 / hz;
+        ScheduledExecutorService cron = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "server-cron");
+            thread.setDaemon(true);
+            return thread;
+        });
+        cron.scheduleAtFixedRate(new ActiveExpireCycle(keyspace, Math.max(1, periodMillis / 4)), periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        cron.scheduleAtFixedRate(snapshotManager::checkSavePoints, 1, 1, TimeUnit.SECONDS);
+        if (appendOnlyFile != null) {
+            // Its own thread, as Redis' background fsync: a slow disk must not hold up expiry
+            ScheduledExecutorService aofFlusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "aof-fsync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            aofFlusher.scheduleAtFixedRate(appendOnlyFile::flushEverySecond, 1, 1, TimeUnit.SECONDS);
+        }
+    }
+
     public void start() {
-        int port = 6379;
-        ConnectionHandler connectionHandler = new ConnectionHandler(port, setMap, rdbMap, streamMap, configManager.getConfigMap());
+        int port = Integer.parseInt(configManager.getConfig("port"));
+        startCron();
+        int metricsPort = Integer.parseInt(configManager.getConfig("metrics-port"));
+        if (metricsPort > 0) {
+            try {
+                new MetricsEndpoint(metricsPort, keyspace, evictor, commandRegistry).start();
+            } catch (IOException e) {
+                System.out.println("Error starting the metrics endpoint: " + e.getMessage());
+            }
+        }
+        // 0 shards: every command runs on its connection's thread
+        ShardExecutor shardExecutor = new ShardExecutor(Integer.parseInt(configManager.getConfig("shards")), commandRegistry);
+        shardExecutor.start();
+        PubSub pubSub = new PubSub();
+        Supplier<CommandHandler> commandHandlers = () -> new CommandHandler(keyspace, configManager.getConfigMap(), snapshotManager, appendOnlyFile, replicationManager, evictor, commandRegistry, pubSub);
+        if (replicationManager.isReplica()) {
+            new MasterLink(replicationManager, keyspace, commandRegistry, commandHandlers.get(), configManager.getConfigMap(), appendOnlyFile).start();
+        }
+        if ("nio".equalsIgnoreCase(configManager.getConfig("io-mode"))) {
+            int ioThreads = Integer.parseInt(configManager.getConfig("io-threads"));
+            NioConnectionHandler connectionHandler = new NioConnectionHandler(port, ioThreads, commandRegistry, shardExecutor, commandHandlers);
+            connectionHandler.start();
+            return;
+        }
+        boolean virtualThreads = "virtual".equalsIgnoreCase(configManager.getConfig("io-mode"));
+        ConnectionHandler connectionHandler = new ConnectionHandler(port, virtualThreads, commandRegistry, shardExecutor, commandHandlers);
         connectionHandler.start();
     }
 }
@@ -0,0 +1,291 @@
+package com.redis.server;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import com.redis.commands.CommandHandler;
+import com.redis.commands.CommandProcessor.RedisParser;
+import com.redis.commands.CommandRegistry;
+import com.redis.commands.RedisCommand;
+import com.redis.commands.ReplyBuffer;
+
+// Shard-per-core execution (--shards N): every key belongs to one of N shards by the hash of its bytes, or of
+// the part between { and } like Redis Cluster's hash tags, and each shard is a thread that runs every command on
+// its keys, taken from a lock-free queue. Connection threads only parse, forward and reply, so a key is only
+// ever written by one thread: its data stays in that core's cache and the locks inside the keyspace are never
+// contended. Commands without keys and blocking commands run on the connection's thread as before. A command
+// whose keys span shards pauses each of them, in ascending order so two such commands can't deadlock, and runs
+// on the connection's thread while they wait. EXEC does the same over the shards of all its queued commands, or
+// every shard if one of them reads or writes without key positions (KEYS, XREAD), so the transaction's writes
+// also happen only while their shards wait. With 0 shards everything runs on the connection's thread.
+// Background expiry and eviction still reach any key through the keyspace's thread-safe paths.
+public class ShardExecutor {
+    // A forwarding connection spins this many times before parking, when another core can finish the command
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 200 : 0;
+    private static final int NO_SHARD = -1;
+    private static final int MANY_SHARDS = -2;
+
+    private final CommandRegistry commandRegistry;
+    private final Shard[] shards;
+    // Each connection thread forwards one command at a time, so it reuses one Call
+    private final ThreadLocal<Call> calls = ThreadLocal.withInitial(Call::new);
+
+    public ShardExecutor(int shardCount, CommandRegistry commandRegistry) {
+        this.commandRegistry = commandRegistry;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i);
+        }
+    }
+
+    public void start() {
+        for (Shard shard : shards) {
+            shard.start();
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    // Runs a command where it belongs and returns once it ran; a drop-in for CommandRegistry.dispatch
+    public void dispatch(RedisCommand resolved, RedisParser command, CommandHandler commandHandler, ReplyBuffer outputStream) throws IOException {
+        if (shards.length == 0) {
+            commandRegistry.dispatch(resolved, command, commandHandler, outputStream);
+            return;
+        }
+        if (commandHandler.isInMulti()) {
+            // Queued commands only touch the connection's state until EXEC runs them
+            if (resolved != null && resolved.getName().equals("exec")) {
+                runPaused(transactionShards(commandHandler), resolved, command, commandHandler, outputStream);
+            } else {
+                commandRegistry.dispatch(resolved, command, commandHandler, outputStream);
+            }
+            return;
+        }
+        int shard = shardOf(resolved, command);
+        if (shard == NO_SHARD) {
+            commandRegistry.dispatch(resolved, command, commandHandler, outputStream);
+        } else if (shard == MANY_SHARDS) {
+            runPaused(shardsOf(resolved, command), resolved, command, commandHandler, outputStream);
+        } else {
+            Call call = calls.get();
+            call.prepare(resolved, command, commandHandler, outputStream);
+            shards[shard].submit(call);
+            call.await();
+        }
+    }
+
+    // Runs a command on the calling thread while the given shards wait, so it reads and writes their keys as one
+    // step
+    private void runPaused(BitSet paused, RedisCommand resolved, RedisParser command, CommandHandler commandHandler, ReplyBuffer outputStream) throws IOException {
+        Pause[] pauses = new Pause[paused.cardinality()];
+        int count = 0;
+        try {
+            for (int shard = paused.nextSetBit(0); shard >= 0; shard = paused.nextSetBit(shard + 1)) {
+                Pause pause = new Pause();
+                shards[shard].submit(pause);
+                pauses[count++] = pause;
+                // Only ask for the next shard once this one stopped: taking them in order is what rules out deadlocks
+                pause.awaitPaused();
+            }
+            commandRegistry.dispatch(resolved, command, commandHandler, outputStream);
+        } finally {
+            for (int i = 0; i < count; i++) {
+                pauses[i].release();
+            }
+        }
+    }
+
+    private BitSet allShards() {
+        BitSet all = new BitSet(shards.length);
+        all.set(0, shards.length);
+        return all;
+    }
+
+    // The shards the commands queued since MULTI will touch when EXEC runs them
+    private BitSet transactionShards(CommandHandler commandHandler) {
+        List<RedisParser> commands = commandHandler.getQueuedCommands();
+        List<RedisCommand> resolved = commandHandler.getQueuedResolved();
+        BitSet found = new BitSet(shards.length);
+        for (int i = 0; i < commands.size(); i++) {
+            RedisCommand redisCommand = resolved.get(i);
+            if (redisCommand.getFirstKey() > 0) {
+                found.or(shardsOf(redisCommand, commands.get(i)));
+            } else if (redisCommand.hasFlag(RedisCommand.WRITE) || redisCommand.hasFlag(RedisCommand.READONLY)) {
+                return allShards();
+            }
+        }
+        return found;
+    }
+
+    // The one shard every key of the command is in, NO_SHARD for commands that run on the caller and MANY_SHARDS
+    private int shardOf(RedisCommand resolved, RedisParser command) {
+        if (resolved == null || resolved.getFirstKey() <= 0 || resolved.hasFlag(RedisCommand.BLOCKING)
+                || !resolved.acceptsArgumentCount(command.size())) {
+            return NO_SHARD;
+        }
+        int found = NO_SHARD;
+        for (int i = resolved.getFirstKey(); i <= resolved.lastKeyIndex(command.size()); i += resolved.getKeyStep()) {
+            int shard = shardOf(command.getData(), command.getOffset(i), command.getLength(i));
+            if (found != NO_SHARD && shard != found) {
+                return MANY_SHARDS;
+            }
+            found = shard;
+        }
+        return found;
+    }
+
+    private BitSet shardsOf(RedisCommand resolved, RedisParser command) {
+        BitSet found = new BitSet(shards.length);
+        for (int i = resolved.getFirstKey(); i <= resolved.lastKeyIndex(command.size()); i += resolved.getKeyStep()) {
+            found.set(shardOf(command.getData(), command.getOffset(i), command.getLength(i)));
+        }
+        return found;
+    }
+
+    public int shardOf(byte[] data, int offset, int length) {
+        // Only the hash tag counts if there is a non-empty one, so related keys can be kept on one shard
+        for (int i = offset; i < offset + length; i++) {
+            if (data[i] == '{') {
+                for (int j = i + 1; j < offset + length; j++) {
+                    if (data[j] == '}') {
+                        if (j > i + 1) {
+                            length = j - i - 1;
+                            offset = i + 1;
+                        }
+                        break;
+                    }
+                }
+                break;
+            }
+        }
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = hash * 31 + data[i];
+        }
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, shards.length);
+    }
+
+    private final class Shard extends Thread {
+        // Many connections offer, only the shard polls
+        private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+        private volatile boolean parked;
+
+        Shard(int index) {
+            super("shard-" + index);
+            setDaemon(true);
+        }
+
+        void submit(Runnable task) {
+            queue.offer(task);
+            if (parked) {
+                LockSupport.unpark(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task = queue.poll();
+                if (task != null) {
+                    task.run();
+                    continue;
+                }
+                parked = true;
+                // A task offered after the poll either shows up here or sees parked and unparks us
+                if (queue.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+            }
+        }
+    }
+
+    // One forwarded command, run on the shard while the connection's thread waits for it
+    private final class Call implements Runnable {
+        private final Thread waiter = Thread.currentThread();
+        private RedisCommand resolved;
+        private RedisParser command;
+        private CommandHandler commandHandler;
+        private ReplyBuffer outputStream;
+        private Throwable failure;
+        // Written last by the shard, so everything the command did is visible to the waiter once it reads true
+        private volatile boolean done;
+
+        void prepare(RedisCommand resolved, RedisParser command, CommandHandler commandHandler, ReplyBuffer outputStream) {
+            this.resolved = resolved;
+            this.command = command;
+            this.commandHandler = commandHandler;
+            this.outputStream = outputStream;
+            this.failure = null;
+            this.done = false;
+        }
+
+        @Override
+        public void run() {
+            try {
+                commandRegistry.dispatch(resolved, command, commandHandler, outputStream);
+            } catch (Throwable e) {
+                failure = e;
+            } finally {
+                done = true;
+                LockSupport.unpark(waiter);
+            }
+        }
+
+        void await() throws IOException {
+            for (int i = 0; i < SPINS && !done; i++) {
+                Thread.onSpinWait();
+            }
+            while (!done) {
+                LockSupport.park(this);
+            }
+            command = null;
+            outputStream = null;
+            if (failure instanceof IOException e) {
+                throw e;
+            } else if (failure instanceof RuntimeException e) {
+                throw e;
+            } else if (failure instanceof Error e) {
+                throw e;
+            }
+        }
+    }
+
+    // Holds a shard between two of its commands until release()
+    private static final class Pause implements Runnable {
+        private final Thread coordinator = Thread.currentThread();
+        private volatile Thread shard;
+        private volatile boolean paused;
+        private volatile boolean released;
+
+        @Override
+        public void run() {
+            shard = Thread.currentThread();
+            paused = true;
+            LockSupport.unpark(coordinator);
+            while (!released) {
+                LockSupport.park(this);
+            }
+        }
+
+        void awaitPaused() {
+            while (!paused) {
+                LockSupport.park(this);
+            }
+        }
+
+        void release() {
+            released = true;
+            Thread pausedShard = shard;
+            if (pausedShard != null) {
+                LockSupport.unpark(pausedShard);
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.redis.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.redis.pubsub.Subscriber;
+
+// Output of a ClientHandler connection once it subscribed: its replies and its messages all queue here and a
+// virtual thread of its own writes them to the socket, so publishers only ever append to the queue. Messages
+// that arrive while the socket is busy leave together in one write.
+class SocketSubscriber implements Subscriber {
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final OutputStream outputStream;
+    private final ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<>();
+    // Bytes queued and not yet written
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    SocketSubscriber(Socket socket, OutputStream outputStream) {
+        this.socket = socket;
+        this.outputStream = new BufferedOutputStream(outputStream, WRITE_BUFFER_SIZE);
+        this.writer = Thread.ofVirtual().name("subscriber-" + socket.getPort()).start(this::writeQueued);
+    }
+
+    // Synchronized so a publisher waits for a SUBSCRIBE in progress on this connection to queue its confirmations
+    @Override
+    public synchronized void send(byte[] message) {
+        if (closed) {
+            return;
+        }
+        if (pendingBytes.addAndGet(message.length) > MAX_PENDING_BYTES) {
+            System.out.println("Closing subscriber " + socket.getRemoteSocketAddress() + ": more than "
+                + MAX_PENDING_BYTES + " bytes behind");
+            close();
+            return;
+        }
+        queue.offer(message);
+        LockSupport.unpark(writer);
+    }
+
+    // Also makes the connection's read fail, so its ClientHandler cleans up
+    void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
+        }
+    }
+
+    private void writeQueued() {
+        try {
+            while (!closed) {
+                byte[] next = queue.poll();
+                if (next != null) {
+                    outputStream.write(next);
+                    pendingBytes.addAndGet(-next.length);
+                    continue;
+                }
+                outputStream.flush();
+                // A send() after the poll has unparked us already, so this returns at once then
+                if (queue.isEmpty() && !closed) {
+                    LockSupport.park(this);
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                close();
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.redis.commands;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.redis.commands.CommandProcessor.RedisParser;
+import com.redis.data.Keyspace;
+
+// XREAD BLOCK on one connection, XADD on another, both on the same keyspace and registry as two clients of one
+// server: the reader has to wake on the writer's XADD, not on its own timeout
+class BlockingReadTest {
+    // Far above a wakeup, far below the BLOCK times used here
+    private static final long WAKEUP_MILLIS = 50;
+
+    private final Keyspace keyspace = new Keyspace();
+    private final CommandRegistry commandRegistry = new CommandRegistry();
+    private final CommandHandler reader = connection();
+    private final CommandHandler writer = connection();
+
+    private CommandHandler connection() {
+        return new CommandHandler(keyspace, new ConcurrentHashMap<>(), null, null, null, null, commandRegistry, null);
+    }
+
+    private String run(CommandHandler commandHandler, String... arguments) throws IOException {
+        ReplyBuffer replies = new ReplyBuffer();
+        commandRegistry.dispatch(RedisParser.of(List.of(arguments)), commandHandler, replies);
+        return new String(replies.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    // The reply, and when it came in System.nanoTime()
+    private record Reply(String reply, long nanos) {
+    }
+
+    // Starts the command on the reader's own thread and returns once that thread is parked in it
+    private CompletableFuture<Reply> startBlocked(String... arguments) throws InterruptedException {
+        CompletableFuture<Reply> reply = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                String result = run(reader, arguments);
+                reply.complete(new Reply(result, System.nanoTime()));
+            } catch (Throwable e) {
+                reply.completeExceptionally(e);
+            }
+        }, "reader");
+        // A reader that is never woken must not keep the test JVM alive
+        thread.setDaemon(true);
+        thread.start();
+        while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TIMED_WAITING && !reply.isDone()) {
+            Thread.sleep(1);
+        }
+        return reply;
+    }
+
+    private void assertWokenByXadd(String... readArguments) throws Exception {
+        run(writer, "XADD", "s", "1-1", "old", "entry");
+        CompletableFuture<Reply> reply = startBlocked(readArguments);
+        long added = System.nanoTime();
+        run(writer, "XADD", "s", "2-1", "f", "v");
+        Reply result = reply.get(10, TimeUnit.SECONDS);
+
+        long wakeMillis = TimeUnit.NANOSECONDS.toMillis(result.nanos - added);
+        assertTrue(wakeMillis < WAKEUP_MILLIS, "reader woke after " + wakeMillis + " ms");
+        // Only the new entry: $ means after what the stream held when XREAD started
+        assertEquals("*1\r\n*2\r\n$1\r\ns\r\n*1\r\n*2\r\n$3\r\n2-1\r\n*2\r\n$1\r\nf\r\n$1\r\nv\r\n", result.reply);
+    }
+
+    @Test
+    void blockZeroWakesOnAnotherConnectionsXadd() throws Exception {
+        assertWokenByXadd("XREAD", "BLOCK", "0", "STREAMS", "s", "$");
+    }
+
+    @Test
+    void blockTimeoutWakesOnAnotherConnectionsXadd() throws Exception {
+        assertWokenByXadd("XREAD", "BLOCK", "5000", "STREAMS", "s", "$");
+    }
+
+    @Test
+    void xaddToAnotherStreamLeavesTheReaderBlocked() throws Exception {
+        long blockMillis = 300;
+        long started = System.nanoTime();
+        CompletableFuture<Reply> reply = startBlocked("XREAD", "BLOCK", Long.toString(blockMillis), "STREAMS", "other", "$");
+        run(writer, "XADD", "s", "*", "f", "v");
+        Reply result = reply.get(10, TimeUnit.SECONDS);
+
+        assertEquals("$-1\r\n", result.reply);
+        long waitedMillis = TimeUnit.NANOSECONDS.toMillis(result.nanos - started);
+        assertTrue(waitedMillis >= blockMillis, "reader returned after " + waitedMillis + " ms");
+    }
+}
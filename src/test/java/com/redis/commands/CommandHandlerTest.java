@@ -0,0 +1,69 @@
+package com.redis.commands;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.Test;
+
+import com.redis.commands.CommandProcessor.RedisParser;
+import com.redis.data.Keyspace;
+
+// Commands run through CommandRegistry.dispatch as a connection runs them, without a server around them
+class CommandHandlerTest {
+    private final Keyspace keyspace = new Keyspace();
+    private final CommandRegistry commandRegistry = new CommandRegistry();
+    private final CommandHandler commandHandler = new CommandHandler(keyspace, new ConcurrentHashMap<>(), null, null, null, null, commandRegistry, null);
+
+    private String run(String... arguments) throws IOException {
+        ReplyBuffer replies = new ReplyBuffer();
+        commandRegistry.dispatch(RedisParser.of(List.of(arguments)), commandHandler, replies);
+        return new String(replies.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    void setAndGet() throws IOException {
+        assertEquals("+OK\r\n", run("SET", "key", "value"));
+        assertEquals("$5\r\nvalue\r\n", run("GET", "key"));
+        assertEquals("$-1\r\n", run("GET", "missing"));
+        assertEquals("-ERR wrong number of arguments for 'get' command\r\n", run("GET"));
+    }
+
+    @Test
+    void expireAndTtl() throws IOException {
+        run("SET", "key", "value", "EX", "100");
+        assertEquals(":100\r\n", run("TTL", "key"));
+        assertEquals(":1\r\n", run("EXPIRE", "key", "200"));
+        assertEquals(":200\r\n", run("TTL", "key"));
+        assertEquals(":1\r\n", run("PERSIST", "key"));
+        assertEquals(":-1\r\n", run("TTL", "key"));
+        assertEquals(":0\r\n", run("EXPIRE", "missing", "10"));
+        assertEquals(":-2\r\n", run("TTL", "missing"));
+
+        // A deadline in the past deletes the key
+        assertEquals(":1\r\n", run("PEXPIREAT", "key", "1"));
+        assertEquals("$-1\r\n", run("GET", "key"));
+    }
+
+    @Test
+    void expireTimesThatOverflowAreRejected() throws IOException {
+        run("SET", "key", "value");
+        assertEquals("-ERR invalid expire time in 'expire' command\r\n", run("EXPIRE", "key", "9223372036854775"));
+        assertEquals("-ERR invalid expire time in 'pexpire' command\r\n", run("pexpire", "key", "9223372036854775807"));
+        assertEquals("-ERR invalid expire time in 'expireat' command\r\n", run("EXPIREAT", "key", "9223372036854776"));
+        assertEquals("-ERR invalid expire time in 'set' command\r\n", run("SET", "key", "value", "EX", "9223372036854775"));
+        assertEquals(":-1\r\n", run("TTL", "key"));
+    }
+
+    @Test
+    void incrByFloatPrintsLikeRedis() throws IOException {
+        run("SET", "f", "1.1");
+        assertEquals("$3\r\n3.3\r\n", run("INCRBYFLOAT", "f", "2.2"));
+        assertEquals("$3\r\n0.3\r\n", run("INCRBYFLOAT", "g", "0.3"));
+        assertEquals("$6\r\n5200.3\r\n", run("INCRBYFLOAT", "g", "5.2e3"));
+        assertEquals("$1\r\n0\r\n", run("INCRBYFLOAT", "g", "-5200.3"));
+    }
+}
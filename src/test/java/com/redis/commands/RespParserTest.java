@@ -0,0 +1,122 @@
+package com.redis.commands;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.redis.commands.CommandProcessor.RedisParser;
+
+class RespParserTest {
+    // The request a client sends for these arguments
+    private static byte[] encode(byte[]... arguments) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(("*" + arguments.length + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        for (byte[] argument : arguments) {
+            out.writeBytes(("$" + argument.length + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.writeBytes(argument);
+            out.writeBytes("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] encode(String... arguments) {
+        byte[][] bytes = new byte[arguments.length][];
+        for (int i = 0; i < arguments.length; i++) {
+            bytes[i] = arguments[i].getBytes(StandardCharsets.ISO_8859_1);
+        }
+        return encode(bytes);
+    }
+
+    private static List<String> arguments(RedisParser command) {
+        List<String> arguments = new ArrayList<>();
+        for (int i = 0; i < command.size(); i++) {
+            arguments.add(command.getString(i));
+        }
+        return arguments;
+    }
+
+    @Test
+    void parsesOneCommand() throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(encode("SET", "key", "value"));
+        RedisParser command = new RespParser().parse(buffer);
+        assertNotNull(command);
+        assertEquals(List.of("SET", "key", "value"), arguments(command));
+        assertEquals("SET", command.getCommand());
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    void keepsEveryByteOfBulkStrings() throws IOException {
+        byte[] binary = new byte[256];
+        for (int i = 0; i < binary.length; i++) {
+            binary[i] = (byte) i;
+        }
+        byte[] crlf = "a\r\nb".getBytes(StandardCharsets.ISO_8859_1);
+        RedisParser command = new RespParser().parse(ByteBuffer.wrap(encode("SET".getBytes(StandardCharsets.ISO_8859_1), binary, crlf, new byte[0])));
+        assertArrayEquals(binary, command.getBytes(1));
+        assertArrayEquals(crlf, command.getBytes(2));
+        assertEquals("", command.getString(3));
+        // ISO-8859-1 decoding keeps one char per byte
+        assertEquals(256, command.getString(1).length());
+    }
+
+    @Test
+    void parsesPipelinedCommandsInOrder() throws IOException {
+        ByteArrayOutputStream pipeline = new ByteArrayOutputStream();
+        pipeline.writeBytes(encode("PING"));
+        pipeline.writeBytes(encode("GET", "a"));
+        pipeline.writeBytes(encode("MSET", "a", "1", "b", "2"));
+        ByteBuffer buffer = ByteBuffer.wrap(pipeline.toByteArray());
+        RespParser parser = new RespParser();
+        assertEquals(List.of("PING"), arguments(parser.parse(buffer)));
+        assertEquals(List.of("GET", "a"), arguments(parser.parse(buffer)));
+        assertEquals(List.of("MSET", "a", "1", "b", "2"), arguments(parser.parse(buffer)));
+        assertNull(parser.parse(buffer));
+    }
+
+    // A non-blocking reader gets the request a byte at a time, compacting between reads as NioClient does
+    @Test
+    void resumesPartialFrames() throws IOException {
+        byte[] request = encode("HSET", "user", "name", "a much longer value than the rest");
+        RespParser parser = new RespParser();
+        ByteBuffer buffer = ByteBuffer.allocate(4).flip();
+        RedisParser command = null;
+        for (int i = 0; i < request.length; i++) {
+            assertNull(command, "complete before byte " + i);
+            buffer = RespParser.ensureWritable(buffer.compact());
+            buffer.put(request[i]);
+            buffer.flip();
+            command = parser.parse(buffer);
+        }
+        assertNotNull(command);
+        assertEquals(List.of("HSET", "user", "name", "a much longer value than the rest"), arguments(command));
+    }
+
+    @Test
+    void copySurvivesReuseOfTheReadBuffer() throws IOException {
+        byte[] request = encode("SET", "key", "value");
+        ByteBuffer buffer = ByteBuffer.wrap(request);
+        RedisParser copy = new RespParser().parse(buffer).copy();
+        buffer.clear();
+        buffer.put(new byte[request.length]);
+        assertEquals(List.of("SET", "key", "value"), arguments(copy));
+    }
+
+    @Test
+    void rejectsMalformedFrames() {
+        assertThrows(IOException.class, () -> new RespParser().parse(ByteBuffer.wrap("*1\r\n+PING\r\n".getBytes(StandardCharsets.ISO_8859_1))));
+        assertThrows(IOException.class, () -> new RespParser().parse(ByteBuffer.wrap("*1\r\n$4\r\nPINGXX".getBytes(StandardCharsets.ISO_8859_1))));
+        assertThrows(IOException.class, () -> new RespParser().parse(ByteBuffer.wrap("*1\r\n$\r\n".getBytes(StandardCharsets.ISO_8859_1))));
+    }
+}
@@ -0,0 +1,51 @@
+package com.redis.data;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class BlockingKeysTest {
+    private final BlockingKeys blockingKeys = new BlockingKeys();
+
+    // Signals key from another thread once the waiter had time to park
+    private static void signalLater(BlockingKeys blockingKeys, String key) {
+        Thread signaller = new Thread(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                return;
+            }
+            blockingKeys.signal(key);
+        });
+        signaller.start();
+    }
+
+    @Test
+    void signalWakesTheWaitersOnItsKey() {
+        BlockingKeys.Waiter waiter = blockingKeys.register(List.of("a", "b"));
+        signalLater(blockingKeys, "b");
+        long started = System.nanoTime();
+        assertTrue(waiter.await(5_000));
+        assertTrue(System.nanoTime() - started < 1_000_000_000L);
+        blockingKeys.unregister(waiter);
+    }
+
+    @Test
+    void signalLeavesWaitersOnOtherKeysParked() {
+        BlockingKeys.Waiter waiter = blockingKeys.register(List.of("other"));
+        signalLater(blockingKeys, "s");
+        assertFalse(waiter.await(200));
+        blockingKeys.unregister(waiter);
+    }
+
+    @Test
+    void unregisteredWaitersAreNotSignalled() {
+        BlockingKeys.Waiter waiter = blockingKeys.register(List.of("s"));
+        blockingKeys.unregister(waiter);
+        blockingKeys.signal("s");
+        assertFalse(waiter.await(50));
+    }
+}
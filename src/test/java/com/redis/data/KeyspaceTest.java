@@ -0,0 +1,93 @@
+package com.redis.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class KeyspaceTest {
+    private final Keyspace keyspace = new Keyspace();
+
+    private Cache string(String value, long ttl) {
+        return keyspace.newCache(value.getBytes(StandardCharsets.ISO_8859_1), ttl);
+    }
+
+    @Test
+    void putGetAndDelete() {
+        keyspace.put("a", string("1", -1));
+        keyspace.put("b", keyspace.newCache(42, -1));
+        assertEquals("1", ((Cache) keyspace.get("a")).getValue());
+        assertEquals(42, ((Cache) keyspace.get("b")).getLong());
+        assertEquals(2, keyspace.size());
+
+        keyspace.put("a", string("2", -1));
+        assertEquals("2", ((Cache) keyspace.get("a")).getValue());
+
+        assertTrue(keyspace.delete("a", false));
+        assertFalse(keyspace.delete("a", false));
+        assertNull(keyspace.get("a"));
+        assertEquals(1, keyspace.size());
+    }
+
+    @Test
+    void collectionsAreTyped() {
+        HashCache hash = keyspace.getOrCreate("h", HashCache.class, keyspace::newHash);
+        assertSame(hash, keyspace.getOrCreate("h", HashCache.class, keyspace::newHash));
+        keyspace.update("h", HashCache.class, keyspace::newHash, h -> h.put("field", "value"));
+        assertEquals("value", keyspace.get("h", HashCache.class).get("field"));
+        assertThrows(WrongTypeException.class, () -> keyspace.get("h", ListCache.class));
+
+        // A write that empties the collection deletes the key
+        keyspace.update("h", HashCache.class, null, h -> h.remove("field"));
+        assertNull(keyspace.get("h"));
+    }
+
+    @Test
+    void expiredKeysAreGoneOnAccess() throws InterruptedException {
+        keyspace.put("soon", string("v", System.currentTimeMillis() + 50));
+        keyspace.put("later", string("v", System.currentTimeMillis() + 60_000));
+        assertEquals(2, keyspace.getExpiresCount());
+        Thread.sleep(100);
+        assertNull(keyspace.get("soon"));
+        assertFalse(keyspace.containsKey("soon"));
+        assertEquals(1, keyspace.getExpiredLazy());
+        assertTrue(keyspace.containsKey("later"));
+    }
+
+    @Test
+    void activeExpiryRemovesKeysNobodyReads() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 50;
+        for (int i = 0; i < 100; i++) {
+            keyspace.put("key:" + i, string("v", deadline));
+        }
+        keyspace.put("kept", string("v", -1));
+        Thread.sleep(100);
+        new ActiveExpireCycle(keyspace, 1000).run();
+        assertEquals(1, keyspace.size());
+        assertEquals(100, keyspace.getExpiredActive());
+    }
+
+    @Test
+    void setExpireAndPersist() {
+        assertFalse(keyspace.setExpire("missing", System.currentTimeMillis() + 1000));
+
+        keyspace.put("k", string("v", -1));
+        long deadline = System.currentTimeMillis() + 60_000;
+        assertTrue(keyspace.setExpire("k", deadline));
+        assertEquals(deadline, keyspace.get("k").getTtl());
+
+        assertTrue(keyspace.persist("k"));
+        assertEquals(-1, keyspace.get("k").getTtl());
+        assertFalse(keyspace.persist("k"));
+
+        // A deadline in the past deletes the key at once
+        assertTrue(keyspace.setExpire("k", System.currentTimeMillis() - 1));
+        assertNull(keyspace.get("k"));
+    }
+}
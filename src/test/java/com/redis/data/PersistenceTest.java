@@ -0,0 +1,229 @@
+package com.redis.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.redis.commands.CommandHandler;
+import com.redis.commands.CommandProcessor.RedisParser;
+import com.redis.commands.CommandRegistry;
+import com.redis.commands.ReplyBuffer;
+import com.redis.commands.RespParser;
+
+// Writes a keyspace holding every type to an RDB file and to the append-only file, reads each back into a new
+// keyspace and compares what the commands see in both
+class PersistenceTest {
+    @TempDir
+    Path dir;
+
+    private final CommandRegistry commandRegistry = new CommandRegistry();
+
+    private CommandHandler handler(Keyspace keyspace, AppendOnlyFile appendOnlyFile) {
+        return new CommandHandler(keyspace, new ConcurrentHashMap<>(), null, appendOnlyFile, null, null, commandRegistry, null);
+    }
+
+    private String run(CommandHandler commandHandler, String... arguments) throws IOException {
+        ReplyBuffer replies = new ReplyBuffer();
+        commandRegistry.dispatch(RedisParser.of(List.of(arguments)), commandHandler, replies);
+        return new String(replies.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    private void populate(CommandHandler commandHandler) throws IOException {
+        run(commandHandler, "SET", "string", "hello");
+        run(commandHandler, "SET", "integer", "12345");
+        run(commandHandler, "SET", "volatile", "soon", "PX", "600000");
+        run(commandHandler, "HSET", "hash", "f1", "v1", "f2", "v2");
+        run(commandHandler, "RPUSH", "list", "a", "b", "c");
+        run(commandHandler, "LPUSH", "list", "z");
+        run(commandHandler, "SADD", "set", "x", "y", "z");
+        run(commandHandler, "SADD", "intset", "3", "1", "2");
+        run(commandHandler, "ZADD", "zset", "1", "a", "2.5", "b", "-3", "c");
+        // Past the listpack limits, so the other encodings are written too
+        for (int i = 0; i < 300; i++) {
+            run(commandHandler, "HSET", "bighash", "field:" + i, "value:" + i);
+            run(commandHandler, "RPUSH", "biglist", "element:" + i);
+            run(commandHandler, "SADD", "bigset", "member:" + i);
+            run(commandHandler, "ZADD", "bigzset", Integer.toString(i), "member:" + i);
+        }
+        run(commandHandler, "XADD", "stream", "1-1", "f", "v");
+        run(commandHandler, "XADD", "stream", "2-1", "g", "w", "h", "x");
+        run(commandHandler, "XGROUP", "CREATE", "stream", "group", "0");
+        run(commandHandler, "XREADGROUP", "GROUP", "group", "consumer", "COUNT", "1", "STREAMS", "stream", ">");
+        run(commandHandler, "SET", "deleted", "v");
+        run(commandHandler, "DEL", "deleted");
+    }
+
+    // What the commands see of every key, with the unordered types sorted
+    private Map<String, Object> contents(CommandHandler commandHandler) throws IOException {
+        Map<String, Object> contents = new TreeMap<>();
+        for (Object key : (List<?>) decode(run(commandHandler, "KEYS", "*"))) {
+            String name = (String) key;
+            String type = (String) decode(run(commandHandler, "TYPE", name));
+            Object value = switch (type) {
+                case "string" -> decode(run(commandHandler, "GET", name));
+                case "hash" -> pairs((List<?>) decode(run(commandHandler, "HGETALL", name)));
+                case "list" -> decode(run(commandHandler, "LRANGE", name, "0", "-1"));
+                case "set" -> sorted((List<?>) decode(run(commandHandler, "SMEMBERS", name)));
+                case "zset" -> decode(run(commandHandler, "ZRANGE", name, "0", "-1", "WITHSCORES"));
+                case "stream" -> List.of(decode(run(commandHandler, "XRANGE", name, "-", "+")),
+                    decode(run(commandHandler, "XPENDING", name, "group")));
+                default -> type;
+            };
+            contents.put(name, value);
+        }
+        return contents;
+    }
+
+    // Guards the comparisons against both sides being equally empty or equally failing
+    private Map<String, Object> expectedContents(CommandHandler commandHandler) throws IOException {
+        Map<String, Object> contents = contents(commandHandler);
+        assertEquals(13, contents.size());
+        assertEquals(List.of("z", "a", "b", "c"), contents.get("list"));
+        // One entry delivered to the group and not acknowledged
+        assertEquals(1L, ((List<?>) ((List<?>) contents.get("stream")).get(1)).get(0));
+        return contents;
+    }
+
+    private static Map<Object, Object> pairs(List<?> flat) {
+        Map<Object, Object> pairs = new TreeMap<>();
+        for (int i = 0; i < flat.size(); i += 2) {
+            pairs.put(flat.get(i), flat.get(i + 1));
+        }
+        return pairs;
+    }
+
+    private static List<String> sorted(List<?> values) {
+        List<String> sorted = new ArrayList<>();
+        for (Object value : values) {
+            sorted.add((String) value);
+        }
+        sorted.sort(null);
+        return sorted;
+    }
+
+    // A reply as nested lists of strings and longs; errors become "ERR ..." strings
+    private static Object decode(String reply) {
+        int[] position = {0};
+        return decode(reply, position);
+    }
+
+    private static Object decode(String reply, int[] position) {
+        char type = reply.charAt(position[0]);
+        int lineEnd = reply.indexOf("\r\n", position[0]);
+        String line = reply.substring(position[0] + 1, lineEnd);
+        position[0] = lineEnd + 2;
+        switch (type) {
+            case '+', '-':
+                return line;
+            case ':':
+                return Long.parseLong(line);
+            case '$': {
+                int length = Integer.parseInt(line);
+                if (length < 0) {
+                    return null;
+                }
+                String value = reply.substring(position[0], position[0] + length);
+                position[0] += length + 2;
+                return value;
+            }
+            case '*': {
+                int count = Integer.parseInt(line);
+                if (count < 0) {
+                    return null;
+                }
+                List<Object> values = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    values.add(decode(reply, position));
+                }
+                return values;
+            }
+            default:
+                throw new IllegalArgumentException("Unexpected reply: " + reply);
+        }
+    }
+
+    // What Server does at startup with the append-only file
+    private void replay(Path file, CommandHandler commandHandler) throws IOException {
+        ReplyBuffer replies = new ReplyBuffer();
+        RespParser respParser = new RespParser();
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                RedisParser command;
+                while ((command = respParser.parse(buffer)) != null) {
+                    commandRegistry.dispatch(command, commandHandler, replies);
+                    replies.reset();
+                }
+                buffer.compact();
+                buffer = RespParser.ensureWritable(buffer);
+            }
+        }
+    }
+
+    private static void assertTtlKept(Keyspace original, Keyspace loaded) {
+        long ttl = original.get("volatile").getTtl();
+        assertTrue(ttl > System.currentTimeMillis());
+        assertEquals(ttl, loaded.get("volatile").getTtl());
+        assertEquals(-1, loaded.get("string").getTtl());
+    }
+
+    @Test
+    void rdbFileRoundTrip() throws IOException {
+        Keyspace original = new Keyspace();
+        CommandHandler originalHandler = handler(original, null);
+        populate(originalHandler);
+        long written = new RdbFileWriter(original).write(dir.resolve("dump.rdb"), original.beginSnapshot());
+        assertEquals(original.size(), written);
+
+        Keyspace loaded = new Keyspace();
+        new RdbFileLoader(dir.toString(), "dump.rdb", loaded, 2).load();
+        assertEquals(expectedContents(originalHandler), contents(handler(loaded, null)));
+        assertTtlKept(original, loaded);
+    }
+
+    @Test
+    void appendOnlyFileRoundTrip() throws IOException {
+        ConcurrentHashMap<String, String> configMap = new ConcurrentHashMap<>();
+        configMap.put("dir", dir.toString());
+        configMap.put("appendfilename", "appendonly.aof");
+        configMap.put("appendfsync", "always");
+        Keyspace original = new Keyspace();
+        AppendOnlyFile appendOnlyFile = new AppendOnlyFile(original, configMap);
+        appendOnlyFile.open();
+        original.addCommandLog(appendOnlyFile);
+        CommandHandler originalHandler = handler(original, appendOnlyFile);
+        populate(originalHandler);
+        appendOnlyFile.await(appendOnlyFile.getAppendedPosition());
+
+        Keyspace replayed = new Keyspace();
+        CommandHandler replayedHandler = handler(replayed, null);
+        replay(appendOnlyFile.getPath(), replayedHandler);
+        assertEquals(expectedContents(originalHandler), contents(replayedHandler));
+        assertTtlKept(original, replayed);
+
+        // A rewrite keeps the same data in fewer commands
+        long logged = appendOnlyFile.getSize();
+        assertTrue(appendOnlyFile.rewrite());
+        assertTrue(appendOnlyFile.getSize() < logged);
+        Keyspace rewritten = new Keyspace();
+        CommandHandler rewrittenHandler = handler(rewritten, null);
+        replay(appendOnlyFile.getPath(), rewrittenHandler);
+        assertEquals(expectedContents(originalHandler), contents(rewrittenHandler));
+        assertTtlKept(original, rewritten);
+    }
+}